@@ -0,0 +1,119 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.benchmark;
+
+
+// Synthetic frames used by the benchmarks. The content is deterministic (same
+// frame for each run) and mixes smooth gradients, sharp edges and noise so that
+// data dependent code paths (thresholds, histograms, clusters) are exercised.
+public final class BenchmarkFrames
+{
+   // Supported frame sizes (JMH parameter values)
+   public static final String SIZE_720P  = "720p";
+   public static final String SIZE_1080P = "1080p";
+   public static final String SIZE_4K    = "4K";
+
+
+   private BenchmarkFrames()
+   {
+   }
+
+
+   public static int getWidth(String size)
+   {
+      switch (size)
+      {
+         case SIZE_720P :
+            return 1280;
+
+         case SIZE_1080P :
+            return 1920;
+
+         case SIZE_4K :
+            return 3840;
+
+         default :
+            throw new IllegalArgumentException("Invalid frame size: "+size+" (must be 720p, 1080p or 4K)");
+      }
+   }
+
+
+   public static int getHeight(String size)
+   {
+      switch (size)
+      {
+         case SIZE_720P :
+            return 720;
+
+         case SIZE_1080P :
+            return 1080;
+
+         case SIZE_4K :
+            return 2160;
+
+         default :
+            throw new IllegalArgumentException("Invalid frame size: "+size+" (must be 720p, 1080p or 4K)");
+      }
+   }
+
+
+   // Return a frame of packed RGB pixels (0xFFRRGGBB)
+   public static int[] createRGB(int width, int height)
+   {
+      final int[] rgb = new int[width*height];
+      int seed = 0x12345678;
+      int offs = 0;
+
+      for (int j=0; j<height; j++)
+      {
+         for (int i=0; i<width; i++)
+         {
+            seed = seed*1103515245 + 12345;
+            final int noise = (seed >>> 27) - 16;
+            final int block = (((i >> 6) ^ (j >> 6)) & 1) << 6; // sharp edges
+            final int r = clip((i*255)/width + noise + block);
+            final int g = clip((j*255)/height + noise);
+            final int b = clip(((i+j)*255)/(width+height) - noise + block);
+            rgb[offs+i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+         }
+
+         offs += width;
+      }
+
+      return rgb;
+   }
+
+
+   // Return a frame of single channel values in [0..255]
+   public static int[] createChannel(int width, int height)
+   {
+      final int[] rgb = createRGB(width, height);
+
+      for (int i=0; i<rgb.length; i++)
+      {
+         final int val = rgb[i];
+         rgb[i] = (((val >> 16) & 0xFF) + ((val >> 7) & 0x1FE) + (val & 0xFF)) >> 2;
+      }
+
+      return rgb;
+   }
+
+
+   private static int clip(int x)
+   {
+      return (x >= 255) ? 255 : ((x < 0) ? 0 : x);
+   }
+}
@@ -0,0 +1,119 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import kanzi.ColorModelType;
+import kanzi.util.color.ColorModelConverter;
+import kanzi.util.color.RGBColorModelConverter;
+import kanzi.util.color.ReversibleYUVColorModelConverter;
+import kanzi.util.color.XYZColorModelConverter;
+import kanzi.util.color.YCbCrColorModelConverter;
+import kanzi.util.color.YCoCgColorModelConverter;
+import kanzi.util.color.YIQColorModelConverter;
+import kanzi.util.color.YSbSrColorModelConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Time to convert a full frame from packed RGB to 3 channels and back.
+// The 'converter' parameter is the converter name followed by the color model
+// type (each converter supports a subset of the types).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColorModelBenchmark
+{
+   @Param({ BenchmarkFrames.SIZE_720P, BenchmarkFrames.SIZE_1080P, BenchmarkFrames.SIZE_4K })
+   public String size;
+
+   @Param({ "RGB:RGB", "ReversibleYUV:YUV444", "YCoCg:YUV444", "XYZ:XYZ",
+            "YCbCr:YUV444", "YCbCr:YUV422", "YCbCr:YUV420",
+            "YSbSr:YUV444", "YSbSr:YUV422", "YSbSr:YUV420",
+            "YIQ:YUV444", "YIQ:YUV422", "YIQ:YUV420" })
+   public String converter;
+
+   private ColorModelConverter cvt;
+   private ColorModelType type;
+   private int[] rgb;
+   private int[] rgbOut;
+   private int[] y;
+   private int[] u;
+   private int[] v;
+
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      final int w = BenchmarkFrames.getWidth(this.size);
+      final int h = BenchmarkFrames.getHeight(this.size);
+      final int sep = this.converter.indexOf(':');
+
+      if (sep < 0)
+         throw new IllegalArgumentException("Invalid converter parameter: "+this.converter+" (must be <name>:<type>)");
+
+      final String name = this.converter.substring(0, sep);
+      this.type = ColorModelType.valueOf(this.converter.substring(sep+1));
+
+      switch (name)
+      {
+         case "RGB" : this.cvt = new RGBColorModelConverter(w, h); break;
+         case "ReversibleYUV" : this.cvt = new ReversibleYUVColorModelConverter(w, h); break;
+         case "YCoCg" : this.cvt = new YCoCgColorModelConverter(w, h); break;
+         case "XYZ" : this.cvt = new XYZColorModelConverter(w, h); break;
+         case "YCbCr" : this.cvt = new YCbCrColorModelConverter(w, h); break;
+         case "YSbSr" : this.cvt = new YSbSrColorModelConverter(w, h); break;
+         case "YIQ" : this.cvt = new YIQColorModelConverter(w, h); break;
+         default : throw new IllegalArgumentException("Unknown converter: "+name);
+      }
+
+      this.rgb = BenchmarkFrames.createRGB(w, h);
+      this.rgbOut = new int[w*h];
+      this.y = new int[w*h];
+      this.u = new int[w*h];
+      this.v = new int[w*h];
+
+      if (this.cvt.convertRGBtoYUV(this.rgb, this.y, this.u, this.v, this.type) == false)
+         throw new IllegalArgumentException("Unsupported color model type "+this.type+" for "+name);
+   }
+
+
+   @Benchmark
+   public boolean rgbToYUV()
+   {
+      return this.cvt.convertRGBtoYUV(this.rgb, this.y, this.u, this.v, this.type);
+   }
+
+
+   @Benchmark
+   public boolean yuvToRGB()
+   {
+      return this.cvt.convertYUVtoRGB(this.y, this.u, this.v, this.rgbOut, this.type);
+   }
+}
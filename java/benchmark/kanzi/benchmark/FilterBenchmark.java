@@ -0,0 +1,184 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import kanzi.IntFilter;
+import kanzi.SliceIntArray;
+import kanzi.filter.BilateralFilter;
+import kanzi.filter.BilateralGridFilter;
+import kanzi.filter.BlurFilter;
+import kanzi.filter.ColorClusterFilter;
+import kanzi.filter.ContrastFilter;
+import kanzi.filter.FastBilateralFilter;
+import kanzi.filter.GaussianFilter;
+import kanzi.filter.IntegralImageFilter;
+import kanzi.filter.LightingEffect;
+import kanzi.filter.MSSSaliencyFilter;
+import kanzi.filter.MedianFilter;
+import kanzi.filter.RainDropEffect;
+import kanzi.filter.SharpenFilter;
+import kanzi.filter.SobelFilter;
+import kanzi.filter.UnsharpFilter;
+import kanzi.filter.seam.ContextResizer;
+import kanzi.util.image.DeblockingFilter;
+import kanzi.util.image.DeringingFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Time of one IntFilter.apply() on a full frame.
+// 'channels' selects packed RGB (3) or single channel (1) processing for the
+// filters that support it (Gaussian, Median, Sobel, Sharpen, FastBilateral,
+// ContextResizer); other filters ignore it.
+// 'arg' is the main parameter of the filter (0 means default value):
+// Bilateral, BilateralGrid: sigmaD, Blur: radius, ColorCluster: clusters, Contrast: percent,
+// FastBilateral: sigmaR, Gaussian: sigma16, Lighting: power, Median: radius,
+// RainDrop: radius, Unsharp: sigma, ContextResizer: scaling (per mil),
+// Deblocking/Deringing: strength.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark
+{
+   @Param({ BenchmarkFrames.SIZE_720P, BenchmarkFrames.SIZE_1080P, BenchmarkFrames.SIZE_4K })
+   public String size;
+
+   @Param({ "Bilateral", "BilateralGrid", "Blur", "ColorCluster", "Contrast", "ContextResizer",
+            "Deblocking", "Deringing", "FastBilateral", "Gaussian", "IntegralImage",
+            "Lighting", "Median", "RainDrop", "Saliency", "Sharpen", "Sobel", "Unsharp" })
+   public String filter;
+
+   @Param({ "3" })
+   public int channels;
+
+   @Param({ "0" })
+   public int arg;
+
+   private IntFilter effect;
+   private SliceIntArray src;
+   private SliceIntArray dst;
+
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      final int w = BenchmarkFrames.getWidth(this.size);
+      final int h = BenchmarkFrames.getHeight(this.size);
+
+      if ((this.channels != 1) && (this.channels != 3))
+         throw new IllegalArgumentException("Invalid number of channels: "+this.channels+" (must be 1 or 3)");
+
+      final int[] input = (this.channels == 3) ? BenchmarkFrames.createRGB(w, h)
+              : BenchmarkFrames.createChannel(w, h);
+      this.src = new SliceIntArray(input, input.length, 0);
+      this.dst = new SliceIntArray(new int[input.length], input.length, 0);
+      this.effect = createFilter(this.filter, w, h, this.channels, this.arg);
+   }
+
+
+   @Benchmark
+   public boolean apply()
+   {
+      return this.effect.apply(this.src, this.dst);
+   }
+
+
+   static IntFilter createFilter(String name, int w, int h, int channels, int arg)
+   {
+      final boolean rgb = channels == 3;
+
+      switch (name)
+      {
+         case "Bilateral" :
+            return new BilateralFilter(w, h, w, 4, (arg == 0) ? 10 : arg);
+
+         case "BilateralGrid" :
+            return new BilateralGridFilter(w, h, w, 4, (arg == 0) ? 10 : arg);
+
+         case "Blur" :
+            return new BlurFilter(w, h, w, (arg == 0) ? 8 : arg);
+
+         case "ColorCluster" :
+            return new ColorClusterFilter(w, h, w, (arg == 0) ? 20 : arg, 5);
+
+         case "Contrast" :
+            return new ContrastFilter(w, h, w, (arg == 0) ? 75 : arg);
+
+         case "ContextResizer" :
+            return new ContextResizer(w, h, w, ContextResizer.VERTICAL, (arg == 0) ? -20 : arg,
+                    !rgb, false, null);
+
+         case "Deblocking" :
+            return (arg == 0) ? new DeblockingFilter(w, h, w) : new DeblockingFilter(w, h, w, 8, arg);
+
+         case "Deringing" :
+            return (arg == 0) ? new DeringingFilter(w, h, w) : new DeringingFilter(w, h, w, 8, arg);
+
+         case "FastBilateral" :
+            return new FastBilateralFilter(w, h, w, (arg == 0) ? 20.0f : (float) arg, 0.03f,
+                    4, 3, channels);
+
+         case "Gaussian" :
+            return new GaussianFilter(w, h, w, (arg == 0) ? 192 : arg, channels);
+
+         case "IntegralImage" :
+            return new IntegralImageFilter(w, h, w);
+
+         case "Lighting" :
+            return new LightingEffect(w, h, w, w/2, h/2, Math.min(w, h)/2,
+                    (arg == 0) ? 120 : arg, false);
+
+         case "Median" :
+            return new MedianFilter(w, h, w, (arg == 0) ? MedianFilter.DEFAULT_RADIUS : arg,
+                    rgb ? MedianFilter.THREE_CHANNELS : MedianFilter.B_CHANNEL,
+                    MedianFilter.DEFAULT_THRESHOLD);
+
+         case "RainDrop" :
+            return new RainDropEffect(w, h, w, (arg == 0) ? Math.min(w, h)/4 : arg, 100);
+
+         case "Saliency" :
+            return new MSSSaliencyFilter(w, h, w);
+
+         case "Sharpen" :
+            return new SharpenFilter(w, h, w,
+                    rgb ? SharpenFilter.THREE_CHANNELS : SharpenFilter.B_CHANNEL, true);
+
+         case "Sobel" :
+            return new SobelFilter(w, h, w, SobelFilter.HORIZONTAL | SobelFilter.VERTICAL,
+                    rgb ? SobelFilter.THREE_CHANNELS : SobelFilter.B_CHANNEL, SobelFilter.IMAGE, true);
+
+         case "Unsharp" :
+            return new UnsharpFilter(w, h, w, (arg == 0) ? 2 : arg, 60, 100);
+
+         default :
+            throw new IllegalArgumentException("Unknown filter: "+name);
+      }
+   }
+}
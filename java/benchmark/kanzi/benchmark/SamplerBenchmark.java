@@ -0,0 +1,118 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import kanzi.util.sampling.BicubicUpSampler;
+import kanzi.util.sampling.BilinearDownSampler;
+import kanzi.util.sampling.BilinearUpSampler;
+import kanzi.util.sampling.DCTDownSampler;
+import kanzi.util.sampling.DCTUpSampler;
+import kanzi.util.sampling.DWTDownSampler;
+import kanzi.util.sampling.DWTUpSampler;
+import kanzi.util.sampling.DecimateDownSampler;
+import kanzi.util.sampling.DownSampler;
+import kanzi.util.sampling.EdgeDirectedUpSampler;
+import kanzi.util.sampling.GuidedBilinearUpSampler;
+import kanzi.util.sampling.ICBIUpSampler;
+import kanzi.util.sampling.UpSampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Time to resample one channel by a factor of 2 in both directions.
+// Down samplers read a full frame of the given size and write a quarter frame.
+// Up samplers read a quarter frame and write a full frame of the given size.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamplerBenchmark
+{
+   @Param({ BenchmarkFrames.SIZE_720P, BenchmarkFrames.SIZE_1080P, BenchmarkFrames.SIZE_4K })
+   public String size;
+
+   @Param({ "down:Decimate", "down:Bilinear", "down:DCT", "down:DWT",
+            "up:Bilinear", "up:Bicubic", "up:ICBI", "up:EdgeDirected",
+            "up:GuidedBilinear", "up:DCT", "up:DWT" })
+   public String sampler;
+
+   private DownSampler downSampler;
+   private UpSampler upSampler;
+   private int[] input;
+   private int[] output;
+
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      final int w = BenchmarkFrames.getWidth(this.size);
+      final int h = BenchmarkFrames.getHeight(this.size);
+      final int[] frame = BenchmarkFrames.createChannel(w, h);
+      this.output = new int[w*h];
+
+      switch (this.sampler)
+      {
+         case "down:Decimate" : this.downSampler = new DecimateDownSampler(w, h, 2); break;
+         case "down:Bilinear" : this.downSampler = new BilinearDownSampler(w, h, 2); break;
+         case "down:DCT" : this.downSampler = new DCTDownSampler(w, h, w, 0, 8); break;
+         case "down:DWT" : this.downSampler = new DWTDownSampler(w, h, w, 1); break;
+         case "up:Bilinear" : this.upSampler = new BilinearUpSampler(w/2, h/2, 2); break;
+         case "up:Bicubic" : this.upSampler = new BicubicUpSampler(w/2, h/2, w/2, w, 0); break;
+         case "up:ICBI" : this.upSampler = new ICBIUpSampler(w/2, h/2); break;
+         case "up:EdgeDirected" : this.upSampler = new EdgeDirectedUpSampler(w/2, h/2); break;
+         case "up:GuidedBilinear" : this.upSampler = new GuidedBilinearUpSampler(w/2, h/2, frame); break;
+         case "up:DCT" : this.upSampler = new DCTUpSampler(w/2, h/2, w/2, 0, 8); break;
+         case "up:DWT" : this.upSampler = new DWTUpSampler(w/2, h/2, w, 1); break;
+         default : throw new IllegalArgumentException("Unknown sampler: "+this.sampler);
+      }
+
+      if (this.downSampler != null)
+      {
+         this.input = frame;
+      }
+      else
+      {
+         // Quarter frame obtained by decimation
+         this.input = new int[w*h];
+         new DecimateDownSampler(w, h, 2).subSample(frame, this.input);
+      }
+   }
+
+
+   @Benchmark
+   public int[] resample()
+   {
+      if (this.downSampler != null)
+         this.downSampler.subSample(this.input, this.output);
+      else
+         this.upSampler.superSample(this.input, this.output);
+
+      return this.output;
+   }
+}
@@ -0,0 +1,192 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import kanzi.IntTransform;
+import kanzi.SliceIntArray;
+import kanzi.transform.DCT16;
+import kanzi.transform.DCT32;
+import kanzi.transform.DCT4;
+import kanzi.transform.DCT8;
+import kanzi.transform.DST4;
+import kanzi.transform.DWT_CDF_9_7;
+import kanzi.transform.DWT_DCT;
+import kanzi.transform.DWT_Haar;
+import kanzi.transform.WHT16;
+import kanzi.transform.WHT32;
+import kanzi.transform.WHT4;
+import kanzi.transform.WHT8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Time to transform the luma plane of a full frame.
+// Block transforms (DCT, DST, WHT, DWT_DCT) are applied to every block of the
+// frame (each block is gathered into a contiguous array, transformed, then
+// scattered back). Frame transforms (DWT_Haar, DWT_CDF_9_7) are applied once
+// on the whole frame with 'arg' steps (0 means 3 steps).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark
+{
+   @Param({ BenchmarkFrames.SIZE_720P, BenchmarkFrames.SIZE_1080P, BenchmarkFrames.SIZE_4K })
+   public String size;
+
+   @Param({ "DCT4", "DCT8", "DCT16", "DCT32", "WHT4", "WHT8", "WHT16", "WHT32",
+            "DST4", "DWT_DCT8", "DWT_DCT16", "DWT_DCT32", "DWT_Haar", "DWT_CDF_9_7" })
+   public String transform;
+
+   @Param({ "0" })
+   public int arg;
+
+   private IntTransform xform;
+   private int dim; // block dimension (0 for frame transforms)
+   private int width;
+   private int height;
+   private int[] frame;
+   private int[] coeffs;
+   private int[] output;
+   private SliceIntArray sa1;
+   private SliceIntArray sa2;
+
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      this.width = BenchmarkFrames.getWidth(this.size);
+      this.height = BenchmarkFrames.getHeight(this.size);
+      final int steps = (this.arg == 0) ? 3 : this.arg;
+
+      switch (this.transform)
+      {
+         case "DCT4" : this.xform = new DCT4(); this.dim = 4; break;
+         case "DCT8" : this.xform = new DCT8(); this.dim = 8; break;
+         case "DCT16" : this.xform = new DCT16(); this.dim = 16; break;
+         case "DCT32" : this.xform = new DCT32(); this.dim = 32; break;
+         case "WHT4" : this.xform = new WHT4(); this.dim = 4; break;
+         case "WHT8" : this.xform = new WHT8(); this.dim = 8; break;
+         case "WHT16" : this.xform = new WHT16(); this.dim = 16; break;
+         case "WHT32" : this.xform = new WHT32(); this.dim = 32; break;
+         case "DST4" : this.xform = new DST4(); this.dim = 4; break;
+         case "DWT_DCT8" : this.xform = new DWT_DCT(8); this.dim = 8; break;
+         case "DWT_DCT16" : this.xform = new DWT_DCT(16); this.dim = 16; break;
+         case "DWT_DCT32" : this.xform = new DWT_DCT(32); this.dim = 32; break;
+         case "DWT_Haar" : this.xform = new DWT_Haar(this.width, this.height, steps, false); break;
+         case "DWT_CDF_9_7" : this.xform = new DWT_CDF_9_7(this.width, this.height, steps); break;
+         default : throw new IllegalArgumentException("Unknown transform: "+this.transform);
+      }
+
+      final int count = this.width * this.height;
+      this.frame = BenchmarkFrames.createChannel(this.width, this.height);
+      this.output = new int[count];
+
+      if (this.dim == 0)
+      {
+         this.coeffs = new int[count];
+         this.sa1 = new SliceIntArray(new int[count], count, 0);
+         this.sa2 = new SliceIntArray(new int[count], count, 0);
+      }
+      else
+      {
+         final int blockSize = this.dim * this.dim;
+         this.sa1 = new SliceIntArray(new int[blockSize], blockSize, 0);
+         this.sa2 = new SliceIntArray(new int[blockSize], blockSize, 0);
+         this.coeffs = new int[count];
+      }
+
+      // Coefficients for the inverse benchmark
+      this.run(this.frame, this.coeffs, true);
+   }
+
+
+   @Benchmark
+   public int[] forward()
+   {
+      this.run(this.frame, this.output, true);
+      return this.output;
+   }
+
+
+   @Benchmark
+   public int[] inverse()
+   {
+      this.run(this.coeffs, this.output, false);
+      return this.output;
+   }
+
+
+   private void run(int[] src, int[] dst, boolean forward)
+   {
+      if (this.dim == 0)
+      {
+         // Transforms may modify the source: work on a copy
+         System.arraycopy(src, 0, this.sa1.array, 0, src.length);
+         this.sa1.index = 0;
+         this.sa2.index = 0;
+
+         if (forward == true)
+            this.xform.forward(this.sa1, this.sa2);
+         else
+            this.xform.inverse(this.sa1, this.sa2);
+
+         System.arraycopy(this.sa2.array, 0, dst, 0, dst.length);
+         return;
+      }
+
+      final int d = this.dim;
+      final int w = this.width;
+      final int[] block1 = this.sa1.array;
+      final int[] block2 = this.sa2.array;
+
+      // Partial blocks at the bottom (EG. 1080 rows) are skipped
+      for (int y=0; y<=this.height-d; y+=d)
+      {
+         for (int x=0; x<=w-d; x+=d)
+         {
+            // Gather
+            for (int j=0, offs=y*w+x; j<d; j++, offs+=w)
+               System.arraycopy(src, offs, block1, j*d, d);
+
+            this.sa1.index = 0;
+            this.sa2.index = 0;
+
+            if (forward == true)
+               this.xform.forward(this.sa1, this.sa2);
+            else
+               this.xform.inverse(this.sa1, this.sa2);
+
+            // Scatter
+            for (int j=0, offs=y*w+x; j<d; j++, offs+=w)
+               System.arraycopy(block2, j*d, dst, offs, d);
+         }
+      }
+   }
+}
@@ -0,0 +1,271 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import kanzi.IntFilter;
+import kanzi.SliceIntArray;
+
+
+// SIMD version of BlurFilter (same parameters, bit identical output).
+// The sliding box sums are serial along each row (resp. column), so the
+// horizontal pass processes several rows at a time (gather/scatter) and the
+// vertical pass several columns at a time (contiguous loads).
+// Requires the jdk.incubator.vector module (see kanzi.filter.VectorFilters).
+public final class VectorBlurFilter implements IntFilter
+{
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int DIV_SHIFT = 21;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int radius;
+    private final int iterations;
+    private final int divMult;
+    private final int[] rowMap; // gather offsets in the frame (one row per lane)
+    private final int[] blockMap; // scatter offsets in the block buffer
+    private final int[] block;
+    private final int[] line;
+
+
+    public VectorBlurFilter(int width, int height, int stride, int radius, int iterations)
+    {
+        if (height < 8)
+            throw new IllegalArgumentException("The height must be at least 8");
+
+        if (width < 8)
+            throw new IllegalArgumentException("The width must be at least 8");
+
+        if (stride < 8)
+            throw new IllegalArgumentException("The stride must be at least 8");
+
+        if ((radius < 1) || (radius > 32))
+            throw new IllegalArgumentException("The radius must be int [1..32]");
+
+        if (iterations < 1)
+            throw new IllegalArgumentException("The iterations must be at least 1");
+
+        if (iterations > 100)
+            throw new IllegalArgumentException("The iterations must be at most 100");
+
+        final int step = SPECIES.length();
+        final int boxSize = 2*radius + 1;
+        this.height = height;
+        this.width = width;
+        this.stride = stride;
+        this.radius = radius;
+        this.iterations = iterations;
+
+        // Division of the box sums by multiplication: with sums in [0..255*boxSize]
+        // and boxSize <= 65, sum*divMult >> 21 is exact and does not overflow
+        this.divMult = ((1 << DIV_SHIFT) + boxSize - 1) / boxSize;
+        this.rowMap = new int[step];
+        this.blockMap = new int[step];
+
+        for (int i=0; i<step; i++)
+        {
+           this.rowMap[i] = i * stride;
+           this.blockMap[i] = i * width;
+        }
+
+        this.block = new int[step*Math.max(width, height)];
+        this.line = new int[Math.max(width, height)];
+    }
+
+
+    @Override
+    public boolean apply(SliceIntArray input, SliceIntArray output)
+    {
+        if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+            return false;
+
+        this.blurHorizontal(input.array, input.index, output.array, output.index);
+        this.blurVertical(output.array, output.index, output.array, output.index);
+
+        for (int i=1; i<this.iterations; i++)
+        {
+           this.blurHorizontal(output.array, output.index, output.array, output.index);
+           this.blurVertical(output.array, output.index, output.array, output.index);
+        }
+
+        return true;
+    }
+
+
+    private void blurHorizontal(int[] src, int srcIdx, int[] dst, int dstIdx)
+    {
+        final int rd = this.radius;
+        final int w = this.width;
+        final int h = this.height;
+        final int st = this.stride;
+        final int step = SPECIES.length();
+        final int invBoxSize = (1<<16) / (2*rd+1);
+        final int[] blk = this.block;
+        int j = 0;
+
+        // Blocks of 'step' rows, one row per lane
+        for ( ; j<=h-step; j+=step)
+        {
+           final int srcStart = srcIdx + j*st;
+           IntVector pixel = IntVector.fromArray(SPECIES, src, srcStart, this.rowMap, 0);
+           IntVector totalR = pixel.lanewise(VectorOperators.ASHR, 16).and(0xFF).mul(rd);
+           IntVector totalG = pixel.lanewise(VectorOperators.ASHR, 8).and(0xFF).mul(rd);
+           IntVector totalB = pixel.and(0xFF).mul(rd);
+
+           for (int i=0; i<=rd; i++)
+           {
+              pixel = IntVector.fromArray(SPECIES, src, srcStart+Math.min(i, w-1), this.rowMap, 0);
+              totalR = totalR.add(pixel.lanewise(VectorOperators.ASHR, 16).and(0xFF));
+              totalG = totalG.add(pixel.lanewise(VectorOperators.ASHR, 8).and(0xFF));
+              totalB = totalB.add(pixel.and(0xFF));
+           }
+
+           for (int i=0; i<w; i++)
+           {
+              final IntVector val = totalR.mul(invBoxSize).lanewise(VectorOperators.LSHR, 16).lanewise(VectorOperators.LSHL, 16)
+                 .or(totalG.mul(invBoxSize).lanewise(VectorOperators.LSHR, 16).lanewise(VectorOperators.LSHL, 8))
+                 .or(totalB.mul(invBoxSize).lanewise(VectorOperators.LSHR, 16));
+              val.intoArray(blk, i, this.blockMap, 0);
+              final IntVector entering = IntVector.fromArray(SPECIES, src, srcStart+Math.min(i+rd+1, w-1), this.rowMap, 0);
+              final IntVector leaving = IntVector.fromArray(SPECIES, src, srcStart+Math.max(i-rd, 0), this.rowMap, 0);
+              totalR = totalR.add(entering.lanewise(VectorOperators.ASHR, 16).and(0xFF))
+                 .sub(leaving.lanewise(VectorOperators.ASHR, 16).and(0xFF));
+              totalG = totalG.add(entering.lanewise(VectorOperators.ASHR, 8).and(0xFF))
+                 .sub(leaving.lanewise(VectorOperators.ASHR, 8).and(0xFF));
+              totalB = totalB.add(entering.and(0xFF)).sub(leaving.and(0xFF));
+           }
+
+           for (int n=0; n<step; n++)
+              System.arraycopy(blk, n*w, dst, dstIdx+(j+n)*st, w);
+        }
+
+        // Remaining rows
+        for ( ; j<h; j++)
+        {
+           final int srcStart = srcIdx + j*st;
+           int pixel = src[srcStart];
+           int totalR = rd * ((pixel >> 16) & 0xFF);
+           int totalG = rd * ((pixel >>  8) & 0xFF);
+           int totalB = rd * (pixel & 0xFF);
+
+           for (int i=0; i<=rd; i++)
+           {
+              pixel = src[srcStart+Math.min(i, w-1)];
+              totalR += ((pixel >> 16) & 0xFF);
+              totalG += ((pixel >>  8) & 0xFF);
+              totalB +=  (pixel & 0xFF);
+           }
+
+           for (int i=0; i<w; i++)
+           {
+              this.line[i] = (((totalR*invBoxSize) >>> 16) << 16) |
+                 (((totalG*invBoxSize) >>> 16) << 8) | ((totalB*invBoxSize) >>> 16);
+              final int entering = src[srcStart+Math.min(i+rd+1, w-1)];
+              final int leaving = src[srcStart+Math.max(i-rd, 0)];
+              totalR += ((entering >> 16) & 0xFF) - ((leaving >> 16) & 0xFF);
+              totalG += ((entering >>  8) & 0xFF) - ((leaving >>  8) & 0xFF);
+              totalB +=  (entering & 0xFF) - (leaving & 0xFF);
+           }
+
+           System.arraycopy(this.line, 0, dst, dstIdx+j*st, w);
+        }
+    }
+
+
+    private void blurVertical(int[] src, int srcIdx, int[] dst, int dstIdx)
+    {
+        final int rd = this.radius;
+        final int w = this.width;
+        final int h = this.height;
+        final int st = this.stride;
+        final int step = SPECIES.length();
+        final int mult = this.divMult;
+        final int[] blk = this.block;
+        int j = 0;
+
+        // Blocks of 'step' columns, one column per lane
+        for ( ; j<=w-step; j+=step)
+        {
+           final int srcStart = srcIdx + j;
+           IntVector pixel = IntVector.fromArray(SPECIES, src, srcStart);
+           IntVector totalR = pixel.lanewise(VectorOperators.ASHR, 16).and(0xFF).mul(rd);
+           IntVector totalG = pixel.lanewise(VectorOperators.ASHR, 8).and(0xFF).mul(rd);
+           IntVector totalB = pixel.and(0xFF).mul(rd);
+
+           for (int i=0; i<=rd; i++)
+           {
+              pixel = IntVector.fromArray(SPECIES, src, srcStart+Math.min(i, h-1)*st);
+              totalR = totalR.add(pixel.lanewise(VectorOperators.ASHR, 16).and(0xFF));
+              totalG = totalG.add(pixel.lanewise(VectorOperators.ASHR, 8).and(0xFF));
+              totalB = totalB.add(pixel.and(0xFF));
+           }
+
+           for (int i=0; i<h; i++)
+           {
+              final IntVector val = totalR.mul(mult).lanewise(VectorOperators.LSHR, DIV_SHIFT).lanewise(VectorOperators.LSHL, 16)
+                 .or(totalG.mul(mult).lanewise(VectorOperators.LSHR, DIV_SHIFT).lanewise(VectorOperators.LSHL, 8))
+                 .or(totalB.mul(mult).lanewise(VectorOperators.LSHR, DIV_SHIFT));
+              val.intoArray(blk, i*step);
+              final IntVector entering = IntVector.fromArray(SPECIES, src, srcStart+Math.min(i+rd+1, h-1)*st);
+              final IntVector leaving = IntVector.fromArray(SPECIES, src, srcStart+Math.max(i-rd, 0)*st);
+              totalR = totalR.add(entering.lanewise(VectorOperators.ASHR, 16).and(0xFF))
+                 .sub(leaving.lanewise(VectorOperators.ASHR, 16).and(0xFF));
+              totalG = totalG.add(entering.lanewise(VectorOperators.ASHR, 8).and(0xFF))
+                 .sub(leaving.lanewise(VectorOperators.ASHR, 8).and(0xFF));
+              totalB = totalB.add(entering.and(0xFF)).sub(leaving.and(0xFF));
+           }
+
+           for (int i=0; i<h; i++)
+              System.arraycopy(blk, i*step, dst, dstIdx+j+i*st, step);
+        }
+
+        // Remaining columns
+        final int boxSize = 2*rd + 1;
+
+        for ( ; j<w; j++)
+        {
+           final int srcStart = srcIdx + j;
+           int pixel = src[srcStart];
+           int totalR = rd * ((pixel >> 16) & 0xFF);
+           int totalG = rd * ((pixel >>  8) & 0xFF);
+           int totalB = rd * (pixel & 0xFF);
+
+           for (int i=0; i<=rd; i++)
+           {
+              pixel = src[srcStart+Math.min(i, h-1)*st];
+              totalR += ((pixel >> 16) & 0xFF);
+              totalG += ((pixel >>  8) & 0xFF);
+              totalB +=  (pixel & 0xFF);
+           }
+
+           for (int i=0; i<h; i++)
+           {
+              this.line[i] = ((totalR / boxSize) << 16) | ((totalG / boxSize) << 8) | (totalB / boxSize);
+              final int entering = src[srcStart+Math.min(i+rd+1, h-1)*st];
+              final int leaving = src[srcStart+Math.max(i-rd, 0)*st];
+              totalR += ((entering >> 16) & 0xFF) - ((leaving >> 16) & 0xFF);
+              totalG += ((entering >>  8) & 0xFF) - ((leaving >>  8) & 0xFF);
+              totalB +=  (entering & 0xFF) - (leaving & 0xFF);
+           }
+
+           for (int i=0; i<h; i++)
+              dst[dstIdx+j+i*st] = this.line[i];
+        }
+    }
+}
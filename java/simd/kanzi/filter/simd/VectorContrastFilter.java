@@ -0,0 +1,135 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import kanzi.IntFilter;
+import kanzi.SliceIntArray;
+
+
+// SIMD version of ContrastFilter (same parameters, bit identical output).
+// The intensity lookup table of the scalar filter is replaced with the
+// equivalent arithmetic: min((ratio*i) >> 16, 255).
+// Requires the jdk.incubator.vector module (see kanzi.filter.VectorFilters).
+public final class VectorContrastFilter implements IntFilter
+{
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private int contrast;
+    private int ratio;
+
+
+    // contrast in percent
+    public VectorContrastFilter(int width, int height, int stride, int contrast)
+    {
+        if (height < 8)
+            throw new IllegalArgumentException("The height must be at least 8");
+
+        if (width < 8)
+            throw new IllegalArgumentException("The width must be at least 8");
+
+        if (stride < 8)
+            throw new IllegalArgumentException("The stride must be at least 8");
+
+        if ((contrast < 0) || (contrast > 1000))
+            throw new IllegalArgumentException("The contrast parameter (in %) must be in the range [0..1000]");
+
+        this.height = height;
+        this.width = width;
+        this.stride = stride;
+        this.contrast = contrast;
+        this.ratio = (contrast << 16) / 100;
+    }
+
+
+    @Override
+    public boolean apply(SliceIntArray input, SliceIntArray output)
+    {
+        if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+           return false;
+
+        final int[] src = input.array;
+        final int[] dst = output.array;
+        int srcIdx = input.index;
+        int dstIdx = output.index;
+        final int w = this.width;
+        final int h = this.height;
+        final int len = src.length;
+        final int step = SPECIES.length();
+        final int rt = this.ratio;
+
+        for (int y=0; y<h; y++)
+        {
+           final int endX = (srcIdx + w < len) ? srcIdx + w : len;
+           int xs = srcIdx;
+           int xd = dstIdx;
+
+           for ( ; xs<=endX-step; xs+=step, xd+=step)
+           {
+              final IntVector pixel = IntVector.fromArray(SPECIES, src, xs);
+              final IntVector r = pixel.lanewise(VectorOperators.ASHR, 16).and(0xFF)
+                 .mul(rt).lanewise(VectorOperators.ASHR, 16).min(255);
+              final IntVector g = pixel.lanewise(VectorOperators.ASHR, 8).and(0xFF)
+                 .mul(rt).lanewise(VectorOperators.ASHR, 16).min(255);
+              final IntVector b = pixel.and(0xFF)
+                 .mul(rt).lanewise(VectorOperators.ASHR, 16).min(255);
+              r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8))
+                 .or(b).intoArray(dst, xd);
+           }
+
+           for ( ; xs<endX; xs++, xd++)
+           {
+              final int pixel = src[xs];
+              final int r = Math.min((rt * ((pixel >> 16) & 0xFF)) >> 16, 255);
+              final int g = Math.min((rt * ((pixel >>  8) & 0xFF)) >> 16, 255);
+              final int b = Math.min((rt * (pixel & 0xFF)) >> 16, 255);
+              dst[xd] = (r << 16) | (g << 8) | b;
+           }
+
+           srcIdx += this.stride;
+           dstIdx += this.stride;
+
+           if (srcIdx >= len)
+              break;
+        }
+
+        return true;
+    }
+
+
+    // in percent
+    public int getContrast()
+    {
+       return this.contrast;
+    }
+
+
+    // contrast in percent
+    public boolean setContrast(int contrast)
+    {
+       if ((contrast < 0) || (contrast > 100))
+          return false;
+
+       this.contrast = contrast;
+       this.ratio = (contrast << 16) / 100;
+       return true;
+    }
+}
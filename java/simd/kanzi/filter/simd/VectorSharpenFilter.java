@@ -0,0 +1,192 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import kanzi.IntFilter;
+import kanzi.SliceIntArray;
+import kanzi.filter.SharpenFilter;
+
+
+// SIMD version of SharpenFilter (same parameters, bit identical output).
+// Requires the jdk.incubator.vector module (see kanzi.filter.VectorFilters).
+public final class VectorSharpenFilter implements IntFilter
+{
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int channels;
+    private final boolean processBoundaries;
+    private final int[] line;
+
+
+    public VectorSharpenFilter(int width, int height, int stride, int channels, boolean processBoundaries)
+    {
+        if (height < 8)
+            throw new IllegalArgumentException("The height must be at least 8");
+
+        if (width < 8)
+            throw new IllegalArgumentException("The width must be at least 8");
+
+        if (stride < 8)
+            throw new IllegalArgumentException("The stride must be at least 8");
+
+        if ((channels != SharpenFilter.THREE_CHANNELS) && (channels != SharpenFilter.R_CHANNEL) &&
+                (channels != SharpenFilter.G_CHANNEL) && (channels != SharpenFilter.B_CHANNEL))
+            throw new IllegalArgumentException("Invalid input channel parameter (must be RGB or R or G or B)");
+
+        this.height = height;
+        this.width = width;
+        this.stride = stride;
+        this.channels = channels;
+        this.processBoundaries = processBoundaries;
+        this.line = new int[width];
+    }
+
+
+    //   Filter
+    //    0 -1  0
+    //   -1  5 -1
+    //    0 -1  0
+    @Override
+    public boolean apply(SliceIntArray input, SliceIntArray output)
+    {
+        if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+           return false;
+
+        final int[] src = input.array;
+        final int[] dst = output.array;
+        final int[] buf = this.line;
+        final int h = this.height;
+        final int w = this.width;
+        final int st = this.stride;
+        final int step = SPECIES.length();
+        final boolean isPacked = this.channels == SharpenFilter.THREE_CHANNELS;
+        final int shift = this.channels & 0xFF;
+        int srcStart = input.index;
+        int dstStart = output.index;
+
+        for (int y=h-2; y>0; y--)
+        {
+           final int srcLine = srcStart + st;
+           final int endLine = srcLine + st;
+           final int dstLine = dstStart + st;
+           int x = 1;
+
+           // The output row is built in a line buffer, then copied: like the
+           // scalar filter, the next row reads the updated row when filtering
+           // in place
+           if (isPacked == true)
+           {
+              for ( ; x<w-step; x+=step)
+              {
+                 final IntVector p01 = IntVector.fromArray(SPECIES, src, srcStart+x);
+                 final IntVector p10 = IntVector.fromArray(SPECIES, src, srcLine+x-1);
+                 final IntVector p11 = IntVector.fromArray(SPECIES, src, srcLine+x);
+                 final IntVector p12 = IntVector.fromArray(SPECIES, src, srcLine+x+1);
+                 final IntVector p21 = IntVector.fromArray(SPECIES, src, endLine+x);
+                 final IntVector r = sharpen(p01, p10, p11, p12, p21, 16);
+                 final IntVector g = sharpen(p01, p10, p11, p12, p21, 8);
+                 final IntVector b = sharpen(p01, p10, p11, p12, p21, 0);
+                 r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b).intoArray(buf, x);
+              }
+
+              for ( ; x<w-1; x++)
+              {
+                 final int r = sharpen(src, srcStart+x, srcLine+x, endLine+x, 16);
+                 final int g = sharpen(src, srcStart+x, srcLine+x, endLine+x, 8);
+                 final int b = sharpen(src, srcStart+x, srcLine+x, endLine+x, 0);
+                 buf[x] = (r<<16) | (g<<8) | b;
+              }
+           }
+           else
+           {
+              final int mask = ~(255 << shift);
+
+              for ( ; x<w-step; x+=step)
+              {
+                 final IntVector p01 = IntVector.fromArray(SPECIES, src, srcStart+x);
+                 final IntVector p10 = IntVector.fromArray(SPECIES, src, srcLine+x-1);
+                 final IntVector p11 = IntVector.fromArray(SPECIES, src, srcLine+x);
+                 final IntVector p12 = IntVector.fromArray(SPECIES, src, srcLine+x+1);
+                 final IntVector p21 = IntVector.fromArray(SPECIES, src, endLine+x);
+                 final IntVector val = sharpen(p01, p10, p11, p12, p21, shift);
+                 IntVector.fromArray(SPECIES, dst, dstLine+x).and(mask)
+                    .or(val.lanewise(VectorOperators.LSHL, shift)).intoArray(buf, x);
+              }
+
+              for ( ; x<w-1; x++)
+              {
+                 final int val = sharpen(src, srcStart+x, srcLine+x, endLine+x, shift);
+                 buf[x] = (dst[dstLine+x] & mask) | (val << shift);
+              }
+           }
+
+           System.arraycopy(buf, 1, dst, dstLine+1, w-2);
+
+           if (this.processBoundaries == true)
+           {
+              // Boundary processing (first and last row pixels), just duplicate pixels
+              dst[dstLine] = dst[dstLine+1];
+              dst[dstLine+w-1] = dst[dstLine+w-2];
+           }
+
+           srcStart = srcLine;
+           dstStart = dstLine;
+        }
+
+        final int firstLine = output.index;
+        final int lastLine = output.index + st * (h - 1);
+
+        if (this.processBoundaries == true)
+        {
+           // Duplicate first and last lines
+           System.arraycopy(dst, firstLine+st, dst, firstLine, w);
+           System.arraycopy(dst, lastLine-st, dst, lastLine, w);
+        }
+
+        return true;
+    }
+
+
+    // Return the sharpened channel values clamped to [0..255]
+    private static IntVector sharpen(IntVector p01, IntVector p10, IntVector p11,
+            IntVector p12, IntVector p21, int shift)
+    {
+        final IntVector v01 = p01.lanewise(VectorOperators.ASHR, shift).and(0xFF);
+        final IntVector v10 = p10.lanewise(VectorOperators.ASHR, shift).and(0xFF);
+        final IntVector v11 = p11.lanewise(VectorOperators.ASHR, shift).and(0xFF);
+        final IntVector v12 = p12.lanewise(VectorOperators.ASHR, shift).and(0xFF);
+        final IntVector v21 = p21.lanewise(VectorOperators.ASHR, shift).and(0xFF);
+        return v11.mul(5).sub(v01).sub(v10).sub(v21).sub(v12).max(0).min(255);
+    }
+
+
+    private static int sharpen(int[] src, int prev, int cur, int next, int shift)
+    {
+        final int val01 = (src[prev] >> shift) & 0xFF;
+        final int val10 = (src[cur-1] >> shift) & 0xFF;
+        final int val11 = (src[cur] >> shift) & 0xFF;
+        final int val12 = (src[cur+1] >> shift) & 0xFF;
+        final int val21 = (src[next] >> shift) & 0xFF;
+        final int val = - val01 - val10 + 5*val11 - val21 - val12;
+        return (val >= 255) ? 255 : val & ~(val >> 31);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import kanzi.IntFilter;
+import kanzi.SliceIntArray;
+import kanzi.filter.SobelFilter;
+
+
+// SIMD version of SobelFilter (same parameters, bit identical output).
+// Each row of the output is computed several pixels at a time with the
+// preferred vector size of the platform. The remaining pixels of each row are
+// processed with scalar code.
+// Requires the jdk.incubator.vector module (see kanzi.filter.VectorFilters).
+public final class VectorSobelFilter implements IntFilter
+{
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int direction;
+    private final int filterType;
+    private final int channels;
+    private final boolean processBoundaries;
+    private final int[] line;
+
+
+    public VectorSobelFilter(int width, int height, int stride, int direction,
+            int channels, int filterType, boolean processBoundaries)
+    {
+        if (height < 8)
+            throw new IllegalArgumentException("The height must be at least 8");
+
+        if (width < 8)
+            throw new IllegalArgumentException("The width must be at least 8");
+
+        if (stride < 8)
+            throw new IllegalArgumentException("The stride must be at least 8");
+
+        if ((direction & (SobelFilter.HORIZONTAL | SobelFilter.VERTICAL)) == 0)
+            throw new IllegalArgumentException("Invalid direction parameter (must be VERTICAL or HORIZONTAL or both)");
+
+        if ((direction & ~(SobelFilter.HORIZONTAL | SobelFilter.VERTICAL)) != 0)
+            throw new IllegalArgumentException("Invalid direction parameter (must be VERTICAL or HORIZONTAL or both)");
+
+        if ((filterType != SobelFilter.COST) && (filterType != SobelFilter.IMAGE))
+            throw new IllegalArgumentException("Invalid filter type parameter (must be IMAGE or COST)");
+
+        if ((channels != SobelFilter.THREE_CHANNELS) && (channels != SobelFilter.R_CHANNEL) &&
+                (channels != SobelFilter.G_CHANNEL) && (channels != SobelFilter.B_CHANNEL))
+            throw new IllegalArgumentException("Invalid input channel parameter (must be RGB or R or G or B)");
+
+        this.height = height;
+        this.width = width;
+        this.stride = stride;
+        this.direction = direction;
+        this.filterType = filterType;
+        this.channels = channels;
+        this.processBoundaries = processBoundaries;
+        this.line = new int[width];
+    }
+
+
+    @Override
+    public boolean apply(SliceIntArray input, SliceIntArray output)
+    {
+        if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+           return false;
+
+        final int[] src = input.array;
+        final int[] dst = output.array;
+        final int[] buf = this.line;
+        final int h = this.height;
+        final int w = this.width;
+        final int st = this.stride;
+        final int step = SPECIES.length();
+        int srcStart = input.index;
+        int dstStart = output.index;
+
+        for (int y=h-2; y>0; y--)
+        {
+           final int srcLine = srcStart + st;
+           final int endLine = srcLine + st;
+           final int dstLine = dstStart + st;
+           int x = 1;
+
+           // The output row is built in a line buffer, then copied: like the
+           // scalar filter, the next row reads the updated row when filtering
+           // in place
+           for ( ; x<w-step; x+=step)
+              this.filterVector(src, srcStart+x, srcLine+x, endLine+x).intoArray(buf, x);
+
+           for ( ; x<w-1; x++)
+              buf[x] = this.filterPixel(src, srcStart+x, srcLine+x, endLine+x);
+
+           System.arraycopy(buf, 1, dst, dstLine+1, w-2);
+
+           if (this.processBoundaries == true)
+           {
+              // Boundary processing (first and last row pixels), just duplicate pixels
+              dst[dstLine] = dst[dstLine+1];
+              dst[dstLine+w-1] = dst[dstLine+w-2];
+           }
+
+           srcStart = srcLine;
+           dstStart = dstLine;
+        }
+
+        final int firstLine = output.index;
+        final int lastLine = output.index + st * (h - 1);
+
+        if (this.processBoundaries == true)
+        {
+           // Duplicate first and last lines
+           System.arraycopy(dst, firstLine+st, dst, firstLine, w);
+           System.arraycopy(dst, lastLine-st, dst, lastLine, w);
+        }
+
+        return true;
+    }
+
+
+    // Compute the output pixels centered at the provided offsets (in the
+    // previous, current and next rows)
+    private IntVector filterVector(int[] src, int prev, int cur, int next)
+    {
+        final IntVector val00 = this.value(IntVector.fromArray(SPECIES, src, prev-1));
+        final IntVector val01 = this.value(IntVector.fromArray(SPECIES, src, prev));
+        final IntVector val02 = this.value(IntVector.fromArray(SPECIES, src, prev+1));
+        final IntVector val10 = this.value(IntVector.fromArray(SPECIES, src, cur-1));
+        final IntVector val12 = this.value(IntVector.fromArray(SPECIES, src, cur+1));
+        final IntVector val20 = this.value(IntVector.fromArray(SPECIES, src, next-1));
+        final IntVector val21 = this.value(IntVector.fromArray(SPECIES, src, next));
+        final IntVector val22 = this.value(IntVector.fromArray(SPECIES, src, next+1));
+        IntVector val;
+
+        if ((this.direction & SobelFilter.HORIZONTAL) != 0)
+        {
+           val = val02.sub(val00).add(val12.sub(val10).mul(2)).add(val22.sub(val20)).abs();
+
+           if ((this.direction & SobelFilter.VERTICAL) != 0)
+           {
+              final IntVector valV = val00.add(val01.mul(2)).add(val02)
+                 .sub(val20).sub(val21.mul(2)).sub(val22).abs();
+              val = val.add(valV).lanewise(VectorOperators.ASHR, 1);
+           }
+        }
+        else
+        {
+           val = val00.add(val01.mul(2)).add(val02).sub(val20).sub(val21.mul(2)).sub(val22).abs();
+        }
+
+        final int mask = (this.filterType == SobelFilter.COST) ? 0xFF : -1;
+        final VectorMask<Integer> saturated = val.compare(VectorOperators.GT, 255);
+        return val.mul(0x010101).or(0xFF000000).and(mask).blend(mask, saturated);
+    }
+
+
+    // Value used by the gradient: luminance estimate or selected channel
+    private IntVector value(IntVector pixel)
+    {
+        if (this.channels == SobelFilter.THREE_CHANNELS)
+        {
+           // Use Y = (R+G+G+B) >> 2;
+           return pixel.lanewise(VectorOperators.ASHR, 16).and(0xFF)
+              .add(pixel.lanewise(VectorOperators.ASHR, 7).and(0x1FE))
+              .add(pixel.and(0xFF))
+              .lanewise(VectorOperators.ASHR, 2);
+        }
+
+        return pixel.lanewise(VectorOperators.ASHR, this.getShift()).and(0xFF);
+    }
+
+
+    private int value(int pixel)
+    {
+        if (this.channels == SobelFilter.THREE_CHANNELS)
+           return (((pixel >> 16) & 0xFF) + ((pixel >> 7) & 0x1FE) + (pixel & 0xFF)) >> 2;
+
+        return (pixel >> this.getShift()) & 0xFF;
+    }
+
+
+    private int getShift()
+    {
+        return (this.channels == SobelFilter.R_CHANNEL) ? 16 : ((this.channels == SobelFilter.G_CHANNEL) ? 8 : 0);
+    }
+
+
+    // Scalar version of filterVector for the last pixels of a row
+    private int filterPixel(int[] src, int prev, int cur, int next)
+    {
+        final int val00 = this.value(src[prev-1]);
+        final int val01 = this.value(src[prev]);
+        final int val02 = this.value(src[prev+1]);
+        final int val10 = this.value(src[cur-1]);
+        final int val12 = this.value(src[cur+1]);
+        final int val20 = this.value(src[next-1]);
+        final int val21 = this.value(src[next]);
+        final int val22 = this.value(src[next+1]);
+        int val;
+
+        if ((this.direction & SobelFilter.HORIZONTAL) != 0)
+        {
+           val = -val00 + val02 - val10 - val10 + val12 + val12 - val20 + val22;
+           val = (val + (val >> 31)) ^ (val >> 31);
+
+           if ((this.direction & SobelFilter.VERTICAL) != 0)
+           {
+              int valV = val00 + val01 + val01 + val02 - val20 - val21 - val21 - val22;
+              valV = (valV + (valV >> 31)) ^ (valV >> 31);
+              val = (val + valV) >> 1;
+           }
+        }
+        else
+        {
+           val = val00 + val01 + val01 + val02 - val20 - val21 - val21 - val22;
+           val = (val + (val >> 31)) ^ (val >> 31);
+        }
+
+        final int mask = (this.filterType == SobelFilter.COST) ? 0xFF : -1;
+        return (val > 255) ? mask : (0xFF000000 | (val << 16) | (val << 8) | val) & mask;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import kanzi.ColorModelType;
+import kanzi.util.color.ColorModelConverter;
+
+
+// Base class of the SIMD color model converters. The frame is processed row
+// by row: the color transform of a row is vectorized by the sub classes and
+// the chroma resampling (decimation for RGB to YUV, bilinear interpolation for
+// YUV420 to RGB, duplication for YUV422 to RGB) is done here with the same
+// rules as the scalar converters, so the output is bit identical.
+// Requires the jdk.incubator.vector module (see kanzi.util.color.VectorColorModelConverters).
+public abstract class VectorColorModelConverter implements ColorModelConverter
+{
+    protected static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    protected final int width;
+    protected final int height;
+    protected final int offset;
+    protected final int stride;
+    private final int[] bufU;
+    private final int[] bufV;
+
+
+    // rgbOffset is the offset in the RGB frame while stride is the width of the RGB frame
+    // width and height are the dimension of the YUV frame
+    protected VectorColorModelConverter(int width, int height, int rgbOffset, int stride)
+    {
+        if (height < 8)
+            throw new IllegalArgumentException("The height must be at least 8");
+
+        if (width < 8)
+            throw new IllegalArgumentException("The width must be at least 8");
+
+        if (stride < 8)
+            throw new IllegalArgumentException("The stride must be at least 8");
+
+        if ((height & 7) != 0)
+            throw new IllegalArgumentException("The height must be a multiple of 8");
+
+        if ((width & 7) != 0)
+            throw new IllegalArgumentException("The width must be a multiple of 8");
+
+        if ((stride & 7) != 0)
+            throw new IllegalArgumentException("The stride must be a multiple of 8");
+
+        this.width = width;
+        this.height = height;
+        this.offset = rgbOffset;
+        this.stride = stride;
+        this.bufU = new int[width];
+        this.bufV = new int[width];
+    }
+
+
+    // Return true if the chroma subsampled types (YUV420, YUV422) are supported
+    protected abstract boolean supportsSubsampling();
+
+
+    // Convert 'count' RGB pixels to Y, U and V
+    protected abstract void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx,
+            int[] u, int uIdx, int[] v, int vIdx, int count);
+
+
+    // Convert 'count' RGB pixels to Y only
+    protected abstract void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx, int count);
+
+
+    // Convert 'count' Y, U and V pixels to RGB
+    protected abstract void toRGB(int[] y, int yIdx, int[] u, int uIdx,
+            int[] v, int vIdx, int[] rgb, int rgbIdx, int count);
+
+
+    @Override
+    public boolean convertRGBtoYUV(int[] rgb, int[] y, int[] u, int[] v, ColorModelType type)
+    {
+        if (type == ColorModelType.YUV444)
+        {
+           for (int j=0; j<this.height; j++)
+              this.fromRGB(rgb, this.offset+j*this.stride, y, j*this.width,
+                 u, j*this.width, v, j*this.width, this.width);
+
+           return true;
+        }
+
+        if (this.supportsSubsampling() == false)
+           return false;
+
+        final int w = this.width;
+        final int half = w >> 1;
+
+        if (type == ColorModelType.YUV422)
+        {
+           for (int j=0; j<this.height; j++)
+           {
+              this.fromRGB(rgb, this.offset+j*this.stride, y, j*w, this.bufU, 0, this.bufV, 0, w);
+              decimate(this.bufU, u, j*half, half);
+              decimate(this.bufV, v, j*half, half);
+           }
+
+           return true;
+        }
+
+        if (type == ColorModelType.YUV420)
+        {
+           // Like the scalar converters, the Y rows are located with the stride
+           for (int j=0; j<this.height; j+=2)
+           {
+              final int line = j * this.stride;
+              this.fromRGB(rgb, line+this.offset, y, line, this.bufU, 0, this.bufV, 0, w);
+              this.fromRGB(rgb, line+this.stride+this.offset, y, line+this.stride, w);
+              decimate(this.bufU, u, (j>>1)*half, half);
+              decimate(this.bufV, v, (j>>1)*half, half);
+           }
+
+           return true;
+        }
+
+        // Other types not supported
+        return false;
+    }
+
+
+    @Override
+    public boolean convertYUVtoRGB(int[] y, int[] u, int[] v, int[] rgb, ColorModelType type)
+    {
+        if (type == ColorModelType.YUV444)
+        {
+           for (int j=0; j<this.height; j++)
+              this.toRGB(y, j*this.width, u, j*this.width, v, j*this.width,
+                 rgb, this.offset+j*this.stride, this.width);
+
+           return true;
+        }
+
+        if (this.supportsSubsampling() == false)
+           return false;
+
+        final int w = this.width;
+        final int half = w >> 1;
+
+        if (type == ColorModelType.YUV422)
+        {
+           for (int j=0; j<this.height; j++)
+           {
+              duplicate(u, j*half, this.bufU, half);
+              duplicate(v, j*half, this.bufV, half);
+              this.toRGB(y, j*w, this.bufU, 0, this.bufV, 0, rgb, this.offset+j*this.stride, w);
+           }
+
+           return true;
+        }
+
+        if (type == ColorModelType.YUV420)
+        {
+           final int sh = this.height >> 1;
+
+           for (int t=0; t<sh; t++)
+           {
+              // The last pair of rows interpolates between the last 2 chroma rows
+              final int c0 = ((t == sh-1) ? t-1 : t) * half;
+              final int c1 = c0 + half;
+              final int line0 = 2 * t * this.stride;
+              final int line1 = line0 + this.stride;
+
+              // Even row: chroma row c0, interpolated horizontally
+              interpolate(u, c0, this.bufU, half);
+              interpolate(v, c0, this.bufV, half);
+              this.toRGB(y, line0, this.bufU, 0, this.bufV, 0, rgb, line0+this.offset, w);
+              rgb[line0+this.offset+w-1] = rgb[line0+this.offset+w-2];
+
+              // Odd row: average of chroma rows c0 and c1, interpolated horizontally
+              interpolate(u, c0, c1, this.bufU, half);
+              interpolate(v, c0, c1, this.bufV, half);
+              this.toRGB(y, line1, this.bufU, 0, this.bufV, 0, rgb, line1+this.offset, w);
+              rgb[line1+this.offset+w-1] = rgb[line1+this.offset+w-2];
+           }
+
+           return true;
+        }
+
+        // Other types not supported
+        return false;
+    }
+
+
+    // Keep the even positions of src
+    private static void decimate(int[] src, int[] dst, int dstIdx, int count)
+    {
+        for (int i=0; i<count; i++)
+           dst[dstIdx+i] = src[i+i];
+    }
+
+
+    private static void duplicate(int[] src, int srcIdx, int[] dst, int count)
+    {
+        for (int i=0; i<count; i++)
+        {
+           final int val = src[srcIdx+i];
+           dst[i+i] = val;
+           dst[i+i+1] = val;
+        }
+    }
+
+
+    // Horizontal interpolation of one chroma row. The last position is
+    // not interpolated (the last RGB pixel of the row is duplicated instead).
+    private static void interpolate(int[] src, int srcIdx, int[] dst, int count)
+    {
+        int val0 = src[srcIdx];
+
+        for (int i=1; i<count; i++)
+        {
+           final int val1 = src[srcIdx+i];
+           dst[i+i-2] = val0;
+           dst[i+i-1] = (val0 + val1) >> 1;
+           val0 = val1;
+        }
+
+        dst[count+count-2] = val0;
+        dst[count+count-1] = val0;
+    }
+
+
+    // Interpolation between 2 chroma rows
+    private static void interpolate(int[] src, int srcIdx0, int srcIdx1, int[] dst, int count)
+    {
+        int val0 = src[srcIdx0];
+        int val2 = src[srcIdx1];
+
+        for (int i=1; i<count; i++)
+        {
+           final int val1 = src[srcIdx0+i];
+           final int val3 = src[srcIdx1+i];
+           dst[i+i-2] = (val0 + val2) >> 1;
+           dst[i+i-1] = (val0 + val1 + val2 + val3 + 2) >> 2;
+           val0 = val1;
+           val2 = val3;
+        }
+
+        dst[count+count-2] = (val0 + val2) >> 1;
+        dst[count+count-1] = dst[count+count-2];
+    }
+
+
+    // Clip a fixed point color value to [0..255], the result is shifted left by 'pos'
+    // Same as: if (x >= maxVal) x = 255 else x = (max(x, 0) + adjust) >> shift
+    protected static IntVector clip(IntVector x, int maxVal, int adjust, int shift, int pos)
+    {
+        return x.max(0).add(adjust).lanewise(VectorOperators.ASHR, shift)
+           .blend(255, x.compare(VectorOperators.GE, maxVal))
+           .lanewise(VectorOperators.LSHL, pos);
+    }
+
+
+    protected static int clip(int x, int maxVal, int adjust, int shift, int pos)
+    {
+        if (x >= maxVal)
+           return 255 << pos;
+
+        x &= ~(x >> 31);
+        return ((x + adjust) >> shift) << pos;
+    }
+
+
+    // Extract the channel at bit position 'pos' of RGB pixels
+    protected static IntVector channel(IntVector rgb, int pos)
+    {
+        return rgb.lanewise(VectorOperators.ASHR, pos).and(0xFF);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+
+
+// SIMD version of ReversibleYUVColorModelConverter (bit identical output).
+// Only YUV444 is supported.
+// Requires the jdk.incubator.vector module (see kanzi.util.color.VectorColorModelConverters).
+public final class VectorReversibleYUVColorModelConverter extends VectorColorModelConverter
+{
+    public VectorReversibleYUVColorModelConverter(int width, int height)
+    {
+        this(width, height, 0, width);
+    }
+
+
+    public VectorReversibleYUVColorModelConverter(int width, int height, int rgbOffset, int stride)
+    {
+        super(width, height, rgbOffset, stride);
+    }
+
+
+    // Only YUV444 supported. Other types cannot be exactly reversed
+    @Override
+    protected boolean supportsSubsampling()
+    {
+        return false;
+    }
+
+
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx,
+            int[] u, int uIdx, int[] v, int vIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           final IntVector r = channel(rgbVal, 16);
+           final IntVector g = channel(rgbVal, 8);
+           final IntVector b = channel(rgbVal, 0);
+           r.add(g).add(g).add(b).lanewise(VectorOperators.ASHR, 2).intoArray(y, yIdx+i);
+           r.sub(g).intoArray(u, uIdx+i);
+           b.sub(g).intoArray(v, vIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           final int r = (rgbVal >> 16) & 0xFF;
+           final int g = (rgbVal >> 8) & 0xFF;
+           final int b =  rgbVal & 0xFF;
+           y[yIdx+i] = (r + g + g + b) >> 2;
+           u[uIdx+i] = r - g;
+           v[vIdx+i] = b - g;
+        }
+    }
+
+
+    // Not used (no chroma subsampling)
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx, int count)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+
+    @Override
+    protected void toRGB(int[] y, int yIdx, int[] u, int uIdx,
+            int[] v, int vIdx, int[] rgb, int rgbIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector uVal = IntVector.fromArray(SPECIES, u, uIdx+i);
+           final IntVector vVal = IntVector.fromArray(SPECIES, v, vIdx+i);
+           final IntVector g = IntVector.fromArray(SPECIES, y, yIdx+i)
+              .sub(uVal.add(vVal).lanewise(VectorOperators.ASHR, 2));
+           uVal.add(g).lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8))
+              .or(vVal.add(g)).intoArray(rgb, rgbIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int g = y[yIdx+i] - ((u[uIdx+i] + v[vIdx+i]) >> 2);
+           final int r = u[uIdx+i] + g;
+           final int b = v[vIdx+i] + g;
+           rgb[rgbIdx+i] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+       return "Reversible YUV";
+    }
+}
@@ -0,0 +1,151 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+
+
+// SIMD version of YCbCrColorModelConverter with the default bilinear
+// resampling (bit identical output).
+// Requires the jdk.incubator.vector module (see kanzi.util.color.VectorColorModelConverters).
+public final class VectorYCbCrColorModelConverter extends VectorColorModelConverter
+{
+    public VectorYCbCrColorModelConverter(int width, int height)
+    {
+        this(width, height, 0, width);
+    }
+
+
+    // rgbOffset is the offset in the RGB frame while stride is the width of the RGB frame
+    // width and height are the dimension of the YUV frame
+    public VectorYCbCrColorModelConverter(int width, int height, int rgbOffset, int stride)
+    {
+        super(width, height, rgbOffset, stride);
+    }
+
+
+    @Override
+    protected boolean supportsSubsampling()
+    {
+        return true;
+    }
+
+
+    // conversion matrix (JFIF)
+    //  0.2990  0.5870  0.1140
+    // -0.1687 -0.3313  0.5000
+    //  0.5000 -0.4187 -0.0813
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx,
+            int[] u, int uIdx, int[] v, int vIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           final IntVector r = channel(rgbVal, 16);
+           final IntVector g = channel(rgbVal, 8);
+           final IntVector b = channel(rgbVal, 0);
+           r.mul(19595).add(g.mul(38470)).add(b.mul(7471)).add(32768)
+              .lanewise(VectorOperators.ASHR, 16).intoArray(y, yIdx+i);
+           r.mul(-11056).sub(g.mul(21712)).add(b.mul(32768)).add(32768)
+              .lanewise(VectorOperators.ASHR, 16).add(128).intoArray(u, uIdx+i);
+           r.mul(32768).sub(g.mul(27440)).sub(b.mul(5328)).add(32768)
+              .lanewise(VectorOperators.ASHR, 16).add(128).intoArray(v, vIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           final int r = (rgbVal >> 16) & 0xFF;
+           final int g = (rgbVal >> 8) & 0xFF;
+           final int b =  rgbVal & 0xFF;
+           y[yIdx+i] = (19595*r + 38470*g + 7471*b + 32768) >> 16;
+           u[uIdx+i] = ((-11056*r - 21712*g + 32768*b + 32768) >> 16) + 128;
+           v[vIdx+i] = ((32768*r - 27440*g - 5328*b + 32768) >> 16) + 128;
+        }
+    }
+
+
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           channel(rgbVal, 16).mul(19595).add(channel(rgbVal, 8).mul(38470))
+              .add(channel(rgbVal, 0).mul(7471)).add(32768)
+              .lanewise(VectorOperators.ASHR, 16).intoArray(y, yIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           y[yIdx+i] = (19595*((rgbVal >> 16) & 0xFF) + 38470*((rgbVal >> 8) & 0xFF)
+              + 7471*(rgbVal & 0xFF) + 32768) >> 16;
+        }
+    }
+
+
+    // conversion matrix (JFIF)
+    // 1.00000  0.00000  1.40200
+    // 1.00000 -0.34414 -0.71414
+    // 1.00000  1.77200  0.00000
+    @Override
+    protected void toRGB(int[] y, int yIdx, int[] u, int uIdx,
+            int[] v, int vIdx, int[] rgb, int rgbIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector yVal = IntVector.fromArray(SPECIES, y, yIdx+i).lanewise(VectorOperators.LSHL, 16);
+           final IntVector uVal = IntVector.fromArray(SPECIES, u, uIdx+i).sub(128);
+           final IntVector vVal = IntVector.fromArray(SPECIES, v, vIdx+i).sub(128);
+           final IntVector r = yVal.add(vVal.mul(91881));
+           final IntVector g = yVal.sub(uVal.mul(22554)).sub(vVal.mul(46802));
+           final IntVector b = yVal.add(uVal.mul(116130));
+           clip(r, 16678912, 32768, 16, 16).or(clip(g, 16678912, 32768, 16, 8))
+              .or(clip(b, 16678912, 32768, 16, 0)).intoArray(rgb, rgbIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int yVal = y[yIdx+i] << 16;
+           final int uVal = u[uIdx+i] - 128;
+           final int vVal = v[vIdx+i] - 128;
+           final int r = yVal + 91881*vVal;
+           final int g = yVal - 22554*uVal - 46802*vVal;
+           final int b = yVal + 116130*uVal;
+           rgb[rgbIdx+i] = clip(r, 16678912, 32768, 16, 16) | clip(g, 16678912, 32768, 16, 8)
+              | clip(b, 16678912, 32768, 16, 0);
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+       return "YCbCr";
+    }
+}
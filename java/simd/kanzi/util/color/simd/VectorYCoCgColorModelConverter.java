@@ -0,0 +1,127 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+
+
+// SIMD version of YCoCgColorModelConverter (bit identical output).
+// Only YUV444 is supported.
+// Requires the jdk.incubator.vector module (see kanzi.util.color.VectorColorModelConverters).
+public final class VectorYCoCgColorModelConverter extends VectorColorModelConverter
+{
+    public VectorYCoCgColorModelConverter(int width, int height)
+    {
+        this(width, height, 0, width);
+    }
+
+
+    public VectorYCoCgColorModelConverter(int width, int height, int rgbOffset, int stride)
+    {
+        super(width, height, rgbOffset, stride);
+    }
+
+
+    // Only YUV444 supported. Other types cannot be exactly reversed
+    @Override
+    protected boolean supportsSubsampling()
+    {
+        return false;
+    }
+
+
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx,
+            int[] u, int uIdx, int[] v, int vIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           final IntVector r = channel(rgbVal, 16);
+           final IntVector g = channel(rgbVal, 8);
+           final IntVector b = channel(rgbVal, 0);
+           final IntVector co = r.sub(b);
+           final IntVector tmp = b.add(co.lanewise(VectorOperators.ASHR, 1));
+           final IntVector cg = g.sub(tmp);
+           co.intoArray(u, uIdx+i);
+           cg.intoArray(v, vIdx+i);
+           tmp.add(cg.lanewise(VectorOperators.ASHR, 1)).intoArray(y, yIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           final int r = (rgbVal >> 16) & 0xFF;
+           final int g = (rgbVal >> 8) & 0xFF;
+           final int b =  rgbVal & 0xFF;
+           final int co = r - b;
+           final int tmp = b + (co>>1);
+           final int cg = g - tmp;
+           u[uIdx+i] = co;
+           v[vIdx+i] = cg;
+           y[yIdx+i] = tmp + (cg>>1);
+        }
+    }
+
+
+    // Not used (no chroma subsampling)
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx, int count)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+
+    @Override
+    protected void toRGB(int[] y, int yIdx, int[] u, int uIdx,
+            int[] v, int vIdx, int[] rgb, int rgbIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector uVal = IntVector.fromArray(SPECIES, u, uIdx+i);
+           final IntVector vVal = IntVector.fromArray(SPECIES, v, vIdx+i);
+           final IntVector tmp = IntVector.fromArray(SPECIES, y, yIdx+i).sub(vVal.lanewise(VectorOperators.ASHR, 1));
+           final IntVector g = tmp.add(vVal);
+           final IntVector b = tmp.sub(uVal.lanewise(VectorOperators.ASHR, 1));
+           final IntVector r = b.add(uVal);
+           r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8))
+              .or(b).intoArray(rgb, rgbIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int tmp = y[yIdx+i] - (v[vIdx+i]>>1);
+           final int g = tmp + v[vIdx+i];
+           final int b = tmp - (u[uIdx+i]>>1);
+           final int r = b + u[uIdx+i];
+           rgb[rgbIdx+i] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+       return "YCoCg";
+    }
+}
@@ -0,0 +1,149 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+
+
+// SIMD version of YIQColorModelConverter with the default bilinear
+// resampling (bit identical output).
+// Requires the jdk.incubator.vector module (see kanzi.util.color.VectorColorModelConverters).
+public final class VectorYIQColorModelConverter extends VectorColorModelConverter
+{
+    public VectorYIQColorModelConverter(int width, int height)
+    {
+        this(width, height, 0, width);
+    }
+
+
+    // rgbOffset is the offset in the RGB frame while stride is the width of the RGB frame
+    // width and height are the dimension of the YUV frame
+    public VectorYIQColorModelConverter(int width, int height, int rgbOffset, int stride)
+    {
+        super(width, height, rgbOffset, stride);
+    }
+
+
+    @Override
+    protected boolean supportsSubsampling()
+    {
+        return true;
+    }
+
+
+    // 0.299  0.587  0.114
+    // 0.596 -0.274 -0.322
+    // 0.211 -0.523  0.312
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx,
+            int[] u, int uIdx, int[] v, int vIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           final IntVector r = channel(rgbVal, 16);
+           final IntVector g = channel(rgbVal, 8);
+           final IntVector b = channel(rgbVal, 0);
+           r.mul(1225).add(g.mul(2404)).add(b.mul(467)).add(2048)
+              .lanewise(VectorOperators.ASHR, 12).intoArray(y, yIdx+i);
+           r.mul(2441).sub(g.mul(1122)).sub(b.mul(1319)).add(2048)
+              .lanewise(VectorOperators.ASHR, 12).intoArray(u, uIdx+i);
+           r.mul(864).sub(g.mul(2142)).add(b.mul(1278)).add(2048)
+              .lanewise(VectorOperators.ASHR, 12).intoArray(v, vIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           final int r = (rgbVal >> 16) & 0xFF;
+           final int g = (rgbVal >> 8) & 0xFF;
+           final int b =  rgbVal & 0xFF;
+           y[yIdx+i] = (1225*r + 2404*g +  467*b + 2048) >> 12;
+           u[uIdx+i] = (2441*r - 1122*g - 1319*b + 2048) >> 12;
+           v[vIdx+i] = ( 864*r - 2142*g + 1278*b + 2048) >> 12;
+        }
+    }
+
+
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           channel(rgbVal, 16).mul(1225).add(channel(rgbVal, 8).mul(2404))
+              .add(channel(rgbVal, 0).mul(467)).add(2048)
+              .lanewise(VectorOperators.ASHR, 12).intoArray(y, yIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           y[yIdx+i] = (1225*((rgbVal >> 16) & 0xFF) + 2404*((rgbVal >> 8) & 0xFF)
+              + 467*(rgbVal & 0xFF) + 2048) >> 12;
+        }
+    }
+
+
+    // 1.000  0.956  0.621
+    // 1.000 -0.272 -0.647
+    // 1.000 -1.106  1.703
+    @Override
+    protected void toRGB(int[] y, int yIdx, int[] u, int uIdx,
+            int[] v, int vIdx, int[] rgb, int rgbIdx, int count)
+    {
+        final int step = SPECIES.length();
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector yVal = IntVector.fromArray(SPECIES, y, yIdx+i).lanewise(VectorOperators.LSHL, 12);
+           final IntVector uVal = IntVector.fromArray(SPECIES, u, uIdx+i);
+           final IntVector vVal = IntVector.fromArray(SPECIES, v, vIdx+i);
+           final IntVector r = yVal.add(uVal.mul(3916)).add(vVal.mul(2544));
+           final IntVector g = yVal.sub(uVal.mul(1114)).sub(vVal.mul(2650));
+           final IntVector b = yVal.sub(uVal.mul(4530)).add(vVal.mul(6976));
+           clip(r, 1042432, 2048, 12, 16).or(clip(g, 1042432, 2048, 12, 8))
+              .or(clip(b, 1042432, 2048, 12, 0)).intoArray(rgb, rgbIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int yVal = y[yIdx+i] << 12;
+           final int uVal = u[uIdx+i];
+           final int vVal = v[vIdx+i];
+           final int r = yVal + 3916*uVal + 2544*vVal;
+           final int g = yVal - 1114*uVal - 2650*vVal;
+           final int b = yVal - 4530*uVal + 6976*vVal;
+           rgb[rgbIdx+i] = clip(r, 1042432, 2048, 12, 16) | clip(g, 1042432, 2048, 12, 8)
+              | clip(b, 1042432, 2048, 12, 0);
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+       return "YIQ";
+    }
+}
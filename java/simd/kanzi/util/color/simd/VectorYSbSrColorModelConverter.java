@@ -0,0 +1,166 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color.simd;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+
+
+// SIMD version of YSbSrColorModelConverter with the default bilinear
+// resampling (bit identical output).
+// Requires the jdk.incubator.vector module (see kanzi.util.color.VectorColorModelConverters).
+public final class VectorYSbSrColorModelConverter extends VectorColorModelConverter
+{
+    private final int fShift; // forward (RGB to YUV)
+    private final int iShift; // inverse (YUV to RGB)
+
+
+    public VectorYSbSrColorModelConverter(int width, int height)
+    {
+        this(width, height, 0, width, true);
+    }
+
+
+    // rgbOffset is the offset in the RGB frame while stride is the width of the RGB frame
+    // width and height are the dimension of the YUV frame
+    // If keepRange is set to true, keep YUV in [0..255] range
+    public VectorYSbSrColorModelConverter(int width, int height, int rgbOffset, int stride,
+            boolean keepRange)
+    {
+        super(width, height, rgbOffset, stride);
+        this.fShift = keepRange ? 13 : 12;
+        this.iShift = keepRange ? 11 : 12;
+    }
+
+
+    @Override
+    protected boolean supportsSubsampling()
+    {
+        return true;
+    }
+
+
+    // if keepRange is true, the matrix coefficients are divided by 2
+    //  0.6460 0.6880  0.6660
+    // -1.0000 0.2120  0.7880
+    // -0.3220 1.0000 -0.6780
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx,
+            int[] u, int uIdx, int[] v, int vIdx, int count)
+    {
+        final int step = SPECIES.length();
+        final int rshift = this.fShift;
+        final int adjust = (1 << rshift) >> 1;
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           final IntVector r = channel(rgbVal, 16);
+           final IntVector g = channel(rgbVal, 8);
+           final IntVector b = channel(rgbVal, 0);
+           r.mul(2646).add(g.mul(2818)).add(b.mul(2728)).add(adjust)
+              .lanewise(VectorOperators.ASHR, rshift).intoArray(y, yIdx+i);
+           g.mul(868).sub(r.lanewise(VectorOperators.LSHL, 12)).add(b.mul(3228)).add(adjust)
+              .lanewise(VectorOperators.ASHR, rshift).intoArray(u, uIdx+i);
+           g.lanewise(VectorOperators.LSHL, 12).sub(r.mul(1319)).sub(b.mul(2777)).add(adjust)
+              .lanewise(VectorOperators.ASHR, rshift).intoArray(v, vIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           final int r = (rgbVal >> 16) & 0xFF;
+           final int g = (rgbVal >> 8) & 0xFF;
+           final int b =  rgbVal & 0xFF;
+           y[yIdx+i] = ( 2646*r  + 2818*g  + 2728*b + adjust) >> rshift;
+           u[uIdx+i] = (-(r<<12) +  868*g  + 3228*b + adjust) >> rshift;
+           v[vIdx+i] = (-1319*r  + (g<<12) - 2777*b + adjust) >> rshift;
+        }
+    }
+
+
+    @Override
+    protected void fromRGB(int[] rgb, int rgbIdx, int[] y, int yIdx, int count)
+    {
+        final int step = SPECIES.length();
+        final int rshift = this.fShift;
+        final int adjust = (1 << rshift) >> 1;
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector rgbVal = IntVector.fromArray(SPECIES, rgb, rgbIdx+i);
+           channel(rgbVal, 16).mul(2646).add(channel(rgbVal, 8).mul(2818))
+              .add(channel(rgbVal, 0).mul(2728)).add(adjust)
+              .lanewise(VectorOperators.ASHR, rshift).intoArray(y, yIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int rgbVal = rgb[rgbIdx+i];
+           y[yIdx+i] = (2646*((rgbVal >> 16) & 0xFF) + 2818*((rgbVal >> 8) & 0xFF)
+              + 2728*(rgbVal & 0xFF) + adjust) >> rshift;
+        }
+    }
+
+
+    // if keepRange is true, the matrix coefficients are multiplied by 2
+    // 0.5000 -0.6077 -0.2152
+    // 0.5000  0.1200  0.6306
+    // 0.5000  0.4655 -0.4427
+    @Override
+    protected void toRGB(int[] y, int yIdx, int[] u, int uIdx,
+            int[] v, int vIdx, int[] rgb, int rgbIdx, int count)
+    {
+        final int step = SPECIES.length();
+        final int rshift = this.iShift;
+        final int adjust = (1 << rshift) >> 1;
+        final int maxVal = (255 << rshift) - adjust;
+        int i = 0;
+
+        for ( ; i<=count-step; i+=step)
+        {
+           final IntVector yVal = IntVector.fromArray(SPECIES, y, yIdx+i).lanewise(VectorOperators.LSHL, 11);
+           final IntVector uVal = IntVector.fromArray(SPECIES, u, uIdx+i);
+           final IntVector vVal = IntVector.fromArray(SPECIES, v, vIdx+i);
+           final IntVector r = yVal.sub(uVal.mul(2489)).sub(vVal.mul(881));
+           final IntVector g = yVal.add(uVal.mul(491)).add(vVal.mul(2583));
+           final IntVector b = yVal.add(uVal.mul(1907)).sub(vVal.mul(1813));
+           clip(r, maxVal, adjust, rshift, 16).or(clip(g, maxVal, adjust, rshift, 8))
+              .or(clip(b, maxVal, adjust, rshift, 0)).intoArray(rgb, rgbIdx+i);
+        }
+
+        for ( ; i<count; i++)
+        {
+           final int yVal = y[yIdx+i] << 11;
+           final int uVal = u[uIdx+i];
+           final int vVal = v[vIdx+i];
+           final int r = yVal - 2489*uVal -  881*vVal;
+           final int g = yVal +  491*uVal + 2583*vVal;
+           final int b = yVal + 1907*uVal - 1813*vVal;
+           rgb[rgbIdx+i] = clip(r, maxVal, adjust, rshift, 16) | clip(g, maxVal, adjust, rshift, 8)
+              | clip(b, maxVal, adjust, rshift, 0);
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+       return "YSbSr";
+    }
+}
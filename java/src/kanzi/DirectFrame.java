@@ -0,0 +1,136 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+
+// An image channel (or packed RGB image) stored off heap in a direct buffer.
+// Pixel (x, y) is at buffer position offset+y*stride+x.
+// Large frames stored off heap do not weigh on the garbage collector and can
+// be shared with native code (EG. a memory mapped file or a video decoder)
+// without copy. A frame can also wrap an int array (heap buffer) so that code
+// written for frames also works on regular images.
+public final class DirectFrame
+{
+   public final int width;
+   public final int height;
+   public final int stride;
+   public final int offset;
+   public final IntBuffer buffer;
+
+
+   public DirectFrame(int width, int height, int stride, int offset, IntBuffer buffer)
+   {
+      if (buffer == null)
+         throw new NullPointerException("Invalid null buffer parameter");
+
+      if (height < 1)
+         throw new IllegalArgumentException("The height must be at least 1");
+
+      if (width < 1)
+         throw new IllegalArgumentException("The width must be at least 1");
+
+      if (stride < width)
+         throw new IllegalArgumentException("The stride must be at least as large as the width");
+
+      if (offset < 0)
+         throw new IllegalArgumentException("The offset must be positive or null");
+
+      if ((long) offset + (long) (height-1)*stride + width > buffer.capacity())
+         throw new IllegalArgumentException("The buffer is too small for the frame dimensions");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.offset = offset;
+      this.buffer = buffer;
+   }
+
+
+   // Allocate a frame in native memory (native byte order)
+   public static DirectFrame allocate(int width, int height)
+   {
+      return allocate(width, height, width);
+   }
+
+
+   public static DirectFrame allocate(int width, int height, int stride)
+   {
+      if ((long) stride*height > Integer.MAX_VALUE/4)
+         throw new IllegalArgumentException("The frame is too large: "+width+"x"+height);
+
+      final IntBuffer buf = ByteBuffer.allocateDirect(4*stride*height)
+         .order(ByteOrder.nativeOrder()).asIntBuffer();
+      return new DirectFrame(width, height, stride, 0, buf);
+   }
+
+
+   // Wrap an int array (the frame is stored on the heap)
+   public static DirectFrame wrap(int width, int height, int stride, int offset, int[] array)
+   {
+      if (array == null)
+         throw new NullPointerException("Invalid null array parameter");
+
+      return new DirectFrame(width, height, stride, offset, IntBuffer.wrap(array));
+   }
+
+
+   // Copy 'nbRows' rows starting at row y into array (packed, 'width' pixels
+   // per row) starting at index
+   public void getRows(int y, int nbRows, int[] array, int index)
+   {
+      final IntBuffer buf = this.buffer.duplicate();
+      final int w = this.width;
+
+      for (int j=0, pos=this.offset+y*this.stride; j<nbRows; j++, pos+=this.stride)
+      {
+         buf.position(pos);
+         buf.get(array, index+j*w, w);
+      }
+   }
+
+
+   // Copy 'nbRows' packed rows from array starting at index into the rows
+   // starting at row y
+   public void putRows(int y, int nbRows, int[] array, int index)
+   {
+      final IntBuffer buf = this.buffer.duplicate();
+      final int w = this.width;
+
+      for (int j=0, pos=this.offset+y*this.stride; j<nbRows; j++, pos+=this.stride)
+      {
+         buf.position(pos);
+         buf.put(array, index+j*w, w);
+      }
+   }
+
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder(200);
+      sb.append("{ \"width\":").append(this.width);
+      sb.append(", \"height\":").append(this.height);
+      sb.append(", \"stride\":").append(this.stride);
+      sb.append(", \"offset\":").append(this.offset);
+      sb.append(", \"direct\":").append(this.buffer.isDirect());
+      sb.append(" }");
+      return sb.toString();
+   }
+}
@@ -0,0 +1,678 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import kanzi.ColorModelType;
+import kanzi.IntFilter;
+import kanzi.IntTransform;
+import kanzi.SliceIntArray;
+import kanzi.filter.BilateralFilter;
+import kanzi.filter.BilateralGridFilter;
+import kanzi.filter.ColorClusterFilter;
+import kanzi.filter.FastBilateralFilter;
+import kanzi.filter.GaussianFilter;
+import kanzi.filter.IntegralImageFilter;
+import kanzi.filter.LightingEffect;
+import kanzi.filter.MSSSaliencyFilter;
+import kanzi.filter.MedianFilter;
+import kanzi.filter.RainDropEffect;
+import kanzi.filter.SharpenFilter;
+import kanzi.filter.SobelFilter;
+import kanzi.filter.UnsharpFilter;
+import kanzi.filter.VectorFilters;
+import kanzi.filter.seam.ContextResizer;
+import kanzi.transform.DCT16;
+import kanzi.transform.DCT32;
+import kanzi.transform.DCT4;
+import kanzi.transform.DCT8;
+import kanzi.transform.DST4;
+import kanzi.transform.WHT16;
+import kanzi.transform.WHT32;
+import kanzi.transform.WHT4;
+import kanzi.transform.WHT8;
+import kanzi.util.BufferPool;
+import kanzi.util.image.DeblockingFilter;
+import kanzi.util.image.DeringingFilter;
+import kanzi.util.image.FrameWriter;
+import kanzi.util.image.ImageUtils;
+
+
+// Headless command line driver: loads a directory (or a single file) of images,
+// applies a chain of filters/transforms to each image and reports per stage
+// latency percentiles, throughput (megapixels/s) and allocation rate.
+// No AWT display class is used (the JVM runs with java.awt.headless=true), so
+// it can run on servers and render farm nodes.
+public class FilterDriver
+{
+   private static final String[] EXTENSIONS = { "BMP", "GIF", "PNG", "JPG", "JPEG",
+      "PGM", "PNM", "PPM" };
+
+
+   public static void main(String[] args)
+   {
+      System.setProperty("java.awt.headless", "true");
+      String inputName = null;
+      String chain = null;
+      int iterations = 10;
+      int warmup = 3;
+      boolean verbose = false;
+      boolean pooled = false;
+      String outputName = null;
+
+      for (String arg : args)
+      {
+         arg = arg.trim();
+
+         if (arg.equals("-help"))
+         {
+            printHelp();
+            System.exit(0);
+         }
+         else if (arg.startsWith("-input="))
+         {
+            inputName = arg.substring(7);
+         }
+         else if (arg.startsWith("-chain="))
+         {
+            chain = arg.substring(7);
+         }
+         else if (arg.startsWith("-iterations="))
+         {
+            iterations = Integer.parseInt(arg.substring(12));
+         }
+         else if (arg.startsWith("-warmup="))
+         {
+            warmup = Integer.parseInt(arg.substring(8));
+         }
+         else if (arg.startsWith("-output="))
+         {
+            outputName = arg.substring(8);
+         }
+         else if (arg.equals("-pool"))
+         {
+            pooled = true;
+         }
+         else if (arg.equals("-verbose"))
+         {
+            verbose = true;
+         }
+         else
+         {
+            System.out.println("Warning: unknown option: ["+ arg + "]");
+         }
+      }
+
+      if ((inputName == null) || (chain == null))
+      {
+         System.err.println("Missing input or chain: type FilterDriver -help");
+         System.exit(1);
+      }
+
+      if (iterations < 1)
+      {
+         System.err.println("The number of iterations must be at least 1");
+         System.exit(1);
+      }
+
+      if (warmup < 0)
+      {
+         System.err.println("The number of warmup iterations must be positive or null");
+         System.exit(1);
+      }
+
+      try
+      {
+         String[] specs = chain.split(",");
+         List<File> files = listFiles(new File(inputName));
+
+         if (files.isEmpty())
+         {
+            System.err.println("No image found in "+inputName);
+            System.exit(1);
+         }
+
+         FilterDriver driver = new FilterDriver(specs, verbose, (pooled == true) ? new BufferPool() : null);
+         File outputDir = (outputName == null) ? null : new File(outputName);
+
+         if ((outputDir != null) && (outputDir.isDirectory() == false) && (outputDir.mkdirs() == false))
+         {
+            System.err.println("Cannot create output directory "+outputName);
+            System.exit(1);
+         }
+
+         for (File file : files)
+         {
+            File output = (outputDir == null) ? null : new File(outputDir, file.getName()+".ppm");
+            driver.process(file, warmup, iterations, output);
+         }
+
+         driver.printReport();
+      }
+      catch (IllegalArgumentException e)
+      {
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }
+      catch (IOException e)
+      {
+         System.err.println("Failed to read image: "+e.getMessage());
+         System.exit(1);
+      }
+   }
+
+
+   private static void printHelp()
+   {
+      System.out.println("-help                : display this message");
+      System.out.println("-input=<path>        : image file or directory of images");
+      System.out.println("                       [BMP|GIF|PNG|JPG|PGM|PNM|PPM]");
+      System.out.println("-chain=<stages>      : comma separated list of stages, each stage is");
+      System.out.println("                       name[:arg] (arg is the main parameter of the stage)");
+      System.out.println("                       Filters: [Bilateral|BilateralGrid|Blur|ColorCluster|");
+      System.out.println("                        Contrast|ContextResizer|Deblocking|Deringing|");
+      System.out.println("                        FastBilateral|Gaussian|IntegralImage|Lighting|");
+      System.out.println("                        Median|RainDrop|Saliency|Sharpen|Sobel|Unsharp]");
+      System.out.println("                       Transforms (forward + inverse on each block of");
+      System.out.println("                        each channel): [DCT4|DCT8|DCT16|DCT32|DST4|");
+      System.out.println("                        WHT4|WHT8|WHT16|WHT32]");
+      System.out.println("-iterations=<n>      : number of timed iterations per image (default 10)");
+      System.out.println("-warmup=<n>          : number of untimed iterations per image (default 3)");
+      System.out.println("-output=<dir>        : save the result of the chain for each image (PPM)");
+      System.out.println("-pool                : filters lease their scratch buffers from a shared pool");
+      System.out.println("-verbose             : display per image information");
+      System.out.println("EG. FilterDriver -input=frames -chain=Gaussian:128,Sharpen,DCT8 -iterations=20");
+   }
+
+
+   private static List<File> listFiles(File input) throws IOException
+   {
+      List<File> res = new ArrayList<File>();
+
+      if (input.isFile() == true)
+      {
+         res.add(input);
+         return res;
+      }
+
+      File[] files = input.listFiles();
+
+      if (files == null)
+         throw new IOException("Cannot access "+input.getPath());
+
+      Arrays.sort(files);
+
+      for (File f : files)
+      {
+         if ((f.isFile() == true) && (getType(f) != null))
+            res.add(f);
+      }
+
+      return res;
+   }
+
+
+   private static String getType(File file)
+   {
+      final String name = file.getName();
+      final int idx = name.lastIndexOf('.');
+
+      if (idx < 0)
+         return null;
+
+      final String ext = name.substring(idx+1).toUpperCase();
+
+      for (String s : EXTENSIONS)
+      {
+         if (s.equals(ext))
+            return ext;
+      }
+
+      return null;
+   }
+
+
+   private final String[] names;
+   private final int[] args;
+   private final StageStats[] stats;
+   private final HashMap<Long, IntFilter[]> filters; // key is image dimensions
+   private final ThreadMXBean threadBean;
+   private final boolean verbose;
+   private int[] decodeBuffer; // reused across images
+   private final BufferPool bufferPool;
+   private int nbImages;
+
+
+   // bufferPool can be null (filters keep their own scratch buffers)
+   public FilterDriver(String[] specs, boolean verbose, BufferPool bufferPool)
+   {
+      if (specs.length == 0)
+         throw new IllegalArgumentException("Invalid empty chain");
+
+      this.names = new String[specs.length];
+      this.args = new int[specs.length];
+      this.stats = new StageStats[specs.length];
+      this.filters = new HashMap<Long, IntFilter[]>();
+      this.verbose = verbose;
+      this.decodeBuffer = new int[0];
+      this.bufferPool = bufferPool;
+
+      for (int i=0; i<specs.length; i++)
+      {
+         final String spec = specs[i].trim();
+         final int idx = spec.indexOf(':');
+
+         try
+         {
+            this.names[i] = (idx < 0) ? spec : spec.substring(0, idx);
+            this.args[i] = (idx < 0) ? 0 : Integer.parseInt(spec.substring(idx+1));
+         }
+         catch (NumberFormatException e)
+         {
+            throw new IllegalArgumentException("Invalid stage argument: "+spec);
+         }
+
+         // Fail early on unknown stages
+         createStage(this.names[i], 64, 64, this.args[i], null);
+         this.stats[i] = new StageStats(spec);
+      }
+
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+      // Allocated bytes per thread is a HotSpot extension
+      if ((bean instanceof com.sun.management.ThreadMXBean) &&
+         (((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported() == true))
+      {
+         ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+         this.threadBean = bean;
+      }
+      else
+      {
+         this.threadBean = null;
+      }
+   }
+
+
+   // The result of the last iteration is saved to 'output' (PPM) if not null
+   public void process(File file, int warmup, int iterations, File output) throws IOException
+   {
+      ImageUtils.ImageInfo ii;
+
+      try (FileInputStream fis = new FileInputStream(file))
+      {
+         ii = ImageUtils.loadImage(fis, getType(file), this.decodeBuffer);
+      }
+
+      if (ii == null)
+         throw new IOException("Cannot decode "+file.getPath());
+
+      this.decodeBuffer = ii.data;
+
+      // Most filters require dimensions multiple of 8
+      final int w = ii.width & -8;
+      final int h = ii.height & -8;
+
+      if ((w < 64) || (h < 64))
+      {
+         System.out.println("Skipping "+file.getPath()+" (image too small: "+ii.width+"x"+ii.height+")");
+         return;
+      }
+
+      final int[] source = new int[w*h];
+
+      for (int j=0; j<h; j++)
+         System.arraycopy(ii.data, j*ii.width, source, j*w, w);
+
+      final Long key = ((long) w << 32) | h;
+      IntFilter[] stages = this.filters.get(key);
+
+      if (stages == null)
+      {
+         stages = new IntFilter[this.names.length];
+
+         for (int i=0; i<stages.length; i++)
+            stages[i] = createStage(this.names[i], w, h, this.args[i], this.bufferPool);
+
+         this.filters.put(key, stages);
+      }
+
+      if (this.verbose == true)
+         System.out.println(file.getPath()+" ("+w+"x"+h+")");
+
+      SliceIntArray sa1 = new SliceIntArray(new int[w*h], w*h, 0);
+      SliceIntArray sa2 = new SliceIntArray(new int[w*h], w*h, 0);
+
+      for (int iter=0; iter<warmup+iterations; iter++)
+      {
+         final boolean timed = iter >= warmup;
+         System.arraycopy(source, 0, sa1.array, 0, source.length);
+
+         for (int i=0; i<stages.length; i++)
+         {
+            sa1.index = 0;
+            sa2.index = 0;
+            final long alloc0 = this.getAllocatedBytes();
+            final long before = System.nanoTime();
+
+            if (stages[i].apply(sa1, sa2) == false)
+               throw new IllegalArgumentException("Stage "+this.stats[i].name+" failed on "+file.getPath());
+
+            final long after = System.nanoTime();
+            final long alloc1 = this.getAllocatedBytes();
+
+            if (timed == true)
+               this.stats[i].add(after-before, (long) w*h, alloc1-alloc0);
+
+            // The output of a stage is the input of the next one
+            SliceIntArray tmp = sa1;
+            sa1 = sa2;
+            sa2 = tmp;
+         }
+      }
+
+      this.nbImages++;
+
+      if (output != null)
+      {
+         try (FrameWriter writer = new FrameWriter(output, FrameWriter.PPM, w, h, ColorModelType.RGB))
+         {
+            writer.writeRGB(sa1.array, 0, w);
+         }
+      }
+   }
+
+
+   private long getAllocatedBytes()
+   {
+      if (this.threadBean == null)
+         return 0;
+
+      return ((com.sun.management.ThreadMXBean) this.threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+
+
+   public void printReport()
+   {
+      System.out.println();
+      System.out.println("Images: "+this.nbImages);
+
+      if (this.threadBean == null)
+         System.out.println("Allocation rate not available on this JVM");
+      else
+         System.out.println("Allocation rate measured on the calling thread only");
+
+      if (this.bufferPool != null)
+         System.out.println("Buffer pool: "+this.bufferPool);
+
+      System.out.println();
+      System.out.println(String.format(Locale.US, "%-20s %8s %10s %10s %10s %10s %10s %10s",
+              "Stage", "Samples", "p50 (ms)", "p90 (ms)", "p99 (ms)", "Max (ms)", "MPixels/s", "Alloc MB/s"));
+      long totalNanos = 0;
+      long totalPixels = 0;
+      long totalAlloc = 0;
+
+      for (StageStats s : this.stats)
+      {
+         s.print();
+         totalNanos += s.totalNanos;
+         totalPixels = Math.max(totalPixels, s.totalPixels);
+         totalAlloc += s.totalAlloc;
+      }
+
+      if (totalNanos > 0)
+      {
+         System.out.println(String.format(Locale.US, "%-20s %8s %10s %10s %10s %10s %10.2f %10.2f",
+              "Total", "", "", "", "", "", 1000.0*totalPixels/totalNanos,
+              (this.threadBean == null) ? 0.0 : 1.0e9*totalAlloc/totalNanos/(1024*1024)));
+      }
+   }
+
+
+   // Create a filter (or transform wrapped in a filter) for an image of the
+   // provided dimensions. 'arg' is the main parameter (0 means default value).
+   // Filters that support it lease their scratch buffers from the pool (if
+   // not null). The SIMD filters are used when available (see VectorFilters).
+   static IntFilter createStage(String name, int w, int h, int arg, BufferPool pool)
+   {
+      switch (name.toUpperCase())
+      {
+         case "BILATERAL" :
+            return new BilateralFilter(w, h, w, 4, (arg == 0) ? 10 : arg);
+
+         case "BILATERALGRID" :
+            return new BilateralGridFilter(w, h, w, 4, (arg == 0) ? 10 : arg);
+
+         case "BLUR" :
+            return VectorFilters.newBlurFilter(w, h, w, (arg == 0) ? 8 : arg, 4);
+
+         case "COLORCLUSTER" :
+            return new ColorClusterFilter(w, h, w, (arg == 0) ? 20 : arg, 5);
+
+         case "CONTRAST" :
+            return VectorFilters.newContrastFilter(w, h, w, (arg == 0) ? 75 : arg);
+
+         case "CONTEXTRESIZER" :
+            return new ContextResizer(w, h, w, ContextResizer.VERTICAL, (arg == 0) ? -20 : arg,
+                    Math.max(w, h), false, false, null, 256, pool);
+
+         case "DEBLOCKING" :
+            return (arg == 0) ? new DeblockingFilter(w, h, w) : new DeblockingFilter(w, h, w, 8, arg);
+
+         case "DERINGING" :
+            return (arg == 0) ? new DeringingFilter(w, h, w) : new DeringingFilter(w, h, w, 8, arg);
+
+         case "FASTBILATERAL" :
+            return new FastBilateralFilter(w, h, w, (arg == 0) ? 20.0f : (float) arg, 0.03f, 4, 3, 3, pool);
+
+         case "GAUSSIAN" :
+            return new GaussianFilter(w, h, w, (arg == 0) ? 192 : arg, 3, pool);
+
+         case "INTEGRALIMAGE" :
+            return new IntegralImageFilter(w, h, w);
+
+         case "LIGHTING" :
+            return new LightingEffect(w, h, w, w/2, h/2, Math.min(w, h)/2, (arg == 0) ? 120 : arg, false);
+
+         case "MEDIAN" :
+            return new MedianFilter(w, h, w, (arg == 0) ? MedianFilter.DEFAULT_RADIUS : arg,
+                    MedianFilter.THREE_CHANNELS, MedianFilter.DEFAULT_THRESHOLD);
+
+         case "RAINDROP" :
+            return new RainDropEffect(w, h, w, (arg == 0) ? Math.min(w, h)/4 : arg, 100);
+
+         case "SALIENCY" :
+            return new MSSSaliencyFilter(w, h, w, true, MSSSaliencyFilter.IMAGE, pool);
+
+         case "SHARPEN" :
+            return VectorFilters.newSharpenFilter(w, h, w, SharpenFilter.THREE_CHANNELS, true);
+
+         case "SOBEL" :
+            return VectorFilters.newSobelFilter(w, h, w, SobelFilter.HORIZONTAL | SobelFilter.VERTICAL,
+                    SobelFilter.THREE_CHANNELS, SobelFilter.IMAGE, true);
+
+         case "UNSHARP" :
+            return new UnsharpFilter(w, h, w, (arg == 0) ? 2 : arg, 60, 100);
+
+         case "DCT4" : return new TransformStage(new DCT4(), 4, w, h);
+         case "DCT8" : return new TransformStage(new DCT8(), 8, w, h);
+         case "DCT16" : return new TransformStage(new DCT16(), 16, w, h);
+         case "DCT32" : return new TransformStage(new DCT32(), 32, w, h);
+         case "DST4" : return new TransformStage(new DST4(), 4, w, h);
+         case "WHT4" : return new TransformStage(new WHT4(), 4, w, h);
+         case "WHT8" : return new TransformStage(new WHT8(), 8, w, h);
+         case "WHT16" : return new TransformStage(new WHT16(), 16, w, h);
+         case "WHT32" : return new TransformStage(new WHT32(), 32, w, h);
+
+         default :
+            throw new IllegalArgumentException("Unknown stage: "+name);
+      }
+   }
+
+
+   // Applies the forward then inverse transform to each block of each channel
+   // (packed RGB). Partial blocks on the right and bottom are copied unchanged.
+   static class TransformStage implements IntFilter
+   {
+      private final IntTransform transform;
+      private final int dim;
+      private final int width;
+      private final int height;
+      private final SliceIntArray block1;
+      private final SliceIntArray block2;
+
+
+      TransformStage(IntTransform transform, int dim, int width, int height)
+      {
+         this.transform = transform;
+         this.dim = dim;
+         this.width = width;
+         this.height = height;
+         this.block1 = new SliceIntArray(new int[dim*dim], dim*dim, 0);
+         this.block2 = new SliceIntArray(new int[dim*dim], dim*dim, 0);
+      }
+
+
+      @Override
+      public boolean apply(SliceIntArray input, SliceIntArray output)
+      {
+         if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+            return false;
+
+         final int[] src = input.array;
+         final int[] dst = output.array;
+         final int srcIdx = input.index;
+         final int dstIdx = output.index;
+         final int w = this.width;
+         final int d = this.dim;
+         final int[] buf1 = this.block1.array;
+         final int[] buf2 = this.block2.array;
+
+         if ((src != dst) || (srcIdx != dstIdx))
+         {
+            for (int y=0; y<this.height; y++)
+               System.arraycopy(src, srcIdx+y*w, dst, dstIdx+y*w, w);
+         }
+
+         for (int y=0; y<=this.height-d; y+=d)
+         {
+            for (int x=0; x<=w-d; x+=d)
+            {
+               for (int shift=0; shift<24; shift+=8)
+               {
+                  // Gather
+                  for (int j=0, n=0, offs=srcIdx+y*w+x; j<d; j++, offs+=w)
+                  {
+                     for (int i=0; i<d; i++)
+                        buf1[n++] = (src[offs+i] >> shift) & 0xFF;
+                  }
+
+                  this.block1.index = 0;
+                  this.block2.index = 0;
+
+                  if (this.transform.forward(this.block1, this.block2) == false)
+                     return false;
+
+                  this.block1.index = 0;
+                  this.block2.index = 0;
+
+                  if (this.transform.inverse(this.block2, this.block1) == false)
+                     return false;
+
+                  // Scatter
+                  for (int j=0, n=0, offs=dstIdx+y*w+x; j<d; j++, offs+=w)
+                  {
+                     for (int i=0; i<d; i++, n++)
+                     {
+                        final int val = (buf1[n] >= 255) ? 255 : buf1[n] & ~(buf1[n] >> 31);
+                        dst[offs+i] = (dst[offs+i] & ~(0xFF << shift)) | (val << shift);
+                     }
+                  }
+               }
+            }
+         }
+
+         return true;
+      }
+   }
+
+
+   static class StageStats
+   {
+      final String name;
+      long[] samples;
+      int count;
+      long totalNanos;
+      long totalPixels;
+      long totalAlloc;
+
+
+      StageStats(String name)
+      {
+         this.name = name;
+         this.samples = new long[64];
+      }
+
+
+      void add(long nanos, long pixels, long alloc)
+      {
+         if (this.count == this.samples.length)
+            this.samples = Arrays.copyOf(this.samples, 2*this.count);
+
+         this.samples[this.count++] = nanos;
+         this.totalNanos += nanos;
+         this.totalPixels += pixels;
+         this.totalAlloc += alloc;
+      }
+
+
+      // Nearest rank percentile of the sorted samples
+      private static double percentile(long[] sorted, int count, int pct)
+      {
+         final int rank = Math.max((pct*count+99)/100, 1);
+         return sorted[rank-1] / 1000000.0;
+      }
+
+
+      void print()
+      {
+         if (this.count == 0)
+         {
+            System.out.println(String.format(Locale.US, "%-20s %8d", this.name, 0));
+            return;
+         }
+
+         final long[] sorted = Arrays.copyOf(this.samples, this.count);
+         Arrays.sort(sorted);
+         System.out.println(String.format(Locale.US, "%-20s %8d %10.3f %10.3f %10.3f %10.3f %10.2f %10.2f",
+                 this.name, this.count,
+                 percentile(sorted, this.count, 50),
+                 percentile(sorted, this.count, 90),
+                 percentile(sorted, this.count, 99),
+                 sorted[this.count-1] / 1000000.0,
+                 1000.0*this.totalPixels/this.totalNanos,
+                 1.0e9*this.totalAlloc/this.totalNanos/(1024*1024)));
+      }
+   }
+}
@@ -0,0 +1,562 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import kanzi.IntFilter;
+import kanzi.SliceIntArray;
+
+
+// Implementation of the bilateral filter using a bilateral grid.
+// See [Real-time Edge-Aware Image Processing with the Bilateral Grid] by
+// Jiawen Chen, Sylvain Paris & Fredo Durand (SIGGRAPH 2007) and [A Fast
+// Approximation of the Bilateral Filter using a Signal Processing Approach]
+// by Sylvain Paris & Fredo Durand.
+// Each channel is splatted into a downsampled 3D grid (x, y, intensity) with
+// one cell every sigmaD pixels and every 'range step' intensity levels. The grid is
+// blurred with a separable [1 4 6 4 1] kernel (a gaussian of one cell along
+// each axis) then the output is obtained by trilinear interpolation (slicing)
+// of the grid at each pixel. All the computations use integer arithmetic.
+// The cost of the filter does not depend on the radius: larger sigmas mean
+// smaller grids (the grid has about (w/sigmaD)*(h/sigmaD)*(256/rangeStep) cells).
+// The results are close to BilateralFilter for the same sigma parameters: the
+// intensity weights of BilateralFilter are exp(-d/(2*sigmaR^2)) so the range
+// step is chosen to give a gaussian with the same half width (about
+// 1.18*sigmaR^2 intensity levels).
+// The grid size grows quickly with small sigmas (sigmaR=1 and sigmaD=1 give
+// more than 500 ints per pixel), so grids larger than MAX_GRID_SIZE ints are
+// processed in chunks of grid rows. The blur along the y axis needs 2 grid rows
+// on each side of a chunk: these rows are kept from the previous chunk (they
+// are splatted before any pixel is sliced) so the output is identical to the
+// output with the full grid and the input is read once per channel.
+// If an executor is provided, the splatting, blurring and slicing steps are
+// split into bands of rows processed concurrently.
+public final class BilateralGridFilter implements IntFilter
+{
+   private static final int PAD = 2; // half size of the blur kernel
+   private static final int HALO = 2*PAD + 1; // rows shared by consecutive chunks
+
+   // Maximum number of ints of the grid (64 MB), larger grids are processed
+   // in chunks of rows (at least one row per chunk)
+   public static final int MAX_GRID_SIZE = 1 << 24;
+   public static final int MAX_TASKS = 256;
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final int channels;
+   private final int sigmaD; // spatial step
+   private final int rangeStep;
+   private final int gridW;
+   private final int gridH;
+   private final int gridD;
+   private final int[] grid; // (sum, weight) per cell of the rows of a chunk, intensity axis is innermost
+   private final int[] halo; // rows carried over to the next chunk (if several chunks)
+   private final int chunkRows;
+   private int gridBase; // first grid row in the grid array
+   private int carriedRows; // number of rows in halo
+   private int rangeStart; // grid rows processed by the current step
+   private int rangeEnd;
+   private final int[] cellX; // pixel x => grid x (splatting)
+   private final int[] cellZ; // pixel intensity => grid z (splatting)
+   private final ExecutorService pool; // can be null
+   private final Band[] bands;
+
+
+   // sigmaR = sigma Range (for pixel intensities)
+   // sigmaD = sigma Distance (for pixel locations)
+   public BilateralGridFilter(int width, int height, int stride, int sigmaR, int sigmaD)
+   {
+      this(width, height, stride, sigmaR, sigmaD, 3, null, 1);
+   }
+
+
+   // sigmaR = sigma Range (for pixel intensities)
+   // sigmaD = sigma Distance (for pixel locations)
+   // The steps of the filter are split into bands processed concurrently by
+   // the tasks of the executor.
+   public BilateralGridFilter(int width, int height, int stride, int sigmaR, int sigmaD,
+           int channels, ExecutorService pool)
+   {
+      this(width, height, stride, sigmaR, sigmaD, channels, pool,
+         (pool == null) ? 1 : Runtime.getRuntime().availableProcessors());
+   }
+
+
+   // sigmaR = sigma Range (for pixel intensities)
+   // sigmaD = sigma Distance (for pixel locations)
+   // channels = 1 (B or Y), 2 (G, B) or 3 (R, G, B)
+   // If the executor is null, the bands are processed in the calling thread.
+   // The number of tasks is clamped to MAX_TASKS.
+   public BilateralGridFilter(int width, int height, int stride, int sigmaR, int sigmaD,
+           int channels, ExecutorService pool, int nbTasks)
+   {
+      if (height < 8)
+         throw new IllegalArgumentException("The height must be at least 8");
+
+      if (width < 8)
+         throw new IllegalArgumentException("The width must be at least 8");
+
+      if (stride < width)
+         throw new IllegalArgumentException("The stride must be at least as large as the width");
+
+      if ((sigmaR < 1) || (sigmaR > 32))
+         throw new IllegalArgumentException("The range sigma must be in [1..32]");
+
+      if ((sigmaD < 1) || (sigmaD > 32))
+         throw new IllegalArgumentException("The distance sigma must be in [1..32]");
+
+      if ((channels < 1) || (channels > 3))
+         throw new IllegalArgumentException("The number of image channels must be in [1..3]");
+
+      if (nbTasks < 1)
+         throw new IllegalArgumentException("The number of tasks must be at least 1");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.channels = channels;
+      this.sigmaD = sigmaD;
+      this.rangeStep = Math.min((int) (Math.sqrt(2*Math.log(2))*sigmaR*sigmaR + 0.5), 256);
+      this.pool = pool;
+
+      // Cells at k*step (plus padding for the blur kernel). Slicing reads the
+      // cell after the last sample position.
+      this.gridW = (width-1)/sigmaD + 2 + 2*PAD;
+      this.gridH = (height-1)/sigmaD + 2 + 2*PAD;
+      this.gridD = 255/this.rangeStep + 2 + 2*PAD;
+
+      final int rowLength = 2*this.gridW*this.gridD;
+
+      if ((long) rowLength*this.gridH <= MAX_GRID_SIZE)
+      {
+         this.chunkRows = this.gridH;
+         this.grid = new int[rowLength*this.gridH];
+         this.halo = new int[0];
+      }
+      else
+      {
+         // Chunk rows plus the rows before the chunk (blur) and after (blur and
+         // slicing)
+         this.chunkRows = Math.max(MAX_GRID_SIZE/rowLength - 2*HALO, 1);
+         this.grid = new int[rowLength*(this.chunkRows+HALO)];
+         this.halo = new int[rowLength*HALO];
+      }
+
+      this.cellX = new int[width];
+      this.cellZ = new int[256];
+
+      // Splatting: nearest cell
+      for (int x=0; x<width; x++)
+         this.cellX[x] = PAD + (x+(sigmaD>>1))/sigmaD;
+
+      for (int v=0; v<256; v++)
+         this.cellZ[v] = PAD + (v+(this.rangeStep>>1))/this.rangeStep;
+
+      // Bands of grid rows
+      final int nbBands = Math.min(Math.min(nbTasks, MAX_TASKS), this.chunkRows);
+      this.bands = new Band[nbBands];
+
+      for (int i=0; i<nbBands; i++)
+         this.bands[i] = new Band(i);
+   }
+
+
+   @Override
+   public boolean apply(SliceIntArray input, SliceIntArray output)
+   {
+      if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+         return false;
+
+      final int last = this.stride*(this.height-1) + this.width;
+
+      if ((input.index+last > input.array.length) || (output.index+last > output.array.length))
+         return false;
+
+      for (Band band : this.bands)
+      {
+         band.input = input;
+         band.output = output;
+      }
+
+      boolean res = true;
+
+      // src and dst can be the same buffer: the rows of each chunk are splatted
+      // before being sliced, the rows sliced are never splatted again and
+      // slicing reads each pixel before writing it.
+      // The channels are processed in R, G, B order, the last one being in the
+      // lowest byte (EG. a single channel image)
+      for (int channel=0; (channel<this.channels) && (res == true); channel++)
+      {
+         final int shift = (this.channels-1-channel) << 3;
+
+         for (Band band : this.bands)
+            band.shift = shift;
+
+         for (int c0=0; (c0<this.gridH) && (res == true); c0+=this.chunkRows)
+            res = this.applyChunk(c0, Math.min(c0+this.chunkRows, this.gridH));
+      }
+
+      for (Band band : this.bands)
+      {
+         band.input = null;
+         band.output = null;
+      }
+
+      return res;
+   }
+
+
+   // Filter the pixels sampled from the grid rows [c0, c1)
+   private boolean applyChunk(int c0, int c1)
+   {
+      final int rowLength = 2*this.gridW*this.gridD;
+
+      // Grid rows used by the blur along y and the slicing of the chunk
+      final int r0 = Math.max(c0-PAD, 0);
+      final int r1 = Math.min(c1+PAD+1, this.gridH);
+
+      // The first rows have been splatted and blurred along z and x with the
+      // previous chunk
+      final int carried = (c0 == 0) ? 0 : this.carriedRows;
+
+      if (carried > 0)
+         System.arraycopy(this.halo, 0, this.grid, 0, carried*rowLength);
+
+      this.gridBase = r0;
+
+      if (this.runStep(Band.SPLAT, r0+carried, r1) == false)
+         return false;
+
+      if (this.runStep(Band.BLUR_Z, r0+carried, r1) == false)
+         return false;
+
+      if (this.runStep(Band.BLUR_X, r0+carried, r1) == false)
+         return false;
+
+      // Keep the rows shared with the next chunk before the blur along y
+      if (c1 < this.gridH)
+      {
+         final int next0 = Math.max(c1-PAD, 0);
+         this.carriedRows = r1 - next0;
+         System.arraycopy(this.grid, (next0-r0)*rowLength, this.halo, 0, this.carriedRows*rowLength);
+      }
+
+      if (this.runStep(Band.BLUR_Y, r0, r1) == false)
+         return false;
+
+      return this.runStep(Band.SLICE, c0, c1);
+   }
+
+
+   private boolean runStep(int step, int start, int end)
+   {
+      this.rangeStart = start;
+      this.rangeEnd = end;
+
+      for (Band band : this.bands)
+         band.step = step;
+
+      return this.run();
+   }
+
+
+   private boolean run()
+   {
+      if ((this.pool == null) || (this.bands.length == 1))
+      {
+         for (Band band : this.bands)
+            band.call();
+
+         return true;
+      }
+
+      List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(this.bands.length);
+
+      for (Band band : this.bands)
+         tasks.add(band);
+
+      boolean res = true;
+
+      try
+      {
+         List<Future<Boolean>> results = this.pool.invokeAll(tasks);
+
+         for (Future<Boolean> fr : results)
+            res &= fr.get();
+      }
+      catch (InterruptedException e)
+      {
+         return false;
+      }
+      catch (ExecutionException e)
+      {
+         return false;
+      }
+
+      return res;
+   }
+
+
+   // Blur the grid along one axis with the [1 4 6 4 1] kernel (zero outside).
+   // The grid is seen as [outer][n][inner]: the blur axis has n cells and each
+   // cell is a block of 'inner' contiguous ints. Only the outer indexes in
+   // [outer0, outer1) and the inner indexes in [inner0, inner1) are processed.
+   // The original values of the 2 previous blocks are kept in buf1 and buf2.
+   private static void blur(int[] data, int n, int inner, int outer0, int outer1,
+           int inner0, int inner1, int[] buf1, int[] buf2)
+   {
+      final int count = inner1 - inner0;
+
+      for (int o=outer0; o<outer1; o++)
+      {
+         final int start = o*n*inner + inner0;
+         int[] prev2 = buf1; // block i-2
+         int[] prev1 = buf2; // block i-1
+
+         for (int k=0; k<count; k++)
+         {
+            prev2[k] = 0;
+            prev1[k] = 0;
+         }
+
+         for (int i=0; i<n; i++)
+         {
+            final int offs = start + i*inner;
+            final boolean hasNext1 = i+1 < n;
+            final boolean hasNext2 = i+2 < n;
+
+            for (int k=0; k<count; k++)
+            {
+               final int cur = data[offs+k];
+               int sum = prev2[k] + 4*prev1[k] + 6*cur;
+
+               if (hasNext1 == true)
+                  sum += 4*data[offs+inner+k];
+
+               if (hasNext2 == true)
+                  sum += data[offs+2*inner+k];
+
+               data[offs+k] = sum;
+
+               // Block i becomes block i-1, block i-1 becomes block i-2
+               prev2[k] = cur;
+            }
+
+            final int[] t = prev2;
+            prev2 = prev1;
+            prev1 = t;
+         }
+      }
+   }
+
+
+   // A band of rows of the current step range. Depending on the step: grid
+   // rows [gy0, gy1) for splatting and blurring along the x and intensity axes,
+   // a slice of each grid row for the blur along the y axis, and the image
+   // rows sampled from the grid rows [gy0, gy1) for slicing.
+   // The grid array holds the grid rows from gridBase.
+   private class Band implements Callable<Boolean>
+   {
+      static final int SPLAT = 0;
+      static final int BLUR_Z = 1;
+      static final int BLUR_X = 2;
+      static final int BLUR_Y = 3;
+      static final int SLICE = 4;
+
+      final int index;
+      int gy0;
+      int gy1;
+      private int[] buf1;
+      private int[] buf2;
+      SliceIntArray input;
+      SliceIntArray output;
+      int step;
+      int shift;
+
+
+      Band(int index)
+      {
+         this.index = index;
+         this.buf1 = new int[0];
+         this.buf2 = new int[0];
+      }
+
+
+      @Override
+      public Boolean call()
+      {
+         final int gw = gridW;
+         final int gd = gridD;
+         final int nbBands = bands.length;
+         final int len = rangeEnd - rangeStart;
+         this.gy0 = rangeStart + (len*this.index) / nbBands;
+         this.gy1 = rangeStart + (len*(this.index+1)) / nbBands;
+
+         // Rows in the grid array
+         final int ry0 = this.gy0 - gridBase;
+         final int ry1 = this.gy1 - gridBase;
+
+         switch (this.step)
+         {
+            case SPLAT:
+               this.splat();
+               break;
+
+            case BLUR_Z:
+               this.checkBuffers(2);
+               blur(grid, gd, 2, ry0*gw, ry1*gw, 0, 2, this.buf1, this.buf2);
+               break;
+
+            case BLUR_X:
+               this.checkBuffers(2*gd);
+               blur(grid, gw, 2*gd, ry0, ry1, 0, 2*gd, this.buf1, this.buf2);
+               break;
+
+            case BLUR_Y:
+            {
+               // Split each grid row (all bands cover the same rows)
+               final int inner = 2*gd*gw;
+               final int inner0 = (inner*this.index) / nbBands;
+               final int inner1 = (inner*(this.index+1)) / nbBands;
+               this.checkBuffers(inner1-inner0);
+               blur(grid, len, inner, 0, 1, inner0, inner1, this.buf1, this.buf2);
+               break;
+            }
+
+            default:
+               this.slice();
+         }
+
+         return true;
+      }
+
+
+      private void checkBuffers(int length)
+      {
+         if (this.buf1.length < length)
+         {
+            this.buf1 = new int[length];
+            this.buf2 = new int[length];
+         }
+      }
+
+
+      // Accumulate the pixel values (and counts) of the band into the nearest
+      // cells of the grid
+      private void splat()
+      {
+         final int[] data = grid;
+         final int rowLength = 2*gridW*gridD;
+         final int s = sigmaD;
+         final int base = gridBase;
+         final int end = (this.gy1-base) * rowLength;
+
+         for (int i=(this.gy0-base)*rowLength; i<end; i++)
+            data[i] = 0;
+
+         // Image rows with nearest grid row in [gy0, gy1)
+         final int y0 = Math.max((this.gy0-PAD)*s-(s>>1), 0);
+         final int y1 = Math.min((this.gy1-PAD)*s-(s>>1), height);
+         final int[] src = this.input.array;
+         final int w = width;
+         final int sh = this.shift;
+         final int[] cx = cellX;
+         final int[] cz = cellZ;
+         final int gd = gridD;
+
+         for (int y=y0; y<y1; y++)
+         {
+            final int srcStart = this.input.index + y*stride;
+            final int rowStart = (PAD+(y+(s>>1))/s-base) * rowLength;
+
+            for (int x=0; x<w; x++)
+            {
+               final int val = (src[srcStart+x] >> sh) & 0xFF;
+               final int idx = rowStart + 2*(cx[x]*gd+cz[val]);
+               data[idx] += val;
+               data[idx+1]++;
+            }
+         }
+      }
+
+
+      // Trilinear interpolation of the grid at each pixel of the band
+      private void slice()
+      {
+         final int[] data = grid;
+         final int s = sigmaD;
+         final int sr = rangeStep;
+         final int dz = 2;
+         final int dx = 2*gridD;
+         final int dy = 2*gridD*gridW;
+
+         // Image rows with sample position in grid rows [gy0, gy1)
+         final int y0 = Math.max((this.gy0-PAD)*s, 0);
+         final int y1 = Math.min((this.gy1-PAD)*s, height);
+         final int[] src = this.input.array;
+         final int[] dst = this.output.array;
+         final int w = width;
+         final int sh = this.shift;
+         final int mask = ~(0xFF << sh);
+
+         for (int y=y0; y<y1; y++)
+         {
+            final int srcStart = this.input.index + y*stride;
+            final int dstStart = this.output.index + y*stride;
+            final int rowStart = (PAD+y/s-gridBase) * dy;
+            final int wy1 = y % s;
+            final int wy0 = s - wy1;
+
+            for (int x=0; x<w; x++)
+            {
+               final int val = (src[srcStart+x] >> sh) & 0xFF;
+               final int wx1 = x % s;
+               final int wx0 = s - wx1;
+               final int wz1 = val % sr;
+               final int wz0 = sr - wz1;
+               final int idx = rowStart + (PAD+x/s)*dx + (PAD+val/sr)*dz;
+
+               // Interpolate along the intensity axis, then x and y
+               final long num00 = (long) wz0*data[idx]       + (long) wz1*data[idx+dz];
+               final long den00 = (long) wz0*data[idx+1]     + (long) wz1*data[idx+dz+1];
+               final long num01 = (long) wz0*data[idx+dx]    + (long) wz1*data[idx+dx+dz];
+               final long den01 = (long) wz0*data[idx+dx+1]  + (long) wz1*data[idx+dx+dz+1];
+               final long num10 = (long) wz0*data[idx+dy]    + (long) wz1*data[idx+dy+dz];
+               final long den10 = (long) wz0*data[idx+dy+1]  + (long) wz1*data[idx+dy+dz+1];
+               final long num11 = (long) wz0*data[idx+dy+dx] + (long) wz1*data[idx+dy+dx+dz];
+               final long den11 = (long) wz0*data[idx+dy+dx+1] + (long) wz1*data[idx+dy+dx+dz+1];
+               final long num = wy0*(wx0*num00 + wx1*num01) + wy1*(wx0*num10 + wx1*num11);
+               final long den = wy0*(wx0*den00 + wx1*den01) + wy1*(wx0*den10 + wx1*den11);
+               int res = val;
+
+               if (den > 0)
+               {
+                  res = (int) ((num + (den >> 1)) / den);
+                  res = (res > 255) ? 255 : res;
+               }
+
+               dst[dstStart+x] = (dst[dstStart+x] & mask) | (res << sh);
+            }
+         }
+      }
+   }
+}
@@ -15,11 +15,20 @@ limitations under the License.
 
 package kanzi.filter;
 
+import java.nio.IntBuffer;
+import kanzi.DirectFrame;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
 
 
 // Based on algorithm from http://www.blackpawn.com/texts/blur/default.html
+// The box sums are updated with a sliding window along each row then each
+// column. A summed area table (see IntegralImage) is not used: each pass rounds
+// its output, so the table would have to be rebuilt for every channel of every
+// pass (6 times per iteration) and the filter would be slower.
+// The vertical pass slides the box sums of all the columns down one row at a
+// time (rows are read sequentially). The filter works on heap or off heap
+// frames with the same row routines.
 
 public final class BlurFilter implements IntFilter
 {
@@ -28,7 +37,12 @@ public final class BlurFilter implements IntFilter
     private final int stride;
     private final int radius;
     private final int iterations;
-    private final int[] line;
+    private final int[] line; // output of the horizontal pass
+    private final int[] row; // input row (off heap frames)
+    private final int[] sumR; // box sums of the columns (vertical pass)
+    private final int[] sumG;
+    private final int[] sumB;
+    private final int[] saved; // input rows of the vertical pass (ring of radius+1 rows)
  
     
     public BlurFilter(int width, int height, int radius)
@@ -68,8 +82,12 @@ public final class BlurFilter implements IntFilter
         this.stride = stride;
         this.radius = radius;
         this.iterations = iterations;
-        int size = (this.width > this.height) ? this.width : this.height;
-        this.line = new int[size];
+        this.line = new int[width];
+        this.row = new int[width];
+        this.sumR = new int[width];
+        this.sumG = new int[width];
+        this.sumB = new int[width];
+        this.saved = new int[(radius+1)*width];
     }
     
 
@@ -92,77 +110,17 @@ public final class BlurFilter implements IntFilter
     }
     
     
-    // Implementation using a sliding box to reduce the number of operations
     private boolean blurHorizontal(SliceIntArray source, SliceIntArray destination)
     {
         final int[] src = source.array;
         final int[] dst = destination.array;
-        final int srcIdx = source.index;
-        final int dstIdx = destination.index;
-        final int rd = this.radius;
-        final int w = this.width;
-        final int h = this.height;
         final int st = this.stride;
+        int srcStart = source.index;
+        int dstStart = destination.index;
         
-        final int boxSize = (2 * rd) + 1;
-        final int invBoxSize = (1<<16) / boxSize;
-        int srcStart = srcIdx;
-        int dstStart = dstIdx;
-        
-        for (int j=0; j<h; j++)
+        for (int j=0; j<this.height; j++)
         {
-            // First pixel of each line: calculate the sum over the whole box
-            int pixel = src[srcStart];
-            
-            // Pixel 0: sum 'negative' x pixels ('radius' times)
-            int totalR = rd * ((pixel >> 16) & 0xFF);
-            int totalG = rd * ((pixel >>  8) & 0xFF);
-            int totalB = rd * ( pixel & 0xFF);
-            
-            for (int i=0, n=0; i<=rd; i++)
-            {
-                pixel = src[srcStart+n];
-                totalR += ((pixel >> 16) & 0xFF);
-                totalG += ((pixel >>  8) & 0xFF);
-                totalB +=  (pixel & 0xFF);
-                
-                if (n < w - 1)
-                    n++;
-            }
-            
-            // Subsequent pixels: update the sum by sliding the whole box
-            for (int i=0; i<w; i++)
-            {
-                int val;
-                val  = ((totalR*invBoxSize) >>> 16) << 16;
-                val |= ((totalG*invBoxSize) >>> 16) << 8;
-                val |= (totalB*invBoxSize) >>> 16;
-                this.line[i] = val;
-                
-                // Limit lastIdx to positive or null values
-                int lastIdx = i - rd;
-                lastIdx = lastIdx & (-lastIdx >> 31);
-                
-                // Limit newIdx to values less than width
-                int newIdx = i + rd + 1;
-                final int mask = (newIdx - w) >>> 31;
-                newIdx = (newIdx & -mask) | ((w - 1) & (mask - 1));
-                
-                final int enteringPixel = src[srcStart+newIdx];
-                final int leavingPixel  = src[srcStart+lastIdx];
-                
-                // Update sums of sliding window
-                totalR += ((enteringPixel >> 16) & 0xFF);
-                totalG += ((enteringPixel >>  8) & 0xFF);
-                totalB +=  (enteringPixel & 0xFF);
-                totalR -= ((leavingPixel >> 16) & 0xFF);
-                totalG -= ((leavingPixel >>  8) & 0xFF);
-                totalB -=  (leavingPixel & 0xFF);
-            }
-            
-            for (int i=0, n=dstStart; i<w; i++, n++)
-                dst[n] = this.line[i];
-            
+            this.blurRow(src, srcStart, dst, dstStart);
             srcStart += st;
             dstStart += st;
         }
@@ -171,8 +129,8 @@ public final class BlurFilter implements IntFilter
     }
     
     
-    
-    // Implementation using a sliding box to reduce the number of operations
+    // The output can overwrite the input: the rows leaving the box are read
+    // from copies of the input rows
     private boolean blurVertical(SliceIntArray source, SliceIntArray destination)
     {
         final int[] src = source.array;
@@ -184,72 +142,235 @@ public final class BlurFilter implements IntFilter
         final int h = this.height;
         final int st = this.stride;
         
-        int len = st * h;
-        int boxSize = (2 * rd) + 1;
-        int srcStart = srcIdx;
-        int dstStart = dstIdx;
+        // Box sums of rows -radius to radius (rows out of the frame are
+        // replaced with the nearest frame row)
+        this.setSums(src, srcIdx, rd);
+        
+        for (int i=0; i<=rd; i++)
+            this.addRow(src, srcIdx+Math.min(i, h-1)*st);
+        
+        for (int i=0; i<h; i++)
+        {
+            System.arraycopy(src, srcIdx+i*st, this.saved, (i%(rd+1))*w, w);
+            this.outputRow(dst, dstIdx+i*st);
+            
+            if (i == h-1)
+               break;
+            
+            // Slide the box: add row i+radius+1, remove row i-radius
+            final int newIdx = Math.min(i+rd+1, h-1);
+            final int lastIdx = Math.max(i-rd, 0);
+            this.slideRow(src, srcIdx+newIdx*st, this.saved, (lastIdx%(rd+1))*w);
+        }
+        
+        return true;
+    }
+
+
+    // Same as apply(SliceIntArray, SliceIntArray) for frames stored off heap.
+    // Both frames must have the dimensions of the filter (each frame has its
+    // own stride and offset). The rows are moved between the frame buffers and
+    // heap rows with bulk transfers (radius+3 rows live on the heap) and
+    // filtered by the same row routines as the heap frames.
+    public boolean apply(DirectFrame input, DirectFrame output)
+    {
+        if ((input == null) || (output == null))
+            return false;
+
+        if ((input.width != this.width) || (input.height != this.height))
+            return false;
+
+        if ((output.width != this.width) || (output.height != this.height))
+            return false;
+
+        if (output.buffer.isReadOnly() == true)
+            return false;
+
+        final IntBuffer src = input.buffer.duplicate();
+        final IntBuffer dst = output.buffer.duplicate();
+        this.blurHorizontal(src, input.offset, input.stride, dst, output.offset, output.stride);
+        this.blurVertical(dst, output.offset, output.stride);
+
+        for (int i=1; i<this.iterations; i++)
+        {
+           this.blurHorizontal(dst, output.offset, output.stride, dst, output.offset, output.stride);
+           this.blurVertical(dst, output.offset, output.stride);
+        }
+
+        return true;
+    }
+
+
+    private void blurHorizontal(IntBuffer src, int srcIdx, int srcStride,
+            IntBuffer dst, int dstIdx, int dstStride)
+    {
+        final int w = this.width;
+
+        for (int j=0; j<this.height; j++)
+        {
+            src.position(srcIdx+j*srcStride);
+            src.get(this.row, 0, w);
+            this.blurRow(this.row, 0, this.row, 0);
+            dst.position(dstIdx+j*dstStride);
+            dst.put(this.row, 0, w);
+        }
+    }
+
+
+    // In place
+    private void blurVertical(IntBuffer buf, int idx, int stride)
+    {
+        final int rd = this.radius;
+        final int w = this.width;
+        final int h = this.height;
+        final int[] r = this.row;
+
+        buf.position(idx);
+        buf.get(r, 0, w);
+        this.setSums(r, 0, rd);
+
+        for (int i=0; i<=rd; i++)
+        {
+            buf.position(idx+Math.min(i, h-1)*stride);
+            buf.get(r, 0, w);
+            this.addRow(r, 0);
+        }
+
+        for (int i=0; i<h; i++)
+        {
+            buf.position(idx+i*stride);
+            buf.get(this.saved, (i%(rd+1))*w, w);
+            this.outputRow(this.line, 0);
+            buf.position(idx+i*stride);
+            buf.put(this.line, 0, w);
+
+            if (i == h-1)
+               break;
+
+            final int newIdx = Math.min(i+rd+1, h-1);
+            final int lastIdx = Math.max(i-rd, 0);
+            buf.position(idx+newIdx*stride);
+            buf.get(r, 0, w);
+            this.slideRow(r, 0, this.saved, (lastIdx%(rd+1))*w);
+        }
+    }
+
+
+    // Implementation using a sliding box to reduce the number of operations
+    private void blurRow(int[] src, int srcStart, int[] dst, int dstStart)
+    {
+        final int rd = this.radius;
+        final int w = this.width;
+        final int boxSize = (2 * rd) + 1;
+        final int invBoxSize = (1<<16) / boxSize;
+
+        // First pixel of each line: calculate the sum over the whole box
+        int pixel = src[srcStart];
+        
+        // Pixel 0: sum 'negative' x pixels ('radius' times)
+        int totalR = rd * ((pixel >> 16) & 0xFF);
+        int totalG = rd * ((pixel >>  8) & 0xFF);
+        int totalB = rd * ( pixel & 0xFF);
         
-        for (int j=0; j<w; j++)
+        for (int i=0, n=0; i<=rd; i++)
         {
-            // First pixel of each line: calculate the sum over the whole box
-            int pixel = src[srcStart];
+            pixel = src[srcStart+n];
+            totalR += ((pixel >> 16) & 0xFF);
+            totalG += ((pixel >>  8) & 0xFF);
+            totalB +=  (pixel & 0xFF);
             
-            // Pixel 0: sum 'negative' x pixels ('radius' times)
-            int totalR = rd * ((pixel >> 16) & 0xFF);
-            int totalG = rd * ((pixel >>  8) & 0xFF);
-            int totalB = rd * (pixel & 0xFF);
+            if (n < w - 1)
+                n++;
+        }
+        
+        // Subsequent pixels: update the sum by sliding the whole box
+        for (int i=0; i<w; i++)
+        {
+            int val;
+            val  = ((totalR*invBoxSize) >>> 16) << 16;
+            val |= ((totalG*invBoxSize) >>> 16) << 8;
+            val |= (totalB*invBoxSize) >>> 16;
+            this.line[i] = val;
             
-            for (int i=0, n=0; i<=rd; i++)
-            {
-                pixel = src[srcStart+n];
-                totalR += ((pixel >> 16) & 0xFF);
-                totalG += ((pixel >>  8) & 0xFF);
-                totalB +=  (pixel & 0xFF);
-                
-                if (n + st < len)
-                    n += st;
-            }
+            // Limit lastIdx to positive or null values
+            int lastIdx = i - rd;
+            lastIdx = lastIdx & (-lastIdx >> 31);
             
-            // Subsequent pixels: update the sum by sliding the window
-            for (int i=0; i<h; i++)
-            {
-                int val;
-                val  = (totalR / boxSize) << 16;
-                val |= (totalG / boxSize) <<  8;
-                val |= (totalB / boxSize);
-                this.line[i] = val;
-                
-                // Limit lastIdx to positive or null values
-                int lastIdx = i - rd;
-                lastIdx = lastIdx & (-lastIdx >> 31);
-                lastIdx *= st;
-                
-                // Limit newIdx to values less than height
-                int newIdx  = i + rd + 1;
-                final int mask = (newIdx - h) >>> 31;
-                newIdx = (newIdx & -mask) | ((h - 1) & (mask - 1));
-                newIdx *= st;
-                
-                final int enteringPixel = src[srcStart+newIdx];
-                final int leavingPixel  = src[srcStart+lastIdx];
-                
-                // Update sums of sliding window
-                totalR += ((enteringPixel >> 16) & 0xFF);
-                totalG += ((enteringPixel >> 8)  & 0xFF);
-                totalB +=  (enteringPixel & 0xFF);
-                totalR -= ((leavingPixel >> 16) & 0xFF);
-                totalG -= ((leavingPixel >> 8)  & 0xFF);
-                totalB -=  (leavingPixel & 0xFF);
-            }
+            // Limit newIdx to values less than width
+            int newIdx = i + rd + 1;
+            final int mask = (newIdx - w) >>> 31;
+            newIdx = (newIdx & -mask) | ((w - 1) & (mask - 1));
             
-            for (int i=0, n=dstStart; i<h; i++, n+=st)
-                dst[n] = this.line[i];
+            final int enteringPixel = src[srcStart+newIdx];
+            final int leavingPixel  = src[srcStart+lastIdx];
             
-            srcStart++;
-            dstStart++;
+            // Update sums of sliding window
+            totalR += ((enteringPixel >> 16) & 0xFF);
+            totalG += ((enteringPixel >>  8) & 0xFF);
+            totalB +=  (enteringPixel & 0xFF);
+            totalR -= ((leavingPixel >> 16) & 0xFF);
+            totalG -= ((leavingPixel >>  8) & 0xFF);
+            totalB -=  (leavingPixel & 0xFF);
         }
         
-        return true;
+        for (int i=0, n=dstStart; i<w; i++, n++)
+            dst[n] = this.line[i];
+    }
+
+
+    // Set the box sums of the columns to 'weight' times the pixels of a row
+    private void setSums(int[] src, int srcStart, int weight)
+    {
+        for (int i=0; i<this.width; i++)
+        {
+            final int pixel = src[srcStart+i];
+            this.sumR[i] = weight * ((pixel >> 16) & 0xFF);
+            this.sumG[i] = weight * ((pixel >>  8) & 0xFF);
+            this.sumB[i] = weight * (pixel & 0xFF);
+        }
+    }
+
+
+    // Add the pixels of a row to the box sums of the columns
+    private void addRow(int[] src, int srcStart)
+    {
+        for (int i=0; i<this.width; i++)
+        {
+            final int pixel = src[srcStart+i];
+            this.sumR[i] += ((pixel >> 16) & 0xFF);
+            this.sumG[i] += ((pixel >>  8) & 0xFF);
+            this.sumB[i] +=  (pixel & 0xFF);
+        }
+    }
+
+
+    // Update the box sums of the columns: add the entering row, remove the
+    // leaving row
+    private void slideRow(int[] in, int inStart, int[] out, int outStart)
+    {
+        for (int i=0; i<this.width; i++)
+        {
+            final int enteringPixel = in[inStart+i];
+            final int leavingPixel  = out[outStart+i];
+            this.sumR[i] += (((enteringPixel >> 16) & 0xFF) - ((leavingPixel >> 16) & 0xFF));
+            this.sumG[i] += (((enteringPixel >>  8) & 0xFF) - ((leavingPixel >>  8) & 0xFF));
+            this.sumB[i] += ((enteringPixel & 0xFF) - (leavingPixel & 0xFF));
+        }
+    }
+
+
+    // Write the mean values of the boxes of the columns
+    private void outputRow(int[] dst, int dstStart)
+    {
+        final int boxSize = (2 * this.radius) + 1;
+
+        for (int i=0; i<this.width; i++)
+        {
+            int val;
+            val  = (this.sumR[i] / boxSize) << 16;
+            val |= (this.sumG[i] / boxSize) <<  8;
+            val |= (this.sumB[i] / boxSize);
+            dst[dstStart+i] = val;
+        }
     }
-       
-}
\ No newline at end of file
+}
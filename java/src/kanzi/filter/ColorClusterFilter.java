@@ -15,11 +15,18 @@ limitations under the License.
 
 package kanzi.filter;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
 import kanzi.util.QuadTreeGenerator;
+import kanzi.util.sampling.ImagePyramid;
 
 
 // A filter that splits the image into patches of similar colors using k-means
@@ -36,16 +43,68 @@ import kanzi.util.QuadTreeGenerator;
 //    pixel. As a result the initial value for the distance is small (high likelyhood
 //    that adjacent pixels belong to the same cluster), meaning that the early exit
 //    in the loop (no computation of 'color' distance) is used frequently.
+// d) An optional image pyramid (shared with other filters) provides the down
+//    scaled work images when it has been set to the frame being filtered.
+// e) The assignment of pixels to clusters is split into bands of rows that can
+//    be processed concurrently. Each band accumulates its own cluster sums,
+//    merged (in band order) at the end of each iteration.
+// f) Upper and lower bounds of the distances (see [Making k-means even faster]
+//    by Greg Hamerly and [Using the Triangle Inequality to Accelerate k-Means]
+//    by Charles Elkan) are updated with the centroid shifts after each iteration.
+//    A pixel keeps its cluster without any distance computation when its upper
+//    bound is strictly less than its lower bound (or than half the distance
+//    of its centroid to the nearest other centroid).
+//    The distance is an Euclidean distance in the (4x, 4y, r, g, b) space.
+//    Bounds only skip assignments that cannot change: the output does not depend
+//    on the bounds nor on the number of bands.
+// g) In warm start mode (video), a frame starts from the centroids, labels and
+//    bounds of the previous frame. The bounds are extended by the color change
+//    of each pixel, so static areas are not searched again. A scene change
+//    (distance between the color histograms of consecutive frames) triggers
+//    a new quad-tree seeding. The number of iterations of warm frames is capped
+//    since the clustering goes on during the next frames: the cap only grows
+//    while the centroids still move significantly at the end of a frame.
 
 public class ColorClusterFilter implements IntFilter
 {
+    public static final int DEFAULT_SCENE_CHANGE_THRESHOLD = 25; // percent of pixels
+    private static final int HISTO_BINS = 32; // per channel
+    private static final int WARM_ITERATIONS = 4; // initial cap for warm frames
+    private static final float SMALL_SHIFT = 4; // mean centroid move, about one pixel
+
     private final int width;
     private final int height;
     private final int stride;
     private final int maxIterations;
     private final Cluster[] clusters;
     private final int[] buffer;
+    private final ImagePyramid pyramid;
     private final short[] labels;
+    private final ExecutorService pool;
+    private final Band[] bands;
+    private final float[] upper; // per pixel bound of distance to own centroid
+    private final float[] lower; // per pixel bound of distance to other centroids
+    private final float[] shifts; // per cluster centroid move in last iteration
+    private final float[] halfDists; // per cluster half distance to nearest centroid
+    private final int[] prevCentroids;
+    private float maxShift;
+    private float maxShift2;
+    private float meanShift;
+    private int maxShiftIdx;
+    private int[] workImage;
+    private int workW;
+    private int workSt;
+    private boolean useBounds;
+    private boolean pixelDrift;
+    private boolean warmStart;
+    private boolean hasPrevious;
+    private boolean hasBounds;
+    private int[] prevWork;
+    private int[] histo;
+    private int[] prevHisto;
+    private int sceneChangeThreshold;
+    private int warmCap;
+    private int lastIterations;
     private boolean chooseCentroids;
     private boolean showBorders;
 
@@ -65,6 +124,25 @@ public class ColorClusterFilter implements IntFilter
     // centroidXY is an optional array of packed (16 bits + 16 bits) centroid coordinates
     public ColorClusterFilter(int width, int height, int stride, int nbClusters, 
             int iterations, int[] centroidsXY)
+    {
+       this(width, height, stride, nbClusters, iterations, centroidsXY, null);
+    }
+
+
+    // The optional pyramid (3 channels, same dimensions as the filter) is used
+    // instead of the internal down scaling when its frame is the filter input
+    public ColorClusterFilter(int width, int height, int stride, int nbClusters, 
+            int iterations, int[] centroidsXY, ImagePyramid pyramid)
+    {
+       this(width, height, stride, nbClusters, iterations, centroidsXY, pyramid, null, 1);
+    }
+
+
+    // If a pool is provided, the assignment step is split into nbTasks bands
+    // processed concurrently
+    public ColorClusterFilter(int width, int height, int stride, int nbClusters, 
+            int iterations, int[] centroidsXY, ImagePyramid pyramid,
+            ExecutorService pool, int nbTasks)
     {
       if (height < 8)
          throw new IllegalArgumentException("The height must be at least 8");
@@ -94,6 +172,14 @@ public class ColorClusterFilter implements IntFilter
          throw new IllegalArgumentException("The number of centroid coordinates "
                  + "is less than the number of clusters");
 
+      if ((pyramid != null) && ((pyramid.getWidth(0) != width) || (pyramid.getHeight(0) != height)
+              || (pyramid.getStride(0) != stride) || (pyramid.getChannels() != 3)))
+         throw new IllegalArgumentException("The pyramid must have the dimensions of the "
+                 + "filter and 3 channels");
+
+      if ((nbTasks < 1) || (nbTasks > 64))
+         throw new IllegalArgumentException("The number of tasks must be in [1..64]");
+
       this.width = width;
       this.height = height;
       this.stride = stride;
@@ -102,6 +188,21 @@ public class ColorClusterFilter implements IntFilter
       this.clusters = new Cluster[nbClusters];
       this.buffer = new int[width*height/4];
       this.labels = new short[width*height];
+      this.pyramid = pyramid;
+      this.pool = pool;
+      final int scaledH = height >> 1;
+      final int nbBands = (pool == null) ? 1 : Math.min(nbTasks, scaledH);
+      this.bands = new Band[nbBands];
+
+      for (int i=0; i<nbBands; i++)
+         this.bands[i] = new Band((scaledH*i)/nbBands, (scaledH*(i+1))/nbBands, nbClusters);
+
+      this.upper = new float[(stride>>1)*scaledH];
+      this.lower = new float[(stride>>1)*scaledH];
+      this.shifts = new float[nbClusters];
+      this.halfDists = new float[nbClusters];
+      this.prevCentroids = new int[5*nbClusters];
+      this.sceneChangeThreshold = DEFAULT_SCENE_CHANGE_THRESHOLD;
 
       for (int i=0; i<nbClusters; i++)
       {
@@ -137,85 +238,71 @@ public class ColorClusterFilter implements IntFilter
        // Create a down sampled copy of the source 
        int[] buf = this.createWorkImage(input.array, input.index, scale);
 
-       // Choose centers
-       if (this.chooseCentroids == true)
-          this.chooseCentroids(this.clusters, buf, scaledW, scaledH);
+       // In warm start mode, continue from the previous frame state unless the
+       // scene has changed
+       final boolean warm = (this.warmStart == true)
+          && (this.isSceneChange(buf, scaledW, scaledH, scaledSt) == false);
+       int maxIterations = this.maxIterations;
 
-       // Main loop, associate points to clusters and re-calculate centroids
-       while (iterations < this.maxIterations)
+       if (warm == true)
        {
-         int offs = 0;
-         int moves = 0;
-
-         // Associate a pixel to the nearest cluster
-         for (int j=0; j<scaledH; j++, offs+=scaledSt)
-         {
-            int kfound = 0;
-
-            for (int i=0; i<scaledW; i++)
-            {
-               final int pixel = buf[offs+i];
-               final int r = (pixel >> 16) & 0xFF;
-               final int g = (pixel >>  8) & 0xFF;
-               final int b =  pixel & 0xFF;
-               int minSqDist;
-
-               {
-                  // Reuse previous cluster as 'best initial guess' which yield
-                  // a small value for 'nearest' most of the time
-                  final Cluster refCluster = cl[kfound];
-                  final int dx = i - refCluster.centroidX;
-                  final int dy = j - refCluster.centroidY;
-                  final int dr = r - refCluster.centroidR;
-                  final int dg = g - refCluster.centroidG;
-                  final int db = b - refCluster.centroidB;
-               
-                  // Distance is based on 3 color and 2 position coordinates
-                  minSqDist = 16 * (dx*dx + dy*dy) + (dr*dr + dg*dg + db*db);
-               }
+          for (int j=0; j<nbClusters; j++)
+          {
+             cl[j].centroidX >>= 1;
+             cl[j].centroidY >>= 1;
+          }
 
-               // Iterate over clusters, calculating pixel distance to centroid
-               for (int k=0; k<nbClusters; k++)
-               {
-                  final Cluster cluster = cl[k];
-                  final int dx = i - cluster.centroidX;
-                  final int dy = j - cluster.centroidY;
+          // The bounds are valid for the previous frame: add the color changes
+          // of the pixels during the first iteration
+          this.useBounds = this.hasBounds;
+          this.pixelDrift = this.hasBounds;
+          maxIterations = Math.min(maxIterations, this.warmCap);
+       }
+       else
+       {
+          // Choose centers
+          if ((this.chooseCentroids == true) || (this.hasPrevious == true))
+             this.chooseCentroids(this.clusters, buf, scaledW, scaledH);
 
-                  // Distance is based on 3 color and 2 position coordinates
-                  int sqDist = 16 *(dx*dx + dy*dy);
+          this.useBounds = false;
+          this.pixelDrift = false;
+       }
 
-                  if (sqDist >= minSqDist) // early exit
-                     continue;
+       // Main loop, associate points to clusters and re-calculate centroids
+       boolean converged = false;
 
-                  final int dr = r - cluster.centroidR;
-                  final int dg = g - cluster.centroidG;
-                  final int db = b - cluster.centroidB;
+       while (iterations < maxIterations)
+       {
+         int moves = 0;
 
-                  // Distance is based on 3 color and 2 position coordinates
-                  sqDist += (dr*dr + dg*dg + db*db);
+         // Associate each pixel to the nearest cluster
+         this.workImage = buf;
+         this.workW = scaledW;
+         this.workSt = scaledSt;
 
-                  if (sqDist >= minSqDist)
-                     continue;
+         if (this.run() == false)
+         {
+            this.workImage = null;
+            this.hasPrevious = false;
+            return false;
+         }
 
-                  minSqDist = sqDist;
-                  kfound = k;
-               }
+         this.pixelDrift = false;
 
-               final Cluster cluster = cl[kfound];
-               this.labels[offs+i] = (short) kfound;
-               cluster.sumR += r;
-               cluster.sumG += g;
-               cluster.sumB += b;
-               cluster.sumX += i;
-               cluster.sumY += j;
-               cluster.items++;
-            }
-         }
+         for (Band band : this.bands)
+            band.mergeSums(cl);
 
          // Compute new centroid for each cluster
          for (int j=0; j<nbClusters; j++)
          {
-            if (cl[j].computeCentroid() == true)
+            final Cluster c = cl[j];
+            this.prevCentroids[5*j]   = c.centroidR;
+            this.prevCentroids[5*j+1] = c.centroidG;
+            this.prevCentroids[5*j+2] = c.centroidB;
+            this.prevCentroids[5*j+3] = c.centroidX;
+            this.prevCentroids[5*j+4] = c.centroidY;
+
+            if (c.computeCentroid() == true)
                moves++;
          }
 
@@ -235,10 +322,43 @@ public class ColorClusterFilter implements IntFilter
                cl[j].centroidX <<= 1;
                cl[j].centroidY <<= 1;
             }
+
+            // The bounds do not apply to the new work image
+            this.useBounds = false;
+         }
+         else
+         {
+            this.updateShifts();
+            this.useBounds = true;
          }
 
          if (moves == 0)
+         {
+            converged = true;
             break;
+         }
+      }
+
+      this.workImage = null;
+      this.lastIterations = iterations;
+
+      if (this.warmStart == true)
+      {
+         // Save the state for the next frame
+         for (int j=0, offs=0; j<scaledH; j++, offs+=scaledSt)
+            System.arraycopy(buf, offs, this.prevWork, offs, scaledW);
+
+         this.hasPrevious = true;
+         this.hasBounds = this.useBounds;
+
+         // Cap the iterations of the next frame: twice the number of iterations
+         // if the frame converged, a larger cap if the centroids still move
+         if (warm == false)
+            this.warmCap = WARM_ITERATIONS;
+         else if (converged == true)
+            this.warmCap = Math.max(2, 2*iterations);
+         else if ((this.useBounds == true) && (this.meanShift > SMALL_SHIFT))
+            this.warmCap = Math.min(2*this.warmCap, this.maxIterations);
       }
 
       for (int j=0; j<nbClusters; j++)
@@ -253,9 +373,176 @@ public class ColorClusterFilter implements IntFilter
    }
 
 
+   // Compute the color histogram of the work image and compare it to the
+   // histogram of the previous frame. Return true if there is no previous frame
+   // or if the histograms differ by more than the scene change threshold.
+   private boolean isSceneChange(int[] buf, int scaledW, int scaledH, int scaledSt)
+   {
+      if (this.histo == null)
+      {
+         this.histo = new int[3*HISTO_BINS];
+         this.prevHisto = new int[3*HISTO_BINS];
+         this.prevWork = new int[this.upper.length];
+      }
+
+      final int[] h = this.prevHisto;
+      this.prevHisto = this.histo;
+      this.histo = h;
+
+      for (int i=0; i<h.length; i++)
+         h[i] = 0;
+
+      final int shift = 8 - Integer.numberOfTrailingZeros(HISTO_BINS);
+
+      for (int j=0, offs=0; j<scaledH; j++, offs+=scaledSt)
+      {
+         for (int i=0; i<scaledW; i++)
+         {
+            final int pixel = buf[offs+i];
+            h[((pixel >> 16) & 0xFF) >> shift]++;
+            h[HISTO_BINS+(((pixel >> 8) & 0xFF) >> shift)]++;
+            h[2*HISTO_BINS+((pixel & 0xFF) >> shift)]++;
+         }
+      }
+
+      if (this.hasPrevious == false)
+         return true;
+
+      long diff = 0;
+
+      for (int i=0; i<h.length; i++)
+         diff += Math.abs(h[i] - this.prevHisto[i]);
+
+      // diff/2 pixels moved to another bin (per channel)
+      return 50*diff > (long) this.sceneChangeThreshold * 3 * scaledW * scaledH;
+   }
+
+
+   // Run the assignment step of all the bands
+   private boolean run()
+   {
+      if (this.bands.length == 1)
+         return this.bands[0].call();
+
+      List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(this.bands.length);
+
+      for (Band band : this.bands)
+         tasks.add(band);
+
+      boolean res = true;
+
+      try
+      {
+         List<Future<Boolean>> results = this.pool.invokeAll(tasks);
+
+         for (Future<Boolean> fr : results)
+            res &= fr.get();
+      }
+      catch (InterruptedException e)
+      {
+         return false;
+      }
+      catch (ExecutionException e)
+      {
+         return false;
+      }
+
+      return res;
+   }
+
+
+   // Compute the centroid moves of the last iteration (largest and second
+   // largest moves) and the half distance of each centroid to the nearest other
+   // one. Distances are rounded so that bounds stay conservative.
+   private void updateShifts()
+   {
+      final Cluster[] cl = this.clusters;
+      final int[] prev = this.prevCentroids;
+      final int nbClusters = cl.length;
+      float max1 = 0;
+      float max2 = 0;
+      float sum = 0;
+      int maxIdx = -1;
+
+      for (int k=0; k<nbClusters; k++)
+      {
+         final Cluster c = cl[k];
+         final int dr = c.centroidR - prev[5*k];
+         final int dg = c.centroidG - prev[5*k+1];
+         final int db = c.centroidB - prev[5*k+2];
+         final int dx = c.centroidX - prev[5*k+3];
+         final int dy = c.centroidY - prev[5*k+4];
+         final int sqDist = 16*(dx*dx + dy*dy) + (dr*dr + dg*dg + db*db);
+         final float shift = (sqDist == 0) ? 0 : Math.nextUp((float) Math.sqrt(sqDist));
+         this.shifts[k] = shift;
+         sum += shift;
+
+         if (shift > max1)
+         {
+            max2 = max1;
+            max1 = shift;
+            maxIdx = k;
+         }
+         else if (shift > max2)
+         {
+            max2 = shift;
+         }
+      }
+
+      this.maxShift = max1;
+      this.maxShift2 = max2;
+      this.maxShiftIdx = maxIdx;
+      this.meanShift = sum / nbClusters;
+
+      // Quadratic in the number of clusters: only for small numbers of clusters
+      if (nbClusters > 256)
+      {
+         for (int k=0; k<nbClusters; k++)
+            this.halfDists[k] = 0;
+
+         return;
+      }
+
+      for (int k=0; k<nbClusters; k++)
+      {
+         final Cluster c = cl[k];
+         int minSqDist = Integer.MAX_VALUE;
+
+         for (int n=0; n<nbClusters; n++)
+         {
+            if (n == k)
+               continue;
+
+            final Cluster c2 = cl[n];
+            final int dr = c.centroidR - c2.centroidR;
+            final int dg = c.centroidG - c2.centroidG;
+            final int db = c.centroidB - c2.centroidB;
+            final int dx = c.centroidX - c2.centroidX;
+            final int dy = c.centroidY - c2.centroidY;
+            final int sqDist = 16*(dx*dx + dy*dy) + (dr*dr + dg*dg + db*db);
+
+            if (sqDist < minSqDist)
+               minSqDist = sqDist;
+         }
+
+         this.halfDists[k] = Math.nextDown((float) (0.5 * Math.sqrt(minSqDist)));
+      }
+   }
+
+
    // Create a down sampled copy of the source
    private int[] createWorkImage(int[] src, int srcStart, int scale)
    {
+       // With the default (bilinear) samplers, pyramid levels are successive
+       // 2x2 means: level 1 is identical to the work image below
+       if ((this.pyramid != null) && (scale > 0) && (scale < this.pyramid.getLevels()))
+       {
+          final SliceIntArray frame = this.pyramid.getLevel(0);
+
+          if ((frame != null) && (frame.array == src) && (frame.index == srcStart))
+             return this.pyramid.getLevel(scale).array;
+       }
+
        final int[] buf = this.buffer;
        final int scaledW = this.width >> scale;
        final int scaledH = this.height >> scale;
@@ -513,6 +800,45 @@ public class ColorClusterFilter implements IntFilter
    }
 
 
+   public boolean getWarmStart()
+   {
+      return this.warmStart;
+   }
+
+
+   // Enable or disable the warm start mode for sequences of frames. Changing
+   // the mode discards the state of the previous frame.
+   public void setWarmStart(boolean warmStart)
+   {
+      this.warmStart = warmStart;
+      this.hasPrevious = false;
+   }
+
+
+   public int getSceneChangeThreshold()
+   {
+      return this.sceneChangeThreshold;
+   }
+
+
+   // Percentage of pixels that must change of histogram bin for a frame to be
+   // considered a new scene (warm start mode)
+   public void setSceneChangeThreshold(int threshold)
+   {
+      if ((threshold < 0) || (threshold > 100))
+         throw new IllegalArgumentException("The scene change threshold must be in [0..100]");
+
+      this.sceneChangeThreshold = threshold;
+   }
+
+
+   // Number of iterations of the last call to apply
+   public int getIterations()
+   {
+      return this.lastIterations;
+   }
+
+
    public boolean showBorders()
    {
       return this.showBorders;
@@ -535,22 +861,22 @@ public class ColorClusterFilter implements IntFilter
       int centroidX;
       int centroidY;
       int centroidValue; // only used in final step
-      int sumR;
-      int sumG;
-      int sumB;
-      int sumX;
-      int sumY;
+      long sumR;
+      long sumG;
+      long sumB;
+      long sumX;
+      long sumY;
 
       boolean computeCentroid()
       {
          if (this.items == 0)
             return false;
          
-         final int r = (this.sumR / this.items);
-         final int g = (this.sumG / this.items);
-         final int b = (this.sumB / this.items);
-         final int newCentroidX = (this.sumX / this.items);
-         final int newCentroidY = (this.sumY / this.items);
+         final int r = (int) (this.sumR / this.items);
+         final int g = (int) (this.sumG / this.items);
+         final int b = (int) (this.sumB / this.items);
+         final int newCentroidX = (int) (this.sumX / this.items);
+         final int newCentroidY = (int) (this.sumY / this.items);
          this.reset();
 
          if ((r != this.centroidR) || (g != this.centroidG)
@@ -578,4 +904,198 @@ public class ColorClusterFilter implements IntFilter
          this.sumY = 0;
       }
    }
+
+
+   // A band of rows [y0, y1) of the work image. Each band assigns its pixels
+   // to clusters and accumulates its own cluster sums.
+   private class Band implements Callable<Boolean>
+   {
+      final int y0;
+      final int y1;
+      final int[] items;
+      final long[] sums; // R, G, B, X, Y per cluster
+
+
+      Band(int y0, int y1, int nbClusters)
+      {
+         this.y0 = y0;
+         this.y1 = y1;
+         this.items = new int[nbClusters];
+         this.sums = new long[5*nbClusters];
+      }
+
+
+      void mergeSums(Cluster[] cl)
+      {
+         for (int k=0; k<cl.length; k++)
+         {
+            final Cluster c = cl[k];
+            c.items += this.items[k];
+            c.sumR += this.sums[5*k];
+            c.sumG += this.sums[5*k+1];
+            c.sumB += this.sums[5*k+2];
+            c.sumX += this.sums[5*k+3];
+            c.sumY += this.sums[5*k+4];
+         }
+      }
+
+
+      @Override
+      public Boolean call()
+      {
+         final Cluster[] cl = clusters;
+         final int nbClusters = cl.length;
+         final int[] buf = workImage;
+         final int scaledW = workW;
+         final int scaledSt = workSt;
+         final short[] labels_ = labels;
+         final float[] up = upper;
+         final float[] lo = lower;
+         final boolean bounded = useBounds;
+         final boolean drift = pixelDrift;
+         final int[] prev = prevWork;
+         final int[] items_ = this.items;
+         final long[] sums_ = this.sums;
+
+         for (int k=0; k<nbClusters; k++)
+            items_[k] = 0;
+
+         for (int k=0; k<sums_.length; k++)
+            sums_[k] = 0;
+
+         for (int j=this.y0, offs=this.y0*scaledSt; j<this.y1; j++, offs+=scaledSt)
+         {
+            int kfound = 0;
+
+            for (int i=0; i<scaledW; i++)
+            {
+               final int idx = offs + i;
+               final int pixel = buf[idx];
+               final int r = (pixel >> 16) & 0xFF;
+               final int g = (pixel >>  8) & 0xFF;
+               final int b =  pixel & 0xFF;
+               boolean found = false;
+
+               if (bounded == true)
+               {
+                  // Update the bounds with the centroid shifts
+                  final int k = labels_[idx] & 0xFFFF;
+                  float u = Math.nextUp(up[idx] + shifts[k]);
+                  float l = Math.nextDown(lo[idx] - ((k == maxShiftIdx) ? maxShift2 : maxShift));
+
+                  if ((drift == true) && (prev[idx] != pixel))
+                  {
+                     // Color change since the previous frame
+                     final int p = prev[idx];
+                     final int dr = r - ((p >> 16) & 0xFF);
+                     final int dg = g - ((p >>  8) & 0xFF);
+                     final int db = b - (p & 0xFF);
+                     final float d = Math.nextUp((float) Math.sqrt(dr*dr + dg*dg + db*db));
+                     u = Math.nextUp(u + d);
+                     l = Math.nextDown(l - d);
+                  }
+                  final float bound = Math.max(l, halfDists[k]);
+
+                  if (u >= bound)
+                  {
+                     // Tighten the upper bound
+                     final Cluster c = cl[k];
+                     final int dx = i - c.centroidX;
+                     final int dy = j - c.centroidY;
+                     final int dr = r - c.centroidR;
+                     final int dg = g - c.centroidG;
+                     final int db = b - c.centroidB;
+                     u = Math.nextUp((float) Math.sqrt(16*(dx*dx + dy*dy) + (dr*dr + dg*dg + db*db)));
+                  }
+
+                  if (u < bound)
+                  {
+                     // The current cluster is strictly the nearest one
+                     up[idx] = u;
+                     lo[idx] = l;
+                     kfound = k;
+                     found = true;
+                  }
+               }
+
+               if (found == false)
+               {
+                  int minSqDist;
+                  int secondSqDist = Integer.MAX_VALUE;
+
+                  {
+                     // Reuse previous cluster as 'best initial guess' which yield
+                     // a small value for 'nearest' most of the time
+                     final Cluster refCluster = cl[kfound];
+                     final int dx = i - refCluster.centroidX;
+                     final int dy = j - refCluster.centroidY;
+                     final int dr = r - refCluster.centroidR;
+                     final int dg = g - refCluster.centroidG;
+                     final int db = b - refCluster.centroidB;
+
+                     // Distance is based on 3 color and 2 position coordinates
+                     minSqDist = 16 * (dx*dx + dy*dy) + (dr*dr + dg*dg + db*db);
+                  }
+
+                  final int ref = kfound;
+
+                  // Iterate over clusters, calculating pixel distance to centroid
+                  // Track a lower bound of the distance to the second nearest one
+                  for (int k=0; k<nbClusters; k++)
+                  {
+                     if (k == ref)
+                        continue;
+
+                     final Cluster cluster = cl[k];
+                     final int dx = i - cluster.centroidX;
+                     final int dy = j - cluster.centroidY;
+
+                     // Distance is based on 3 color and 2 position coordinates
+                     int sqDist = 16 *(dx*dx + dy*dy);
+
+                     if (sqDist >= minSqDist) // early exit
+                     {
+                        if (sqDist < secondSqDist)
+                           secondSqDist = sqDist;
+
+                        continue;
+                     }
+
+                     final int dr = r - cluster.centroidR;
+                     final int dg = g - cluster.centroidG;
+                     final int db = b - cluster.centroidB;
+
+                     // Distance is based on 3 color and 2 position coordinates
+                     sqDist += (dr*dr + dg*dg + db*db);
+
+                     if (sqDist >= minSqDist)
+                     {
+                        if (sqDist < secondSqDist)
+                           secondSqDist = sqDist;
+
+                        continue;
+                     }
+
+                     secondSqDist = minSqDist;
+                     minSqDist = sqDist;
+                     kfound = k;
+                  }
+
+                  up[idx] = Math.nextUp((float) Math.sqrt(minSqDist));
+                  lo[idx] = Math.nextDown((float) Math.sqrt(secondSqDist));
+                  labels_[idx] = (short) kfound;
+               }
+
+               items_[kfound]++;
+               sums_[5*kfound]   += r;
+               sums_[5*kfound+1] += g;
+               sums_[5*kfound+2] += b;
+               sums_[5*kfound+3] += i;
+               sums_[5*kfound+4] += j;
+            }
+         }
+
+         return true;
+      }
+   }
 }
@@ -17,6 +17,7 @@ package kanzi.filter;
 
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
+import kanzi.util.BufferPool;
 import kanzi.util.sampling.DecimateDownSampler;
 
 //  See http://en.wikipedia.org/wiki/Bilateral_filter.
@@ -46,6 +47,8 @@ public final class FastBilateralFilter implements IntFilter
     private final int[] colors;
     private final int[] buffer1;
     private final int[] buffer2;
+    private final int scaledSize;
+    private final BufferPool bufferPool;
     private final int channels;
 
 
@@ -71,6 +74,19 @@ public final class FastBilateralFilter implements IntFilter
     // range sampling: 4 is enough to guarantee an accurate approximation
     public FastBilateralFilter(int width, int height, int stride,
             float sigmaR, float sigmaD, int rangeSampling, int downSampling, int channels)
+    {
+       this(width, height, stride, sigmaR, sigmaD, rangeSampling, downSampling, channels, null);
+    }
+
+
+    // sigmaR = sigma Range (for pixel intensities)
+    // sigmaD = sigma Distance (for pixel locations)
+    // range sampling: 4 is enough to guarantee an accurate approximation
+    // If a buffer pool is provided, the scratch buffers are leased from the
+    // pool during apply() instead of being kept by the filter.
+    public FastBilateralFilter(int width, int height, int stride,
+            float sigmaR, float sigmaD, int rangeSampling, int downSampling, int channels,
+            BufferPool bufferPool)
     {
         if (height < 8)
             throw new IllegalArgumentException("The height must be at least 8");
@@ -102,15 +118,30 @@ public final class FastBilateralFilter implements IntFilter
         final int adjust = (1 << downSampling) - 1;
         int scaledH = (height + adjust) >> downSampling;
         int scaledW = (width + adjust) >> downSampling;
-        this.box = new float[scaledW*scaledH];
-        this.jk = new float[][] { new float[scaledW*scaledH], new float[scaledW*scaledH] };
-        this.wk = new float[scaledW*scaledH];
+        this.scaledSize = scaledW * scaledH;
+        this.bufferPool = bufferPool;
+
+        if (bufferPool == null)
+        {
+           this.box = new float[scaledW*scaledH];
+           this.jk = new float[][] { new float[scaledW*scaledH], new float[scaledW*scaledH] };
+           this.wk = new float[scaledW*scaledH];
+           this.buffer1 = new int[scaledH*scaledW];
+           this.buffer2 = new int[scaledH*scaledW];
+        }
+        else
+        {
+           this.box = null;
+           this.jk = null;
+           this.wk = null;
+           this.buffer1 = null;
+           this.buffer2 = null;
+        }
+
         this.channels = channels;
         this.downSampling = downSampling;
         this.grayscale = new float[rangeSampling];
         this.radius = (int) ((2 * sigmaD * Math.min(scaledW, scaledH) + 1) / 2);
-        this.buffer1 = new int[scaledH*scaledW];
-        this.buffer2 = new int[scaledH*scaledW];
         this.colors = new int[256];
 
         for (int i=0; i<this.colors.length; i++)
@@ -123,14 +154,35 @@ public final class FastBilateralFilter implements IntFilter
     {
         if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
            return false;
-      
+
+        if (this.bufferPool != null)
+        {
+           final int n = this.scaledSize;
+
+           try (BufferPool.Lease<int[]> lease1 = this.bufferPool.leaseInts(n);
+              BufferPool.Lease<int[]> lease2 = this.bufferPool.leaseInts(n);
+              BufferPool.Lease<float[]> leaseBox = this.bufferPool.leaseFloats(n);
+              BufferPool.Lease<float[]> leaseJk0 = this.bufferPool.leaseFloats(n);
+              BufferPool.Lease<float[]> leaseJk1 = this.bufferPool.leaseFloats(n);
+              BufferPool.Lease<float[]> leaseWk = this.bufferPool.leaseFloats(n))
+           {
+              return this.apply(input, output, lease1.array, lease2.array, leaseBox.array,
+                      new float[][] { leaseJk0.array, leaseJk1.array }, leaseWk.array);
+           }
+        }
+
+        return this.apply(input, output, this.buffer1, this.buffer2, this.box, this.jk, this.wk);
+    }
+
+
+    private boolean apply(SliceIntArray input, SliceIntArray output, int[] buf1,
+            int[] buffer2, float[] box, float[][] jk, float[] wk_)
+    {
         // Aliasing
         final int[] src = input.array;
         final int[] dst = output.array;
         final int srcIdx = input.index;
         final int dstIdx = output.index;
-        final int[] buf1 = this.buffer1;
-        final float[] wk_ = this.wk;
         final int ds = this.downSampling;
         final int scaledH = this.height >> ds;
         final int scaledW = this.width >> ds;
@@ -139,7 +191,7 @@ public final class FastBilateralFilter implements IntFilter
 
         if (ds > 0)
         {
-           buf2 = this.buffer2;
+           buf2 = buffer2;
            final int xx = srcIdx % this.stride;
            final int yy = srcIdx / this.stride;
            final int ww = (this.width + xx < this.stride) ? this.width : this.stride - xx;
@@ -150,7 +202,7 @@ public final class FastBilateralFilter implements IntFilter
         }
         else if ((srcIdx != 0) || (this.stride != this.width))
         {
-           buf2 = this.buffer2;
+           buf2 = buffer2;
            int iOffs = srcIdx;
            int oOffs = dstIdx;
 
@@ -169,7 +221,7 @@ public final class FastBilateralFilter implements IntFilter
            int max = 0;
 
            // Extract channel and min,max for this channel
-           for (int i=0; i<buf1.length; i++)
+           for (int i=0; i<this.scaledSize; i++)
            {
               final int val = (buf2[i] >> shift) & 0xFF;
               max = max - (((max - val) >> 31) & (max - val));
@@ -190,7 +242,7 @@ public final class FastBilateralFilter implements IntFilter
 
            int jk_idx0 = 0;
            int jk_idx1 = 1;
-           float[] jk_ = this.jk[0];
+           float[] jk_ = jk[0];
            final float shift_inv = 1.0f / (1 << ds);
            final float delta_scale = (float) maxGrayIdx / delta;
 
@@ -217,8 +269,8 @@ public final class FastBilateralFilter implements IntFilter
                offs += scaledW;
              }
 
-             gaussianRecursive(jk_, this.box, scaledW, scaledH, this.radius);
-             gaussianRecursive(wk_, this.box, scaledW, scaledH, this.radius);
+             gaussianRecursive(jk_, box, scaledW, scaledH, this.radius);
+             gaussianRecursive(wk_, box, scaledW, scaledH, this.radius);
              final int scaledSize = scaledW * scaledH;
              final float maxW = (float) (scaledW - 2);
              final float maxH = (float) (scaledH - 2);
@@ -231,8 +283,8 @@ public final class FastBilateralFilter implements IntFilter
              {
                 int iOffs = srcIdx;
                 int oOffs = dstIdx;        
-                final float[] jk0 = this.jk[jk_idx0];
-                final float[] jk1 = this.jk[jk_idx1];
+                final float[] jk0 = jk[jk_idx0];
+                final float[] jk1 = jk[jk_idx1];
 
                 // Calculate the bilateral filtered pixel value by linear interpolation of Jk and Jk+1
                 for (int y=0; y<this.height; y++)
@@ -274,7 +326,7 @@ public final class FastBilateralFilter implements IntFilter
                 jk_idx0 = 1 - jk_idx1;
               }
 
-              jk_= this.jk[jk_idx1];
+              jk_= jk[jk_idx1];
            }
         }
 
@@ -0,0 +1,318 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import kanzi.SliceIntArray;
+import kanzi.IntFilter;
+
+
+// A filter that chains several filter stages without full frame intermediates.
+// The image is processed in bands of rows small enough to stay in cache. Each
+// band goes through all the stages before the next band is started.
+// The input rows of each stage are kept in a rolling line buffer: for each band,
+// a stage only produces its new output rows (the rows of the band plus the rows
+// required by the vertical support of the following stages) and the rows shared
+// with the previous band stay in the buffer of the next stage. The new rows are
+// filtered extended by the vertical support of the stage (rows clipped to the
+// image), so only 2*radius rows per stage are filtered twice for each band and
+// the output is identical to applying the stages one after the other on the full
+// frame (the radius of each stage must be its exact footprint, see
+// IntFilterFactory). Stages with an unbounded footprint (recursive filters such
+// as GaussianFilter) must be given a truncated support (see truncate()): the
+// output is then an approximation of the full frame output.
+// Each input row is read once (which also makes in place processing possible).
+public class FilterPipeline implements IntFilter
+{
+   // Target size in bytes of the rows used by a stage to filter a band (input
+   // rows, filter output and rows of the next stage): fits in a typical L2 cache
+   public static final int DEFAULT_BAND_SIZE = 256*1024;
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final int bandHeight;
+   private final IntFilterFactory[] stages;
+   private final int[] radii;
+   private final int[] supports; // sum of the radii of stage i and following stages
+   private final List<HashMap<Integer, IntFilter>> filters; // per stage, key is region height
+   private final int[][] lines; // rolling buffer of the input rows of each stage
+   private final int[] lineStart; // first row in lines[i]
+   private final int[] lineEnd; // last row in lines[i] (excluded)
+   private final int[] produced; // last output row (excluded) of each stage
+   private int[] buf; // output of the current stage
+
+
+   public FilterPipeline(int width, int height, int stride, IntFilterFactory[] stages)
+   {
+      this(width, height, stride, stages, getDefaultBandHeight(width, stages));
+   }
+
+
+   // A stage works on 3 buffers of bandHeight+2*radius rows (input rows, filter
+   // output, rows of the next stage) that should fit in DEFAULT_BAND_SIZE bytes.
+   // The band is at least 8 times the largest radius (so that at most a fifth
+   // of the rows of a stage are filtered twice) and at least 8 rows: with wide
+   // frames and large radii, filtering fewer rows wins over fitting in cache.
+   private static int getDefaultBandHeight(int width, IntFilterFactory[] stages)
+   {
+      int radius = 0;
+
+      if (stages != null)
+      {
+         for (IntFilterFactory stage : stages)
+         {
+            if (stage != null)
+               radius = Math.max(radius, stage.getRadius());
+         }
+      }
+
+      final int rows = DEFAULT_BAND_SIZE / (3*4*Math.max(width, 1));
+      return Math.max(rows-2*radius, Math.max(8*radius, 8));
+   }
+
+
+   // Stages are applied in order. The vertical support of each stage is provided
+   // by IntFilterFactory.getRadius().
+   public FilterPipeline(int width, int height, int stride, IntFilterFactory[] stages,
+           int bandHeight)
+   {
+      if (height < 8)
+         throw new IllegalArgumentException("The height must be at least 8");
+
+      if (width < 8)
+         throw new IllegalArgumentException("The width must be at least 8");
+
+      if (stride < 8)
+         throw new IllegalArgumentException("The stride must be at least 8");
+
+      if (stages == null)
+         throw new NullPointerException("Invalid null stages parameter");
+
+      if (stages.length == 0)
+         throw new IllegalArgumentException("Invalid empty stages parameter");
+
+      if (bandHeight < 8)
+         throw new IllegalArgumentException("The band height must be at least 8");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.bandHeight = bandHeight;
+      this.stages = new IntFilterFactory[stages.length];
+      this.radii = new int[stages.length];
+      this.supports = new int[stages.length+1];
+      this.filters = new ArrayList<HashMap<Integer, IntFilter>>(stages.length);
+
+      for (int i=0; i<stages.length; i++)
+      {
+         if (stages[i] == null)
+            throw new NullPointerException("Invalid null stage at index "+i);
+
+         if (stages[i].getRadius() < 0)
+            throw new IllegalArgumentException("The filter footprint must be bounded (radius >= 0) for stage at index "
+               +i+" (see FilterPipeline.truncate())");
+
+         this.stages[i] = stages[i];
+         this.radii[i] = stages[i].getRadius();
+         this.filters.add(new HashMap<Integer, IntFilter>());
+      }
+
+      for (int i=stages.length-1; i>=0; i--)
+         this.supports[i] = this.supports[i+1] + this.radii[i];
+
+      this.lines = new int[stages.length][0];
+      this.lineStart = new int[stages.length];
+      this.lineEnd = new int[stages.length];
+      this.produced = new int[stages.length];
+      this.buf = new int[0];
+   }
+
+
+   // Return a stage that creates the filters of 'stage' but has a vertical
+   // support of 'radius' rows. Used to chain filters with an unbounded footprint
+   // (EG. radius = GaussianFilter.getApproximateRadius(sigma16) for a Gaussian
+   // stage): the contributions of the rows beyond the radius are ignored, so the
+   // pipeline output is an approximation of the full frame output (differences
+   // of a few levels around the band boundaries, more for the pixels of filters
+   // with a threshold close to it, EG. UnsharpFilter).
+   public static IntFilterFactory truncate(final IntFilterFactory stage, final int radius)
+   {
+      if (stage == null)
+         throw new NullPointerException("Invalid null stage parameter");
+
+      if (radius < 0)
+         throw new IllegalArgumentException("The radius must be positive or null");
+
+      return new IntFilterFactory()
+      {
+         @Override
+         public IntFilter create(int width, int height, int stride)
+         {
+            return stage.create(width, height, stride);
+         }
+
+         @Override
+         public int getRadius()
+         {
+            return radius;
+         }
+      };
+   }
+
+
+   @Override
+   public boolean apply(SliceIntArray input, SliceIntArray output)
+   {
+      if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+         return false;
+
+      final int[] src = input.array;
+      final int[] dst = output.array;
+      final int srcIdx = input.index;
+      final int dstIdx = output.index;
+      final int w = this.width;
+      final int h = this.height;
+      final int st = this.stride;
+      final int nbStages = this.stages.length;
+      final int nbBands = Math.max(h/this.bandHeight, 1);
+
+      for (int i=0; i<nbStages; i++)
+      {
+         this.lineStart[i] = 0;
+         this.lineEnd[i] = 0;
+         this.produced[i] = 0;
+      }
+
+      for (int b=0; b<nbBands; b++)
+      {
+         final int y0 = (h*b) / nbBands;
+         final int y1 = (h*(b+1)) / nbBands;
+
+         // Drop the rows that the stages do not need anymore
+         for (int i=0; i<nbStages; i++)
+         {
+            final int start = this.getRegionStart(i, y1);
+            final int keep = this.lineEnd[i] - start;
+            System.arraycopy(this.lines[i], (start-this.lineStart[i])*w, this.lines[i], 0, keep*w);
+            this.lineStart[i] = start;
+         }
+
+         // Read the new input rows
+         final int end = Math.min(y1+this.supports[0], h);
+         this.lines[0] = grow(this.lines[0], (end-this.lineStart[0])*w);
+
+         for (int y=this.lineEnd[0], offs=(y-this.lineStart[0])*w; y<end; y++, offs+=w)
+            System.arraycopy(src, srcIdx+y*st, this.lines[0], offs, w);
+
+         this.lineEnd[0] = end;
+
+         // Push the band through all the stages
+         for (int i=0; i<nbStages; i++)
+         {
+            // New output rows [p0, p1) computed from the input rows [s0, s1)
+            final int p0 = this.produced[i];
+            final int p1 = Math.min(y1+this.supports[i+1], h);
+
+            if (p1 <= p0)
+               continue;
+
+            final int s0 = this.lineStart[i];
+            final int s1 = this.lineEnd[i];
+            final int count = (s1-s0) * w;
+            final IntFilter filter = this.getFilter(i, s1-s0);
+            this.buf = grow(this.buf, count);
+
+            // Some filters only update some channels of the output pixels
+            // (EG. MedianFilter): the other channels come from the stage input
+            System.arraycopy(this.lines[i], 0, this.buf, 0, count);
+
+            if (filter.apply(new SliceIntArray(this.lines[i], count, 0),
+                    new SliceIntArray(this.buf, count, 0)) == false)
+               return false;
+
+            if (i == nbStages-1)
+            {
+               // Write the band rows
+               for (int y=p0, offs=(p0-s0)*w; y<p1; y++, offs+=w)
+                  System.arraycopy(this.buf, offs, dst, dstIdx+y*st, w);
+            }
+            else
+            {
+               // Append the new rows to the input of the next stage
+               final int next = i + 1;
+               this.lines[next] = grow(this.lines[next], (p1-this.lineStart[next])*w);
+               System.arraycopy(this.buf, (p0-s0)*w, this.lines[next],
+                  (p0-this.lineStart[next])*w, (p1-p0)*w);
+               this.lineEnd[next] = p1;
+            }
+
+            this.produced[i] = p1;
+         }
+      }
+
+      return true;
+   }
+
+
+   // Return the first input row of the region filtered by a stage for the band
+   // ending at row y1: the first new output row minus the radius of the stage,
+   // and at least 8 rows above the last input row (minimum filter height).
+   private int getRegionStart(int stage, int y1)
+   {
+      final int end = Math.min(y1+this.supports[stage], this.height);
+      final int start = Math.min(this.produced[stage]-this.radii[stage], end-8);
+      return Math.max(start, 0);
+   }
+
+
+   private static int[] grow(int[] array, int length)
+   {
+      return (array.length >= length) ? array : Arrays.copyOf(array, length);
+   }
+
+
+   // Filters are created lazily for each distinct region height (few of them:
+   // bands clipped at the top and bottom of the image and regular bands).
+   private IntFilter getFilter(int stage, int regionHeight)
+   {
+      final HashMap<Integer, IntFilter> map = this.filters.get(stage);
+      IntFilter filter = map.get(regionHeight);
+
+      if (filter == null)
+      {
+         filter = this.stages[stage].create(this.width, regionHeight, this.width);
+         map.put(regionHeight, filter);
+      }
+
+      return filter;
+   }
+
+
+   public int getBandHeight()
+   {
+      return this.bandHeight;
+   }
+
+
+   public int getNbStages()
+   {
+      return this.stages.length;
+   }
+}
@@ -0,0 +1,118 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import kanzi.IntFilter;
+import kanzi.SliceIntArray;
+
+
+// A rectangular region of an image processed by its own filter instance.
+// The region is the tile extended by a halo on each side (clipped to the image).
+// The region is copied to a local buffer, filtered, then only the tile interior
+// is written back to the output.
+class FilterTile
+{
+   final IntFilter filter;
+   final int stride; // image stride
+   final int x0; // tile interior in the image
+   final int y0;
+   final int tileW;
+   final int tileH;
+   final int rx0; // tile + halo in the image
+   final int ry0;
+   final int regionW;
+   final int regionH;
+   private int[] srcBuf;
+   private int[] dstBuf;
+
+
+   FilterTile(IntFilterFactory factory, int width, int height, int stride,
+           int x0, int y0, int tileW, int tileH, int halo)
+   {
+      this.stride = stride;
+      this.x0 = x0;
+      this.y0 = y0;
+      this.tileW = tileW;
+      this.tileH = tileH;
+      this.rx0 = Math.max(x0-halo, 0);
+      this.ry0 = Math.max(y0-halo, 0);
+      this.regionW = Math.min(x0+tileW+halo, width) - this.rx0;
+      this.regionH = Math.min(y0+tileH+halo, height) - this.ry0;
+      this.filter = factory.create(this.regionW, this.regionH, this.regionW);
+      this.srcBuf = new int[0];
+      this.dstBuf = new int[0];
+   }
+
+
+   // Filter tile + halo into the local buffer. If writeBack is true, also
+   // copy the tile interior to the output.
+   boolean apply(SliceIntArray input, SliceIntArray output, boolean writeBack)
+   {
+      final int rw = this.regionW;
+      final int rh = this.regionH;
+      final int count = rw * rh;
+
+      if (this.srcBuf.length < count)
+      {
+         this.srcBuf = new int[count];
+         this.dstBuf = new int[count];
+      }
+
+      // Extract tile + halo. Some filters only update some channels of the
+      // output pixels (EG. MedianFilter), so the local output starts with
+      // the current output pixels.
+      final int[] src = input.array;
+      final int[] dst = output.array;
+      final int st = this.stride;
+      int srcIdx = input.index + this.ry0*st + this.rx0;
+      int dstIdx = output.index + this.ry0*st + this.rx0;
+
+      for (int j=0, offs=0; j<rh; j++, offs+=rw)
+      {
+         System.arraycopy(src, srcIdx, this.srcBuf, offs, rw);
+         System.arraycopy(dst, dstIdx, this.dstBuf, offs, rw);
+         srcIdx += st;
+         dstIdx += st;
+      }
+
+      if (this.filter.apply(new SliceIntArray(this.srcBuf, count, 0),
+              new SliceIntArray(this.dstBuf, count, 0)) == false)
+         return false;
+
+      if (writeBack == true)
+         this.writeInterior(output);
+
+      return true;
+   }
+
+
+   // Copy the tile interior (no halo) to the output
+   void writeInterior(SliceIntArray output)
+   {
+      final int[] dst = output.array;
+      final int st = this.stride;
+      final int rw = this.regionW;
+      int dstIdx = output.index + this.y0*st + this.x0;
+      int offs = (this.y0-this.ry0)*rw + (this.x0-this.rx0);
+
+      for (int j=0; j<this.tileH; j++)
+      {
+         System.arraycopy(this.dstBuf, offs, dst, dstIdx, this.tileW);
+         dstIdx += st;
+         offs += rw;
+      }
+   }
+}
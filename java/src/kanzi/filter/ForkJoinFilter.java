@@ -0,0 +1,216 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import kanzi.SliceIntArray;
+import kanzi.IntFilter;
+
+
+// A filter that recursively splits the image in halves (rows or 2D tiles) down
+// to a minimum grain and runs the pieces on a work stealing fork/join pool.
+// Idle workers steal pending halves from busy ones, which keeps all cores busy
+// when the cost is uneven across the image (EG. median with threshold, seam
+// carving cost maps).
+// Each leaf region is extended by a halo (at least the radius of the filter)
+// and only its interior is written back, so the output is identical to the
+// output of one filter applied to the whole image (see TiledParallelFilter).
+public class ForkJoinFilter implements IntFilter
+{
+   // Possible split modes
+   public static final int ROWS = 1;
+   public static final int TILES = 2;
+
+   public static final int DEFAULT_GRAIN = 64;
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final int mode;
+   private final FilterTile[] leaves; // in recursion order
+   private final ForkJoinPool pool;
+
+
+   public ForkJoinFilter(int width, int height, int stride,
+           ForkJoinPool pool, IntFilterFactory factory)
+   {
+      this(width, height, stride, pool, factory, ROWS, DEFAULT_GRAIN,
+              (factory == null) ? 0 : factory.getRadius());
+   }
+
+
+   // Regions are split in halves as long as the split dimension (height for ROWS,
+   // largest dimension for TILES) is at least 2*grain.
+   public ForkJoinFilter(int width, int height, int stride, ForkJoinPool pool,
+           IntFilterFactory factory, int mode, int grain, int halo)
+   {
+      if (height < 8)
+         throw new IllegalArgumentException("The height must be at least 8");
+
+      if (width < 8)
+         throw new IllegalArgumentException("The width must be at least 8");
+
+      if (stride < 8)
+         throw new IllegalArgumentException("The stride must be at least 8");
+
+      if (pool == null)
+         throw new NullPointerException("Invalid null pool parameter");
+
+      if (factory == null)
+         throw new NullPointerException("Invalid null factory parameter");
+
+      if ((mode != ROWS) && (mode != TILES))
+         throw new IllegalArgumentException("Invalid mode parameter (must be ROWS or TILES)");
+
+      if (grain < 8)
+         throw new IllegalArgumentException("The grain must be at least 8");
+
+      if ((halo < 0) || (halo > 512))
+         throw new IllegalArgumentException("The halo must be in [0..512]");
+
+      if (factory.getRadius() < 0)
+         throw new IllegalArgumentException("The filter footprint must be bounded (radius >= 0)");
+
+      if (halo < factory.getRadius())
+         throw new IllegalArgumentException("The halo must be at least the radius of the filter");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.mode = mode;
+      this.pool = pool;
+
+      // The split is deterministic: create the leaf filters once
+      ArrayList<FilterTile> list = new ArrayList<FilterTile>();
+      this.split(list, factory, 0, 0, width, height, grain, halo);
+      this.leaves = list.toArray(new FilterTile[list.size()]);
+   }
+
+
+   private void split(ArrayList<FilterTile> list, IntFilterFactory factory,
+           int x, int y, int w, int h, int grain, int halo)
+   {
+      final boolean splitY = (this.mode == ROWS) || (h >= w);
+
+      if (splitY == true)
+      {
+         if (h >= 2*grain)
+         {
+            this.split(list, factory, x, y, w, h>>1, grain, halo);
+            this.split(list, factory, x, y+(h>>1), w, h-(h>>1), grain, halo);
+            return;
+         }
+      }
+      else if (w >= 2*grain)
+      {
+         this.split(list, factory, x, y, w>>1, h, grain, halo);
+         this.split(list, factory, x+(w>>1), y, w-(w>>1), h, grain, halo);
+         return;
+      }
+
+      list.add(new FilterTile(factory, this.width, this.height, this.stride,
+              x, y, w, h, halo));
+   }
+
+
+   @Override
+   public boolean apply(final SliceIntArray input, final SliceIntArray output)
+   {
+      if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+         return false;
+
+      // If src and dst share the same array, all regions must be read and
+      // filtered before any interior is written back (halos overlap).
+      final boolean twoPasses = input.array == output.array;
+      final int n = this.leaves.length;
+
+      if (this.pool.invoke(new SplitTask(this.leaves, 0, n, input, output, !twoPasses, false)) == false)
+         return false;
+
+      if (twoPasses == true)
+         return this.pool.invoke(new SplitTask(this.leaves, 0, n, input, output, false, true));
+
+      return true;
+   }
+
+
+   public int getMode()
+   {
+      return this.mode;
+   }
+
+
+   public int getNbRegions()
+   {
+      return this.leaves.length;
+   }
+
+
+   static class SplitTask extends RecursiveTask<Boolean>
+   {
+      private static final long serialVersionUID = 1L;
+
+      final FilterTile[] leaves;
+      final int start;
+      final int end;
+      final SliceIntArray input;
+      final SliceIntArray output;
+      final boolean writeBack;
+      final boolean writeOnly;
+
+
+      SplitTask(FilterTile[] leaves, int start, int end, SliceIntArray input,
+              SliceIntArray output, boolean writeBack, boolean writeOnly)
+      {
+         this.leaves = leaves;
+         this.start = start;
+         this.end = end;
+         this.input = input;
+         this.output = output;
+         this.writeBack = writeBack;
+         this.writeOnly = writeOnly;
+      }
+
+
+      @Override
+      protected Boolean compute()
+      {
+         if (this.end - this.start == 1)
+         {
+            final FilterTile leaf = this.leaves[this.start];
+
+            if (this.writeOnly == false)
+               return leaf.apply(this.input, this.output, this.writeBack);
+
+            leaf.writeInterior(this.output);
+            return true;
+         }
+
+         final int mid = (this.start + this.end) >>> 1;
+         SplitTask left = new SplitTask(this.leaves, this.start, mid, this.input,
+                 this.output, this.writeBack, this.writeOnly);
+         SplitTask right = new SplitTask(this.leaves, mid, this.end, this.input,
+                 this.output, this.writeBack, this.writeOnly);
+
+         // Let idle workers steal the left half
+         left.fork();
+         final boolean res = right.compute();
+         return left.join() & res;
+      }
+   }
+}
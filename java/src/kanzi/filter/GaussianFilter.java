@@ -15,22 +15,43 @@ limitations under the License.
 
 package kanzi.filter;
 
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import kanzi.DirectFrame;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
+import kanzi.util.BufferPool;
 
 // Fast implementation of a Gaussian filter approximation based on a recursive
 // algorithm defined by Rachid Deriche.
 // [See Deriche, R.: Recursively implementing the gaussian and its derivatives]
 // http://hal.archives-ouvertes.fr/inria-00074778
+// The vertical pass processes blocks of adjacent columns together (row by row
+// within a block) to walk the memory sequentially.
+// Optionally, the horizontal pass (bands of rows) and the vertical pass (bands
+// of columns) are processed concurrently by the tasks of an executor, and the
+// filter can use fixed point arithmetic instead of floats.
+// The filter also works on frames stored off heap (DirectFrame).
 
 public class GaussianFilter implements IntFilter
 {
+    private static final int BLOCK = 32; // columns per block in the vertical pass
+    private static final int COEF_SHIFT = 16; // fixed point coefficients
+    private static final int VAL_SHIFT = 12; // fixed point pixel values
+    public static final int MAX_TASKS = 256;
+
     private final int width;
     private final int height;
     private final int stride;
     private final int channels;
     private int[] buffer1;
     private int[] buffer2;
+    private final BufferPool bufferPool;
     private final int sigma16;
     private final float b1;
     private final float b2;
@@ -40,6 +61,10 @@ public class GaussianFilter implements IntFilter
     private final float a3;
     private final float coefp;
     private final float coefn;      
+    private final boolean fixedPoint;
+    private final long[] fixedCoefs; // a0, a1, a2, a3, b1, b2, coefp, coefn
+    private final ExecutorService pool; // can be null
+    private final Band[] bands;
 
 
     // sigma16 is the blurriness coefficient (multiplied by 16)
@@ -51,6 +76,41 @@ public class GaussianFilter implements IntFilter
 
     // sigma16 is the blurriness coefficient (multiplied by 16)
     public GaussianFilter(int width, int height, int stride, int sigma16, int channels)
+    {
+       this(width, height, stride, sigma16, channels, null);
+    }
+
+
+    // sigma16 is the blurriness coefficient (multiplied by 16)
+    // If a buffer pool is provided, the scratch buffers are leased from the
+    // pool during apply() instead of being kept by the filter.
+    public GaussianFilter(int width, int height, int stride, int sigma16, int channels,
+            BufferPool bufferPool)
+    {
+       this(width, height, stride, sigma16, channels, bufferPool, null, 1, false);
+    }
+
+
+    // sigma16 is the blurriness coefficient (multiplied by 16)
+    // The horizontal and vertical passes are split into bands processed
+    // concurrently by the tasks of the executor.
+    public GaussianFilter(int width, int height, int stride, int sigma16, int channels,
+            ExecutorService pool, boolean fixedPoint)
+    {
+       this(width, height, stride, sigma16, channels, null, pool,
+          (pool == null) ? 1 : Runtime.getRuntime().availableProcessors(), fixedPoint);
+    }
+
+
+    // sigma16 is the blurriness coefficient (multiplied by 16)
+    // If a buffer pool is provided, the scratch buffers are leased from the
+    // pool during apply() instead of being kept by the filter.
+    // If the executor is null, the bands are processed in the calling thread.
+    // The number of tasks is clamped to MAX_TASKS.
+    // If fixedPoint is true, the filter uses integer arithmetic (the results
+    // may differ by a few units from the floating point version).
+    public GaussianFilter(int width, int height, int stride, int sigma16, int channels,
+            BufferPool bufferPool, ExecutorService pool, int nbTasks, boolean fixedPoint)
     {
         if (height < 8)
             throw new IllegalArgumentException("The height must be at least 8");
@@ -67,6 +127,9 @@ public class GaussianFilter implements IntFilter
         if ((channels < 1) || (channels > 3))
             throw new IllegalArgumentException("The number of image channels must be in [1..3]");
 
+        if (nbTasks < 1)
+            throw new IllegalArgumentException("The number of tasks must be at least 1");
+
         this.height = height;
         this.width = width;
         this.stride = stride;
@@ -74,6 +137,7 @@ public class GaussianFilter implements IntFilter
         this.buffer1 = new int[0];
         this.buffer2 = new int[0];
         this.channels = channels;
+        this.bufferPool = bufferPool;
         float nsigma = (this.sigma16 < 8) ? 0.5f : this.sigma16 /16.0f;
         float alpha = 1.695f / nsigma;
         float ema = (float) Math.exp(-alpha);
@@ -87,6 +151,36 @@ public class GaussianFilter implements IntFilter
         this.a3 = -k*ema2;
         this.coefp = (this.a0+this.a1) / (1+this.b1+this.b2);
         this.coefn = (this.a2+this.a3) / (1+this.b1+this.b2);        
+        this.fixedPoint = fixedPoint;
+        this.fixedCoefs = new long[8];
+        final float[] coefs = { this.a0, this.a1, this.a2, this.a3, this.b1, this.b2,
+           this.coefp, this.coefn };
+
+        for (int i=0; i<coefs.length; i++)
+           this.fixedCoefs[i] = Math.round(coefs[i] * (1 << COEF_SHIFT));
+
+        // The rounding of the coefficients biases the DC gain of the recursion
+        // (a flat image drifts by a few units at high sigma). Adjust a0 so that
+        // a0+a1+a2+a3 == 1+b1+b2 exactly (DC gain of 1) and derive the initial
+        // states from the rounded coefficients.
+        final long[] fc = this.fixedCoefs;
+        final long one = 1L << COEF_SHIFT;
+        final long den = one + fc[4] + fc[5];
+        fc[0] += den - (fc[0] + fc[1] + fc[2] + fc[3]);
+        fc[6] = ((fc[0] + fc[1]) * one + (den >> 1)) / den;
+        fc[7] = one - fc[6];
+
+        this.pool = pool;
+        final int nbBands = Math.min(Math.min(nbTasks, MAX_TASKS), Math.min(height, (width+15)>>4));
+        this.bands = new Band[nbBands];
+
+        // Bands of rows (horizontal pass) and of columns (vertical pass)
+        for (int i=0; i<nbBands; i++)
+        {
+           final int x0 = Math.min((((width*i)/nbBands)+15) & -16, width);
+           final int x1 = (i+1 == nbBands) ? width : Math.min((((width*(i+1))/nbBands)+15) & -16, width);
+           this.bands[i] = new Band((height*i)/nbBands, (height*(i+1))/nbBands, x0, x1);
+        }
     }
 
 
@@ -111,63 +205,204 @@ public class GaussianFilter implements IntFilter
           return true;
        }
 
+       if (this.bufferPool != null)
+       {
+          try (BufferPool.Lease<int[]> lease1 = this.bufferPool.leaseInts(count+maxIdx);
+             BufferPool.Lease<int[]> lease2 = this.bufferPool.leaseInts(count+maxIdx))
+          {
+             return this.apply(src, srcIdx, dst, dstIdx, null, null, lease1.array, lease2.array);
+          }
+       }
+
        if (this.buffer1.length < count+maxIdx)
           this.buffer1 = new int[count+maxIdx];
 
        if (this.buffer2.length < count+maxIdx)
           this.buffer2 = new int[count+maxIdx];
 
-       // Aliasing
-       final int[] buf1 = this.buffer1;
-       final int[] buf2 = this.buffer2;
+       return this.apply(src, srcIdx, dst, dstIdx, null, null, this.buffer1, this.buffer2);
+    }
+
+
+    // Same as apply(SliceIntArray, SliceIntArray) for frames stored off heap.
+    // Both frames must have the dimensions of the filter (each frame has its
+    // own stride and offset) and can be the same frame. The channels are
+    // extracted from and inserted into the frame buffers one row at a time
+    // with bulk transfers. The recursive passes have an unbounded support, so
+    // they run on the scratch buffers (on the heap) like for heap frames.
+    public boolean apply(DirectFrame input, DirectFrame output)
+    {
+       if ((input == null) || (output == null))
+          return false;
+
+       if ((input.width != this.width) || (input.height != this.height))
+          return false;
 
-       for (int channel=0; channel<this.channels; channel++)
+       if ((output.width != this.width) || (output.height != this.height))
+          return false;
+
+       if (output.buffer.isReadOnly() == true)
+          return false;
+
+       final int count = this.stride * this.height;
+
+       if (this.sigma16 == 0)
        {
-          final int shift = channel << 3;
-          int offs = 0;
- 
-          // Extract channel
-          for (int j=this.height-1; j>=0; j--)
+          if (input != output)
           {
-             final int end = offs + this.width;
-             
-             for (int i=offs; i<end; i++)
-                buf1[i] = (src[srcIdx+i] >> shift) & 0xFF;
-             
-             offs += this.stride;
-          }
-          
-          this.gaussianRecursiveX(buf1, buf2);
-          this.gaussianRecursiveY(buf2, buf1);
-          offs = 0;
+             final int[] row = new int[this.width];
 
-          // Insert channel
-          for (int j=this.height-1; j>=0; j--)
-          {
-             final int end = offs + this.width;
-             
-             for (int i=offs; i<end; i++)
+             for (int j=0; j<this.height; j++)
              {
-                dst[dstIdx+i] &= ~(0xFF << shift); //src and dst can share the same array
-                dst[dstIdx+i] |= (buf1[i] & 0xFF) << shift;
+                input.getRows(j, 1, row, 0);
+                output.putRows(j, 1, row, 0);
              }
-             
-             offs += this.stride;
           }
 
+          return true;
+       }
+
+       if (this.bufferPool != null)
+       {
+          try (BufferPool.Lease<int[]> lease1 = this.bufferPool.leaseInts(count);
+             BufferPool.Lease<int[]> lease2 = this.bufferPool.leaseInts(count))
+          {
+             return this.apply(null, 0, null, 0, input, output, lease1.array, lease2.array);
+          }
+       }
+
+       if (this.buffer1.length < count)
+          this.buffer1 = new int[count];
+
+       if (this.buffer2.length < count)
+          this.buffer2 = new int[count];
+
+       return this.apply(null, 0, null, 0, input, output, this.buffer1, this.buffer2);
+    }
+
+
+    // Either the arrays or the frames are provided
+    private boolean apply(int[] src, int srcIdx, int[] dst, int dstIdx,
+       DirectFrame srcFrame, DirectFrame dstFrame, int[] buf1, int[] buf2)
+    {
+       for (Band band : this.bands)
+       {
+          band.src = src;
+          band.srcIdx = srcIdx;
+          band.dst = dst;
+          band.dstIdx = dstIdx;
+          band.srcFrame = srcFrame;
+          band.dstFrame = dstFrame;
+          band.buf1 = buf1;
+          band.buf2 = buf2;
+       }
+
+       try
+       {
+          // src and dst can share the same array: each channel is extracted
+          // before being inserted and the other channels are not modified
+          for (int channel=0; channel<this.channels; channel++)
+          {
+             for (Band band : this.bands)
+                band.shift = channel << 3;
+
+             // Extract channel and horizontal pass (by rows) then vertical pass
+             // and insert channel (by columns)
+             if ((this.run(Band.ROWS) == false) || (this.run(Band.COLUMNS) == false))
+                return false;
+          }
+
+          return true;
+       }
+       finally
+       {
+          // Do not keep references to the caller's arrays
+          for (Band band : this.bands)
+          {
+             band.src = null;
+             band.dst = null;
+             band.srcFrame = null;
+             band.dstFrame = null;
+             band.buf1 = null;
+             band.buf2 = null;
+          }
        }
+    }
+
 
-       return true;
+    private boolean run(int step)
+    {
+       for (Band band : this.bands)
+          band.step = step;
+
+       if ((this.pool == null) || (this.bands.length == 1))
+       {
+          boolean res = true;
+
+          for (Band band : this.bands)
+             res &= band.call();
+
+          return res;
+       }
+
+       List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(this.bands.length);
+
+       for (Band band : this.bands)
+          tasks.add(band);
+
+       try
+       {
+          List<Future<Boolean>> results = this.pool.invokeAll(tasks);
+          boolean res = true;
+
+          for (Future<Boolean> fr : results)
+             res &= fr.get();
+
+          return res;
+       }
+       catch (InterruptedException e)
+       {
+          Thread.currentThread().interrupt();
+          return false;
+       }
+       catch (ExecutionException e)
+       {
+          return false;
+       }
     }
 
 
-    private void gaussianRecursiveX(int[] input, int[] output)
+    // Value of a pixel in the buffers
+    private int fromPixel(int val)
     {
+       return (this.fixedPoint == true) ? val << VAL_SHIFT : val;
+    }
+
+
+    // Pixel value from the buffers
+    private int toPixel(int val)
+    {
+       if (this.fixedPoint == false)
+          return val & 0xFF;
+
+       val = (val + (1 << (VAL_SHIFT-1))) >> VAL_SHIFT;
+       return (val >= 255) ? 255 : val & ~(val >> 31);
+    }
+
+
+    // Horizontal pass on rows [y0, y1)
+    private void gaussianRecursiveX(int[] input, int[] output, int y0, int y1)
+    {
+       if (this.fixedPoint == true)
+       {
+          this.gaussianRecursiveXFixed(input, output, y0, y1);
+          return;
+       }
+
        final int w = this.width;
-       final int h = this.height;
-       int offs = 0;
+       int offs = y0 * this.stride;
 
-       for (int y=0; y<h; y++)
+       for (int y=y0; y<y1; y++)
        {
           // forward pass
           float xp = input[offs];
@@ -206,54 +441,344 @@ public class GaussianFilter implements IntFilter
     }
 
 
-    private void gaussianRecursiveY(int[] input, int[] output)
+    // Vertical pass on columns [x0, x1), by blocks of adjacent columns
+    // The states of the columns of a block are kept in the band's scratch arrays
+    private void gaussianRecursiveY(int[] input, int[] output, int x0, int x1, Band band)
     {
-       final int w = this.width;
+       if (this.fixedPoint == true)
+       {
+          this.gaussianRecursiveYFixed(input, output, x0, x1, band);
+          return;
+       }
+
        final int h = this.height;
+       final int st = this.stride;
+       final float[] s1 = band.fs1; // xp, then xn
+       final float[] s2 = band.fs2; // yb, then xa
+       final float[] s3 = band.fs3; // yp, then yn
+       final float[] s4 = band.fs4; // ya
 
-       for (int x=0; x<w; x++)
+       for (int bx=x0; bx<x1; bx+=BLOCK)
        {
+          final int n = Math.min(BLOCK, x1-bx);
+
           // forward pass
-          int offs = 0;
-          float xp = input[x];
-          float yb = this.coefp*xp;
-          float yp = yb;
+          for (int k=0; k<n; k++)
+          {
+             s1[k] = input[bx+k];
+             s2[k] = this.coefp*s1[k];
+             s3[k] = s2[k];
+          }
 
-          for (int y=0; y<h; y++)
+          for (int y=0, offs=bx; y<h; y++, offs+=st)
           {
-            float xc = input[offs+x];
-            float yc = this.a0*xc + this.a1*xp - this.b1*yp - this.b2*yb;
-            output[offs+x] = Math.round(yc);
-            xp = xc;
-            yb = yp;
-            yp = yc;
-            offs += this.stride;
+             for (int k=0; k<n; k++)
+             {
+                final float xc = input[offs+k];
+                final float yc = this.a0*xc + this.a1*s1[k] - this.b1*s3[k] - this.b2*s2[k];
+                output[offs+k] = Math.round(yc);
+                s1[k] = xc;
+                s2[k] = s3[k];
+                s3[k] = yc;
+             }
           }
 
           // reverse pass: ensure response is symmetrical
-          offs = (h-1) * this.stride;
-          float xn = input[offs+x];
-          float xa = xn;
-          float yn = this.coefn*xn;
-          float ya = yn;
+          int offs = (h-1)*st + bx;
+
+          for (int k=0; k<n; k++)
+          {
+             s1[k] = input[offs+k];
+             s2[k] = s1[k];
+             s3[k] = this.coefn*s1[k];
+             s4[k] = s3[k];
+          }
+
+          for (int y=h-1; y>=0; y--, offs-=st)
+          {
+             for (int k=0; k<n; k++)
+             {
+                final float xc = input[offs+k];
+                final float yc = this.a2*s1[k] + this.a3*s2[k] - this.b1*s3[k] - this.b2*s4[k];
+                output[offs+k] += Math.round(yc);
+                s2[k] = s1[k];
+                s1[k] = xc;
+                s4[k] = s3[k];
+                s3[k] = yc;
+             }
+          }
+       }
+    }
+
+
+    private void gaussianRecursiveXFixed(int[] input, int[] output, int y0, int y1)
+    {
+       final int w = this.width;
+       final long[] c = this.fixedCoefs;
+       final long fa0 = c[0], fa1 = c[1], fa2 = c[2], fa3 = c[3];
+       final long fb1 = c[4], fb2 = c[5], fcoefp = c[6], fcoefn = c[7];
+       final long round = 1L << (COEF_SHIFT-1);
+       int offs = y0 * this.stride;
+
+       for (int y=y0; y<y1; y++)
+       {
+          // forward pass
+          long xp = input[offs];
+          long yb = (fcoefp*xp + round) >> COEF_SHIFT;
+          long yp = yb;
+
+          for (int x=0; x<w; x++)
+          {
+             final long xc = input[offs+x];
+             final long yc = (fa0*xc + fa1*xp - fb1*yp - fb2*yb + round) >> COEF_SHIFT;
+             output[offs+x] = (int) yc;
+             xp = xc;
+             yb = yp;
+             yp = yc;
+          }
+
+          // reverse pass: ensure response is symmetrical
+          long xn = input[offs+w-1];
+          long xa = xn;
+          long yn = (fcoefn*xn + round) >> COEF_SHIFT;
+          long ya = yn;
+
+          for (int x=w-1; x>=0; x--)
+          {
+             final long xc = input[offs+x];
+             final long yc = (fa2*xn + fa3*xa - fb1*yn - fb2*ya + round) >> COEF_SHIFT;
+             output[offs+x] += (int) yc;
+             xa = xn;
+             xn = xc;
+             ya = yn;
+             yn = yc;
+          }
+
+          offs += this.stride;
+       }
+    }
+
+
+    private void gaussianRecursiveYFixed(int[] input, int[] output, int x0, int x1, Band band)
+    {
+       final int h = this.height;
+       final int st = this.stride;
+       final long[] c = this.fixedCoefs;
+       final long fa0 = c[0], fa1 = c[1], fa2 = c[2], fa3 = c[3];
+       final long fb1 = c[4], fb2 = c[5], fcoefp = c[6], fcoefn = c[7];
+       final long round = 1L << (COEF_SHIFT-1);
+       final long[] s1 = band.ls1; // xp, then xn
+       final long[] s2 = band.ls2; // yb, then xa
+       final long[] s3 = band.ls3; // yp, then yn
+       final long[] s4 = band.ls4; // ya
+
+       for (int bx=x0; bx<x1; bx+=BLOCK)
+       {
+          final int n = Math.min(BLOCK, x1-bx);
+
+          // forward pass
+          for (int k=0; k<n; k++)
+          {
+             s1[k] = input[bx+k];
+             s2[k] = (fcoefp*s1[k] + round) >> COEF_SHIFT;
+             s3[k] = s2[k];
+          }
+
+          for (int y=0, offs=bx; y<h; y++, offs+=st)
+          {
+             for (int k=0; k<n; k++)
+             {
+                final long xc = input[offs+k];
+                final long yc = (fa0*xc + fa1*s1[k] - fb1*s3[k] - fb2*s2[k] + round) >> COEF_SHIFT;
+                output[offs+k] = (int) yc;
+                s1[k] = xc;
+                s2[k] = s3[k];
+                s3[k] = yc;
+             }
+          }
+
+          // reverse pass: ensure response is symmetrical
+          int offs = (h-1)*st + bx;
 
-          for (int y=h-1; y>=0; y--)
+          for (int k=0; k<n; k++)
           {
-            float xc = input[offs+x];
-            float yc = this.a2*xn + this.a3*xa - this.b1*yn - this.b2*ya;
-            output[offs+x] += Math.round(yc);
-            xa = xn;
-            xn = xc;
-            ya = yn;
-            yn = yc;
-            offs -= this.stride;
+             s1[k] = input[offs+k];
+             s2[k] = s1[k];
+             s3[k] = (fcoefn*s1[k] + round) >> COEF_SHIFT;
+             s4[k] = s3[k];
+          }
+
+          for (int y=h-1; y>=0; y--, offs-=st)
+          {
+             for (int k=0; k<n; k++)
+             {
+                final long xc = input[offs+k];
+                final long yc = (fa2*s1[k] + fa3*s2[k] - fb1*s3[k] - fb2*s4[k] + round) >> COEF_SHIFT;
+                output[offs+k] += (int) yc;
+                s2[k] = s1[k];
+                s1[k] = xc;
+                s4[k] = s3[k];
+                s3[k] = yc;
+             }
           }
        }
     }
 
 
+    // A band of rows [y0, y1) for the horizontal pass and of columns [x0, x1)
+    // for the vertical pass
+    private class Band implements Callable<Boolean>
+    {
+       static final int ROWS = 0;
+       static final int COLUMNS = 1;
+
+       final int y0;
+       final int y1;
+       final int x0;
+       final int x1;
+       int step;
+       int shift;
+       int[] src;
+       int srcIdx;
+       int[] dst;
+       int dstIdx;
+       DirectFrame srcFrame; // off heap frames (the arrays are null)
+       DirectFrame dstFrame;
+       int[] row; // row of an off heap frame
+       int[] buf1;
+       int[] buf2;
+       // States of the columns of a block in the vertical pass (float or
+       // fixed point, depending on the mode)
+       final float[] fs1;
+       final float[] fs2;
+       final float[] fs3;
+       final float[] fs4;
+       final long[] ls1;
+       final long[] ls2;
+       final long[] ls3;
+       final long[] ls4;
+
+
+       Band(int y0, int y1, int x0, int x1)
+       {
+          this.y0 = y0;
+          this.y1 = y1;
+          this.x0 = x0;
+          this.x1 = x1;
+          final int fn = (fixedPoint == true) ? 0 : BLOCK;
+          final int ln = (fixedPoint == true) ? BLOCK : 0;
+          this.fs1 = new float[fn];
+          this.fs2 = new float[fn];
+          this.fs3 = new float[fn];
+          this.fs4 = new float[fn];
+          this.ls1 = new long[ln];
+          this.ls2 = new long[ln];
+          this.ls3 = new long[ln];
+          this.ls4 = new long[ln];
+          this.row = new int[0];
+       }
+
+
+       @Override
+       public Boolean call()
+       {
+          final int st = stride;
+
+          if ((this.srcFrame != null) && (this.row.length < width))
+             this.row = new int[width];
+
+          if (this.step == ROWS)
+          {
+             if (this.srcFrame == null)
+             {
+                for (int j=this.y0, offs=this.y0*st; j<this.y1; j++, offs+=st)
+                   this.extractRow(this.src, this.srcIdx+offs, offs);
+             }
+             else
+             {
+                final DirectFrame frame = this.srcFrame;
+                final IntBuffer buf = frame.buffer.duplicate();
+
+                for (int j=this.y0, offs=this.y0*st; j<this.y1; j++, offs+=st)
+                {
+                   buf.position(frame.offset+j*frame.stride);
+                   buf.get(this.row, 0, width);
+                   this.extractRow(this.row, 0, offs);
+                }
+             }
+
+             gaussianRecursiveX(this.buf1, this.buf2, this.y0, this.y1);
+             return true;
+          }
+
+          gaussianRecursiveY(this.buf2, this.buf1, this.x0, this.x1, this);
+
+          if (this.dstFrame == null)
+          {
+             for (int j=0, offs=0; j<height; j++, offs+=st)
+                this.insertRow(this.dst, this.dstIdx+offs, offs);
+          }
+          else
+          {
+             final DirectFrame frame = this.dstFrame;
+             final IntBuffer buf = frame.buffer.duplicate();
+             final int n = this.x1 - this.x0;
+
+             // Columns [x0, x1) of each row, starting at index 0 of the row
+             for (int j=0, offs=0; j<height; j++, offs+=st)
+             {
+                final int pos = frame.offset + j*frame.stride + this.x0;
+                buf.position(pos);
+                buf.get(this.row, 0, n);
+                this.insertRow(this.row, -this.x0, offs);
+                buf.position(pos);
+                buf.put(this.row, 0, n);
+             }
+          }
+
+          return true;
+       }
+
+
+       // Extract channel: row of the frame at srcOffs to the row of the
+       // scratch buffer at offs
+       private void extractRow(int[] input, int srcOffs, int offs)
+       {
+          final int sh = this.shift;
+
+          for (int i=0; i<width; i++)
+             this.buf1[offs+i] = fromPixel((input[srcOffs+i] >> sh) & 0xFF);
+       }
+
+
+       // Insert channel: columns [x0, x1) of the row of the scratch buffer at
+       // offs to the row of the frame at dstOffs
+       private void insertRow(int[] output, int dstOffs, int offs)
+       {
+          final int sh = this.shift;
+          final int mask = ~(0xFF << sh);
+
+          for (int i=this.x0; i<this.x1; i++)
+             output[dstOffs+i] = (output[dstOffs+i] & mask) | (toPixel(this.buf1[offs+i]) << sh);
+       }
+    }
+
+
     public int getSigma()
     {
        return this.sigma16;
     }
+
+
+    // The recursive filter has an unbounded footprint. Return the radius of
+    // its truncation to 3 sigma (sigma16 is sigma multiplied by 16): the filter
+    // applied to a region extended by this radius gives an approximation of
+    // the interior of the filter applied to the whole image (see FilterPipeline).
+    public static int getApproximateRadius(int sigma16)
+    {
+       if (sigma16 == 0)
+          return 0;
+
+       return (3*Math.max(sigma16, 8)+15) >> 4;
+    }
 }
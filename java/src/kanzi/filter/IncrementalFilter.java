@@ -0,0 +1,426 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import kanzi.SliceIntArray;
+import kanzi.IntFilter;
+
+
+// A filter for video frames that only filters the regions of a frame that
+// changed since the previous frame (EG. screen captures, fixed cameras).
+// The frame is compared to the previous one in blocks. Changed blocks are
+// expanded by the filter radius (a change impacts the output of neighbor
+// pixels), merged into rectangles and each rectangle (plus a halo of 'radius'
+// pixels) is filtered. The rest of the output is copied from the previous
+// output. Filtered regions are enlarged to at least MIN_REGION_DIM pixels in
+// each dimension (the filters reject smaller images), so frames do not have
+// to be a multiple of the block dimension.
+// The radius is the exact footprint of the filter (see IntFilterFactory):
+// the output is identical to the output of the wrapped filter applied to the
+// whole frame if each output pixel only depends on the input pixels within
+// radius (like for TiledParallelFilter). Filters with an unbounded footprint
+// (negative radius, EG. recursive gaussians) are rejected. Filters with global
+// state (histograms, clustering) should not be wrapped.
+public class IncrementalFilter implements IntFilter
+{
+   public static final int DEFAULT_BLOCK_DIM = 32;
+
+   private static final int MAX_CACHED_FILTERS = 32;
+   private static final int MIN_REGION_DIM = 8;
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final int blockDim;
+   private final int radius;
+   private final int nbBlocksX;
+   private final int nbBlocksY;
+   private final IntFilterFactory factory;
+   private final Map<Long, IntFilter> filters; // per region dimensions
+   private final boolean[] changed;
+   private final boolean[] dirty;
+   private final int[] prevInput;
+   private final int[] prevOutput;
+   private final List<int[]> rects;
+   private int[] srcBuf;
+   private int[] dstBuf;
+   private boolean hasPrevious;
+   private int dirtyBlocks;
+
+
+   public IncrementalFilter(int width, int height, int stride, IntFilterFactory factory)
+   {
+      this(width, height, stride, factory, DEFAULT_BLOCK_DIM);
+   }
+
+
+   public IncrementalFilter(int width, int height, int stride, IntFilterFactory factory,
+           int blockDim)
+   {
+      if (height < 8)
+         throw new IllegalArgumentException("The height must be at least 8");
+
+      if (width < 8)
+         throw new IllegalArgumentException("The width must be at least 8");
+
+      if (stride < width)
+         throw new IllegalArgumentException("The stride must be at least as big as the width");
+
+      if (factory == null)
+         throw new NullPointerException("Invalid null factory parameter");
+
+      if ((blockDim < 8) || (blockDim > 1024))
+         throw new IllegalArgumentException("The block dimension must be in [8..1024]");
+
+      if (factory.getRadius() < 0)
+         throw new IllegalArgumentException("The filter footprint must be bounded (radius >= 0)");
+
+      if (factory.getRadius() > 512)
+         throw new IllegalArgumentException("The filter radius must be at most 512");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.blockDim = blockDim;
+      this.radius = factory.getRadius();
+      this.factory = factory;
+      this.nbBlocksX = (width + blockDim - 1) / blockDim;
+      this.nbBlocksY = (height + blockDim - 1) / blockDim;
+      this.filters = new HashMap<Long, IntFilter>();
+      this.changed = new boolean[this.nbBlocksX*this.nbBlocksY];
+      this.dirty = new boolean[this.nbBlocksX*this.nbBlocksY];
+      this.prevInput = new int[width*height];
+      this.prevOutput = new int[width*height];
+      this.rects = new ArrayList<int[]>();
+      this.srcBuf = new int[0];
+      this.dstBuf = new int[0];
+   }
+
+
+   @Override
+   public boolean apply(SliceIntArray input, SliceIntArray output)
+   {
+      if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+         return false;
+
+      final int end = (this.height-1)*this.stride + this.width;
+
+      if ((input.index+end > input.array.length) || (output.index+end > output.array.length))
+         return false;
+
+      this.findChangedBlocks(input);
+      this.expandChangedBlocks();
+      this.mergeDirtyBlocks();
+
+      // Filter the dirty rectangles into the previous output. The input is
+      // entirely read before the output is written (in place filtering).
+      for (int[] rect : this.rects)
+      {
+         if (this.filterRect(input, output, rect[0], rect[1], rect[2], rect[3]) == false)
+         {
+            this.hasPrevious = false;
+            return false;
+         }
+      }
+
+      final int w = this.width;
+      int dstIdx = output.index;
+
+      for (int j=0, offs=0; j<this.height; j++, offs+=w)
+      {
+         System.arraycopy(this.prevOutput, offs, output.array, dstIdx, w);
+         dstIdx += this.stride;
+      }
+
+      this.hasPrevious = true;
+      return true;
+   }
+
+
+   // Mark the blocks of the input that differ from the previous input and
+   // save these blocks
+   private void findChangedBlocks(SliceIntArray input)
+   {
+      final int[] src = input.array;
+      final int[] prev = this.prevInput;
+      final int bd = this.blockDim;
+      final int w = this.width;
+      final int st = this.stride;
+      int n = 0;
+
+      for (int by=0; by<this.nbBlocksY; by++)
+      {
+         final int y0 = by * bd;
+         final int y1 = Math.min(y0+bd, this.height);
+
+         for (int bx=0; bx<this.nbBlocksX; bx++, n++)
+         {
+            final int x0 = bx * bd;
+            final int x1 = Math.min(x0+bd, w);
+            boolean diff = !this.hasPrevious;
+
+            for (int y=y0; (y<y1) && (diff == false); y++)
+            {
+               final int srcIdx = input.index + y*st;
+               final int prvIdx = y*w;
+
+               for (int x=x0; x<x1; x++)
+               {
+                  if (src[srcIdx+x] != prev[prvIdx+x])
+                  {
+                     diff = true;
+                     break;
+                  }
+               }
+            }
+
+            this.changed[n] = diff;
+
+            if (diff == true)
+            {
+               for (int y=y0; y<y1; y++)
+                  System.arraycopy(src, input.index+y*st+x0, prev, y*w+x0, x1-x0);
+            }
+         }
+      }
+   }
+
+
+   // A block is dirty if a changed pixel is within radius of the block
+   private void expandChangedBlocks()
+   {
+      final int r = (this.radius + this.blockDim - 1) / this.blockDim;
+      final int nbx = this.nbBlocksX;
+      final int nby = this.nbBlocksY;
+      this.dirtyBlocks = 0;
+
+      for (int n=0; n<this.dirty.length; n++)
+         this.dirty[n] = false;
+
+      for (int by=0; by<nby; by++)
+      {
+         for (int bx=0; bx<nbx; bx++)
+         {
+            if (this.changed[by*nbx+bx] == false)
+               continue;
+
+            final int ymin = Math.max(by-r, 0);
+            final int ymax = Math.min(by+r, nby-1);
+            final int xmin = Math.max(bx-r, 0);
+            final int xmax = Math.min(bx+r, nbx-1);
+
+            for (int y=ymin; y<=ymax; y++)
+            {
+               for (int x=xmin; x<=xmax; x++)
+                  this.dirty[y*nbx+x] = true;
+            }
+         }
+      }
+
+      for (int n=0; n<this.dirty.length; n++)
+      {
+         if (this.dirty[n] == true)
+            this.dirtyBlocks++;
+      }
+   }
+
+
+   // Merge horizontal runs of dirty blocks, then identical runs of consecutive
+   // block rows, into rectangles (in pixels: x, y, width, height)
+   private void mergeDirtyBlocks()
+   {
+      final int nbx = this.nbBlocksX;
+      final int bd = this.blockDim;
+      List<int[]> active = new ArrayList<int[]>(); // x0, x1, y0 (in blocks)
+      List<int[]> next = new ArrayList<int[]>();
+      this.rects.clear();
+
+      for (int by=0; by<=this.nbBlocksY; by++)
+      {
+         next.clear();
+
+         if (by < this.nbBlocksY)
+         {
+            int bx = 0;
+
+            while (bx < nbx)
+            {
+               if (this.dirty[by*nbx+bx] == false)
+               {
+                  bx++;
+                  continue;
+               }
+
+               final int x0 = bx;
+
+               while ((bx < nbx) && (this.dirty[by*nbx+bx] == true))
+                  bx++;
+
+               int[] run = null;
+
+               for (int[] a : active)
+               {
+                  if ((a[0] == x0) && (a[1] == bx))
+                  {
+                     run = a;
+                     break;
+                  }
+               }
+
+               if (run != null)
+                  active.remove(run);
+               else
+                  run = new int[] { x0, bx, by };
+
+               next.add(run);
+            }
+         }
+
+         // Runs not continued in this row are complete
+         for (int[] a : active)
+         {
+            final int x = a[0] * bd;
+            final int y = a[2] * bd;
+            this.rects.add(new int[] { x, y, Math.min(a[1]*bd, this.width) - x,
+               Math.min(by*bd, this.height) - y });
+         }
+
+         List<int[]> t = active;
+         active = next;
+         next = t;
+      }
+   }
+
+
+   // Filter the rectangle extended by the radius, write the rectangle to the
+   // previous output
+   private boolean filterRect(SliceIntArray input, SliceIntArray output, int x0, int y0,
+           int rectW, int rectH)
+   {
+      final int halo = this.radius;
+      int rx0 = Math.max(x0-halo, 0);
+      int ry0 = Math.max(y0-halo, 0);
+      int rx1 = Math.min(x0+rectW+halo, this.width);
+      int ry1 = Math.min(y0+rectH+halo, this.height);
+
+      // Enlarge small regions (EG. the last column of blocks of a frame that
+      // is not a multiple of the block dimension). A larger halo does not
+      // change the output of the rectangle.
+      if (rx1-rx0 < MIN_REGION_DIM)
+      {
+         rx0 = Math.max(rx1-MIN_REGION_DIM, 0);
+         rx1 = Math.min(rx0+MIN_REGION_DIM, this.width);
+      }
+
+      if (ry1-ry0 < MIN_REGION_DIM)
+      {
+         ry0 = Math.max(ry1-MIN_REGION_DIM, 0);
+         ry1 = Math.min(ry0+MIN_REGION_DIM, this.height);
+      }
+
+      final int rw = rx1 - rx0;
+      final int rh = ry1 - ry0;
+      final int count = rw * rh;
+
+      if (this.srcBuf.length < count)
+      {
+         this.srcBuf = new int[count];
+         this.dstBuf = new int[count];
+      }
+
+      // Some filters only update some pixels or channels of the output (EG.
+      // MedianFilter, SobelFilter without boundaries), so the local output
+      // starts with the current output pixels (not written yet).
+      final int st = this.stride;
+      int srcIdx = input.index + ry0*st + rx0;
+      int outIdx = output.index + ry0*st + rx0;
+
+      for (int j=0, offs=0; j<rh; j++, offs+=rw)
+      {
+         System.arraycopy(input.array, srcIdx, this.srcBuf, offs, rw);
+         System.arraycopy(output.array, outIdx, this.dstBuf, offs, rw);
+         srcIdx += st;
+         outIdx += st;
+      }
+
+      if (this.getFilter(rw, rh).apply(new SliceIntArray(this.srcBuf, count, 0),
+              new SliceIntArray(this.dstBuf, count, 0)) == false)
+         return false;
+
+      final int w = this.width;
+      int offs = (y0-ry0)*rw + (x0-rx0);
+      int dstIdx = y0*w + x0;
+
+      for (int j=0; j<rectH; j++)
+      {
+         System.arraycopy(this.dstBuf, offs, this.prevOutput, dstIdx, rectW);
+         offs += rw;
+         dstIdx += w;
+      }
+
+      return true;
+   }
+
+
+   private IntFilter getFilter(int w, int h)
+   {
+      final Long key = ((long) w << 32) | h;
+      IntFilter filter = this.filters.get(key);
+
+      if (filter == null)
+      {
+         // Rectangles vary from frame to frame: bound the number of instances
+         if (this.filters.size() >= MAX_CACHED_FILTERS)
+            this.filters.clear();
+
+         filter = this.factory.create(w, h, w);
+         this.filters.put(key, filter);
+      }
+
+      return filter;
+   }
+
+
+   // Force the next frame to be entirely filtered (EG. after a scene change
+   // or a change of the wrapped filter parameters)
+   public void reset()
+   {
+      this.hasPrevious = false;
+   }
+
+
+   // Number of blocks filtered during the last call to apply
+   public int getDirtyBlocks()
+   {
+      return this.dirtyBlocks;
+   }
+
+
+   public int getNbBlocks()
+   {
+      return this.dirty.length;
+   }
+
+
+   public int getBlockDim()
+   {
+      return this.blockDim;
+   }
+}
@@ -0,0 +1,38 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import kanzi.IntFilter;
+
+
+// A factory of filters, each applied to one rectangular region of an image.
+// Used by the parallel filters to create one filter instance per region since
+// most filters keep internal state (buffers, histograms, ...).
+public interface IntFilterFactory
+{
+   // Create a new filter for a region of the provided dimensions
+   public IntFilter create(int width, int height, int stride);
+
+
+   // Return the number of neighbor pixels (in each direction) required
+   // to compute one output pixel (EG. 1 for a 3x3 kernel). Each output pixel
+   // must only depend on the input pixels within this radius, so that a filter
+   // applied to a region extended by a halo of radius pixels produces the same
+   // interior as the filter applied to the whole image.
+   // Return a negative value if the footprint is unbounded (EG. recursive
+   // filters such as GaussianFilter): such filters cannot be split into regions.
+   public int getRadius();
+}
@@ -17,13 +17,17 @@ package kanzi.filter;
 
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
+import kanzi.util.image.IntegralImage;
 
 
+// Summed area table of the raw int values of an image. The sums are computed
+// by an IntegralImage (64 bit accumulators) and the output keeps their low 32
+// bits: box sums computed from the output by difference are exact when they
+// fit in an int, for any frame size. The exact sums of the last frame can be
+// queried with getIntegralImage().
 public class IntegralImageFilter implements IntFilter
 {
-    private final int width;
-    private final int height;
-    private final int stride;
+    private final IntegralImage table;
 
 
     public IntegralImageFilter(int width, int height)
@@ -43,12 +47,7 @@ public class IntegralImageFilter implements IntFilter
         if (stride < 8)
             throw new IllegalArgumentException("The stride must be at least 8");
 
-        if (width*height >= 1<<23)
-            throw new IllegalArgumentException("The image area is limited to 8388608 pixels");
-
-        this.width = width;
-        this.height = height;
-        this.stride = stride;
+        this.table = new IntegralImage(width, height, stride);
     }
 
 
@@ -61,40 +60,16 @@ public class IntegralImageFilter implements IntFilter
       if (input.array == output.array)
          return false;
       
-      final int[] src = input.array;
-      final int[] dst = output.array;
-      int srcIdx = input.index;
-      int dstIdx = output.index;
-      final int w = this.width;
-      final int h = this.height;
-      final int st = this.stride;           
-		int sumRow = 0;
-         
-      // First row
-      for (int x=0; x<w; x++)
-      {
-         sumRow += src[srcIdx+x];
-         dst[dstIdx+x]= sumRow;
-      }
-
-      srcIdx += st;
-      dstIdx += st;
-         
-      // Other rows
-      for (int y=1; y<h; y++)
-      {
-         sumRow = 0;
-
-         for (int x=0; x<w; x++)
-         {
-            sumRow += src[srcIdx+x];
-            dst[dstIdx+x] = dst[dstIdx+x-st] + sumRow;
-         }
-
-         srcIdx += st;
-         dstIdx += st;
-      }   
-      
-      return true;
-   }   
+      if (this.table.build(input, IntegralImage.RAW) == false)
+         return false;
+
+      return this.table.copyTo(output);
+   }
+
+
+   // Table of the last frame processed by apply()
+   public IntegralImage getIntegralImage()
+   {
+      return this.table;
+   }
 }
@@ -18,8 +18,10 @@ package kanzi.filter;
 import kanzi.ColorModelType;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
+import kanzi.util.BufferPool;
 import kanzi.util.color.ColorModelConverter;
 import kanzi.util.color.YCbCrColorModelConverter;
+import kanzi.util.image.IntegralImage;
 
 
 // Maximum Symmetric Surround Saliency Filter
@@ -27,6 +29,10 @@ import kanzi.util.color.YCbCrColorModelConverter;
 // by Radhakrishna Achanta and Sabine Susstrunk.
 // Proceedings of IEEE International Conference on Image Processing (ICIP), 2010.
 // Fast integer based approximation using YUV rather than the slow LAB color model.
+// The mean values of the surrounding areas are read from a summed area table
+// with 64 bit accumulators (exact for any frame size). The channels are
+// processed one after the other so that one table (8 bytes per pixel) is
+// enough.
 public final class MSSSaliencyFilter implements IntFilter
 {
     // Type of filter output (3 'pixel' output channels or 1 'cost' output channel)
@@ -37,15 +43,13 @@ public final class MSSSaliencyFilter implements IntFilter
     private final int height;
     private final int stride;
     private final boolean doColorTransform;
-    private final IntFilter integralFilter;
+    private IntegralImage integral;
     private final int mask;
     private int[] chanL1;
     private int[] chanA1;
     private int[] chanB1;
-    private int[] chanL2;
-    private int[] chanA2;
-    private int[] chanB2;
     private int[] buf;
+    private final BufferPool bufferPool;
 
 
     public MSSSaliencyFilter(int width, int height)
@@ -62,6 +66,16 @@ public final class MSSSaliencyFilter implements IntFilter
 
     public MSSSaliencyFilter(int width, int height, int stride, boolean doColorTransform,
                              int filterType)
+    {
+       this(width, height, stride, doColorTransform, filterType, null);
+    }
+
+
+    // If a buffer pool is provided, the channel buffers are leased from the
+    // pool during apply() instead of being kept by the filter (the summed area
+    // table is kept by the filter).
+    public MSSSaliencyFilter(int width, int height, int stride, boolean doColorTransform,
+                             int filterType, BufferPool bufferPool)
     {
         if (height < 8)
             throw new IllegalArgumentException("The height must be at least 8");
@@ -80,7 +94,13 @@ public final class MSSSaliencyFilter implements IntFilter
         this.stride = stride;
         this.doColorTransform = doColorTransform;
         this.mask = (filterType == COST) ? 0xFF : -1;
-        this.integralFilter = new IntegralImageFilter(width, height, stride);
+        this.bufferPool = bufferPool;
+        this.release();
+    }
+
+
+    private void release()
+    {
         this.chanL1 = new int[0];
         this.chanA1 = new int[0];
         this.chanB1 = new int[0];
@@ -96,6 +116,34 @@ public final class MSSSaliencyFilter implements IntFilter
 
       final int count = this.stride * this.height;
 
+      if (this.bufferPool != null)
+      {
+         try (BufferPool.Lease<int[]> lease = this.bufferPool.leaseInts(count);
+            BufferPool.Lease<int[]> leaseL1 = this.bufferPool.leaseInts(count);
+            BufferPool.Lease<int[]> leaseA1 = this.bufferPool.leaseInts(count);
+            BufferPool.Lease<int[]> leaseB1 = this.bufferPool.leaseInts(count))
+         {
+            this.buf = lease.array;
+            this.chanL1 = leaseL1.array;
+            this.chanA1 = leaseA1.array;
+            this.chanB1 = leaseB1.array;
+            return this.filter(input, output);
+         }
+         finally
+         {
+            // Do not keep references to the arrays returned to the pool
+            this.release();
+         }
+      }
+
+      return this.filter(input, output);
+   }
+
+
+   private boolean filter(SliceIntArray input, SliceIntArray output)
+   {
+      final int count = this.stride * this.height;
+
       // Lazy instantiation
       if (this.buf.length < count)
       {
@@ -103,27 +151,24 @@ public final class MSSSaliencyFilter implements IntFilter
          this.chanL1 = new int[count];
          this.chanA1 = new int[count];
          this.chanB1 = new int[count];
-         this.chanL2 = new int[count];
-         this.chanA2 = new int[count];
-         this.chanB2 = new int[count];
       }
 
+      if (this.integral == null)
+         this.integral = new IntegralImage(this.width, this.height, this.stride);
+
       final int[] src = input.array;
       final int[] dst = output.array;
-      int srcIdx = input.index;
-      int dstIdx = output.index;
+      final int srcIdx = input.index;
       final int h = this.height;
       final int w = this.width;
 
       SliceIntArray saL1 = new SliceIntArray(this.chanL1, 0);
       SliceIntArray saA1 = new SliceIntArray(this.chanA1, 0);
       SliceIntArray saB1 = new SliceIntArray(this.chanB1, 0);
-      SliceIntArray saL2 = new SliceIntArray(this.chanL2, 0);
-      SliceIntArray saA2 = new SliceIntArray(this.chanA2, 0);
-      SliceIntArray saB2 = new SliceIntArray(this.chanB2, 0);
       SliceIntArray sa   = new SliceIntArray(this.buf,    0);
 
-      // Create Gaussian and Integral images for 1 or 3 channels.
+      // Create Gaussian and Integral images for 1 or 3 channels. The squared
+      // distances of the channels are added to the output.
       if (this.doColorTransform == true)
       {
          ColorModelConverter cvt = new YCbCrColorModelConverter(this.width, this.height, srcIdx, this.stride);
@@ -131,79 +176,43 @@ public final class MSSSaliencyFilter implements IntFilter
          if (cvt.convertRGBtoYUV(src, this.chanL1, this.chanA1, this.chanB1, ColorModelType.YUV444) == false)
             return false;
 
-         copyImage(this.chanA1, this.buf, w, h, 0, this.width, this.stride);
-
-         if (this.integralFilter.apply(sa, saA2) == false)
+         if (this.addDistances(saA1, sa, output, true) == false)
             return false;
 
-         if (this.gaussianSmooth(sa, saA1) == false)
+         if (this.addDistances(saB1, sa, output, false) == false)
             return false;
 
-         copyImage(this.chanB1, this.buf, w, h, 0, this.width, this.stride);
-
-         if (this.integralFilter.apply(sa, saB2) == false)
-            return false;
-
-         if (this.gaussianSmooth(sa, saB1) == false)
+         if (this.addDistances(saL1, sa, output, false) == false)
             return false;
       }
       else
       {
          // No color transform, use L channel as input data
          for (int i=0; srcIdx+i<count; i++)
-         {
             this.chanL1[i] = src[srcIdx+i];
-            this.chanA1[i] = 0;
-            this.chanB1[i] = 0;
-         }
-      }
-
-      copyImage(this.chanL1, this.buf, w, h, 0, this.width, this.stride);
-
-      if (this.integralFilter.apply(sa, saL2) == false)
-         return false;
 
-      if (this.gaussianSmooth(sa, saL1) == false)
-         return false;
+         if (this.addDistances(saL1, sa, output, true) == false)
+            return false;
+      }
 
       final int st = this.stride;
       int minVal = Integer.MAX_VALUE;
       int maxVal = 0;
-      srcIdx = 0;
+      int dstIdx = output.index;
 
-      // Compute distance of differences
       for (int y=0; y<h; y++)
       {
-         final int yoff	= Math.min(y, h-y);
-         final int y1	= y - yoff;
-         final int y2	= Math.min(y+yoff, h-1);
-
          for (int x=0; x<w; x++)
          {
-            final int xoff	= Math.min(x, w-x);
-            final int x1	= x - xoff;
-            final int x2	= Math.min(x+xoff, w-1);
-            final int area = (x2-x1+1) * (y2-y1+1);
-            final int offset1 = (y1-1) * st;
-            final int offset2 = y2 * st;
-            final int valL = getIntegralSum(this.chanL2, x1, offset1, x2, offset2) / area;
-            final int valA = getIntegralSum(this.chanA2, x1, offset1, x2, offset2) / area;
-            final int valB = getIntegralSum(this.chanB2, x1, offset1, x2, offset2) / area;
-            final int idx = srcIdx + x;
-            final int val1 = valL - this.chanL1[idx];
-            final int val2 = valA - this.chanA1[idx];
-            final int val3 = valB - this.chanB1[idx];
-            final int val = (val1*val1) + (val2*val2) + (val3*val3); // non linearity (dist. square)
-            dst[dstIdx+x] = val;
+            final int val = dst[dstIdx+x];
 
             if (val < minVal)
                minVal = val;
 
             if (val > maxVal)
-               maxVal = (int) val;
+               maxVal = val;
          }
 
-         srcIdx += st;
          dstIdx += st;
       }
 
@@ -255,20 +264,56 @@ public final class MSSSaliencyFilter implements IntFilter
    }
 
 
-   private static int getIntegralSum(int[] data, int x1, int offset1, int x2, int offset2)
+   // Build the table of one channel and smooth the channel (in place, using
+   // the buffer), then add the squared distances between the mean values of
+   // the surrounding areas and the smoothed values to the output (or write
+   // them if first is true)
+   private boolean addDistances(SliceIntArray chan, SliceIntArray buffer,
+      SliceIntArray output, boolean first)
    {
-      if (x1 <= 0)
+      final IntegralImage table = this.integral;
+      final int[] data = chan.array;
+      final int[] dst = output.array;
+      final int w = this.width;
+      final int h = this.height;
+      final int st = this.stride;
+      copyImage(data, buffer.array, w, h, 0, this.width, this.stride);
+
+      if (table.build(buffer, IntegralImage.RAW) == false)
+         return false;
+
+      if (this.gaussianSmooth(buffer, chan) == false)
+         return false;
+
+      int srcIdx = 0;
+      int dstIdx = output.index;
+
+      // Compute distance of differences
+      for (int y=0; y<h; y++)
       {
-         if (offset1 <= 0)
-            return data[offset2+x2];
+         final int yoff	= Math.min(y, h-y);
+         final int y1	= y - yoff;
+         final int y2	= Math.min(y+yoff, h-1);
 
-         return data[offset2+x2] - data[offset1+x2];
-      }
+         for (int x=0; x<w; x++)
+         {
+            final int xoff	= Math.min(x, w-x);
+            final int x1	= x - xoff;
+            final int x2	= Math.min(x+xoff, w-1);
+            final int val = table.mean(x1, y1, x2, y2) - data[srcIdx+x];
 
-		if (offset1 <= 0)
-			return data[offset2+x2] - data[offset2+x1-1];
+            // non linearity (dist. square)
+            if (first == true)
+               dst[dstIdx+x] = val*val;
+            else
+               dst[dstIdx+x] += (val*val);
+         }
 
-      return data[offset2+x2] + data[offset1+x1-1] - data[offset1+x2] - data[offset2+x1-1];
+         srcIdx += st;
+         dstIdx += st;
+      }
+
+      return true;
    }
 
 
@@ -15,6 +15,14 @@ limitations under the License.
 
 package kanzi.filter;
 
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import kanzi.DirectFrame;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
 
@@ -25,6 +33,18 @@ import kanzi.IntFilter;
 // As an addition, an optional threshold can be provided to keep input pixels 
 // that differ too much from their associated median. It gives the ability to keep
 // edges and blur smooth areas.
+// As recommended in the paper, the frame can be split into vertical tiles so that
+// the column histograms fit in the cache. Each tile has its own histograms (plus
+// a halo of 2*radius columns) and the tiles can be processed concurrently by the
+// tasks of an executor. The output does not depend on the tiling.
+// Pixels out of the frame are replaced with the nearest frame pixels and the last
+// row and column are copied from the input, so each output pixel only depends on
+// the input pixels within radius of it (the filter can run on tiles of a frame
+// with a halo of radius pixels, see TiledParallelFilter).
+// The fine histogram of the kernel is updated lazily: only the segment where the
+// median belongs is refreshed (see section 3 of the paper).
+// The filter also works on frames stored off heap (DirectFrame): each tile
+// keeps a ring of the input rows it reads (tile columns and halo only).
 public final class MedianFilter implements IntFilter
 {
    // Type of input filter: use RGB for 3 channels, or 1 channel (use B for Y, or U or V)
@@ -34,6 +54,7 @@ public final class MedianFilter implements IntFilter
    public static final int B_CHANNEL = 0x0100;
    public static final int DEFAULT_RADIUS = 3;
    public static final int DEFAULT_THRESHOLD = 256;
+   public static final int DEFAULT_TILE_WIDTH = 256;
 
    private final int width;
    private final int height;
@@ -42,8 +63,9 @@ public final class MedianFilter implements IntFilter
    private final int radius;
    private final int medianThreshold;
    private int threshold;
-   private final Histogram[] histos; // 1 histogram per column (+ 2*radius histograms)
-   private final Histogram kernel; // histogram around current point
+   private final Tile[] tiles; // vertical tiles, each with its own histograms
+   private final ExecutorService pool; // can be null (tiles processed sequentially)
+   private int[] buffer; // copy of the input for in place filtering
 
 
    public MedianFilter(int width, int height)
@@ -73,6 +95,25 @@ public final class MedianFilter implements IntFilter
    // the pixels is kept, otherwise it is replaced with the median. The default 
    // behavior is to always replace (regular median filter).
    public MedianFilter(int width, int height, int stride, int radius, int channels, int threshold)
+   {
+      this(width, height, stride, radius, channels, threshold, null, width);
+   }
+
+
+   // Tiled mode: the tiles (DEFAULT_TILE_WIDTH columns) are processed
+   // concurrently by the tasks of the executor.
+   public MedianFilter(int width, int height, int stride, int radius, int channels,
+           int threshold, ExecutorService pool)
+   {
+      this(width, height, stride, radius, channels, threshold, pool, DEFAULT_TILE_WIDTH);
+   }
+
+
+   // Tiled mode: the frame is split into vertical tiles of at least tileWidth
+   // columns (and at least 2*radius+1 columns). If the executor is null, the
+   // tiles are processed sequentially in the calling thread.
+   public MedianFilter(int width, int height, int stride, int radius, int channels,
+           int threshold, ExecutorService pool, int tileWidth)
    {
       if (height < 8)
          throw new IllegalArgumentException("The height must be at least 8");
@@ -93,6 +134,9 @@ public final class MedianFilter implements IntFilter
       if ((threshold < 2) || ((threshold > 255) && (threshold != DEFAULT_THRESHOLD)))
          throw new IllegalArgumentException("The threshold must be in [2..255]");
 
+      if (tileWidth < 8)
+         throw new IllegalArgumentException("The tile width must be at least 8");
+
       this.height = height;
       this.width = width;
       this.stride = stride;
@@ -100,11 +144,14 @@ public final class MedianFilter implements IntFilter
       this.radius = radius;
       this.threshold = threshold;
       this.medianThreshold = ((2*this.radius+1) * (2*this.radius+1)) / 2;
-      this.kernel = new Histogram(); // contains (2*radius+1) * (2*radius+1) pixels
-      this.histos = new Histogram[this.width+2*radius];
+      this.pool = pool;
+      this.buffer = new int[0];
 
-      for (int i=0; i<this.histos.length; i++)
-         this.histos[i] = new Histogram();
+      final int nbTiles = Math.max(width/Math.max(tileWidth, 2*radius+1), 1);
+      this.tiles = new Tile[nbTiles];
+
+      for (int i=0; i<nbTiles; i++)
+         this.tiles[i] = new Tile((width*i)/nbTiles, (width*(i+1))/nbTiles);
    }
 
    
@@ -124,252 +171,534 @@ public final class MedianFilter implements IntFilter
    }
   
    
+   public int getNbTiles()
+   {
+      return this.tiles.length;
+   }
+
+
    @Override
    public boolean apply(SliceIntArray input, SliceIntArray output)
    {
-        if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
-           return false;
-
-        final int[] src = input.array;
-        final int[] dst = output.array;
-        final int nbChans = this.channels >> 8;
-        final int maxShift = this.channels & 0xFF;
-        final int h = this.height;
-        final int w = this.width;
-        final int st = this.stride;
-        final int rd = this.radius;
-        final int deltaOffs = st * rd;        
-        final int endX = w - 1;
-        final int endY = h - 1;
-        final int th = this.threshold;
-
-        // Process each channel
-        for (int i=0; i<nbChans; i++)
-        {
-            final int shift = maxShift - 8*i;
-
-            // Initialize columns histograms
-            for (int x=0; x<this.histos.length; x++)
-            {
-               final Histogram hst = this.histos[x];
-               hst.clear();
-               int startX = input.index;
-               final int xx = (x < rd) ? 0 : x - rd;
-
-               for (int y=0; y<=2*rd; y++)
-               {
-                  final int val = (src[startX+xx]>>shift) & 0xFF;
-                  hst.fine[val]++;
-                  hst.coarse[val>>4]++;
-                  startX += st;
-               }
-            }
+      if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+         return false;
 
-            int srcStart = input.index;
-            int dstStart = output.index;
+      int[] src = input.array;
+      int srcIdx = input.index;
+      final int st = this.stride;
+      final int h = this.height;
 
-            // Process each row
-            for (int y=0; y<endY; y++)
-            {
-               // Initialize current histogram
-               this.kernel.clear();
-
-               for (int j=y; j<=y+2*rd; j++)
-               {
-                  final int yy = (j>=rd) ? ((j<endY) ? j-rd : endY) : 0;
-                  final int startX = yy*st + input.index;
-
-                  for (int r=-rd; r<0; r++)
-                  {
-                     final int val = (src[startX+0]>>shift) & 0xFF;
-                     this.kernel.fine[val]++;
-                     this.kernel.coarse[val>>4]++;
-                  }
-
-                  for (int r=0; r<=rd; r++)
-                  {
-                     final int val = (src[startX+r]>>shift) & 0xFF;
-                     this.kernel.fine[val]++;
-                     this.kernel.coarse[val>>4]++;
-                  }
-               }
-       
-               final int yy = (y>=rd) ? y-rd : 0;
-               
-               for (int rx=0; rx<=2*rd; rx++)
-               {
-                  final Histogram hst = this.histos[rx];
-                  hst.clear();                  
-                  int startX = yy*st + input.index;
-                  final int xx = (rx>=rd) ? rx-rd : 0;
-
-                  for (int ry=0; ry<=2*rd; ry++)
-                  {
-                     final int val = (src[startX+xx]>>shift) & 0xFF;
-                     hst.fine[val]++;
-                     hst.coarse[val>>4]++;
-                     
-                     if (yy+ry < endY)
-                        startX += st;
-                  }
-               }
-
-               // Process each column
-               for (int x=0; x<endX; x++)
-               {
-                  // Find median of current histogram and update output
-                  int med = this.getMedian();
-                  
-                  if (th < DEFAULT_THRESHOLD)
-                  {
-                     final int val = (src[srcStart+x]>>shift) & 0xFF;
-                     int diff = val - med;
-                     diff = (diff + (diff >> 31)) ^ (diff >> 31);
-                     
-                     // Keep current pixel is too different from median (EG. edges)
-                     if (diff >= th)
-                        med = val;
-                  }
-                  
-                  dst[dstStart+x] &= ~(255<<shift);
-                  dst[dstStart+x] |= (med<<shift);
-
-                  if ((y > rd) && (y < endY-rd))
-                  {
-                     // Step 1: update histo for current column
-                     // Remove old pixel from column, add new pixel from column
-                     Histogram hst = this.histos[x+2*rd+1];
-                     final int pos = srcStart + x + rd + 1;
-                     final int outPix = (src[pos-deltaOffs-st] >> shift) & 0xFF;
-                     hst.fine[outPix]--;
-                     hst.coarse[outPix>>4]--;
-                     final int inPix = (src[pos+deltaOffs] >> shift) & 0xFF;
-                     hst.fine[inPix]++;
-                     hst.coarse[inPix>>4]++;
-                  }
-
-                  // Step 2: update current histogram
-                  // Remove old column histogram, add new column histogram
-                  removeHistogram(this.kernel, this.histos[x]);
-                  addHistogram(this.kernel, this.histos[x+2*rd+1]);
-              }
-
-              // Last column
-              dst[dstStart+w-1] = src[srcStart+w-1];
-              srcStart += st;
-              dstStart += st;
-           }
-            
-           // Last row
-           System.arraycopy(src, input.index+st*(h-1), dst, output.index+st*(h-1), w);
-       }
-
-       return true;
-    }
-
-
-   private static void addHistogram(Histogram kernel, Histogram ch)
-   {
-      int idx = 0;
+      // In place: the column histograms would remove filtered pixels (and the
+      // tiles read halo pixels overwritten by other tiles), so filter a copy
+      // of the input
+      if (input.array == output.array)
+      {
+         final int count = Math.min(st*h, src.length-srcIdx);
+
+         if (this.buffer.length < count)
+            this.buffer = new int[count];
+
+         System.arraycopy(src, srcIdx, this.buffer, 0, count);
+         src = this.buffer;
+         srcIdx = 0;
+      }
 
-      for (; idx<16; idx++)
+      boolean res = true;
+
+      if ((this.pool == null) || (this.tiles.length == 1))
       {
-         if (ch.coarse[idx] != 0)
-            break;
+         for (Tile tile : this.tiles)
+            tile.filter(src, srcIdx, output.array, output.index);
       }
+      else
+      {
+         ArrayList<Callable<Boolean>> filterTasks = new ArrayList<Callable<Boolean>>(this.tiles.length);
 
-      final int[] hst1 = kernel.fine;
-      final int[] hst2 = ch.fine;
+         for (Tile tile : this.tiles)
+         {
+            tile.src = src;
+            tile.srcIdx = srcIdx;
+            tile.dst = output.array;
+            tile.dstIdx = output.index;
+            filterTasks.add(tile);
+         }
 
-      for (int i=idx; i<16; i++)
-         kernel.coarse[i] += ch.coarse[i];
+         res = this.run(filterTasks);
 
-      for (int i=idx<<4; i<256; i+=8)
-      {
-         hst1[i]   += hst2[i];
-         hst1[i+1] += hst2[i+1];
-         hst1[i+2] += hst2[i+2];
-         hst1[i+3] += hst2[i+3];
-         hst1[i+4] += hst2[i+4];
-         hst1[i+5] += hst2[i+5];
-         hst1[i+6] += hst2[i+6];
-         hst1[i+7] += hst2[i+7];
+         if (res == false)
+            return false;
       }
+
+      // Last row
+      System.arraycopy(src, srcIdx+st*(h-1), output.array, output.index+st*(h-1), this.width);
+      return res;
    }
 
 
-   private static void removeHistogram(Histogram kernel, Histogram ch)
+   // Same as apply(SliceIntArray, SliceIntArray) for frames stored off heap.
+   // Both frames must have the dimensions of the filter (each frame has its
+   // own stride and offset). The tiles read the input rows into rings of heap
+   // rows and update the output rows with bulk transfers, and filter them with
+   // the same row routines as heap frames. If both frames share the same
+   // buffer, the input is first copied to the heap (like in place filtering of
+   // heap frames).
+   public boolean apply(DirectFrame input, DirectFrame output)
    {
-      int idx = 0;
+      if ((input == null) || (output == null))
+         return false;
+
+      if ((input.width != this.width) || (input.height != this.height))
+         return false;
+
+      if ((output.width != this.width) || (output.height != this.height))
+         return false;
 
-      for (; idx<16; idx++)
+      if (output.buffer.isReadOnly() == true)
+         return false;
+
+      final int w = this.width;
+      final int h = this.height;
+
+      if (input.buffer == output.buffer)
       {
-         if (ch.coarse[idx] != 0)
-            break;
+         if (this.buffer.length < w*h)
+            this.buffer = new int[w*h];
+
+         input.getRows(0, h, this.buffer, 0);
+         input = DirectFrame.wrap(w, h, w, 0, this.buffer);
       }
 
-      final int[] hst1 = kernel.fine;
-      final int[] hst2 = ch.fine;
+      boolean res = true;
+
+      if ((this.pool == null) || (this.tiles.length == 1))
+      {
+         for (Tile tile : this.tiles)
+            tile.filter(input, output);
+      }
+      else
+      {
+         ArrayList<Callable<Boolean>> filterTasks = new ArrayList<Callable<Boolean>>(this.tiles.length);
+
+         for (Tile tile : this.tiles)
+         {
+            tile.srcFrame = input;
+            tile.dstFrame = output;
+            filterTasks.add(tile);
+         }
 
-      for (int i=idx; i<16; i++)
-         kernel.coarse[i] -= ch.coarse[i];
+         res = this.run(filterTasks);
 
-      for (int i=idx<<4; i<256; i+=8)
+         if (res == false)
+            return false;
+      }
+
+      // Last row
+      final int[] row = new int[w];
+      input.getRows(h-1, 1, row, 0);
+      output.putRows(h-1, 1, row, 0);
+      return res;
+   }
+
+
+   private boolean run(List<Callable<Boolean>> filterTasks)
+   {
+      boolean res = true;
+
+      try
+      {
+         List<Future<Boolean>> results = this.pool.invokeAll(filterTasks);
+
+         for (Future<Boolean> fr : results)
+            res &= fr.get();
+      }
+      catch (InterruptedException e)
       {
-         hst1[i]   -= hst2[i];
-         hst1[i+1] -= hst2[i+1];
-         hst1[i+2] -= hst2[i+2];
-         hst1[i+3] -= hst2[i+3];
-         hst1[i+4] -= hst2[i+4];
-         hst1[i+5] -= hst2[i+5];
-         hst1[i+6] -= hst2[i+6];
-         hst1[i+7] -= hst2[i+7];
+         res = false;
       }
+      catch (ExecutionException e)
+      {
+         res = false;
+      }
+
+      for (Tile tile : this.tiles)
+      {
+         tile.src = null;
+         tile.dst = null;
+         tile.srcFrame = null;
+         tile.dstFrame = null;
+      }
+
+      return res;
    }
 
 
-   private int getMedian()
+   // A vertical tile: columns [x0, x1) of the frame. The tile owns the column
+   // histograms x0 to x1+2*radius, where column histogram i covers the frame
+   // column i-radius. The kernel at column x is the sum of the column
+   // histograms x to x+2*radius. The column histograms slide down one row at
+   // a time. Rows and columns out of the frame are clamped to the frame
+   // boundaries, so each output pixel only depends on the input pixels within
+   // radius of it.
+   private class Tile implements Callable<Boolean>
    {
-      int res = 0;
-      int idx = 0;
-      int n = 0;
+      final int x0;
+      final int x1;
+      final Histogram[] histos; // column histograms x0 to x1+2*radius
+      final Histogram kernel; // coarse: up to date, fine: see luc
+      final int[] luc; // last updated column of each segment of the fine kernel
+      int[] src;
+      int srcIdx;
+      int[] dst;
+      int dstIdx;
+      DirectFrame srcFrame; // off heap frames (the arrays are null)
+      DirectFrame dstFrame;
+      int[] rows; // ring of input rows (off heap frames)
+      int[] row; // output row (off heap frames)
+
+
+      Tile(int x0, int x1)
+      {
+         this.x0 = x0;
+         this.x1 = x1;
+         this.histos = new Histogram[x1-x0+2*radius+1];
+
+         for (int i=0; i<this.histos.length; i++)
+            this.histos[i] = new Histogram();
+
+         this.kernel = new Histogram();
+         this.luc = new int[16];
+         this.rows = new int[0];
+         this.row = new int[0];
+      }
+
 
-      // Find segment where the median belongs
-      for (; idx<16; idx++)
+      @Override
+      public Boolean call()
       {
-         n += this.kernel.coarse[idx];
+         if (this.srcFrame != null)
+            this.filter(this.srcFrame, this.dstFrame);
+         else
+            this.filter(this.src, this.srcIdx, this.dst, this.dstIdx);
 
-         if (n >= this.medianThreshold)
-            break;
+         return true;
       }
 
-      final int start = idx << 4;
 
-      // Find the median in segment
-      for (int i=start+15; i>=start; i-=4)
+      void filter(int[] src, int srcIdx, int[] dst, int dstIdx)
       {
-         n -= this.kernel.fine[i];
+         final int nbChans = channels >> 8;
+         final int maxShift = channels & 0xFF;
+
+         // Process each channel
+         for (int i=0; i<nbChans; i++)
+            this.filterChannel(src, srcIdx, dst, dstIdx, maxShift-8*i);
+      }
 
-         if (n < this.medianThreshold)
-            return i;
 
-         n -= this.kernel.fine[i-1];
+      void filter(DirectFrame input, DirectFrame output)
+      {
+         final int nbChans = channels >> 8;
+         final int maxShift = channels & 0xFF;
 
-         if (n < this.medianThreshold)
-            return i - 1;
+         // Process each channel
+         for (int i=0; i<nbChans; i++)
+            this.filterChannel(input, output, maxShift-8*i);
+      }
 
-         n -= this.kernel.fine[i-2];
 
-         if (n < this.medianThreshold)
-            return i - 2;
+      private void filterChannel(int[] src, int srcIdx, int[] dst, int dstIdx, int shift)
+      {
+         final int st = stride;
+         final int rd = radius;
+         final int endY = height - 1;
 
-         n -= this.kernel.fine[i-3];
+         // Initialize columns histograms (rows -radius to radius)
+         this.clearColumns();
 
-         if (n < this.medianThreshold)
-            return i - 3;
+         for (int y=-rd; y<=rd; y++)
+         {
+            final int yy = (y > 0) ? ((y < endY) ? y : endY) : 0;
+            this.addRow(src, srcIdx+yy*st, shift);
+         }
+
+         int srcStart = srcIdx;
+         int dstStart = dstIdx;
+
+         // Process each row
+         for (int y=0; y<endY; y++)
+         {
+            // Rows leaving and entering the column histograms
+            final int yOut = (y-rd-1 > 0) ? y-rd-1 : 0;
+            final int yIn = (y+rd < endY) ? y+rd : endY;
+            final boolean slide = (y > 0) && (yOut != yIn);
+            this.filterRow(src, srcIdx+st*yOut, srcIdx+st*yIn, srcStart, slide, dst, dstStart, shift);
+            srcStart += st;
+            dstStart += st;
+         }
       }
 
-      return res;
+
+      // The input rows (columns x0-radius to x1+radius clamped to the frame)
+      // are read into a ring of 2*radius+2 rows: each row is read once
+      private void filterChannel(DirectFrame input, DirectFrame output, int shift)
+      {
+         final int rd = radius;
+         final int endY = height - 1;
+         final int cx0 = clampColumn(this.x0-rd);
+         final int tw = clampColumn(this.x1+rd) - cx0 + 1;
+         final int nbRows = 2*rd + 2;
+         final int n = this.x1 - this.x0;
+
+         if (this.rows.length < nbRows*tw)
+            this.rows = new int[nbRows*tw];
+
+         if (this.row.length < n)
+            this.row = new int[n];
+
+         final int[] buf = this.rows;
+         final IntBuffer src = input.buffer.duplicate();
+         final IntBuffer dst = output.buffer.duplicate();
+         int next = 0; // next input row to read
+
+         // Initialize columns histograms (rows -radius to radius)
+         this.clearColumns();
+
+         for (int y=-rd; y<=rd; y++)
+         {
+            final int yy = (y > 0) ? ((y < endY) ? y : endY) : 0;
+
+            for (; next<=yy; next++)
+            {
+               src.position(input.offset+next*input.stride+cx0);
+               src.get(buf, (next%nbRows)*tw, tw);
+            }
+
+            this.addRow(buf, (yy%nbRows)*tw-cx0, shift);
+         }
+
+         // Process each row
+         for (int y=0; y<endY; y++)
+         {
+            // Rows leaving and entering the column histograms
+            final int yOut = (y-rd-1 > 0) ? y-rd-1 : 0;
+            final int yIn = (y+rd < endY) ? y+rd : endY;
+            final boolean slide = (y > 0) && (yOut != yIn);
+
+            for (; next<=yIn; next++)
+            {
+               src.position(input.offset+next*input.stride+cx0);
+               src.get(buf, (next%nbRows)*tw, tw);
+            }
+
+            // Columns [x0, x1) of the output row, starting at index 0 of the row
+            final int pos = output.offset + y*output.stride + this.x0;
+            dst.position(pos);
+            dst.get(this.row, 0, n);
+            this.filterRow(buf, (yOut%nbRows)*tw-cx0, (yIn%nbRows)*tw-cx0, (y%nbRows)*tw-cx0,
+               slide, this.row, -this.x0, shift);
+            dst.position(pos);
+            dst.put(this.row, 0, n);
+         }
+      }
+
+
+      private void clearColumns()
+      {
+         for (Histogram hst : this.histos)
+            hst.clear();
+      }
+
+
+      // Add the pixels of an input row to the column histograms (srcStart is
+      // the index of frame column 0)
+      private void addRow(int[] src, int srcStart, int shift)
+      {
+         final int rd = radius;
+         final Histogram[] hs = this.histos;
+
+         for (int i=0; i<hs.length; i++)
+         {
+            final int xx = clampColumn(this.x0+i-rd);
+            final int val = (src[srcStart+xx]>>shift) & 0xFF;
+            hs[i].fine[val]++;
+            hs[i].coarse[val>>4]++;
+         }
+      }
+
+
+      // Filter one row: outOffs and inOffs are the indexes of the rows leaving
+      // and entering the column histograms (if slide is true), srcStart and
+      // dstStart the indexes of the input and output rows (frame column 0)
+      private void filterRow(int[] src, int outOffs, int inOffs, int srcStart, boolean slide,
+         int[] dst, int dstStart, int shift)
+      {
+         final int w = width;
+         final int rd = radius;
+         final int th = threshold;
+         final int x0 = this.x0;
+         final int endX = Math.min(this.x1, w-1);
+         final Histogram[] hs = this.histos;
+         final int[] coarse = this.kernel.coarse;
+
+         for (int i=0; i<16; i++)
+            coarse[i] = 0;
+
+         // Column histograms of the kernel at x0
+         for (int i=0; i<=2*rd; i++)
+         {
+            if (slide == true)
+            {
+               final int xx = clampColumn(x0+i-rd);
+               this.slideColumn(hs[i], src, outOffs+xx, inOffs+xx, shift);
+            }
+
+            for (int k=0; k<16; k++)
+               coarse[k] += hs[i].coarse[k];
+         }
+
+         // Force a full refresh of each segment of the fine kernel
+         for (int k=0; k<16; k++)
+            this.luc[k] = x0 - rd - 1;
+
+         // Process each column
+         for (int x=x0; x<endX; x++)
+         {
+            // Find median of current histogram and update output
+            int med = this.getMedian(x);
+
+            if (th < DEFAULT_THRESHOLD)
+            {
+               final int val = (src[srcStart+x]>>shift) & 0xFF;
+               int diff = val - med;
+               diff = (diff + (diff >> 31)) ^ (diff >> 31);
+
+               // Keep current pixel is too different from median (EG. edges)
+               if (diff >= th)
+                  med = val;
+            }
+
+            dst[dstStart+x] &= ~(255<<shift);
+            dst[dstStart+x] |= (med<<shift);
+
+            final Histogram hstIn = hs[x-x0+2*rd+1];
+
+            // Step 1: update histo for current column
+            if (slide == true)
+            {
+               final int xx = clampColumn(x+rd+1);
+               this.slideColumn(hstIn, src, outOffs+xx, inOffs+xx, shift);
+            }
+
+            // Step 2: update current histogram (coarse level only)
+            // Remove old column histogram, add new column histogram
+            final int[] cOut = hs[x-x0].coarse;
+            final int[] cIn = hstIn.coarse;
+
+            for (int k=0; k<16; k++)
+               coarse[k] += (cIn[k] - cOut[k]);
+         }
+
+         // Last column
+         if (this.x1 == w)
+            dst[dstStart+w-1] = src[srcStart+w-1];
+      }
+
+
+      private int clampColumn(int x)
+      {
+         return (x > 0) ? ((x < width) ? x : width-1) : 0;
+      }
+
+
+      // Remove old pixel from column, add new pixel from column
+      private void slideColumn(Histogram hst, int[] src, int outPos, int inPos, int shift)
+      {
+         final int outPix = (src[outPos] >> shift) & 0xFF;
+         hst.fine[outPix]--;
+         hst.coarse[outPix>>4]--;
+         final int inPix = (src[inPos] >> shift) & 0xFF;
+         hst.fine[inPix]++;
+         hst.coarse[inPix>>4]++;
+      }
+
+
+      private int getMedian(int x)
+      {
+         final int[] coarse = this.kernel.coarse;
+         final int[] fine = this.kernel.fine;
+         int res = 0;
+         int idx = 0;
+         int n = 0;
+
+         // Find segment where the median belongs
+         for (; idx<16; idx++)
+         {
+            n += coarse[idx];
+
+            if (n >= medianThreshold)
+               break;
+         }
+
+         final int start = idx << 4;
+         final int end = start + 16;
+         final int rd = radius;
+         final Histogram[] hs = this.histos;
+
+         // Bring the segment of the fine kernel up to date
+         if (x-this.luc[idx] > rd)
+         {
+            // Cheaper to rebuild the segment from the column histograms
+            for (int i=start; i<end; i++)
+               fine[i] = 0;
+
+            for (int c=x-this.x0; c<=x-this.x0+2*rd; c++)
+            {
+               final int[] hst = hs[c].fine;
+
+               for (int i=start; i<end; i++)
+                  fine[i] += hst[i];
+            }
+         }
+         else
+         {
+            for (int c=this.luc[idx]-this.x0; c<x-this.x0; c++)
+            {
+               final int[] hstOut = hs[c].fine;
+               final int[] hstIn = hs[c+2*rd+1].fine;
+
+               for (int i=start; i<end; i++)
+                  fine[i] += (hstIn[i] - hstOut[i]);
+            }
+         }
+
+         this.luc[idx] = x;
+
+         // Find the median in segment
+         for (int i=end-1; i>=start; i-=4)
+         {
+            n -= fine[i];
+
+            if (n < medianThreshold)
+               return i;
+
+            n -= fine[i-1];
+
+            if (n < medianThreshold)
+               return i - 1;
+
+            n -= fine[i-2];
+
+            if (n < medianThreshold)
+               return i - 2;
+
+            n -= fine[i-3];
+
+            if (n < medianThreshold)
+               return i - 3;
+         }
+
+         return res;
+      }
    }
 
 
@@ -403,4 +732,5 @@ public final class MedianFilter implements IntFilter
          }
       }
    }
+
 }
@@ -114,13 +114,13 @@ public class RainDropEffect implements IntFilter
        final int wl = wavelength;
        final int phase1024 = this.phase;
 
-       for (int y=0; y<w; y++)
+       for (int y=0; y<h; y++)
        {
          final int dy = y - centerY;
          final int dy2 = dy*dy;
          final int y1024 = y << 10;
 
-         for (int x=0; x<h; x++)
+         for (int x=0; x<w; x++)
          {
 	   final int dx = x - centerX;
 	   final int d2 = dx*dx + dy2;
@@ -15,6 +15,8 @@ limitations under the License.
 
 package kanzi.filter;
 
+import java.nio.IntBuffer;
+import kanzi.DirectFrame;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
 
@@ -41,6 +43,7 @@ public final class SobelFilter implements IntFilter
     private final int filterType;
     private final int channels;
     private final boolean processBoundaries;
+    private int[] rows; // input and output rows of the off heap frames
 
 
     public SobelFilter(int width, int height)
@@ -96,6 +99,7 @@ public final class SobelFilter implements IntFilter
         this.filterType = filterType;
         this.channels = channels;
         this.processBoundaries = processBoundaries;
+        this.rows = new int[0];
     }
 
 
@@ -116,11 +120,6 @@ public final class SobelFilter implements IntFilter
         final int[] dst = output.array;
         int srcStart = input.index;
         int dstStart = output.index;
-        final boolean isVertical = ((this.direction & VERTICAL) != 0);
-        final boolean isHorizontal = ((this.direction & HORIZONTAL) != 0);
-        boolean isPacked = (this.channels == THREE_CHANNELS);
-        final int shiftChannel = (this.channels == R_CHANNEL) ? 16 : ((this.channels == G_CHANNEL) ? 8 : 0);
-        final int mask = (this.filterType == COST) ? 0xFF : -1;
         final int h = this.height;
         final int w = this.width;
         final int st = this.stride;
@@ -128,110 +127,193 @@ public final class SobelFilter implements IntFilter
         for (int y=h-2; y>0; y--)
         {
            final int srcLine = srcStart + st;
-           final int endLine = srcLine + st;
            final int dstLine = dstStart + st;
-           final int pixel00 = src[srcStart];
-           final int pixel01 = src[srcStart+1];
-           final int pixel10 = src[srcLine];
-           final int pixel11 = src[srcLine+1];
-           final int pixel20 = src[endLine];
-           final int pixel21 = src[endLine+1];
-           int val00, val01, val10, val11, val20, val21;
-
-           if (isPacked == true)
-           {
-              // Use Y = (R+G+G+B) >> 2;
-              // A slower but more accurate estimate of the luminance: (3*R+4*G+B) >> 3
-              val00 = (((pixel00 >> 16) & 0xFF) + ((pixel00 >> 7) & 0x1FE) + (pixel00 & 0xFF)) >> 2;
-              val01 = (((pixel01 >> 16) & 0xFF) + ((pixel01 >> 7) & 0x1FE) + (pixel01 & 0xFF)) >> 2;
-              val10 = (((pixel10 >> 16) & 0xFF) + ((pixel10 >> 7) & 0x1FE) + (pixel10 & 0xFF)) >> 2;
-              val11 = (((pixel11 >> 16) & 0xFF) + ((pixel11 >> 7) & 0x1FE) + (pixel11 & 0xFF)) >> 2;
-              val20 = (((pixel20 >> 16) & 0xFF) + ((pixel20 >> 7) & 0x1FE) + (pixel20 & 0xFF)) >> 2;
-              val21 = (((pixel21 >> 16) & 0xFF) + ((pixel21 >> 7) & 0x1FE) + (pixel21 & 0xFF)) >> 2;
-           }
-           else
+           this.filterRow(src, srcStart, srcLine, srcLine+st, dst, dstLine);
+           srcStart = srcLine;
+           dstStart = dstLine;
+        }
+
+        final int firstLine = output.index;
+        final int lastLine = output.index + st * (h - 1);
+
+        if (this.processBoundaries == true)
+        {
+           // Duplicate first and last lines
+           System.arraycopy(dst, firstLine+st, dst, firstLine, w);
+           System.arraycopy(dst, lastLine-st, dst, lastLine, w);
+        }
+
+        return true;
+    }
+
+
+    // Same as apply(SliceIntArray, SliceIntArray) for frames stored off heap.
+    // Both frames must have the dimensions of the filter (each frame has its
+    // own stride and offset). The rows are moved between the frame buffers and
+    // a ring of 3 input rows with bulk transfers (only 4 rows live on the heap)
+    // and filtered by the same row routine as the heap frames.
+    public boolean apply(DirectFrame input, DirectFrame output)
+    {
+        if ((input == null) || (output == null))
+           return false;
+
+        if ((input.width != this.width) || (input.height != this.height))
+           return false;
+
+        if ((output.width != this.width) || (output.height != this.height))
+           return false;
+
+        if (output.buffer.isReadOnly() == true)
+           return false;
+
+        final int w = this.width;
+        final int h = this.height;
+
+        if (this.rows.length < 4*w)
+           this.rows = new int[4*w];
+
+        final int[] buf = this.rows;
+        final int outRow = 3 * w;
+        final IntBuffer src = input.buffer.duplicate();
+        final IntBuffer dst = output.buffer.duplicate();
+
+        // Without boundary processing, the first and last pixels of the output
+        // rows are not written
+        final int x0 = (this.processBoundaries == true) ? 0 : 1;
+        final int count = (this.processBoundaries == true) ? w : w - 2;
+
+        // Input row y is stored at index (y%3)*w of the ring
+        src.position(input.offset);
+        src.get(buf, 0, w);
+        src.position(input.offset+input.stride);
+        src.get(buf, w, w);
+
+        for (int y=1; y<h-1; y++)
+        {
+           final int nextRow = ((y+1) % 3) * w;
+           src.position(input.offset+(y+1)*input.stride);
+           src.get(buf, nextRow, w);
+           this.filterRow(buf, ((y-1) % 3) * w, (y % 3) * w, nextRow, buf, outRow);
+           dst.position(output.offset+y*output.stride+x0);
+           dst.put(buf, outRow+x0, count);
+
+           if (this.processBoundaries == true)
            {
-              val00 = (pixel00 >> shiftChannel) & 0xFF;
-              val01 = (pixel01 >> shiftChannel) & 0xFF;
-              val10 = (pixel10 >> shiftChannel) & 0xFF;
-              val11 = (pixel11 >> shiftChannel) & 0xFF;
-              val20 = (pixel20 >> shiftChannel) & 0xFF;
-              val21 = (pixel21 >> shiftChannel) & 0xFF;
+              // Duplicate first and last lines
+              if (y == 1)
+              {
+                 dst.position(output.offset);
+                 dst.put(buf, outRow, w);
+              }
+
+              if (y == h-2)
+              {
+                 dst.position(output.offset+(h-1)*output.stride);
+                 dst.put(buf, outRow, w);
+              }
            }
+        }
 
-           for (int x=2; x<w; x++)
-           {
-             final int pixel02 = src[srcStart+x];
-             final int pixel12 = src[srcLine+x];
-             final int pixel22 = src[endLine+x];
-             final int val02, val12, val22;
-             int val;
-
-             if (isPacked == true)
-             {                
-                // Use Y = (R+G+G+B) >> 2;
-                // A slower but more accurate estimate of the luminance: (3*R+4*G+B) >> 3
-                val02 = (((pixel02 >> 16) & 0xFF) + ((pixel02 >> 7) & 0x1FE) + (pixel02 & 0xFF)) >> 2;
-                val12 = (((pixel12 >> 16) & 0xFF) + ((pixel12 >> 7) & 0x1FE) + (pixel12 & 0xFF)) >> 2;
-                val22 = (((pixel22 >> 16) & 0xFF) + ((pixel22 >> 7) & 0x1FE) + (pixel22 & 0xFF)) >> 2;
-             }
-             else
-             {
-                val02 = (pixel02 >> shiftChannel) & 0xFF;
-                val12 = (pixel12 >> shiftChannel) & 0xFF;
-                val22 = (pixel22 >> shiftChannel) & 0xFF;
-             }
-             
-             if (isHorizontal == true)
-             {
-                val = -val00 + val02 - val10 - val10 + val12 + val12 - val20 + val22;
-                val = (val + (val >> 31)) ^ (val >> 31);
-
-                if (isVertical == true)
-                {
-                   int valV = val00 + val01 + val01 + val02 - val20 - val21 - val21 - val22;
-                   valV = (valV + (valV >> 31)) ^ (valV >> 31);
-                   val = (val + valV) >> 1;
-                }
-             }
-             else // if Horizontal==false, then Vertical==true
-             {
-                val = val00 + val01 + val01 + val02 - val20 - val21 - val21 - val22;
-                val = (val + (val >> 31)) ^ (val >> 31);
-             }
+        return true;
+    }
 
-             dst[dstLine+x-1] = (val > 255) ? mask : (0xFF000000 | (val << 16) | (val << 8) | val) & mask;
 
-             // Slide the 3x3 window (reassign 6 pixels: left + center columns)
-             val00 = val01;
-             val01 = val02;
-             val10 = val11;
-             val11 = val12;
-             val20 = val21;
-             val21 = val22;
+    // Filter one row: srcStart, srcLine and endLine are the indexes of the
+    // rows above, at and below the output row (dstLine)
+    private void filterRow(int[] src, int srcStart, int srcLine, int endLine, int[] dst, int dstLine)
+    {
+        final boolean isVertical = ((this.direction & VERTICAL) != 0);
+        final boolean isHorizontal = ((this.direction & HORIZONTAL) != 0);
+        boolean isPacked = (this.channels == THREE_CHANNELS);
+        final int shiftChannel = (this.channels == R_CHANNEL) ? 16 : ((this.channels == G_CHANNEL) ? 8 : 0);
+        final int mask = (this.filterType == COST) ? 0xFF : -1;
+        final int w = this.width;
+        final int pixel00 = src[srcStart];
+        final int pixel01 = src[srcStart+1];
+        final int pixel10 = src[srcLine];
+        final int pixel11 = src[srcLine+1];
+        final int pixel20 = src[endLine];
+        final int pixel21 = src[endLine+1];
+        int val00, val01, val10, val11, val20, val21;
+
+        if (isPacked == true)
+        {
+           // Use Y = (R+G+G+B) >> 2;
+           // A slower but more accurate estimate of the luminance: (3*R+4*G+B) >> 3
+           val00 = (((pixel00 >> 16) & 0xFF) + ((pixel00 >> 7) & 0x1FE) + (pixel00 & 0xFF)) >> 2;
+           val01 = (((pixel01 >> 16) & 0xFF) + ((pixel01 >> 7) & 0x1FE) + (pixel01 & 0xFF)) >> 2;
+           val10 = (((pixel10 >> 16) & 0xFF) + ((pixel10 >> 7) & 0x1FE) + (pixel10 & 0xFF)) >> 2;
+           val11 = (((pixel11 >> 16) & 0xFF) + ((pixel11 >> 7) & 0x1FE) + (pixel11 & 0xFF)) >> 2;
+           val20 = (((pixel20 >> 16) & 0xFF) + ((pixel20 >> 7) & 0x1FE) + (pixel20 & 0xFF)) >> 2;
+           val21 = (((pixel21 >> 16) & 0xFF) + ((pixel21 >> 7) & 0x1FE) + (pixel21 & 0xFF)) >> 2;
+        }
+        else
+        {
+           val00 = (pixel00 >> shiftChannel) & 0xFF;
+           val01 = (pixel01 >> shiftChannel) & 0xFF;
+           val10 = (pixel10 >> shiftChannel) & 0xFF;
+           val11 = (pixel11 >> shiftChannel) & 0xFF;
+           val20 = (pixel20 >> shiftChannel) & 0xFF;
+           val21 = (pixel21 >> shiftChannel) & 0xFF;
+        }
+
+        for (int x=2; x<w; x++)
+        {
+          final int pixel02 = src[srcStart+x];
+          final int pixel12 = src[srcLine+x];
+          final int pixel22 = src[endLine+x];
+          final int val02, val12, val22;
+          int val;
+
+          if (isPacked == true)
+          {                
+             // Use Y = (R+G+G+B) >> 2;
+             // A slower but more accurate estimate of the luminance: (3*R+4*G+B) >> 3
+             val02 = (((pixel02 >> 16) & 0xFF) + ((pixel02 >> 7) & 0x1FE) + (pixel02 & 0xFF)) >> 2;
+             val12 = (((pixel12 >> 16) & 0xFF) + ((pixel12 >> 7) & 0x1FE) + (pixel12 & 0xFF)) >> 2;
+             val22 = (((pixel22 >> 16) & 0xFF) + ((pixel22 >> 7) & 0x1FE) + (pixel22 & 0xFF)) >> 2;
           }
-
-          if (this.processBoundaries == true)
+          else
           {
-             // Boundary processing (first and last row pixels), just duplicate pixels
-             dst[dstLine] = dst[dstLine+1];
-             dst[dstLine+w-1] = dst[dstLine+w-2];
+             val02 = (pixel02 >> shiftChannel) & 0xFF;
+             val12 = (pixel12 >> shiftChannel) & 0xFF;
+             val22 = (pixel22 >> shiftChannel) & 0xFF;
           }
           
-          srcStart = srcLine;
-          dstStart = dstLine;
-       }
+          if (isHorizontal == true)
+          {
+             val = -val00 + val02 - val10 - val10 + val12 + val12 - val20 + val22;
+             val = (val + (val >> 31)) ^ (val >> 31);
 
-       final int firstLine = output.index;
-       final int lastLine = output.index + st * (h - 1);
+             if (isVertical == true)
+             {
+                int valV = val00 + val01 + val01 + val02 - val20 - val21 - val21 - val22;
+                valV = (valV + (valV >> 31)) ^ (valV >> 31);
+                val = (val + valV) >> 1;
+             }
+          }
+          else // if Horizontal==false, then Vertical==true
+          {
+             val = val00 + val01 + val01 + val02 - val20 - val21 - val21 - val22;
+             val = (val + (val >> 31)) ^ (val >> 31);
+          }
+
+          dst[dstLine+x-1] = (val > 255) ? mask : (0xFF000000 | (val << 16) | (val << 8) | val) & mask;
+
+          // Slide the 3x3 window (reassign 6 pixels: left + center columns)
+          val00 = val01;
+          val01 = val02;
+          val10 = val11;
+          val11 = val12;
+          val20 = val21;
+          val21 = val22;
+       }
 
        if (this.processBoundaries == true)
        {
-          // Duplicate first and last lines
-          System.arraycopy(dst, firstLine+st, dst, firstLine, w);
-          System.arraycopy(dst, lastLine-st, dst, lastLine, w);
+          // Boundary processing (first and last row pixels), just duplicate pixels
+          dst[dstLine] = dst[dstLine+1];
+          dst[dstLine+w-1] = dst[dstLine+w-2];
        }
-
-       return true;
     }
 }
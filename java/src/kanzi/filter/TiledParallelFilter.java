@@ -0,0 +1,237 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import kanzi.SliceIntArray;
+import kanzi.IntFilter;
+
+
+// A filter that splits the image into 2D tiles processed in parallel.
+// Unlike ParallelFilter, each tile is extended by a halo (overlap) on each side
+// so that neighborhood filters see the actual neighbor pixels instead of an
+// artificial boundary. Only the interior of each tile is written to the output,
+// hence no seam appears between tiles.
+// The halo must be at least the radius returned by the filter factory (EG. 1 for
+// Sobel, radius for Median, radius*iterations for Blur). Then the output is
+// identical to the output of one filter applied to the whole image. Filters
+// without a bounded footprint (negative radius, EG. the recursive Gaussian) are
+// rejected.
+public class TiledParallelFilter implements IntFilter
+{
+   public static final int DEFAULT_TILE_DIM = 256;
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final int halo;
+   private final TileTask[] tasks;
+   private final ExecutorService pool;
+
+
+   public TiledParallelFilter(int width, int height, int stride,
+           ExecutorService pool, IntFilterFactory factory)
+   {
+      this(width, height, stride, pool, factory, DEFAULT_TILE_DIM, DEFAULT_TILE_DIM,
+              (factory == null) ? 0 : factory.getRadius());
+   }
+
+
+   // The image is split into tiles of at least tileWidth x tileHeight pixels
+   // (the remainder is spread over the tiles). Each tile is extended by 'halo'
+   // pixels in each direction (except at the image boundaries).
+   public TiledParallelFilter(int width, int height, int stride, ExecutorService pool,
+           IntFilterFactory factory, int tileWidth, int tileHeight, int halo)
+   {
+      if (height < 8)
+         throw new IllegalArgumentException("The height must be at least 8");
+
+      if (width < 8)
+         throw new IllegalArgumentException("The width must be at least 8");
+
+      if (stride < 8)
+         throw new IllegalArgumentException("The stride must be at least 8");
+
+      if (pool == null)
+         throw new NullPointerException("Invalid null pool parameter");
+
+      if (factory == null)
+         throw new NullPointerException("Invalid null factory parameter");
+
+      if (tileWidth < 8)
+         throw new IllegalArgumentException("The tile width must be at least 8");
+
+      if (tileHeight < 8)
+         throw new IllegalArgumentException("The tile height must be at least 8");
+
+      if ((halo < 0) || (halo > 512))
+         throw new IllegalArgumentException("The halo must be in [0..512]");
+
+      if (factory.getRadius() < 0)
+         throw new IllegalArgumentException("The filter footprint must be bounded (radius >= 0)");
+
+      if (halo < factory.getRadius())
+         throw new IllegalArgumentException("The halo must be at least the radius of the filter");
+
+      this.width  = width;
+      this.height = height;
+      this.stride = stride;
+      this.halo = halo;
+      this.pool = pool;
+      final int nbTilesX = Math.max(width/tileWidth, 1);
+      final int nbTilesY = Math.max(height/tileHeight, 1);
+      this.tasks = new TileTask[nbTilesX*nbTilesY];
+      int n = 0;
+
+      for (int j=0; j<nbTilesY; j++)
+      {
+         final int y0 = (height*j) / nbTilesY;
+         final int y1 = (height*(j+1)) / nbTilesY;
+
+         for (int i=0; i<nbTilesX; i++)
+         {
+            final int x0 = (width*i) / nbTilesX;
+            final int x1 = (width*(i+1)) / nbTilesX;
+            this.tasks[n++] = new TileTask(new FilterTile(factory, width, height, stride,
+                    x0, y0, x1-x0, y1-y0, halo));
+         }
+      }
+   }
+
+
+   @Override
+   public boolean apply(final SliceIntArray input, final SliceIntArray output)
+   {
+      if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+         return false;
+
+      // If src and dst share the same array, the tiles must all be read and
+      // filtered before any interior is written back (halos overlap other tiles).
+      final boolean twoPasses = input.array == output.array;
+      ArrayList<Callable<Boolean>> filterTasks = new ArrayList<Callable<Boolean>>(this.tasks.length);
+
+      for (TileTask task : this.tasks)
+      {
+         task.input = input;
+         task.output = output;
+         task.writeBack = !twoPasses;
+         filterTasks.add(task);
+      }
+
+      boolean res = this.invoke(filterTasks);
+
+      if ((res == true) && (twoPasses == true))
+      {
+         filterTasks.clear();
+
+         for (TileTask task : this.tasks)
+            filterTasks.add(new WriteBackTask(task));
+
+         res = this.invoke(filterTasks);
+      }
+
+      for (TileTask task : this.tasks)
+      {
+         task.input = null;
+         task.output = null;
+      }
+
+      return res;
+   }
+
+
+   private boolean invoke(List<Callable<Boolean>> filterTasks)
+   {
+      boolean res = true;
+
+      try
+      {
+         List<Future<Boolean>> results = this.pool.invokeAll(filterTasks);
+
+         for (Future<Boolean> fr : results)
+            res &= fr.get();
+      }
+      catch (InterruptedException e)
+      {
+         return false;
+      }
+      catch (ExecutionException e)
+      {
+         return false;
+      }
+
+      return res;
+   }
+
+
+   public int getHalo()
+   {
+      return this.halo;
+   }
+
+
+   public int getNbTiles()
+   {
+      return this.tasks.length;
+   }
+
+
+   static class TileTask implements Callable<Boolean>
+   {
+      final FilterTile tile;
+      SliceIntArray input;
+      SliceIntArray output;
+      boolean writeBack;
+
+
+      TileTask(FilterTile tile)
+      {
+         this.tile = tile;
+      }
+
+
+      @Override
+      public Boolean call()
+      {
+         return this.tile.apply(this.input, this.output, this.writeBack);
+      }
+   }
+
+
+   static class WriteBackTask implements Callable<Boolean>
+   {
+      final TileTask task;
+
+
+      WriteBackTask(TileTask task)
+      {
+         this.task = task;
+      }
+
+
+      @Override
+      public Boolean call()
+      {
+         this.task.tile.writeInterior(this.task.output);
+         return true;
+      }
+   }
+}
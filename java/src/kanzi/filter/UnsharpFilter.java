@@ -15,6 +15,7 @@ limitations under the License.
 
 package kanzi.filter;
 
+import java.util.concurrent.ExecutorService;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
 
@@ -44,6 +45,16 @@ public final class UnsharpFilter implements IntFilter
 
     // multiplier of pixel difference in percent.
     public UnsharpFilter(int width, int height, int stride, int sigma, int threshold, int scale)
+    {
+       this(width, height, stride, sigma, threshold, scale, null);
+    }
+
+
+    // multiplier of pixel difference in percent.
+    // If an executor is provided, the gaussian blur is split into bands
+    // processed concurrently (see GaussianFilter).
+    public UnsharpFilter(int width, int height, int stride, int sigma, int threshold, int scale,
+            ExecutorService pool)
     {
         if (height < 8)
             throw new IllegalArgumentException("The height must be at least 8");
@@ -61,7 +72,7 @@ public final class UnsharpFilter implements IntFilter
         this.width = width;
         this.stride = stride;
         //this.blurFilter = new BlurFilter(width, height, stride, radius);
-        this.blurFilter = new GaussianFilter(width, height, 16*sigma);
+        this.blurFilter = new GaussianFilter(width, height, stride, 16*sigma, 3, pool, false);
         this.threshold256 = threshold << 8;
         this.scale256 = (scale << 8) / 100;
         this.buf = new int[0];
@@ -74,10 +85,10 @@ public final class UnsharpFilter implements IntFilter
       if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
          return false;
       
-      if (this.buf.length < this.width*this.height)
-         this.buf = new int[this.width*this.height];
+      if (this.buf.length < this.stride*this.height)
+         this.buf = new int[this.stride*this.height];
 
-      // Compute blurred image
+      // Compute blurred image (same stride as the input, starting at index 0)
       if (this.blurFilter.apply(input, new SliceIntArray(this.buf, this.buf.length, 0)) == false)
          return false;
 
@@ -85,6 +96,7 @@ public final class UnsharpFilter implements IntFilter
       final int[] dst = output.array;
       int srcIdx = input.index;
       int dstIdx = output.index;
+      int bufIdx = 0;
       final int h = this.height;
       final int w = this.width;
       final int st = this.stride;
@@ -97,7 +109,7 @@ public final class UnsharpFilter implements IntFilter
             final int r0 = (rgb0>>16) & 0xFF;
             final int g0 = (rgb0>>8)  & 0xFF;
             final int b0 =  rgb0      & 0xFF;
-            final int rgb1 = this.buf[srcIdx+x]; // blurred image
+            final int rgb1 = this.buf[bufIdx+x]; // blurred image
             int r1 = (rgb1>>16) & 0xFF;
             int g1 = (rgb1>>8)  & 0xFF;
             int b1 =  rgb1      & 0xFF;
@@ -161,6 +173,7 @@ public final class UnsharpFilter implements IntFilter
 
          srcIdx += st;
          dstIdx += st;
+         bufIdx += st;
       } 
 
       return true;
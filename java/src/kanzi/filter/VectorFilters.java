@@ -0,0 +1,183 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import kanzi.IntFilter;
+
+
+// Factory of the SIMD versions of the point and 3x3 filters (Sobel, Sharpen,
+// Contrast, Blur). The SIMD filters (package kanzi.filter.simd, source tree
+// 'simd', see the build_simd Ant target) are built on the jdk.incubator.vector
+// module and produce the same output as the scalar filters.
+// They are loaded by reflection so that this class works on any JVM: if the
+// classes or the module are not available (EG. the JVM is not started with
+// --add-modules jdk.incubator.vector), the scalar filters are returned.
+public final class VectorFilters
+{
+   private static final String PACKAGE = "kanzi.filter.simd.";
+
+   private static final Constructor<?> SOBEL;
+   private static final Constructor<?> SHARPEN;
+   private static final Constructor<?> CONTRAST;
+   private static final Constructor<?> BLUR;
+
+   static
+   {
+      Constructor<?> sobel = null;
+      Constructor<?> sharpen = null;
+      Constructor<?> contrast = null;
+      Constructor<?> blur = null;
+
+      try
+      {
+         Class.forName("jdk.incubator.vector.IntVector");
+         sobel = Class.forName(PACKAGE+"VectorSobelFilter").getConstructor(int.class,
+            int.class, int.class, int.class, int.class, int.class, boolean.class);
+         sharpen = Class.forName(PACKAGE+"VectorSharpenFilter").getConstructor(int.class,
+            int.class, int.class, int.class, boolean.class);
+         contrast = Class.forName(PACKAGE+"VectorContrastFilter").getConstructor(int.class,
+            int.class, int.class, int.class);
+         blur = Class.forName(PACKAGE+"VectorBlurFilter").getConstructor(int.class,
+            int.class, int.class, int.class, int.class);
+      }
+      catch (Exception | LinkageError e)
+      {
+         // Classes not found or module not resolved (the vector classes
+         // cannot be linked): use the scalar filters
+         sobel = null;
+      }
+
+      final boolean ok = (sobel != null) && (blur != null);
+      SOBEL = (ok == true) ? sobel : null;
+      SHARPEN = (ok == true) ? sharpen : null;
+      CONTRAST = (ok == true) ? contrast : null;
+      BLUR = (ok == true) ? blur : null;
+   }
+
+
+   private VectorFilters()
+   {
+   }
+
+
+   // Return true if the SIMD filters can be instantiated
+   public static boolean isAvailable()
+   {
+      return SOBEL != null;
+   }
+
+
+   public static IntFilter newSobelFilter(int width, int height, int stride, int direction,
+           int channels, int filterType, boolean processBoundaries)
+   {
+      return newSobelFilter(width, height, stride, direction, channels, filterType,
+         processBoundaries, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD filters are not available, the scalar
+   // filter is returned
+   public static IntFilter newSobelFilter(int width, int height, int stride, int direction,
+           int channels, int filterType, boolean processBoundaries, boolean vectorize)
+   {
+      if ((vectorize == true) && (SOBEL != null))
+         return create(SOBEL, width, height, stride, direction, channels, filterType,
+            processBoundaries);
+
+      return new SobelFilter(width, height, stride, direction, channels, filterType,
+         processBoundaries);
+   }
+
+
+   public static IntFilter newSharpenFilter(int width, int height, int stride, int channels,
+           boolean processBoundaries)
+   {
+      return newSharpenFilter(width, height, stride, channels, processBoundaries, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD filters are not available, the scalar
+   // filter is returned
+   public static IntFilter newSharpenFilter(int width, int height, int stride, int channels,
+           boolean processBoundaries, boolean vectorize)
+   {
+      if ((vectorize == true) && (SHARPEN != null))
+         return create(SHARPEN, width, height, stride, channels, processBoundaries);
+
+      return new SharpenFilter(width, height, stride, channels, processBoundaries);
+   }
+
+
+   // contrast in percent
+   public static IntFilter newContrastFilter(int width, int height, int stride, int contrast)
+   {
+      return newContrastFilter(width, height, stride, contrast, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD filters are not available, the scalar
+   // filter is returned
+   public static IntFilter newContrastFilter(int width, int height, int stride, int contrast,
+           boolean vectorize)
+   {
+      if ((vectorize == true) && (CONTRAST != null))
+         return create(CONTRAST, width, height, stride, contrast);
+
+      return new ContrastFilter(width, height, stride, contrast);
+   }
+
+
+   public static IntFilter newBlurFilter(int width, int height, int stride, int radius,
+           int iterations)
+   {
+      return newBlurFilter(width, height, stride, radius, iterations, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD filters are not available, the scalar
+   // filter is returned
+   public static IntFilter newBlurFilter(int width, int height, int stride, int radius,
+           int iterations, boolean vectorize)
+   {
+      if ((vectorize == true) && (BLUR != null))
+         return create(BLUR, width, height, stride, radius, iterations);
+
+      return new BlurFilter(width, height, stride, radius, iterations);
+   }
+
+
+   private static IntFilter create(Constructor<?> ctor, Object... args)
+   {
+      try
+      {
+         return (IntFilter) ctor.newInstance(args);
+      }
+      catch (InvocationTargetException e)
+      {
+         // Invalid parameters: rethrow the exception of the constructor
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+
+         throw new IllegalArgumentException(e.getCause());
+      }
+      catch (Exception e)
+      {
+         throw new IllegalStateException("Cannot instantiate "+ctor.getDeclaringClass().getName(), e);
+      }
+   }
+}
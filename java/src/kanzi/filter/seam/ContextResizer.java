@@ -16,12 +16,20 @@ limitations under the License.
 package kanzi.filter.seam;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import kanzi.SliceIntArray;
 import kanzi.IntSorter;
 import kanzi.IntFilter;
-import kanzi.filter.ParallelFilter;
 import kanzi.filter.SobelFilter;
+import kanzi.util.BufferPool;
 import kanzi.util.sort.BucketSort;
 
 
@@ -34,6 +42,9 @@ import kanzi.util.sort.BucketSort;
 // It is also possible to calculate the seams on a subset of the image which is
 // useful to iterate over the same (shrinking) image.
 //
+// In large image mode, the cost map of the full frame is not kept: the geodesics
+// are searched band by band (see searchGeodesicsBanded).
+//
 // Note: the name seam carving is a bit unfortunate, what the algo achieves
 // is detection and removal of the paths of least resistance (energy wise) in
 // the image. These paths really are geodesics.
@@ -47,8 +58,10 @@ public class ContextResizer implements IntFilter
     public static final int SHRINK = 1;
     public static final int EXPAND = 2;
 
-    private static final int USED_MASK = 0x80000000;
-    private static final int VALUE_MASK = 0x7FFFFFFF;
+    public static final int MAX_TASKS = 64;
+
+    private static final int MIN_SEARCHES_PER_TASK = 64;
+    private static final int COST_BAND_HEIGHT = 64;
     private static final int DEFAULT_BEST_COST = 0x0FFFFFFF;
     private static final int DEFAULT_MAX_COST_PER_PIXEL = 256;
     private static final int RED_COLOR = 0xFFFF0000;
@@ -60,13 +73,18 @@ public class ContextResizer implements IntFilter
     private final int direction;
     private final int maxSearches;
     private final int maxAvgGeoPixCost;
-    private final int[] costs;
+    private final short[] costs; // costs are at most 509, null in large image mode
+    private final boolean largeImage;
+    private final long[][] usedMasks;
+    private final GeodesicStore[] stores;
     private int scalingFactor;
     private boolean debug;
     private final IntSorter sorter;
     private SliceIntArray buffer;
     private final boolean fastMode;
     private final ExecutorService pool;
+    private final int nbTasks;
+    private final BufferPool bufferPool;
 
 
     public ContextResizer(int width, int height, int direction)
@@ -106,6 +124,50 @@ public class ContextResizer implements IntFilter
     public ContextResizer(int width, int height, int stride, int direction,
             int scalingFactor, int maxSearches, boolean fastMode,
             boolean debug, ExecutorService pool, int maxAvgGeoPixCost)
+    {
+        this(width, height, stride, direction, scalingFactor, maxSearches, fastMode,
+                debug, pool, maxAvgGeoPixCost, null);
+    }
+
+
+    // If a buffer pool is provided, the intermediate frame (used when both
+    // directions are processed) is leased from the pool during apply() instead
+    // of being kept by the filter.
+    public ContextResizer(int width, int height, int stride, int direction,
+            int scalingFactor, int maxSearches, boolean fastMode,
+            boolean debug, ExecutorService pool, int maxAvgGeoPixCost,
+            BufferPool bufferPool)
+    {
+        this(width, height, stride, direction, scalingFactor, maxSearches, fastMode,
+                debug, pool, maxAvgGeoPixCost, bufferPool, getDefaultTasks(pool));
+    }
+
+
+    // The geodesic search and the computation of the cost map are split into
+    // at most nbTasks tasks (clamped to MAX_TASKS) processed concurrently by
+    // the executor. The geodesics found depend on the number of search tasks
+    // (the first positions are split into one band per task).
+    public ContextResizer(int width, int height, int stride, int direction,
+            int scalingFactor, int maxSearches, boolean fastMode,
+            boolean debug, ExecutorService pool, int maxAvgGeoPixCost,
+            BufferPool bufferPool, int nbTasks)
+    {
+        this(width, height, stride, direction, scalingFactor, maxSearches, fastMode,
+                debug, pool, maxAvgGeoPixCost, bufferPool, nbTasks, false);
+    }
+
+
+    // In large image mode, the cost map of the frame is never stored: the
+    // geodesics are searched with a window of the costs of a few bands of
+    // lines (see searchGeodesicsBanded), so that the memory used besides the
+    // frame and the geodesics found is O(nbTasks*COST_BAND_HEIGHT*dim). The
+    // geodesics differ from the ones found in the default mode, the cost
+    // computation tasks are concurrent but the search is not. shrinkTo()
+    // recomputes the costs at each step.
+    public ContextResizer(int width, int height, int stride, int direction,
+            int scalingFactor, int maxSearches, boolean fastMode,
+            boolean debug, ExecutorService pool, int maxAvgGeoPixCost,
+            BufferPool bufferPool, int nbTasks, boolean largeImage)
     {
         if (height < 8)
             throw new IllegalArgumentException("The height must be at least 8");
@@ -113,15 +175,21 @@ public class ContextResizer implements IntFilter
         if (width < 8)
             throw new IllegalArgumentException("The width must be at least 8");
 
-        if (height > 4096)
-            throw new IllegalArgumentException("The height must be at most 4096");
+        if (height > 65536)
+            throw new IllegalArgumentException("The height must be at most 65536");
 
-        if (width > 4096)
-            throw new IllegalArgumentException("The width must be at most 4096");
+        if (width > 65536)
+            throw new IllegalArgumentException("The width must be at most 65536");
 
         if (stride < 8)
             throw new IllegalArgumentException("The stride must be at least 8");
 
+        if ((long) stride * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The image area is too large");
+
+        if (nbTasks < 1)
+            throw new IllegalArgumentException("The number of tasks must be at least 1");
+
         if (maxAvgGeoPixCost < 1)
             throw new IllegalArgumentException("The max average pixel cost in a geodesic must be at least 1");
 
@@ -159,13 +227,18 @@ public class ContextResizer implements IntFilter
         this.stride = stride;
         this.direction = direction;
         this.maxSearches = maxSearches;
-        this.costs = new int[stride*height];
+        this.largeImage = largeImage;
+        this.costs = (largeImage == true) ? null : new short[stride*height];
+        this.nbTasks = (pool == null) ? 1 : Math.min(nbTasks, MAX_TASKS);
+        this.usedMasks = new long[this.nbTasks][];
+        this.stores = new GeodesicStore[this.usedMasks.length];
         this.scalingFactor = scalingFactor;
         this.maxAvgGeoPixCost = maxAvgGeoPixCost;
         this.buffer = new SliceIntArray();
         this.fastMode = fastMode;
         this.debug = debug;
         this.pool = pool;
+        this.bufferPool = bufferPool;
         int dim = (height >= width) ? height : width;
         int log = 3;
 
@@ -177,6 +250,42 @@ public class ContextResizer implements IntFilter
     }
 
 
+    // Default number of tasks: the parallelism of the executor if known, the
+    // number of cores otherwise
+    private static int getDefaultTasks(ExecutorService pool)
+    {
+        if (pool == null)
+           return 1;
+
+        int n = Runtime.getRuntime().availableProcessors();
+
+        if (pool instanceof ForkJoinPool)
+           n = ((ForkJoinPool) pool).getParallelism();
+        else if (pool instanceof ThreadPoolExecutor)
+        {
+           // Unbounded pools (EG. cached thread pools) use the number of cores
+           final int max = ((ThreadPoolExecutor) pool).getMaximumPoolSize();
+
+           if (max < Integer.MAX_VALUE)
+              n = max;
+        }
+
+        return Math.min(Math.max(n, 1), MAX_TASKS);
+    }
+
+
+    public int getNbTasks()
+    {
+        return this.nbTasks;
+    }
+
+
+    public boolean isLargeImage()
+    {
+        return this.largeImage;
+    }
+
+
     public int getWidth()
     {
         return this.width;
@@ -235,11 +344,143 @@ public class ContextResizer implements IntFilter
     }
 
 
+    // Remove (up to) 'count' geodesics in direction 'dir' (VERTICAL or
+    // HORIZONTAL) from the frame in place and reduce the width or height
+    // attribute accordingly. The cost map of the frame is fully computed.
+    // Return the number of geodesics removed.
+    // Not thread safe
+    public int shrinkStep(SliceIntArray frame, int dir, int count)
+    {
+        return this.shrinkStep_(frame, dir, count, true);
+    }
+
+
+    // If computeCosts is false, the cost map left by the previous step on the
+    // same frame is updated instead of being recomputed
+    private int shrinkStep_(SliceIntArray frame, int dir, int count, boolean computeCosts)
+    {
+        if ((dir != VERTICAL) && (dir != HORIZONTAL))
+           return 0;
+
+        if ((SliceIntArray.isValid(frame) == false) || (count <= 0))
+           return 0;
+
+        final int dim = (dir == HORIZONTAL) ? this.height : this.width;
+
+        // The cost map requires at least 8 pixels in each dimension
+        count = Math.min(count, dim-8);
+
+        if (count <= 0)
+           return 0;
+
+        final int searches = Math.min(dim, this.maxSearches);
+
+        if (this.largeImage == true)
+        {
+           // No cost map to update
+           Geodesic[] geodesics = this.searchGeodesicsBanded(frame, dir,
+                   getFirstPositions(dim, searches), searches, count);
+
+           if (geodesics.length == 0)
+              return 0;
+
+           this.removeGeodesics_(geodesics, frame, frame, dir, false);
+
+           if (dir == HORIZONTAL)
+              this.height -= geodesics.length;
+           else
+              this.width -= geodesics.length;
+
+           return geodesics.length;
+        }
+
+        if ((computeCosts == true) && (this.calculateCosts(frame) == false))
+           return 0;
+
+        Geodesic[] geodesics = this.searchGeodesics(dir, getFirstPositions(dim, searches),
+                searches, count);
+
+        if (geodesics.length == 0)
+           return 0;
+
+        // Remove the geodesic pixels from the frame and from the cost map
+        // (the remaining costs are shifted like the pixels)
+        this.removeGeodesics_(geodesics, frame, frame, dir, false);
+        this.removeCosts(geodesics, dir);
+
+        if (dir == HORIZONTAL)
+           this.height -= geodesics.length;
+        else
+           this.width -= geodesics.length;
+
+        this.updateCosts(frame, geodesics, dir);
+        return geodesics.length;
+    }
+
+
+    // Iterative shrinking: shrink the frame in place until the width (VERTICAL)
+    // or the height (HORIZONTAL) is equal to 'dim', removing at most 'step'
+    // geodesics per iteration (see shrinkStep). The cost map is computed once
+    // per call: after each step, only the costs around the removed geodesics
+    // are recomputed, so that many small steps (better geodesics, since each
+    // step sees the image left by the previous one) remain cheap. The map is
+    // not kept between calls (the frame may have changed).
+    // Return false if the geodesics run out before reaching 'dim'.
+    // Not thread safe
+    public boolean shrinkTo(SliceIntArray frame, int dir, int dim, int step)
+    {
+        if (dim < 8)
+            throw new IllegalArgumentException("The target dimension must be at least 8");
+
+        if (step < 1)
+            throw new IllegalArgumentException("The step must be at least 1");
+
+        boolean computeCosts = true;
+
+        while (true)
+        {
+           final int current = (dir == HORIZONTAL) ? this.height : this.width;
+
+           if (current <= dim)
+              return true;
+
+           if (this.shrinkStep_(frame, dir, Math.min(step, current-dim), computeCosts) == 0)
+              return false;
+
+           computeCosts = false;
+        }
+    }
+
+
     // Modifies the width and/or height attributes
     // The src image is modified if both directions are selected
     @Override
     public boolean apply(SliceIntArray src, SliceIntArray dst)
     {
+       if ((this.bufferPool != null) && ((this.direction & VERTICAL) != 0) &&
+          ((this.direction & HORIZONTAL) != 0))
+       {
+          final int count = this.stride * this.height;
+
+          try (BufferPool.Lease<int[]> lease = this.bufferPool.leaseInts(count))
+          {
+             // The second pass reads the columns/rows left unprocessed by the
+             // first one: clear them as a newly allocated buffer would be
+             Arrays.fill(lease.array, 0, count, 0);
+             this.buffer.array = lease.array;
+             this.buffer.length = count;
+             this.buffer.index = 0;
+             return (this.scalingFactor < 0) ? this.shrink_(src, dst) :
+                     this.expand_(src, dst);
+          }
+          finally
+          {
+             // Do not keep a reference to the array returned to the pool
+             this.buffer.array = new int[0];
+             this.buffer.length = 0;
+          }
+       }
+
        return (this.scalingFactor < 0) ? this.shrink_(src, dst) :
                this.expand_(src, dst);
     }
@@ -488,6 +729,15 @@ public class ContextResizer implements IntFilter
     // dir must be either VERTICAL or HORIZONTAL
     public boolean removeGeodesics(Geodesic[] geodesics, SliceIntArray source,
             SliceIntArray destination, int dir)
+    {
+        return this.removeGeodesics_(geodesics, source, destination, dir, this.debug);
+    }
+
+
+    // If mark is true, the pixels of the geodesics are replaced by a color
+    // instead of being removed
+    private boolean removeGeodesics_(Geodesic[] geodesics, SliceIntArray source,
+            SliceIntArray destination, int dir, boolean mark)
     {
         if (((dir & VERTICAL) == 0) && ((dir & HORIZONTAL) == 0))
            return false;
@@ -572,7 +822,7 @@ public class ContextResizer implements IntFilter
                 }
 
                 // Mark or remove pixel belonging to a geodesic
-                if (this.debug == true)
+                if (mark == true)
                 {
                     dst[dstIdx] = color;
                     dstIdx += incIdx;
@@ -620,6 +870,12 @@ public class ContextResizer implements IntFilter
 
         final int dim = (dir == HORIZONTAL) ? this.height : this.width;
         final int searches = Math.min(dim, this.maxSearches);
+        return this.computeGeodesics_(source, dir, getFirstPositions(dim, searches), searches);
+    }
+
+
+    private static int[] getFirstPositions(int dim, int searches)
+    {
         int[] firstPositions = new int[searches];
         int n = 0;
 
@@ -635,7 +891,7 @@ public class ContextResizer implements IntFilter
                 firstPositions[n++] = j;
         }
 
-        return this.computeGeodesics_(source, dir, firstPositions, searches);
+        return firstPositions;
     }
 
 
@@ -665,197 +921,389 @@ public class ContextResizer implements IntFilter
         if (searches > firstPositions.length)
             searches = firstPositions.length;
 
-        final int geoLength;
-        final int inc;
-        final int incLine;
-        final int dim;
+        final int dim = (dir == HORIZONTAL) ? this.height : this.width;
+        final int nbGeodesics = dim * Math.abs(this.scalingFactor) / 1000;
 
-        if (dir == HORIZONTAL)
+        if (this.largeImage == true)
+            return this.searchGeodesicsBanded(source, dir, firstPositions, searches, nbGeodesics);
+
+        // Calculate cost at each pixel
+        if (this.calculateCosts(source) == false)
+            return new Geodesic[0];
+
+        return this.searchGeodesics(dir, firstPositions, searches, nbGeodesics);
+    }
+
+
+    // Search the geodesics with the current cost map
+    private Geodesic[] searchGeodesics(int dir, int[] firstPositions, int searches, int nbGeodesics)
+    {
+        final int dim = (dir == HORIZONTAL) ? this.height : this.width;
+        final int maxGeo = (nbGeodesics > searches) ? searches : nbGeodesics;
+
+        if (maxGeo <= 0)
+            return new Geodesic[0];
+
+        final int nbTasks = Math.max(Math.min(this.nbTasks, searches/MIN_SEARCHES_PER_TASK), 1);
+
+        if (nbTasks == 1)
         {
-            geoLength = this.width;
-            dim = this.height;
-            inc = this.stride;
-            incLine = 1;
+           GeodesicSearch search = new GeodesicSearch(dir, firstPositions, searches,
+                   nbGeodesics, maxGeo, this.getUsedMask(0), this.getStore(0));
+           search.call();
+           return search.result;
         }
-        else
+
+        // Partition the first positions in bands along the dimension. Each band
+        // is searched concurrently (with its own marks of used pixels) and keeps
+        // its best geodesics.
+        final int[][] bandPositions = new int[nbTasks][];
+        final int[] bandSizes = new int[nbTasks];
+
+        for (int i=0; i<searches; i++)
+           bandSizes[firstPositions[i]*nbTasks/dim]++;
+
+        for (int t=0; t<nbTasks; t++)
         {
-            geoLength = this.height;
-            dim = this.width;
-            inc = 1;
-            incLine = this.stride;
+           bandPositions[t] = new int[bandSizes[t]];
+           bandSizes[t] = 0;
         }
 
-        // Calculate cost at each pixel
-        this.calculateCosts(source, this.costs);
-        final int nbGeodesics = dim * Math.abs(this.scalingFactor) / 1000;
-        final int maxGeo = (nbGeodesics > searches) ? searches : nbGeodesics;
+        // Keep the order of the first positions in each band
+        for (int i=0; i<searches; i++)
+        {
+           final int t = firstPositions[i] * nbTasks / dim;
+           bandPositions[t][bandSizes[t]++] = firstPositions[i];
+        }
 
-        // Queue of geodesics sorted by cost
-        // The queue size could be less than firstPositions.length
-        final GeodesicSortedQueue queue = new GeodesicSortedQueue(maxGeo);
-        Geodesic geodesic = null;
-        Geodesic last = null; // last in queue
-        int maxCost = geoLength * this.maxAvgGeoPixCost;
-        final int[] costs_ = this.costs; // aliasing
+        List<GeodesicSearch> tasks = new ArrayList<GeodesicSearch>(nbTasks);
 
-        // Calculate path and cost for each geodesic
-        for (int i=0; i<searches; i++)
+        for (int t=0; t<nbTasks; t++)
         {
-            if (geodesic == null)
-                geodesic = new Geodesic(dir, geoLength);
+           if (bandSizes[t] == 0)
+              continue;
 
-            int bestLinePos = firstPositions[i];
-            int costIdx = inc * bestLinePos;
-            geodesic.positions[0] = bestLinePos;
-            geodesic.cost = costs_[costIdx];
+           tasks.add(new GeodesicSearch(dir, bandPositions[t], bandSizes[t], nbGeodesics,
+                   Math.min(maxGeo, bandSizes[t]), this.getUsedMask(t), this.getStore(t)));
+        }
 
-            // Process each row/column
-            for (int pos=1; pos<geoLength; pos++)
-            {
-                costIdx += incLine;
-                final int startCostIdx = costIdx;
-                int startBestLinePos = bestLinePos;
-                int bestCost = ((costs_[startCostIdx] & USED_MASK) == 0) ? costs_[startCostIdx]
-                        : DEFAULT_BEST_COST;
+        try
+        {
+           List<Future<Boolean>> results = this.pool.invokeAll(tasks);
 
-                if (bestCost > 0)
-                {
-                    // Check left/upper pixel, skip already used pixels
-                    int idx = startCostIdx - inc;
+           for (Future<Boolean> fr : results)
+           {
+              if (fr.get() == false)
+                 return new Geodesic[0];
+           }
+        }
+        catch (InterruptedException e)
+        {
+           return new Geodesic[0];
+        }
+        catch (ExecutionException e)
+        {
+           return new Geodesic[0];
+        }
 
-                    for (int linePos=startBestLinePos-1; linePos>=0; idx-=inc, linePos--)
-                    {
-                        final int cost = costs_[idx];
+        int nbCandidates = 0;
 
-                        // Skip pixels in use
-                        if ((cost & USED_MASK) != 0)
-                           continue;
+        for (GeodesicSearch task : tasks)
+           nbCandidates += task.result.length;
 
-                        if (cost < bestCost)
-                        {
-                            bestCost = cost;
-                            bestLinePos = linePos;
-                            costIdx = idx;
-                        }
+        Geodesic[] candidates = new Geodesic[nbCandidates];
+        nbCandidates = 0;
 
-                        break;
-                    }
-                }
+        for (GeodesicSearch task : tasks)
+        {
+           System.arraycopy(task.result, 0, candidates, nbCandidates, task.result.length);
+           nbCandidates += task.result.length;
+        }
 
-                if (bestCost > 0)
-                {
-                    // Check right/lower pixel, skip already used pixels
-                    int idx = startCostIdx + inc;
+        // Merge: select the best candidates of all bands in increasing cost order,
+        // skipping the ones sharing pixels with already selected geodesics
+        // (geodesics starting close to a band boundary may cross).
+        Arrays.sort(candidates);
+        final long[] used = this.getUsedMask(0);
+        Arrays.fill(used, 0);
+        Geodesic[] selected = new Geodesic[Math.min(maxGeo, nbCandidates)];
+        int n = 0;
 
-                    for (int linePos=startBestLinePos+1; linePos<dim; idx+=inc, linePos++)
-                    {
-                        final int cost = costs_[idx];
+        for (int i=0; (i<nbCandidates) && (n<selected.length); i++)
+        {
+           if (this.markGeodesic(candidates[i], used) == true)
+              selected[n++] = candidates[i];
+        }
 
-                        if ((cost & USED_MASK) != 0)
-                           continue;
+        return (n == selected.length) ? selected : Arrays.copyOf(selected, n);
+    }
 
-                         if (cost < bestCost)
-                         {
-                             bestCost = cost;
-                             bestLinePos = linePos;
-                             costIdx = idx;
-                         }
 
-                         break;
-                    }
+    // Large image mode: search the geodesics with a window of the cost map
+    // covering a few bands of lines (rows for VERTICAL geodesics, columns for
+    // HORIZONTAL ones) instead of the full map. All the searches advance
+    // together, line by line, so that each band of costs is computed once and
+    // dropped. In each line, a search skips the pixels taken by the searches
+    // before it (in the order of the first positions) instead of the pixels
+    // of the best geodesics found so far, so the geodesics do not share pixels
+    // but differ from the ones of the default mode.
+    // The searches run twice: the first run gives the costs used to select the
+    // best geodesics, the second one collects the positions of the selected
+    // geodesics only (the paths of all the searches are never stored).
+    private Geodesic[] searchGeodesicsBanded(SliceIntArray source, int dir, int[] firstPositions,
+            int searches, int nbGeodesics)
+    {
+        final int maxGeo = (nbGeodesics > searches) ? searches : nbGeodesics;
+
+        if (maxGeo <= 0)
+            return new Geodesic[0];
 
-                    geodesic.cost += bestCost;
+        final int geoLength = (dir == HORIZONTAL) ? this.width : this.height;
+        final int maxCost = geoLength * this.maxAvgGeoPixCost;
+        final int[] geoCosts = new int[searches];
 
-                    // Skip, this path is already too expensive
-                    if (geodesic.cost >= maxCost)
-                       break;
-                }
+        if (this.runBandedSearches(source, dir, firstPositions, searches, geoCosts, null, null) == false)
+            return new Geodesic[0];
 
-                geodesic.positions[pos] = bestLinePos;
+        // Select the cheapest geodesics (ties: first search first)
+        final long[] keys = new long[searches];
+        int n = 0;
+
+        for (int i=0; i<searches; i++)
+        {
+            if (geoCosts[i] < maxCost)
+               keys[n++] = ((long) geoCosts[i] << 32) | i;
+        }
+
+        Arrays.sort(keys, 0, n);
+        final int nbSelected = Math.min(maxGeo, n);
+        final Geodesic[] selected = new Geodesic[nbSelected];
+        final int[] slots = new int[searches];
+        int last = -1;
+        Arrays.fill(slots, -1);
+
+        for (int k=0; k<nbSelected; k++)
+        {
+            final int i = (int) keys[k];
+            selected[k] = new Geodesic(dir, geoLength);
+            selected[k].cost = (int) (keys[k] >>> 32);
+            slots[i] = k;
+            last = Math.max(last, i);
+        }
+
+        // A search only depends on the searches before it: the searches after
+        // the last selected one can be skipped
+        if ((nbSelected > 0) &&
+           (this.runBandedSearches(source, dir, firstPositions, last+1, geoCosts, slots, selected) == false))
+            return new Geodesic[0];
+
+        return selected;
+    }
+
+
+    // Run the searches line by line through windows of the cost map. Store
+    // the cost of each search in geoCosts (maxCost or more if the search was
+    // abandoned). If slots is not null, the positions of each search i with
+    // slots[i] >= 0 are stored in geodesics[slots[i]].
+    private boolean runBandedSearches(SliceIntArray source, int dir, int[] firstPositions,
+            int searches, int[] geoCosts, int[] slots, Geodesic[] geodesics)
+    {
+        final int geoLength = (dir == HORIZONTAL) ? this.width : this.height;
+        final int dim = (dir == HORIZONTAL) ? this.height : this.width;
+        final int maxCost = geoLength * this.maxAvgGeoPixCost;
+        final int nbBands = Math.max(geoLength/COST_BAND_HEIGHT, 1);
+        final int nbTasks = Math.min(this.nbTasks, nbBands);
+
+        // The window holds the costs of nbTasks bands (the last band includes
+        // the remaining lines)
+        final int windowLines = Math.min(geoLength, (nbTasks+1)*COST_BAND_HEIGHT);
+        final short[] window = new short[windowLines*dim];
+        final WindowTask[] tasks = new WindowTask[nbTasks];
+
+        for (int t=0; t<nbTasks; t++)
+            tasks[t] = new WindowTask(source, dir, window);
+
+        final int[] positions = new int[searches];
+        final long[] used = new long[(dim+63)>>6]; // pixels taken in the current line
+        System.arraycopy(firstPositions, 0, positions, 0, searches);
+
+        for (int b=0; b<nbBands; b+=nbTasks)
+        {
+            final int n = Math.min(nbTasks, nbBands-b);
+            final int line0 = b * COST_BAND_HEIGHT;
+            final int line1 = (b+n == nbBands) ? geoLength : (b+n) * COST_BAND_HEIGHT;
+
+            for (int t=0; t<n; t++)
+            {
+               tasks[t].windowLine0 = line0;
+               tasks[t].line0 = (b+t) * COST_BAND_HEIGHT;
+               tasks[t].line1 = (b+t+1 == nbBands) ? geoLength : (b+t+1) * COST_BAND_HEIGHT;
             }
 
-            if (geodesic.cost < maxCost)
+            if (this.computeWindow(tasks, n) == false)
+               return false;
+
+            for (int line=line0; line<line1; line++)
             {
-                 // Add geodesic (in increasing cost order).
-                 Geodesic newLast = queue.add(geodesic);
-
-                 // Prevent geodesics from sharing pixels by marking the used pixels
-                 // Only the pixels of the geodesics in the queue are marked as used
-                 if (nbGeodesics > 1)
-                 {
-                     // If the previous last element has been expelled from the queue,
-                     // the corresponding pixels can be reused by other geodesics
-                     final int geoLength4 = geoLength & -4;
-                     int startLine = 0;
-                     final int[] gp = geodesic.positions;
-
-                     if (last != null)
+               final int offs = (line-line0) * dim;
+
+               if (line == 0)
+               {
+                  for (int i=0; i<searches; i++)
+                  {
+                     geoCosts[i] = window[offs+positions[i]];
+
+                     if ((slots != null) && (slots[i] >= 0))
+                        geodesics[slots[i]].positions[0] = positions[i];
+                  }
+
+                  continue;
+               }
+
+               Arrays.fill(used, 0);
+
+               for (int i=0; i<searches; i++)
+               {
+                  // Abandoned search
+                  if (geoCosts[i] >= maxCost)
+                     continue;
+
+                  final int startLinePos = positions[i];
+                  int bestLinePos = startLinePos;
+                  int bestCost = ((used[startLinePos>>6] & (1L<<startLinePos)) == 0) ?
+                          window[offs+startLinePos] : DEFAULT_BEST_COST;
+
+                  if (bestCost > 0)
+                  {
+                     // Check left/upper pixel, skip already used pixels
+                     for (int linePos=startLinePos-1; linePos>=0; linePos--)
                      {
-                        final int[] lp = last.positions;
+                        if ((used[linePos>>6] & (1L<<linePos)) != 0)
+                           continue;
 
-                        // Tag old pixels as 'free' and new pixels as 'used'
-                        for (int k=0; k<geoLength4; k+=4)
+                        if (window[offs+linePos] < bestCost)
                         {
-                            costs_[startLine+(inc*gp[k])]   |= USED_MASK;
-                            costs_[startLine+(inc*lp[k])]   &= VALUE_MASK;
-                            startLine += incLine;
-                            costs_[startLine+(inc*gp[k+1])] |= USED_MASK;
-                            costs_[startLine+(inc*lp[k+1])] &= VALUE_MASK;
-                            startLine += incLine;
-                            costs_[startLine+(inc*gp[k+2])] |= USED_MASK;
-                            costs_[startLine+(inc*lp[k+2])] &= VALUE_MASK;
-                            startLine += incLine;
-                            costs_[startLine+(inc*gp[k+3])] |= USED_MASK;
-                            costs_[startLine+(inc*lp[k+3])] &= VALUE_MASK;
-                            startLine += incLine;
+                           bestCost = window[offs+linePos];
+                           bestLinePos = linePos;
                         }
 
-                        for (int k=geoLength4; k<geoLength; k++)
-                        {
-                            costs_[startLine+(inc*gp[k])] |= USED_MASK;
-                            costs_[startLine+(inc*lp[k])] &= VALUE_MASK;
-                            startLine += incLine;
-                        }
+                        break;
                      }
-                     else
+                  }
+
+                  if (bestCost > 0)
+                  {
+                     // Check right/lower pixel, skip already used pixels
+                     for (int linePos=startLinePos+1; linePos<dim; linePos++)
                      {
-                        for (int k=0; k<geoLength4; k+=4)
-                        {
-                            costs_[startLine+(inc*gp[k])]   |= USED_MASK;
-                            startLine += incLine;
-                            costs_[startLine+(inc*gp[k+1])] |= USED_MASK;
-                            startLine += incLine;
-                            costs_[startLine+(inc*gp[k+2])] |= USED_MASK;
-                            startLine += incLine;
-                            costs_[startLine+(inc*gp[k+3])] |= USED_MASK;
-                            startLine += incLine;
-                        }
+                        if ((used[linePos>>6] & (1L<<linePos)) != 0)
+                           continue;
 
-                        for (int k=geoLength4; k<geoLength; k++)
+                        if (window[offs+linePos] < bestCost)
                         {
-                            costs_[startLine+(inc*gp[k])] |= USED_MASK;
-                            startLine += incLine;
+                           bestCost = window[offs+linePos];
+                           bestLinePos = linePos;
                         }
+
+                        break;
                      }
-                 }
 
-                 // Be green, recycle
-                 geodesic = last;
+                     geoCosts[i] += bestCost;
 
-                 // Update maxCost
-                 if (queue.isFull())
-                 {
-                    last = newLast;
-                    maxCost = newLast.cost;
-                 }
+                     // Abandon, this path is already too expensive
+                     if (geoCosts[i] >= maxCost)
+                        continue;
+                  }
+
+                  used[bestLinePos>>6] |= (1L<<bestLinePos);
+                  positions[i] = bestLinePos;
+
+                  if ((slots != null) && (slots[i] >= 0))
+                     geodesics[slots[i]].positions[line] = bestLinePos;
+               }
             }
+        }
+
+        return true;
+    }
+
+
+    // Compute the costs of the first n window tasks, concurrently if a pool
+    // is available
+    private boolean computeWindow(WindowTask[] tasks, int n)
+    {
+        if (n == 1)
+           return tasks[0].call();
+
+        List<Callable<Boolean>> list = new ArrayList<Callable<Boolean>>(n);
+
+        for (int t=0; t<n; t++)
+           list.add(tasks[t]);
+
+        boolean res = true;
+
+        try
+        {
+           List<Future<Boolean>> results = this.pool.invokeAll(list);
+
+           for (Future<Boolean> fr : results)
+              res &= fr.get();
+        }
+        catch (InterruptedException e)
+        {
+           return false;
+        }
+        catch (ExecutionException e)
+        {
+           return false;
+        }
+
+        return res;
+    }
 
-            // All requested geodesics have been found with a cost of 0 => done !
-            if ((maxCost == 0) && (queue.isFull() == true))
-                break;
+
+    // Mark the pixels of the geodesic as used unless one is already used
+    private boolean markGeodesic(Geodesic geodesic, long[] used)
+    {
+        final int[] gp = geodesic.positions;
+        final int inc = (geodesic.direction == HORIZONTAL) ? this.stride : 1;
+        final int incLine = (geodesic.direction == HORIZONTAL) ? 1 : this.stride;
+
+        for (int k=0, startLine=0; k<gp.length; k++, startLine+=incLine)
+        {
+           final int idx = startLine + inc*gp[k];
+
+           if ((used[idx>>6] & (1L<<idx)) != 0)
+              return false;
         }
 
-        return queue.toArray(new Geodesic[queue.size()]);
+        for (int k=0, startLine=0; k<gp.length; k++, startLine+=incLine)
+        {
+           final int idx = startLine + inc*gp[k];
+           used[idx>>6] |= (1L<<idx);
+        }
+
+        return true;
+    }
+
+
+    // One bit per pixel of the cost map (lazy allocation)
+    private long[] getUsedMask(int task)
+    {
+        if (this.usedMasks[task] == null)
+           this.usedMasks[task] = new long[(this.stride*this.height+63)>>6];
+
+        return this.usedMasks[task];
+    }
+
+
+    // Geodesic store of a search task (lazy allocation, reused between calls)
+    private GeodesicStore getStore(int task)
+    {
+        if (this.stores[task] == null)
+           this.stores[task] = new GeodesicStore(1, 1);
+
+        return this.stores[task];
     }
 
 
@@ -885,62 +1333,593 @@ public class ContextResizer implements IntFilter
     }
 
 
-    private int[] calculateCosts(SliceIntArray source, int[] costs_)
+    // Compute the cost map band by band: the gradients of a band of rows
+    // (plus one row above and below) are computed in a small buffer, then
+    // stored in the compact cost map. The bands are processed concurrently
+    // if a pool is available.
+    private boolean calculateCosts(SliceIntArray source)
     {
-        // For packed RGB images, use 3 channels mode for more accurate results and
-        // one channel mode (green) for faster results.
-        // For unpacked images, use one channel mode (Y for YUV or any for RGB).
-        int sobelMode = (this.fastMode == true) ? SobelFilter.G_CHANNEL : SobelFilter.THREE_CHANNELS;
+        final int nbBands = Math.max(this.height/COST_BAND_HEIGHT, 1);
+        final int nbTasks = Math.min(this.nbTasks, nbBands);
+
+        if (nbTasks == 1)
+           return new CostTask(source, 0, nbBands, nbBands).call();
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(nbTasks);
 
-        if (this.pool != null)
+        for (int t=0; t<nbTasks; t++)
+           tasks.add(new CostTask(source, nbBands*t/nbTasks, nbBands*(t+1)/nbTasks, nbBands));
+
+        boolean res = true;
+
+        try
         {
-           // Use 4 threads
-           SobelFilter[] gradientFilters = new SobelFilter[4];
+           List<Future<Boolean>> results = this.pool.invokeAll(tasks);
 
-           for (int i=0; i<gradientFilters.length; i++)
-           {
-              // Do not process the boundaries and overlap the filters (dim + 2)
-              // to avoid boundary artefacts.
-              gradientFilters[i] = new SobelFilter(this.width+2, this.height/gradientFilters.length+2,
-                   this.stride, SobelFilter.HORIZONTAL | SobelFilter.VERTICAL,
-                   sobelMode, SobelFilter.COST, false);
-           }
+           for (Future<Boolean> fr : results)
+              res &= fr.get();
+        }
+        catch (InterruptedException e)
+        {
+           return false;
+        }
+        catch (ExecutionException e)
+        {
+           return false;
+        }
+
+        return res;
+    }
+
+
+    // Remove the costs of the geodesic pixels from the cost map (the width
+    // and height have not been updated yet)
+    private void removeCosts(Geodesic[] geodesics, int dir)
+    {
+        final int nbLines;
+        final int lineLength;
+        final int inc;
+        final int incLine;
+
+        if (dir == HORIZONTAL)
+        {
+            nbLines = this.width;
+            lineLength = this.height;
+            inc = this.stride;
+            incLine = 1;
+        }
+        else
+        {
+            nbLines = this.height;
+            lineLength = this.width;
+            inc = 1;
+            incLine = this.stride;
+        }
+
+        final int nbGeo = geodesics.length;
+        final int[] linePositions = new int[nbGeo];
+        final short[] costs_ = this.costs;
+
+        for (int j=0; j<nbLines; j++)
+        {
+            for (int k=0; k<nbGeo; k++)
+                linePositions[k] = geodesics[k].positions[j];
 
-           // Apply the parallel filter
-           IntFilter pf = new ParallelFilter(this.width, this.height, this.stride,
-                   this.pool, gradientFilters, ParallelFilter.HORIZONTAL);
-           pf.apply(source, new SliceIntArray(costs_, 0));
+            if (nbGeo > 1)
+                this.sorter.sort(linePositions, 0, nbGeo);
 
-           // Fix missing first and last rows of costs (due to non boundary processing filters)
-           System.arraycopy(costs_, this.width, costs_, 0, this.width);
-           System.arraycopy(costs_, (this.height-2)*this.stride,
-                            costs_, (this.height-1)*this.stride, this.width);
+            int srcIdx = j * incLine;
+            int dstIdx = srcIdx;
+            int k = 0;
 
-           // Fix missing first column of costs
-           final int area = this.stride * this.height;
+            for (int i=0; i<lineLength; i++, srcIdx+=inc)
+            {
+                if ((k < nbGeo) && (linePositions[k] == i))
+                {
+                    k++;
+                    continue;
+                }
 
-           for (int j=0; j<area; j+=this.stride)
-              costs_[j] = costs_[j+1];
+                costs_[dstIdx] = costs_[srcIdx];
+                dstIdx += inc;
+            }
+        }
+    }
+
+
+    // Update the cost map after removal of the geodesics (the width or height
+    // has already been updated). The cost of a pixel changes only if its 3x3
+    // neighborhood has pixels on both sides of a removed geodesic: for each
+    // line, recompute the costs between the positions of each geodesic in
+    // the previous, current and next lines. The other costs have been shifted
+    // with the pixels and are still valid.
+    private void updateCosts(SliceIntArray frame, Geodesic[] geodesics, int dir)
+    {
+        final int nbLines;
+        final int lineLength;
+        final int inc;
+        final int incLine;
+
+        if (dir == HORIZONTAL)
+        {
+            nbLines = this.width;
+            lineLength = this.height;
+            inc = this.stride;
+            incLine = 1;
         }
         else
         {
-           // Mono threaded
-           SobelFilter gradientFilter = new SobelFilter(this.width, this.height,
-                            this.stride, SobelFilter.HORIZONTAL | SobelFilter.VERTICAL,
-                            sobelMode, SobelFilter.COST, true);
+            nbLines = this.height;
+            lineLength = this.width;
+            inc = 1;
+            incLine = this.stride;
+        }
+
+        final int nbGeo = geodesics.length;
+        final int[] linePositions = new int[nbGeo];
+
+        // Replace the position of each removed pixel with its position in the
+        // shrunk line (the position of the pixel next to the removed one)
+        for (int j=0; j<nbLines; j++)
+        {
+            for (int k=0; k<nbGeo; k++)
+                linePositions[k] = geodesics[k].positions[j];
+
+            if (nbGeo > 1)
+                this.sorter.sort(linePositions, 0, nbGeo);
 
-           gradientFilter.apply(source, new SliceIntArray(costs_, 0));
+            for (int k=0; k<nbGeo; k++)
+            {
+                final int pos = geodesics[k].positions[j];
+                geodesics[k].positions[j] = pos - Arrays.binarySearch(linePositions, 0, nbGeo, pos);
+            }
+        }
+
+        final int[] src = frame.array;
+        final short[] costs_ = this.costs;
+
+        for (int j=1; j<nbLines-1; j++)
+        {
+            for (int k=0; k<nbGeo; k++)
+            {
+                final int[] gp = geodesics[k].positions;
+                final int start = Math.max(Math.min(gp[j], Math.min(gp[j-1], gp[j+1]))-1, 1);
+                final int end = Math.min(Math.max(gp[j], Math.max(gp[j-1], gp[j+1])), lineLength-2);
+                int idx = j*incLine + start*inc;
+
+                for (int i=start; i<=end; i++, idx+=inc)
+                    costs_[idx] = (short) this.getPixelCost(src, frame.index+idx);
+            }
         }
 
-        // Add a quadratic contribution to the cost to favor straight lines
-        // if costs of neighbors are all low
-        for (int i=0; i<costs_.length; i++)
+        // Boundaries: duplicate the nearest costs (like calculateCosts)
+        final int w = this.width;
+        final int h = this.height;
+        final int st = this.stride;
+
+        for (int offs=st; offs<(h-1)*st; offs+=st)
         {
-           final int c = costs_[i];
-           costs_[i] = (c < 5) ? 0 :  c + ((c * c) >> 8);
+           costs_[offs] = costs_[offs+1];
+           costs_[offs+w-1] = costs_[offs+w-2];
         }
 
-        return costs_;
+        System.arraycopy(costs_, st, costs_, 0, w);
+        System.arraycopy(costs_, (h-2)*st, costs_, (h-1)*st, w);
+    }
+
+
+    // Cost of a pixel not on a boundary, identical to the cost computed by
+    // calculateCosts (gradient from SobelFilter + quadratic contribution)
+    private int getPixelCost(int[] src, int idx)
+    {
+        final int st = this.stride;
+        final int val00 = this.getLuma(src[idx-st-1]);
+        final int val01 = this.getLuma(src[idx-st]);
+        final int val02 = this.getLuma(src[idx-st+1]);
+        final int val10 = this.getLuma(src[idx-1]);
+        final int val12 = this.getLuma(src[idx+1]);
+        final int val20 = this.getLuma(src[idx+st-1]);
+        final int val21 = this.getLuma(src[idx+st]);
+        final int val22 = this.getLuma(src[idx+st+1]);
+        final int valH = -val00 + val02 - val10 - val10 + val12 + val12 - val20 + val22;
+        final int valV = val00 + val01 + val01 + val02 - val20 - val21 - val21 - val22;
+        int c = (Math.abs(valH) + Math.abs(valV)) >> 1;
+
+        if (c > 255)
+           c = 255;
+
+        return getCost(c);
+    }
+
+
+    // Cost from the gradient: add a quadratic contribution to favor straight
+    // lines if costs of neighbors are all low
+    private static int getCost(int gradient)
+    {
+        return (gradient < 5) ? 0 : gradient + ((gradient * gradient) >> 8);
+    }
+
+
+    private int getLuma(int pixel)
+    {
+        // See SobelFilter: green channel in fast mode, (R+G+G+B)/4 otherwise
+        if (this.fastMode == true)
+           return (pixel >> 8) & 0xFF;
+
+        return (((pixel >> 16) & 0xFF) + ((pixel >> 7) & 0x1FE) + (pixel & 0xFF)) >> 2;
     }
 
+
+    // Search of the geodesics starting from a set of first positions.
+    // The pixels of the geodesics in the queue are marked as used in a bit mask
+    // owned by the search (the costs are only read), so that several searches
+    // can run concurrently on the same cost map.
+    private class GeodesicSearch implements Callable<Boolean>
+    {
+        final int dir;
+        final int[] firstPositions;
+        final int searches;
+        final int nbGeodesics;
+        final int maxGeo;
+        final long[] used;
+        final GeodesicStore store;
+        Geodesic[] result;
+
+
+        GeodesicSearch(int dir, int[] firstPositions, int searches, int nbGeodesics,
+                int maxGeo, long[] used, GeodesicStore store)
+        {
+            this.dir = dir;
+            this.firstPositions = firstPositions;
+            this.searches = searches;
+            this.nbGeodesics = nbGeodesics;
+            this.maxGeo = maxGeo;
+            this.used = used;
+            this.store = store;
+        }
+
+
+        @Override
+        public Boolean call()
+        {
+            final int geoLength;
+            final int inc;
+            final int incLine;
+            final int dim;
+
+            if (this.dir == HORIZONTAL)
+            {
+                geoLength = width;
+                dim = height;
+                inc = stride;
+                incLine = 1;
+            }
+            else
+            {
+                geoLength = height;
+                dim = width;
+                inc = 1;
+                incLine = stride;
+            }
+
+            // Store of the best geodesics (bounded by maxGeo)
+            final GeodesicStore store = this.store;
+            store.reset(this.maxGeo, geoLength);
+            final int[] positions = store.getPositions();
+            int maxCost = geoLength * maxAvgGeoPixCost;
+            final short[] costs_ = costs; // aliasing
+            final long[] used_ = this.used; // aliasing
+            Arrays.fill(used_, 0);
+
+            // Calculate path and cost for each geodesic
+            for (int i=0; i<this.searches; i++)
+            {
+                // Build the path in the free slot of the store
+                final int offset = store.getOffset(store.getFreeSlot());
+                int bestLinePos = this.firstPositions[i];
+                int costIdx = inc * bestLinePos;
+                positions[offset] = bestLinePos;
+                int geoCost = costs_[costIdx];
+
+                // Process each row/column
+                for (int pos=1; pos<geoLength; pos++)
+                {
+                    costIdx += incLine;
+                    final int startCostIdx = costIdx;
+                    int startBestLinePos = bestLinePos;
+                    int bestCost = ((used_[startCostIdx>>6] & (1L<<startCostIdx)) == 0) ?
+                            costs_[startCostIdx] : DEFAULT_BEST_COST;
+
+                    if (bestCost > 0)
+                    {
+                        // Check left/upper pixel, skip already used pixels
+                        int idx = startCostIdx - inc;
+
+                        for (int linePos=startBestLinePos-1; linePos>=0; idx-=inc, linePos--)
+                        {
+                            // Skip pixels in use
+                            if ((used_[idx>>6] & (1L<<idx)) != 0)
+                               continue;
+
+                            final int cost = costs_[idx];
+
+                            if (cost < bestCost)
+                            {
+                                bestCost = cost;
+                                bestLinePos = linePos;
+                                costIdx = idx;
+                            }
+
+                            break;
+                        }
+                    }
+
+                    if (bestCost > 0)
+                    {
+                        // Check right/lower pixel, skip already used pixels
+                        int idx = startCostIdx + inc;
+
+                        for (int linePos=startBestLinePos+1; linePos<dim; idx+=inc, linePos++)
+                        {
+                            if ((used_[idx>>6] & (1L<<idx)) != 0)
+                               continue;
+
+                            final int cost = costs_[idx];
+
+                            if (cost < bestCost)
+                            {
+                                bestCost = cost;
+                                bestLinePos = linePos;
+                                costIdx = idx;
+                            }
+
+                            break;
+                        }
+
+                        geoCost += bestCost;
+
+                        // Skip, this path is already too expensive
+                        if (geoCost >= maxCost)
+                           break;
+                    }
+
+                    positions[offset+pos] = bestLinePos;
+                }
+
+                if (geoCost < maxCost)
+                {
+                    // Add geodesic, the most expensive one is evicted if the store is full
+                    final int evicted = store.add(geoCost);
+
+                    // Prevent geodesics from sharing pixels by marking the used pixels
+                    // Only the pixels of the geodesics in the store are marked as used
+                    if (this.nbGeodesics > 1)
+                    {
+                        // If a geodesic has been evicted from the store, the
+                        // corresponding pixels can be reused by other geodesics
+                        final int evictedOffset = (evicted >= 0) ? store.getOffset(evicted) : -1;
+
+                        for (int k=0, startLine=0; k<geoLength; k++, startLine+=incLine)
+                        {
+                            // Tag old pixels as 'free' and new pixels as 'used'
+                            final int idx = startLine + inc*positions[offset+k];
+                            used_[idx>>6] |= (1L<<idx);
+
+                            if (evictedOffset >= 0)
+                            {
+                               final int eidx = startLine + inc*positions[evictedOffset+k];
+                               used_[eidx>>6] &= ~(1L<<eidx);
+                            }
+                        }
+                    }
+
+                    // Update maxCost
+                    if (store.isFull())
+                        maxCost = store.getMaxCost();
+                }
+
+                // All requested geodesics have been found with a cost of 0 => done !
+                if ((maxCost == 0) && (store.isFull() == true))
+                    break;
+            }
+
+            this.result = store.toArray(this.dir);
+            return true;
+        }
+    }
+
+
+    // Computation of the costs of a range of bands of rows
+    private class CostTask implements Callable<Boolean>
+    {
+        final SliceIntArray source;
+        final int firstBand;
+        final int endBand;
+        final int nbBands;
+
+
+        CostTask(SliceIntArray source, int firstBand, int endBand, int nbBands)
+        {
+            this.source = source;
+            this.firstBand = firstBand;
+            this.endBand = endBand;
+            this.nbBands = nbBands;
+        }
+
+
+        @Override
+        public Boolean call()
+        {
+            // For packed RGB images, use 3 channels mode for more accurate results and
+            // one channel mode (green) for faster results.
+            // For unpacked images, use one channel mode (Y for YUV or any for RGB).
+            final int sobelMode = (fastMode == true) ? SobelFilter.G_CHANNEL : SobelFilter.THREE_CHANNELS;
+            final int w = width;
+            final int h = height;
+            final int st = stride;
+            final short[] costs_ = costs;
+            final int[] src = this.source.array;
+            int[] buf = new int[0];
+            SobelFilter gradientFilter = null;
+            int filterHeight = 0;
+
+            for (int b=this.firstBand; b<this.endBand; b++)
+            {
+                // The last band includes the remaining rows
+                final int y0 = b * COST_BAND_HEIGHT;
+                final int y1 = (b == this.nbBands-1) ? h : y0 + COST_BAND_HEIGHT;
+
+                // The rows above and below the band are required by the 3x3 kernel.
+                // The first and last rows of the image are processed as boundaries.
+                final int ry0 = (y0 == 0) ? 0 : y0 - 1;
+                final int ry1 = (y1 == h) ? h : y1 + 1;
+                final int rh = ry1 - ry0;
+
+                if (buf.length < rh*st)
+                   buf = new int[rh*st];
+
+                if (rh != filterHeight)
+                {
+                   gradientFilter = new SobelFilter(w, rh, st,
+                      SobelFilter.HORIZONTAL | SobelFilter.VERTICAL, sobelMode,
+                      SobelFilter.COST, true);
+                   filterHeight = rh;
+                }
+
+                final int srcIdx = this.source.index + ry0*st;
+
+                if (gradientFilter.apply(new SliceIntArray(src, src.length-srcIdx, srcIdx),
+                        new SliceIntArray(buf, 0)) == false)
+                   return false;
+
+                // Add a quadratic contribution to the cost to favor straight lines
+                // if costs of neighbors are all low
+                for (int y=y0; y<y1; y++)
+                {
+                   final int bufOffs = (y-ry0) * st;
+                   final int costOffs = y * st;
+
+                   for (int x=0; x<w; x++)
+                      costs_[costOffs+x] = (short) getCost(buf[bufOffs+x]);
+                }
+            }
+
+            return true;
+        }
+    }
+
+
+    // Computation of the costs of the lines [line0, line1) of the window used
+    // by the banded search. The window is line major: the costs of line l
+    // start at (l-windowLine0)*dim. The costs are identical to the ones of
+    // the full cost map.
+    private class WindowTask implements Callable<Boolean>
+    {
+        final SliceIntArray source;
+        final int dir;
+        final short[] window;
+        int windowLine0;
+        int line0;
+        int line1;
+        int[] buf1;
+        int[] buf2;
+        SobelFilter gradientFilter;
+        int filterWidth;
+        int filterHeight;
+
+
+        WindowTask(SliceIntArray source, int dir, short[] window)
+        {
+            this.source = source;
+            this.dir = dir;
+            this.window = window;
+            this.buf1 = new int[0];
+            this.buf2 = new int[0];
+        }
+
+
+        private SobelFilter getFilter(int w, int h, int st)
+        {
+            if ((this.gradientFilter == null) || (this.filterWidth != w) || (this.filterHeight != h))
+            {
+               final int sobelMode = (fastMode == true) ? SobelFilter.G_CHANNEL : SobelFilter.THREE_CHANNELS;
+               this.gradientFilter = new SobelFilter(w, h, st,
+                  SobelFilter.HORIZONTAL | SobelFilter.VERTICAL, sobelMode,
+                  SobelFilter.COST, true);
+               this.filterWidth = w;
+               this.filterHeight = h;
+            }
+
+            return this.gradientFilter;
+        }
+
+
+        @Override
+        public Boolean call()
+        {
+            final int w = width;
+            final int h = height;
+            final int st = stride;
+            final int[] src = this.source.array;
+            final short[] window_ = this.window;
+
+            if (this.dir == VERTICAL)
+            {
+               // Lines are rows: gradients of the rows plus one row above and
+               // below (the first and last rows of the image are boundaries)
+               final int ry0 = (this.line0 == 0) ? 0 : this.line0 - 1;
+               final int ry1 = (this.line1 == h) ? h : this.line1 + 1;
+               final int rh = ry1 - ry0;
+
+               if (this.buf1.length < rh*st)
+                  this.buf1 = new int[rh*st];
+
+               final int srcIdx = this.source.index + ry0*st;
+
+               if (this.getFilter(w, rh, st).apply(new SliceIntArray(src, src.length-srcIdx, srcIdx),
+                       new SliceIntArray(this.buf1, 0)) == false)
+                  return false;
+
+               for (int y=this.line0; y<this.line1; y++)
+               {
+                  final int bufOffs = (y-ry0) * st;
+                  final int winOffs = (y-this.windowLine0) * w;
+
+                  for (int x=0; x<w; x++)
+                     window_[winOffs+x] = (short) getCost(this.buf1[bufOffs+x]);
+               }
+
+               return true;
+            }
+
+            // Lines are columns: copy the columns plus one column on each side
+            // to a compact buffer, then compute the gradients
+            final int rx0 = (this.line0 == 0) ? 0 : this.line0 - 1;
+            final int rx1 = (this.line1 == w) ? w : this.line1 + 1;
+            final int rw = rx1 - rx0;
+
+            if (this.buf1.length < rw*h)
+            {
+               this.buf1 = new int[rw*h];
+               this.buf2 = new int[rw*h];
+            }
+
+            for (int y=0, srcIdx=this.source.index+rx0; y<h; y++, srcIdx+=st)
+               System.arraycopy(src, srcIdx, this.buf1, y*rw, rw);
+
+            if (this.getFilter(rw, h, rw).apply(new SliceIntArray(this.buf1, rw*h, 0),
+                    new SliceIntArray(this.buf2, 0)) == false)
+               return false;
+
+            for (int x=this.line0; x<this.line1; x++)
+            {
+               final int winOffs = (x-this.windowLine0) * h;
+
+               for (int y=0, bufOffs=x-rx0; y<h; y++, bufOffs+=rw)
+                  window_[winOffs+y] = (short) getCost(this.buf2[bufOffs]);
+            }
+
+            return true;
+        }
+    }
 }
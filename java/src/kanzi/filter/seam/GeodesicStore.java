@@ -0,0 +1,206 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.filter.seam;
+
+// Not thread safe
+// Bounded store of the geodesics with the lowest costs, kept in flat arrays
+// (no object per geodesic). The positions of the geodesic in slot s are
+// positions[s*length] to positions[(s+1)*length-1]. The occupied slots form
+// a binary max heap on costs (ties: the last added is the largest) so that
+// the most expensive geodesic is evicted in O(log n) when the store is full.
+// There is one more slot than the maximum size: the slot returned by
+// getFreeSlot() is filled by the search, then added. Evicted slots are
+// recycled.
+public class GeodesicStore
+{
+    private int maxSize;
+    private int length;
+    private int size;
+    private int nbFree;
+    private int sequence;
+    private int[] positions;
+    private long[] keys;  // per slot: cost (high 32 bits) and sequence
+    private int[] heap;   // slots
+    private int[] free;   // slots
+
+
+    public GeodesicStore(int maxSize, int length)
+    {
+        this.positions = new int[0];
+        this.keys = new long[0];
+        this.heap = new int[0];
+        this.free = new int[0];
+        this.reset(maxSize, length);
+    }
+
+
+    // Empty the store, the arrays are reallocated only if they are too small
+    public final void reset(int maxSize, int length)
+    {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("The maximum size must be at least 1");
+
+        if (length < 1)
+            throw new IllegalArgumentException("The geodesic length must be at least 1");
+
+        final int nbSlots = maxSize + 1;
+
+        if (this.positions.length < nbSlots*length)
+            this.positions = new int[nbSlots*length];
+
+        if (this.keys.length < nbSlots)
+        {
+            this.keys = new long[nbSlots];
+            this.heap = new int[nbSlots];
+            this.free = new int[nbSlots];
+        }
+
+        this.maxSize = maxSize;
+        this.length = length;
+        this.size = 0;
+        this.sequence = 0;
+        this.nbFree = nbSlots;
+
+        for (int i=0; i<nbSlots; i++)
+            this.free[i] = nbSlots - 1 - i;
+    }
+
+
+    // Positions of all slots (see getOffset)
+    public int[] getPositions()
+    {
+        return this.positions;
+    }
+
+
+    public int getOffset(int slot)
+    {
+        return slot * this.length;
+    }
+
+
+    // Slot to fill before calling add()
+    public int getFreeSlot()
+    {
+        return this.free[this.nbFree-1];
+    }
+
+
+    // Add the geodesic in the free slot. If the store is full, the geodesic
+    // with the highest cost is evicted (the cost of the new geodesic must be
+    // lower) and its slot is returned. Otherwise, return -1.
+    public int add(int cost)
+    {
+        final int slot = this.free[--this.nbFree];
+        this.keys[slot] = ((long) cost << 32) | this.sequence++;
+
+        if (this.size < this.maxSize)
+        {
+            // Sift up
+            int i = this.size++;
+
+            while (i > 0)
+            {
+                final int parent = (i-1) >> 1;
+
+                if (this.keys[this.heap[parent]] >= this.keys[slot])
+                    break;
+
+                this.heap[i] = this.heap[parent];
+                i = parent;
+            }
+
+            this.heap[i] = slot;
+            return -1;
+        }
+
+        // Replace the root (highest cost) and sift down
+        final int evicted = this.heap[0];
+        this.siftDown(slot, this.size);
+        this.free[this.nbFree++] = evicted;
+        return evicted;
+    }
+
+
+    private void siftDown(int slot, int end)
+    {
+        final long key = this.keys[slot];
+        int i = 0;
+
+        while (true)
+        {
+            int child = (i << 1) + 1;
+
+            if (child >= end)
+                break;
+
+            if ((child+1 < end) && (this.keys[this.heap[child+1]] > this.keys[this.heap[child]]))
+                child++;
+
+            if (this.keys[this.heap[child]] <= key)
+                break;
+
+            this.heap[i] = this.heap[child];
+            i = child;
+        }
+
+        this.heap[i] = slot;
+    }
+
+
+    public boolean isFull()
+    {
+        return this.size == this.maxSize;
+    }
+
+
+    public int size()
+    {
+        return this.size;
+    }
+
+
+    // Highest cost in the store (undefined if the store is empty)
+    public int getMaxCost()
+    {
+        return (int) (this.keys[this.heap[0]] >> 32);
+    }
+
+
+    // Return the geodesics in increasing cost order and empty the store
+    public Geodesic[] toArray(int direction)
+    {
+        Geodesic[] array = new Geodesic[this.size];
+
+        // Heap sort: remove the most expensive geodesic first
+        for (int n=this.size-1; n>=0; n--)
+        {
+            final int slot = this.heap[0];
+            Geodesic geodesic = new Geodesic(direction, this.length);
+            geodesic.cost = (int) (this.keys[slot] >> 32);
+            System.arraycopy(this.positions, slot*this.length, geodesic.positions, 0, this.length);
+            array[n] = geodesic;
+
+            if (n > 0)
+                this.siftDown(this.heap[n], n);
+
+            this.free[this.nbFree++] = slot;
+        }
+
+        this.size = 0;
+        return array;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import kanzi.SliceIntArray;
+import kanzi.IntFilter;
+import kanzi.filter.BilateralGridFilter;
+
+
+// Check that BilateralGridFilter gives the same output with one task and with
+// several tasks (in the calling thread or with an executor), in place and out
+// of place, including grids larger than MAX_GRID_SIZE (processed in chunks).
+// Only the filtered channels are compared (the other channels of the output
+// are left untouched by the filter).
+public class TestBilateralGridFilter
+{
+   public static void main(String[] args)
+   {
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      boolean res = true;
+
+      try
+      {
+         // width, height, sigmaR, sigmaD (the grid of the last one is chunked)
+         final int[][] params = { { 64, 48, 4, 4 }, { 333, 97, 8, 3 }, { 200, 120, 20, 16 },
+            { 129, 8, 2, 1 }, { 400, 120, 1, 1 } };
+
+         for (int[] p : params)
+         {
+            for (int channels=1; channels<=3; channels++)
+               res &= test(p[0], p[1], p[2], p[3], channels, pool);
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean test(int w, int h, int sigmaR, int sigmaD, int channels,
+           ExecutorService pool)
+   {
+      System.out.println("Test "+w+"x"+h+" sigmaR="+sigmaR+" sigmaD="+sigmaD+" channels="+channels);
+      final int st = w + 3;
+      final int[] image = createImage(w, h, st);
+
+      final int[] expected = new int[image.length];
+      final int mask = (1 << (8*channels)) - 1;
+      boolean res = true;
+
+      if (apply(new BilateralGridFilter(w, h, st, sigmaR, sigmaD, channels, null, 1),
+         image, expected, false) == false)
+      {
+         System.out.println("Reference: apply failed FAILED");
+         return false;
+      }
+
+      for (int i=0; i<expected.length; i++)
+         expected[i] &= mask;
+
+      res &= check("1 task - in place", expected, image,
+         new BilateralGridFilter(w, h, st, sigmaR, sigmaD, channels, null, 1), true, mask);
+      res &= check("4 tasks - calling thread", expected, image,
+         new BilateralGridFilter(w, h, st, sigmaR, sigmaD, channels, null, 4), false, mask);
+      res &= check("3 tasks - executor", expected, image,
+         new BilateralGridFilter(w, h, st, sigmaR, sigmaD, channels, pool, 3), false, mask);
+      res &= check("8 tasks - executor - in place", expected, image,
+         new BilateralGridFilter(w, h, st, sigmaR, sigmaD, channels, pool, 8), true, mask);
+
+      // The filter is reused: the grid must be reset between frames
+      final IntFilter filter = new BilateralGridFilter(w, h, st, sigmaR, sigmaD, channels, pool, 4);
+      res &= check("4 tasks - executor - run 1", expected, image, filter, false, mask);
+      res &= check("4 tasks - executor - run 2", expected, image, filter, false, mask);
+      return res;
+   }
+
+
+   private static boolean check(String title, int[] expected, int[] image, IntFilter filter,
+           boolean inPlace, int mask)
+   {
+      final int[] output = new int[image.length];
+
+      if (apply(filter, image, output, inPlace) == false)
+      {
+         System.out.println(title+": apply failed FAILED");
+         return false;
+      }
+
+      int diffs = 0;
+
+      for (int i=0; i<output.length; i++)
+      {
+         if ((output[i] & mask) != expected[i])
+            diffs++;
+      }
+
+      System.out.println(title+" - different pixels: "+diffs+((diffs == 0) ? "" : " FAILED"));
+      return diffs == 0;
+   }
+
+
+   private static boolean apply(IntFilter filter, int[] image, int[] output, boolean inPlace)
+   {
+      if (inPlace == true)
+      {
+         System.arraycopy(image, 0, output, 0, image.length);
+         return filter.apply(new SliceIntArray(output, 0), new SliceIntArray(output, 0));
+      }
+
+      final int[] input = Arrays.copyOf(image, image.length);
+      return filter.apply(new SliceIntArray(input, 0), new SliceIntArray(output, 0));
+   }
+
+
+   // Flat regions with sharp edges (kept by the filter) and some noise
+   private static int[] createImage(int w, int h, int st)
+   {
+      final int[] image = new int[st*h];
+      final Random rnd = new Random(w*h);
+
+      for (int y=0; y<h; y++)
+      {
+         for (int x=0; x<w; x++)
+         {
+            final int r = ((x < w/3) ? 40 : 200) + rnd.nextInt(16);
+            final int g = ((y < h/2) ? 90 : 160) + rnd.nextInt(16);
+            final int b = (((x/16 + y/16) & 1) == 0) ? 30 + (x & 31) : 220 - (y & 31);
+            image[y*st+x] = (r << 16) | (g << 8) | b;
+         }
+      }
+
+      return image;
+   }
+}
@@ -0,0 +1,186 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import kanzi.IntTransform;
+import kanzi.SliceIntArray;
+import kanzi.transform.BlockTransformer;
+import kanzi.transform.DCT16;
+import kanzi.transform.DCT32;
+import kanzi.transform.DCT4;
+import kanzi.transform.DCT8;
+import kanzi.transform.DST4;
+import kanzi.transform.WHT16;
+import kanzi.transform.WHT32;
+import kanzi.transform.WHT4;
+import kanzi.transform.WHT8;
+
+
+// Compare BlockTransformer to the block transforms applied to each block
+// gathered from the frame: forward and inverse, for a region of a larger
+// frame (stride and offset), in place and with concurrent tasks. The samples
+// outside of the region must be left untouched.
+public class TestBlockTransformer
+{
+   private static final int SENTINEL = 0x5A5A5A5A;
+
+
+   public static void main(String[] args)
+   {
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      boolean res = true;
+
+      try
+      {
+         // type, block dimension
+         final int[][] transforms = { { BlockTransformer.DCT, 4 }, { BlockTransformer.DCT, 8 },
+            { BlockTransformer.DCT, 16 }, { BlockTransformer.DCT, 32 }, { BlockTransformer.WHT, 4 },
+            { BlockTransformer.WHT, 8 }, { BlockTransformer.WHT, 16 }, { BlockTransformer.WHT, 32 },
+            { BlockTransformer.DST, 4 } };
+
+         for (int[] t : transforms)
+         {
+            final int d = t[1];
+            res &= test(t[0], d, 2*d, d, 2*d, 0, pool);
+            res &= test(t[0], d, 96, 64, 96, 0, pool);
+            res &= test(t[0], d, 160, 96, 173, 11, pool);
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean test(int type, int dim, int w, int h, int st, int offset,
+           ExecutorService pool)
+   {
+      final String name = (type == BlockTransformer.DCT) ? "DCT" : ((type == BlockTransformer.WHT) ? "WHT" : "DST");
+      System.out.println("Test "+name+dim+" "+w+"x"+h+" stride="+st+" offset="+offset);
+      final Random rnd = new Random(w*h+dim);
+      final int[] frame = new int[offset+st*h+5];
+      Arrays.fill(frame, SENTINEL);
+
+      for (int j=0; j<h; j++)
+      {
+         for (int i=0; i<w; i++)
+            frame[offset+j*st+i] = rnd.nextInt(256) - 128;
+      }
+
+      final int[] expectedCoeffs = transformBlocks(frame, type, dim, w, h, st, offset, true);
+      final int[] expectedPixels = transformBlocks(expectedCoeffs, type, dim, w, h, st, offset, false);
+      boolean res = true;
+
+      for (int nbTasks : new int[] { 1, 3, 64 })
+      {
+         final BlockTransformer bt = new BlockTransformer(w, h, st, type, dim,
+            (nbTasks == 1) ? null : pool, nbTasks);
+
+         for (int inPlace=0; inPlace<2; inPlace++)
+         {
+            final String title = nbTasks+" task(s)"+((inPlace == 1) ? " - in place" : "");
+            final int[] coeffs = (inPlace == 1) ? frame.clone() : filled(frame.length);
+            final int[] pixels = (inPlace == 1) ? coeffs : filled(frame.length);
+            final int[] input = (inPlace == 1) ? coeffs : frame.clone();
+            res &= check(title+" - forward", bt.forward(slice(input, offset), slice(coeffs, offset))
+               && Arrays.equals(expectedCoeffs, coeffs));
+            res &= check(title+" - inverse", bt.inverse(slice(coeffs, offset), slice(pixels, offset))
+               && Arrays.equals(expectedPixels, pixels));
+         }
+      }
+
+      return res;
+   }
+
+
+   // Reference: gather each block, transform it and scatter the result into
+   // a copy of the input (the samples outside of the region are kept)
+   private static int[] transformBlocks(int[] input, int type, int dim, int w, int h,
+           int st, int offset, boolean forward)
+   {
+      final int[] output = input.clone();
+      final IntTransform transform = createTransform(type, dim);
+      final int[] block = new int[dim*dim];
+      final int[] coeffs = new int[dim*dim];
+
+      for (int y=0; y<h; y+=dim)
+      {
+         for (int x=0; x<w; x+=dim)
+         {
+            for (int j=0; j<dim; j++)
+               System.arraycopy(input, offset+(y+j)*st+x, block, j*dim, dim);
+
+            final SliceIntArray sa1 = new SliceIntArray(block, block.length, 0);
+            final SliceIntArray sa2 = new SliceIntArray(coeffs, coeffs.length, 0);
+
+            if (forward == true)
+               transform.forward(sa1, sa2);
+            else
+               transform.inverse(sa1, sa2);
+
+            for (int j=0; j<dim; j++)
+               System.arraycopy(coeffs, j*dim, output, offset+(y+j)*st+x, dim);
+         }
+      }
+
+      return output;
+   }
+
+
+   private static IntTransform createTransform(int type, int dim)
+   {
+      if (type == BlockTransformer.DST)
+         return new DST4();
+
+      if (type == BlockTransformer.WHT)
+         return (dim == 4) ? new WHT4() : ((dim == 8) ? new WHT8() : ((dim == 16) ? new WHT16() : new WHT32()));
+
+      return (dim == 4) ? new DCT4() : ((dim == 8) ? new DCT8() : ((dim == 16) ? new DCT16() : new DCT32()));
+   }
+
+
+   // Only the failures are printed
+   private static boolean check(String title, boolean ok)
+   {
+      if (ok == false)
+         System.out.println(title+": different output FAILED");
+
+      return ok;
+   }
+
+
+   private static int[] filled(int length)
+   {
+      final int[] array = new int[length];
+      Arrays.fill(array, SENTINEL);
+      return array;
+   }
+
+
+   private static SliceIntArray slice(int[] array, int offset)
+   {
+      return new SliceIntArray(array, array.length-offset, offset);
+   }
+}
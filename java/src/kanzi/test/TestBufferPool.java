@@ -0,0 +1,289 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import kanzi.SliceIntArray;
+import kanzi.IntFilter;
+import kanzi.filter.FastBilateralFilter;
+import kanzi.filter.GaussianFilter;
+import kanzi.filter.MSSSaliencyFilter;
+import kanzi.filter.seam.ContextResizer;
+import kanzi.util.BufferPool;
+import kanzi.util.image.ImageUtils;
+
+
+// Check the accounting of BufferPool (single and multi threaded) and that the
+// filters built with a pool give the same output as the filters without pool
+// (the pooled arrays are reused with stale content)
+public class TestBufferPool
+{
+   public static void main(String[] args)
+   {
+      boolean res = true;
+      res &= testLeases();
+      res &= testRetainedLimit();
+      res &= testConcurrentLeases(8, 20000);
+      res &= testPooledFilters(200, 120);
+      res &= testPooledFilters(336, 96);
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean testLeases()
+   {
+      System.out.println("Test leases");
+      final BufferPool pool = new BufferPool();
+      boolean res = true;
+
+      BufferPool.Lease<int[]> lease1 = pool.leaseInts(100);
+      res &= check("Leased int array length", 100, lease1.array.length);
+      final int[] array = lease1.array;
+      lease1.close();
+      lease1.close(); // no effect
+      res &= check("Retained bytes after double close", 400L, pool.getRetainedBytes());
+
+      BufferPool.Lease<int[]> lease2 = pool.leaseInts(100);
+      res &= check("Pooled array reused", true, lease2.array == array);
+      BufferPool.Lease<int[]> lease3 = pool.leaseInts(100);
+      res &= check("Distinct arrays for live leases", true, lease3.array != lease2.array);
+      BufferPool.Lease<byte[]> lease4 = pool.leaseBytes(100);
+      BufferPool.Lease<float[]> lease5 = pool.leaseFloats(100);
+      res &= check("Leased byte array length", 100, lease4.array.length);
+      res &= check("Leased float array length", 100, lease5.array.length);
+      res &= check("Hits", 1L, pool.getHits());
+      res &= check("Misses", 4L, pool.getMisses());
+      lease2.close();
+      lease3.close();
+      lease4.close();
+      lease5.close();
+      res &= check("Retained bytes", 4L*100+4L*100+100+4L*100, pool.getRetainedBytes());
+      pool.clear();
+      res &= check("Retained bytes after clear", 0L, pool.getRetainedBytes());
+
+      try (BufferPool.Lease<int[]> lease = pool.leaseInts(100))
+      {
+         res &= check("Allocation after clear", 5L, pool.getMisses());
+         res &= check("New array after clear", true, lease.array != array);
+      }
+
+      res &= check("Retained bytes after try-with-resources", 400L, pool.getRetainedBytes());
+
+      return res;
+   }
+
+
+   // Arrays released beyond the limit are dropped
+   private static boolean testRetainedLimit()
+   {
+      System.out.println("Test retained bytes limit");
+      final BufferPool pool = new BufferPool(1000);
+      boolean res = true;
+      BufferPool.Lease<int[]> lease1 = pool.leaseInts(200);
+      BufferPool.Lease<int[]> lease2 = pool.leaseInts(200);
+      BufferPool.Lease<int[]> lease3 = pool.leaseInts(300);
+      lease1.close();
+      lease2.close();
+      lease3.close();
+      res &= check("Retained bytes", 800L, pool.getRetainedBytes());
+      res &= check("Drops", 2L, pool.getDrops());
+      return res;
+   }
+
+
+   // Several threads lease and release arrays of a few lengths. A leased array
+   // must not be handed to another thread before it is released, and the
+   // counters must add up.
+   private static boolean testConcurrentLeases(final int nbThreads, final int iterations)
+   {
+      System.out.println("Test concurrent leases ("+nbThreads+" threads)");
+      final BufferPool pool = new BufferPool(64*1024);
+      final AtomicInteger conflicts = new AtomicInteger();
+      final Thread[] threads = new Thread[nbThreads];
+      boolean res = true;
+
+      for (int t=0; t<nbThreads; t++)
+      {
+         final int id = t + 1;
+
+         threads[t] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               final Random rnd = new Random(id);
+
+               for (int i=0; i<iterations; i++)
+               {
+                  try (BufferPool.Lease<int[]> lease = pool.leaseInts(64 << rnd.nextInt(6)))
+                  {
+                     final int[] array = lease.array;
+                     Arrays.fill(array, id);
+                     Thread.yield();
+
+                     for (int j=0; j<array.length; j++)
+                     {
+                        if (array[j] != id)
+                        {
+                           conflicts.incrementAndGet();
+                           break;
+                        }
+                     }
+                  }
+               }
+            }
+         };
+
+         threads[t].start();
+      }
+
+      for (Thread thread : threads)
+      {
+         try
+         {
+            thread.join();
+         }
+         catch (InterruptedException e)
+         {
+            return false;
+         }
+      }
+
+      res &= check("Arrays shared by live leases", 0, conflicts.get());
+      res &= check("Hits + misses", (long) nbThreads*iterations, pool.getHits()+pool.getMisses());
+      res &= check("Retained bytes within limit", true, pool.getRetainedBytes() <= pool.getMaxRetainedBytes());
+      return res;
+   }
+
+
+   private static boolean testPooledFilters(int w, int h)
+   {
+      System.out.println("Test pooled filters "+w+"x"+h);
+      final int[] image = createImage(w, h);
+      final BufferPool pool = new BufferPool();
+      boolean res = true;
+
+      // Each pooled filter runs twice: the second run gets arrays with stale content
+      for (int run=0; run<2; run++)
+      {
+         res &= compare("GaussianFilter - run "+run, image,
+            new GaussianFilter(w, h, w, 48, 3),
+            new GaussianFilter(w, h, w, 48, 3, pool));
+         res &= compare("FastBilateralFilter - run "+run, image,
+            new FastBilateralFilter(w, h, w, 30.0f, 6.0f, 4, 3, 3),
+            new FastBilateralFilter(w, h, w, 30.0f, 6.0f, 4, 3, 3, pool));
+         res &= compare("MSSSaliencyFilter - run "+run, image,
+            new MSSSaliencyFilter(w, h, w, true, MSSSaliencyFilter.IMAGE),
+            new MSSSaliencyFilter(w, h, w, true, MSSSaliencyFilter.IMAGE, pool));
+
+         // Both directions: the intermediate frame is leased
+         final int dirs = ContextResizer.VERTICAL | ContextResizer.HORIZONTAL;
+         res &= compare("ContextResizer - run "+run, image,
+            new ContextResizer(w, h, w, dirs, -100, Math.max(w, h), false, false, null, 256),
+            new ContextResizer(w, h, w, dirs, -100, Math.max(w, h), false, false, null, 256, pool));
+
+         final int[] data1 = Arrays.copyOf(image, image.length);
+         final int[] data2 = Arrays.copyOf(image, image.length);
+         new ImageUtils(w, h, w).rotate90(data1);
+         new ImageUtils(w, h, w, pool).rotate90(data2);
+         res &= check("ImageUtils.rotate90 - run "+run+" - different pixels", 0, countDiffs(data1, data2));
+      }
+
+      return res;
+   }
+
+
+   private static boolean compare(String title, int[] image, IntFilter reference, IntFilter filter)
+   {
+      final int[] src1 = Arrays.copyOf(image, image.length);
+      final int[] src2 = Arrays.copyOf(image, image.length);
+      final int[] dst1 = new int[image.length];
+      final int[] dst2 = new int[image.length];
+      final boolean ok1 = reference.apply(new SliceIntArray(src1, 0), new SliceIntArray(dst1, 0));
+      final boolean ok2 = filter.apply(new SliceIntArray(src2, 0), new SliceIntArray(dst2, 0));
+
+      if ((ok1 == false) || (ok2 == false))
+      {
+         System.out.println(title+": apply failed FAILED");
+         return false;
+      }
+
+      return check(title+" - different pixels", 0, countDiffs(dst1, dst2));
+   }
+
+
+   // Smooth gradients, a few disks and some noise
+   private static int[] createImage(int w, int h)
+   {
+      final int[] image = new int[w*h];
+      final Random rnd = new Random(w*h);
+
+      for (int y=0; y<h; y++)
+      {
+         for (int x=0; x<w; x++)
+         {
+            int r = (255*x) / w;
+            int g = (255*y) / h;
+            int b = ((x*y) >> 4) & 0xFF;
+
+            for (int k=1; k<=3; k++)
+            {
+               final int dx = x - (k*w)/4;
+               final int dy = y - (k*h)/4;
+
+               if (dx*dx+dy*dy < (w*h)/(16*k))
+               {
+                  r = 255 - r;
+                  b = (64*k) & 0xFF;
+               }
+            }
+
+            r = Math.min(Math.max(r+rnd.nextInt(9)-4, 0), 255);
+            g = Math.min(Math.max(g+rnd.nextInt(9)-4, 0), 255);
+            b = Math.min(Math.max(b+rnd.nextInt(9)-4, 0), 255);
+            image[y*w+x] = (r << 16) | (g << 8) | b;
+         }
+      }
+
+      return image;
+   }
+
+
+   private static int countDiffs(int[] data1, int[] data2)
+   {
+      int diffs = 0;
+
+      for (int i=0; i<Math.min(data1.length, data2.length); i++)
+      {
+         if (data1[i] != data2[i])
+            diffs++;
+      }
+
+      return diffs + Math.abs(data1.length-data2.length);
+   }
+
+
+   private static boolean check(String title, Object expected, Object actual)
+   {
+      final boolean res = expected.equals(actual);
+      System.out.println(title+": "+actual+((res == true) ? "" : " (expected "+expected+") FAILED"));
+      return res;
+   }
+}
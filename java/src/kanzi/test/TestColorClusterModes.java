@@ -0,0 +1,257 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import kanzi.SliceIntArray;
+import kanzi.filter.ColorClusterFilter;
+
+
+// Check the modes of ColorClusterFilter: the output of the assignment step
+// split into concurrent bands must be identical to the sequential output.
+// The quad-tree seeding places random centroids when the image is too small
+// for the number of clusters, so these cases use explicit centroids.
+// In warm start mode, the first frame and the frames after a scene change
+// must be identical to the default mode. The following frames start from the
+// clusters of the previous frame (fewer iterations) and the distance of the
+// output to the input must stay close to the distance for the first frame.
+public class TestColorClusterModes
+{
+   public static void main(String[] args)
+   {
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      boolean res = true;
+
+      try
+      {
+         res &= testBands(64, 48, 8, false, pool);
+         res &= testBands(64, 48, 30, true, pool);
+         res &= testBands(200, 120, 30, false, pool);
+         res &= testBands(336, 96, 64, false, pool);
+         res &= testBands(512, 384, 64, false, pool);
+         res &= testWarmStart(200, 120, 30, pool);
+         res &= testWarmStart(512, 384, 64, pool);
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean testBands(int w, int h, int nbClusters, boolean explicit,
+           ExecutorService pool)
+   {
+      System.out.println("Test bands "+w+"x"+h+" - "+nbClusters+" clusters"+
+         ((explicit == true) ? " - explicit centroids" : ""));
+      final int[] image = createImage(w, h);
+      final int[] xy = (explicit == true) ? createCentroids(w, h, nbClusters) : null;
+      final ColorClusterFilter reference = new ColorClusterFilter(w, h, w, nbClusters, 16, xy);
+      final int[] expected = apply(reference, image);
+      final int[] expectedXY = new int[nbClusters];
+      reference.getCentroids(expectedXY);
+      boolean res = true;
+
+      for (int nbTasks : new int[] { 1, 2, 3, 5, 64 })
+      {
+         final String title = nbTasks+" task(s)";
+         final ColorClusterFilter filter = new ColorClusterFilter(w, h, w, nbClusters, 16,
+            (xy == null) ? null : xy.clone(), null, pool, nbTasks);
+         final int[] centroidsXY = new int[nbClusters];
+
+         // The second run starts again from the seeding (explicit centroids
+         // are replaced by the centroids of the first run)
+         final int nbRuns = (explicit == true) ? 1 : 2;
+
+         for (int run=0; run<nbRuns; run++)
+         {
+            final int[] output = apply(filter, image);
+            filter.getCentroids(centroidsXY);
+            res &= check(title+" - run "+run+" - same pixels", Arrays.equals(expected, output));
+            res &= check(title+" - run "+run+" - same centroids", Arrays.equals(expectedXY, centroidsXY));
+            res &= check(title+" - run "+run+" - same iterations",
+               reference.getIterations() == filter.getIterations());
+         }
+      }
+
+      return res;
+   }
+
+
+   private static boolean testWarmStart(int w, int h, int nbClusters, ExecutorService pool)
+   {
+      System.out.println("Test warm start "+w+"x"+h+" - "+nbClusters+" clusters");
+      final int nbFrames = 8;
+      final int[][] frames = new int[nbFrames][];
+
+      // A moving disk, then a scene change (darker colors) at frame 5
+      for (int n=0; n<nbFrames; n++)
+         frames[n] = createFrame(w, h, n, n >= 5);
+
+      final ColorClusterFilter warm1 = new ColorClusterFilter(w, h, w, nbClusters, 16);
+      final ColorClusterFilter warm4 = new ColorClusterFilter(w, h, w, nbClusters, 16, null, null, pool, 4);
+      warm1.setWarmStart(true);
+      warm4.setWarmStart(true);
+      double sceneError = 0;
+      boolean res = true;
+
+      for (int n=0; n<nbFrames; n++)
+      {
+         final ColorClusterFilter cold = new ColorClusterFilter(w, h, w, nbClusters, 16);
+         final int[] expected = apply(cold, frames[n]);
+         final int[] output1 = apply(warm1, frames[n]);
+         final int[] output4 = apply(warm4, frames[n]);
+         final String title = "Frame "+n;
+
+         // The bands do not change the output in warm start mode either
+         res &= check(title+" - 4 tasks - same pixels", Arrays.equals(output1, output4));
+
+         if ((n == 0) || (n == 5))
+         {
+            sceneError = meanDistance(frames[n], output1);
+            res &= check(title+" - new scene - same pixels", Arrays.equals(expected, output1));
+            res &= check(title+" - new scene - same iterations",
+               cold.getIterations() == warm1.getIterations());
+         }
+         else
+         {
+            res &= check(title+" - iterations <= default mode",
+               warm1.getIterations() <= cold.getIterations());
+
+            // Warm frames continue the clustering of the first frame of the
+            // scene: the error must stay close to the error of that frame
+            final double error = meanDistance(frames[n], output1);
+            res &= check(title+" - error close to first frame of scene", error < 1.2*sceneError);
+         }
+      }
+
+      // Leaving warm start mode: default mode output
+      warm1.setWarmStart(false);
+      final int[] expected = apply(new ColorClusterFilter(w, h, w, nbClusters, 16), frames[2]);
+      res &= check("Warm start disabled - same pixels", Arrays.equals(expected, apply(warm1, frames[2])));
+      return res;
+   }
+
+
+   // The test image with a moving disk and some noise
+   private static int[] createFrame(int w, int h, int n, boolean dark)
+   {
+      final int[] frame = createImage(w, h);
+      final Random rnd = new Random(n);
+      final int cx = w/8 + n*(w/32);
+      final int cy = h/2;
+      final int radius = h/6;
+
+      for (int y=0; y<h; y++)
+      {
+         for (int x=0; x<w; x++)
+         {
+            int pixel = frame[y*w+x];
+
+            if ((x-cx)*(x-cx) + (y-cy)*(y-cy) < radius*radius)
+               pixel = 0xE03020;
+
+            if (rnd.nextInt(8) == 0)
+               pixel ^= 0x010101;
+
+            frame[y*w+x] = (dark == true) ? (pixel >> 2) & 0x3F3F3F : pixel;
+         }
+      }
+
+      return frame;
+   }
+
+
+   private static double meanDistance(int[] image1, int[] image2)
+   {
+      double sum = 0;
+
+      for (int i=0; i<image1.length; i++)
+      {
+         final int dr = ((image1[i] >> 16) & 0xFF) - ((image2[i] >> 16) & 0xFF);
+         final int dg = ((image1[i] >> 8) & 0xFF) - ((image2[i] >> 8) & 0xFF);
+         final int db = (image1[i] & 0xFF) - (image2[i] & 0xFF);
+         sum += Math.sqrt(dr*dr + dg*dg + db*db);
+      }
+
+      return sum / image1.length;
+   }
+
+
+   // Regular grid of centroids (packed x, y)
+   private static int[] createCentroids(int w, int h, int nbClusters)
+   {
+      final int[] xy = new int[nbClusters];
+      final int cols = (int) Math.ceil(Math.sqrt(nbClusters));
+      final int rows = (nbClusters+cols-1) / cols;
+
+      for (int i=0; i<nbClusters; i++)
+      {
+         final int x = ((2*(i%cols)+1)*w) / (2*cols);
+         final int y = ((2*(i/cols)+1)*h) / (2*rows);
+         xy[i] = (x << 16) | y;
+      }
+
+      return xy;
+   }
+
+
+   private static int[] apply(ColorClusterFilter filter, int[] image)
+   {
+      final int[] input = Arrays.copyOf(image, image.length);
+      final int[] output = new int[image.length];
+
+      if (filter.apply(new SliceIntArray(input, 0), new SliceIntArray(output, 0)) == false)
+         return new int[0];
+
+      return output;
+   }
+
+
+   // Color patches with soft transitions and some noise
+   private static int[] createImage(int w, int h)
+   {
+      final int[] image = new int[w*h];
+      final Random rnd = new Random(w*h);
+
+      for (int y=0; y<h; y++)
+      {
+         for (int x=0; x<w; x++)
+         {
+            final int r = (x < w/2) ? 60 + (x*100)/w : 230 - (y*80)/h;
+            final int g = ((x*y) / (w+h)) & 0xFF;
+            final int b = (y < h/3) ? 200 : ((x > (2*w)/3) ? 20 : 120);
+            image[y*w+x] = ((r+rnd.nextInt(8)) << 16) | ((g ^ rnd.nextInt(8)) << 8) | (b+rnd.nextInt(8));
+         }
+      }
+
+      return image;
+   }
+
+
+   private static boolean check(String title, boolean ok)
+   {
+      System.out.println(title+": "+((ok == true) ? "OK" : "FAILED"));
+      return ok;
+   }
+}
@@ -0,0 +1,177 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import kanzi.ColorModelType;
+import kanzi.util.color.ColorModelConverter;
+import kanzi.util.color.ColorModelConverterFactory;
+import kanzi.util.color.ParallelColorModelConverter;
+import kanzi.util.color.VectorColorModelConverters;
+
+
+// Compare the SIMD color model converters to the scalar converters and the
+// ParallelColorModelConverter to the conversion of the whole frame, in both
+// directions, for all the converters and chroma formats (with an RGB offset
+// and a stride larger than the width).
+// Run with: java --add-modules jdk.incubator.vector (and the SIMD classes in
+// the classpath), else the scalar converters are compared to themselves.
+public class TestColorModelConverters
+{
+   private static final String[] NAMES = { "YCbCr", "YSbSr", "YIQ", "YCoCg", "ReversibleYUV" };
+
+   private static final ColorModelType[] TYPES = { ColorModelType.YUV444,
+      ColorModelType.YUV422, ColorModelType.YUV420 };
+
+
+   public static void main(String[] args)
+   {
+      if (VectorColorModelConverters.isAvailable() == false)
+         System.out.println("Warning: SIMD converters not available, testing the scalar converters");
+
+      // width, height, RGB offset, stride
+      final int[][] dims = { { 64, 48, 0, 64 }, { 72, 40, 5, 88 }, { 256, 136, 0, 256 } };
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      boolean res = true;
+
+      try
+      {
+         for (int[] dim : dims)
+         {
+            final int w = dim[0];
+            final int h = dim[1];
+            final int offset = dim[2];
+            final int st = dim[3];
+
+            for (String name : NAMES)
+            {
+               System.out.println("Test "+name+" "+w+"x"+h+" - offset="+offset+" stride="+st);
+               final ColorModelConverterFactory scalar = VectorColorModelConverters.newFactory(name, false);
+               final ColorModelConverterFactory vector = VectorColorModelConverters.newFactory(name, true);
+
+               for (ColorModelType type : TYPES)
+               {
+                  res &= compare(name+" "+type+" - SIMD", w, h, offset, st, type,
+                     scalar.create(w, h, offset, st), vector.create(w, h, offset, st));
+
+                  for (int nbTasks : new int[] { 1, 3, 4 })
+                  {
+                     res &= compare(name+" "+type+" - parallel ("+nbTasks+" tasks)", w, h, offset, st, type,
+                        vector.create(w, h, offset, st),
+                        new ParallelColorModelConverter(w, h, offset, st, vector, pool, nbTasks));
+                  }
+               }
+            }
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   // RGB to YUV with both converters, then YUV to RGB (from the same YUV frame).
+   // A type not supported by the reference must not be supported by the other
+   // converter. Only the failures are printed.
+   private static boolean compare(String title, int w, int h, int offset, int st,
+           ColorModelType type, ColorModelConverter reference, ColorModelConverter cvt)
+   {
+      final int rgbLength = offset + st*h;
+      final int lumaSize = ((type == ColorModelType.YUV420) ? st : w) * h;
+      final int chromaSize = (type == ColorModelType.YUV444) ? w*h :
+         ((type == ColorModelType.YUV422) ? (w>>1)*h : (w>>1)*(h>>1));
+      final Random rnd = new Random(w*h+offset);
+      final int[] rgb = new int[rgbLength];
+
+      for (int i=0; i<rgbLength; i++)
+         rgb[i] = ((i & 15) == 0) ? rnd.nextInt(1<<24) : (((i*7) & 0xFF) << 16) | ((i>>3) & 0xFF00) | rnd.nextInt(64);
+
+      final int[] y1 = new int[lumaSize];
+      final int[] u1 = new int[chromaSize];
+      final int[] v1 = new int[chromaSize];
+      final int[] y2 = new int[lumaSize];
+      final int[] u2 = new int[chromaSize];
+      final int[] v2 = new int[chromaSize];
+      final boolean ok1 = reference.convertRGBtoYUV(rgb, y1, u1, v1, type);
+      final boolean ok2 = cvt.convertRGBtoYUV(rgb, y2, u2, v2, type);
+
+      if (ok1 != ok2)
+      {
+         System.out.println(title+" - RGB to YUV supported: "+ok2+" (expected "+ok1+") FAILED");
+         return false;
+      }
+
+      if (ok1 == false)
+         return true;
+
+      final int diffsYUV = countDiffs(y1, y2) + countDiffs(u1, u2) + countDiffs(v1, v2);
+
+      if (diffsYUV != 0)
+      {
+         System.out.println(title+" - RGB to YUV - different samples: "+diffsYUV+" FAILED");
+         return false;
+      }
+
+      // The pixels outside of the frame must not be modified
+      final int[] rgb1 = new int[rgbLength];
+      final int[] rgb2 = new int[rgbLength];
+
+      for (int i=0; i<rgbLength; i++)
+      {
+         rgb1[i] = 0x55AA55;
+         rgb2[i] = 0x55AA55;
+      }
+
+      if ((reference.convertYUVtoRGB(y1, u1, v1, rgb1, type) == false)
+         || (cvt.convertYUVtoRGB(y1, u1, v1, rgb2, type) == false))
+      {
+         System.out.println(title+" - YUV to RGB failed FAILED");
+         return false;
+      }
+
+      final int diffsRGB = countDiffs(rgb1, rgb2);
+
+      if (diffsRGB != 0)
+      {
+         System.out.println(title+" - YUV to RGB - different pixels: "+diffsRGB+" FAILED");
+         return false;
+      }
+
+      return true;
+   }
+
+
+   // Both arrays have the same length
+   private static int countDiffs(int[] data1, int[] data2)
+   {
+      int diffs = 0;
+
+      for (int i=0; i<data1.length; i++)
+      {
+         if (data1[i] != data2[i])
+            diffs++;
+      }
+
+      return diffs;
+   }
+}
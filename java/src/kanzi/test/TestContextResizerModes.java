@@ -0,0 +1,325 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import kanzi.SliceIntArray;
+import kanzi.filter.seam.ContextResizer;
+import kanzi.filter.seam.Geodesic;
+
+
+// Check the concurrent geodesic search of ContextResizer: one search task
+// with an executor must give the output of the sequential search, several
+// tasks must give the same (valid) geodesics with any executor and the number
+// of tasks must follow the executor.
+// Iterative shrinking (shrinkTo) updates the cost map around the removed
+// geodesics: the frame must be identical to the frame shrunk by the same
+// steps with a full computation of the cost map (shrinkStep).
+// In large image mode (no stored cost map), the geodesics must be valid and
+// must not depend on the number of cost tasks, and shrinkTo must give the
+// frame shrunk by the same steps with shrinkStep.
+public class TestContextResizerModes
+{
+   public static void main(String[] args)
+   {
+      final ExecutorService pool = Executors.newFixedThreadPool(3);
+      final ForkJoinPool fjPool = new ForkJoinPool(5);
+      boolean res = true;
+
+      try
+      {
+         res &= testNbTasks(pool, fjPool);
+         res &= testConcurrentSearch(400, 300, ContextResizer.VERTICAL, pool, fjPool);
+         res &= testConcurrentSearch(400, 300, ContextResizer.HORIZONTAL, pool, fjPool);
+         res &= testConcurrentSearch(256, 256, ContextResizer.VERTICAL | ContextResizer.HORIZONTAL,
+            pool, fjPool);
+         res &= testShrinkTo(320, 200, ContextResizer.VERTICAL, 240, null);
+         res &= testShrinkTo(320, 200, ContextResizer.HORIZONTAL, 150, null);
+         res &= testShrinkTo(400, 300, ContextResizer.VERTICAL, 300, pool);
+         res &= testShrinkTo(400, 300, ContextResizer.HORIZONTAL, 200, pool);
+         res &= testLargeImage(400, 300, ContextResizer.VERTICAL, pool);
+         res &= testLargeImage(400, 300, ContextResizer.HORIZONTAL, pool);
+         res &= testLargeImage(4200, 24, ContextResizer.VERTICAL, pool);
+      }
+      finally
+      {
+         pool.shutdown();
+         fjPool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean testNbTasks(ExecutorService pool, ForkJoinPool fjPool)
+   {
+      System.out.println("Test number of tasks");
+      final int dir = ContextResizer.VERTICAL;
+      boolean res = true;
+      res &= check("No executor", 1,
+         new ContextResizer(64, 64, 64, dir, -100, 64, false, false, null, 256).getNbTasks());
+      res &= check("Fixed thread pool (3 threads)", 3,
+         new ContextResizer(64, 64, 64, dir, -100, 64, false, false, pool, 256).getNbTasks());
+      res &= check("Fork join pool (parallelism 5)", 5,
+         new ContextResizer(64, 64, 64, dir, -100, 64, false, false, fjPool, 256).getNbTasks());
+      res &= check("Clamped number of tasks", ContextResizer.MAX_TASKS,
+         new ContextResizer(64, 64, 64, dir, -100, 64, false, false, pool, 256, null, 1000).getNbTasks());
+      return res;
+   }
+
+
+   private static boolean testConcurrentSearch(int w, int h, int dir, ExecutorService pool,
+           ForkJoinPool fjPool)
+   {
+      System.out.println("Test concurrent search "+w+"x"+h+" - "+getName(dir));
+      final int[] image = createImage(w, h);
+      final int maxSearches = Math.max(w, h);
+      final ContextResizer sequential = new ContextResizer(w, h, w, dir, -100, maxSearches,
+         false, false, null, 256);
+      final int[] expected = apply(sequential, image);
+      boolean res = true;
+
+      res &= check("1 task - same pixels", Arrays.equals(expected,
+         apply(new ContextResizer(w, h, w, dir, -100, maxSearches, false, false, pool, 256, null, 1), image)));
+
+      // The geodesics depend on the number of tasks, not on the executor
+      final int[] expected4 = apply(new ContextResizer(w, h, w, dir, -100, maxSearches,
+         false, false, pool, 256, null, 4), image);
+      res &= check("4 tasks - fork join pool - same pixels", Arrays.equals(expected4,
+         apply(new ContextResizer(w, h, w, dir, -100, maxSearches, false, false, fjPool, 256, null, 4), image)));
+
+      final ContextResizer resizer = new ContextResizer(w, h, w, dir, -100, maxSearches,
+         false, false, pool, 256, null, 4);
+      res &= check("4 tasks - run 2 - same pixels", Arrays.equals(expected4, apply(resizer, image)));
+
+      if (dir != (ContextResizer.VERTICAL | ContextResizer.HORIZONTAL))
+      {
+         final ContextResizer single = new ContextResizer(w, h, w, dir, -100, maxSearches,
+            false, false, null, 256);
+         final ContextResizer multi = new ContextResizer(w, h, w, dir, -100, maxSearches,
+            false, false, pool, 256, null, 4);
+         final Geodesic[] geodesics1 = single.computeGeodesics(new SliceIntArray(image.clone(), 0), dir);
+         final Geodesic[] geodesics4 = multi.computeGeodesics(new SliceIntArray(image.clone(), 0), dir);
+         final int dim = (dir == ContextResizer.HORIZONTAL) ? h : w;
+         res &= check("1 task - geodesics", dim/10, geodesics1.length);
+         res &= check("4 tasks - geodesics", dim/10, geodesics4.length);
+         res &= check("4 tasks - invalid geodesic positions", 0,
+            checkGeodesics(geodesics4, w, h, dir));
+      }
+
+      return res;
+   }
+
+
+   private static boolean testShrinkTo(int w, int h, int dir, int dim, ExecutorService pool)
+   {
+      System.out.println("Test shrinkTo "+w+"x"+h+" - "+getName(dir)+" - target "+dim+
+         ((pool == null) ? "" : " - 4 tasks"));
+      final int[] image = createImage(w, h);
+      final int maxSearches = Math.max(w, h);
+      boolean res = true;
+
+      for (int fast=0; fast<2; fast++)
+      {
+         for (int step : new int[] { 1, 7, 32 })
+         {
+            final String title = "Step "+step+((fast == 1) ? " - fast mode" : "");
+            final int[] frame1 = Arrays.copyOf(image, image.length);
+            final int[] frame2 = Arrays.copyOf(image, image.length);
+            final ContextResizer resizer1 = new ContextResizer(w, h, w, dir, -100, maxSearches,
+               fast == 1, false, pool, 256, null, 4);
+            final ContextResizer resizer2 = new ContextResizer(w, h, w, dir, -100, maxSearches,
+               fast == 1, false, pool, 256, null, 4);
+            res &= check(title+" - shrinkTo",
+               resizer1.shrinkTo(new SliceIntArray(frame1, 0), dir, dim, step));
+
+            while (true)
+            {
+               final int current = (dir == ContextResizer.HORIZONTAL) ? resizer2.getHeight() : resizer2.getWidth();
+
+               if ((current <= dim)
+                  || (resizer2.shrinkStep(new SliceIntArray(frame2, 0), dir, Math.min(step, current-dim)) == 0))
+                  break;
+            }
+
+            res &= check(title+" - dimension", dim,
+               (dir == ContextResizer.HORIZONTAL) ? resizer1.getHeight() : resizer1.getWidth());
+            res &= check(title+" - same pixels", Arrays.equals(frame2, frame1));
+         }
+      }
+
+      return res;
+   }
+
+
+   private static boolean testLargeImage(int w, int h, int dir, ExecutorService pool)
+   {
+      System.out.println("Test large image mode "+w+"x"+h+" - "+getName(dir));
+      final int[] image = createImage(w, h);
+      final int maxSearches = Math.max(w, h);
+      final int dim = (dir == ContextResizer.HORIZONTAL) ? h : w;
+      final ContextResizer large1 = new ContextResizer(w, h, w, dir, -100, maxSearches,
+         false, false, null, 256, null, 1, true);
+      final ContextResizer large4 = new ContextResizer(w, h, w, dir, -100, maxSearches,
+         false, false, pool, 256, null, 4, true);
+      boolean res = true;
+      res &= check("Large image mode", large4.isLargeImage());
+
+      final Geodesic[] geodesics1 = large1.computeGeodesics(new SliceIntArray(image.clone(), 0), dir);
+      final Geodesic[] geodesics4 = large4.computeGeodesics(new SliceIntArray(image.clone(), 0), dir);
+      res &= check("Geodesics", dim/10, geodesics1.length);
+      res &= check("Invalid geodesic positions", 0, checkGeodesics(geodesics1, w, h, dir));
+      int diffs = (geodesics1.length == geodesics4.length) ? 0 : -1;
+
+      for (int i=0; (diffs >= 0) && (i<geodesics1.length); i++)
+      {
+         if ((geodesics1[i].cost != geodesics4[i].cost)
+            || (Arrays.equals(geodesics1[i].positions, geodesics4[i].positions) == false))
+            diffs++;
+      }
+
+      res &= check("4 cost tasks - different geodesics", 0, diffs);
+      res &= check("4 cost tasks - same pixels", Arrays.equals(
+         apply(new ContextResizer(w, h, w, dir, -100, maxSearches, false, false, null, 256, null, 1, true), image),
+         apply(new ContextResizer(w, h, w, dir, -100, maxSearches, false, false, pool, 256, null, 4, true), image)));
+
+      // Iterative shrinking (the costs are computed again at each step)
+      final int target = dim - dim/5;
+      final int step = Math.max(dim/40, 1);
+      final int[] frame1 = Arrays.copyOf(image, image.length);
+      final int[] frame2 = Arrays.copyOf(image, image.length);
+      final ContextResizer resizer1 = new ContextResizer(w, h, w, dir, -100, maxSearches,
+         false, false, pool, 256, null, 4, true);
+      final ContextResizer resizer2 = new ContextResizer(w, h, w, dir, -100, maxSearches,
+         false, false, null, 256, null, 1, true);
+      res &= check("shrinkTo", resizer1.shrinkTo(new SliceIntArray(frame1, 0), dir, target, step));
+
+      while (true)
+      {
+         final int current = (dir == ContextResizer.HORIZONTAL) ? resizer2.getHeight() : resizer2.getWidth();
+
+         if ((current <= target)
+            || (resizer2.shrinkStep(new SliceIntArray(frame2, 0), dir, Math.min(step, current-target)) == 0))
+            break;
+      }
+
+      res &= check("shrinkTo - dimension", target,
+         (dir == ContextResizer.HORIZONTAL) ? resizer1.getHeight() : resizer1.getWidth());
+      res &= check("shrinkStep - dimension", target,
+         (dir == ContextResizer.HORIZONTAL) ? resizer2.getHeight() : resizer2.getWidth());
+      res &= check("shrinkTo - same pixels", Arrays.equals(frame2, frame1));
+      return res;
+   }
+
+
+   // Return the number of positions out of the frame or shared by geodesics
+   private static int checkGeodesics(Geodesic[] geodesics, int w, int h, int dir)
+   {
+      final int dim = (dir == ContextResizer.HORIZONTAL) ? h : w;
+      final int length = (dir == ContextResizer.HORIZONTAL) ? w : h;
+      int errors = 0;
+
+      for (int line=0; line<length; line++)
+      {
+         final boolean[] used = new boolean[dim];
+
+         for (Geodesic geo : geodesics)
+         {
+            if (geo.positions.length != length)
+               return -1;
+
+            final int pos = geo.positions[line];
+
+            if ((pos < 0) || (pos >= dim) || (used[pos] == true))
+               errors++;
+            else
+               used[pos] = true;
+         }
+      }
+
+      return errors;
+   }
+
+
+   private static String getName(int dir)
+   {
+      if (dir == ContextResizer.VERTICAL)
+         return "vertical";
+
+      if (dir == ContextResizer.HORIZONTAL)
+         return "horizontal";
+
+      return "both directions";
+   }
+
+
+   private static int[] apply(ContextResizer resizer, int[] image)
+   {
+      final int[] input = Arrays.copyOf(image, image.length);
+      final int[] output = new int[image.length];
+
+      if (resizer.apply(new SliceIntArray(input, 0), new SliceIntArray(output, 0)) == false)
+         return new int[0];
+
+      return output;
+   }
+
+
+   // Textured background with a few flat objects (cheap paths around them)
+   private static int[] createImage(int w, int h)
+   {
+      final int[] image = new int[w*h];
+      final Random rnd = new Random(w+h);
+
+      for (int y=0; y<h; y++)
+      {
+         for (int x=0; x<w; x++)
+         {
+            int rgb = ((x*255/w) << 16) | ((y*255/h) << 8) | (((x^y) & 0x3F) + rnd.nextInt(16));
+
+            for (int k=1; k<=3; k++)
+            {
+               if ((Math.abs(x-(k*w)/4) < w/16) && (Math.abs(y-(k*h)/4) < h/8))
+                  rgb = 0x102040*k;
+            }
+
+            image[y*w+x] = rgb;
+         }
+      }
+
+      return image;
+   }
+
+
+   private static boolean check(String title, boolean ok)
+   {
+      System.out.println(title+": "+((ok == true) ? "OK" : "FAILED"));
+      return ok;
+   }
+
+
+   private static boolean check(String title, int expected, int actual)
+   {
+      System.out.println(title+": "+actual+((expected == actual) ? "" : " (expected "+expected+") FAILED"));
+      return expected == actual;
+   }
+}
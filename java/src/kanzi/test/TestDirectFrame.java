@@ -0,0 +1,344 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import kanzi.ColorModelType;
+import kanzi.DirectFrame;
+import kanzi.SliceIntArray;
+import kanzi.filter.BlurFilter;
+import kanzi.filter.GaussianFilter;
+import kanzi.filter.MedianFilter;
+import kanzi.filter.SobelFilter;
+import kanzi.util.color.YCbCrColorModelConverter;
+
+
+// Compare the off heap (DirectFrame) versions of the filters to the heap
+// versions: the input frame has a padded stride and an offset, the output
+// frame another stride. The pixels the heap version does not write must be
+// left untouched. The filters that can run in place are also run on one frame.
+// The off heap version of the YCbCr color model converter is compared the same
+// way (in both directions).
+public class TestDirectFrame
+{
+   private static final int SENTINEL = 0x5A5A5A5A;
+
+
+   public static void main(String[] args)
+   {
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      boolean res = true;
+
+      try
+      {
+         // width, height
+         final int[][] frames = { { 64, 48 }, { 101, 67 }, { 8, 8 }, { 640, 480 } };
+
+         for (int[] f : frames)
+         {
+            System.out.println("Test "+f[0]+"x"+f[1]);
+            res &= testSobel(f[0], f[1]);
+            res &= testBlur(f[0], f[1]);
+            res &= testGaussian(f[0], f[1], pool);
+            res &= testMedian(f[0], f[1], pool);
+
+            // The color model converter requires multiples of 8
+            if (((f[0] & 7) == 0) && ((f[1] & 7) == 0))
+               res &= testYCbCr(f[0], f[1]);
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean testSobel(int w, int h)
+   {
+      final int[] image = createImage(w, h);
+      final int[] directions = { SobelFilter.HORIZONTAL, SobelFilter.VERTICAL,
+         SobelFilter.HORIZONTAL | SobelFilter.VERTICAL };
+      final int[] channels = { SobelFilter.THREE_CHANNELS, SobelFilter.R_CHANNEL,
+         SobelFilter.G_CHANNEL, SobelFilter.B_CHANNEL };
+      int diffs = 0;
+
+      for (int direction : directions)
+      {
+         for (int chans : channels)
+         {
+            for (int type : new int[] { SobelFilter.IMAGE, SobelFilter.COST })
+            {
+               for (int boundaries=0; boundaries<2; boundaries++)
+               {
+                  final SobelFilter heap = new SobelFilter(w, h, w, direction, chans, type, boundaries == 1);
+                  final SobelFilter direct = new SobelFilter(w, h, w, direction, chans, type, boundaries == 1);
+                  final int[] expected = filled(w*h);
+                  final DirectFrame input = toFrame(image, w, h, w+13, 7);
+                  final DirectFrame output = toFrame(filled(w*h), w, h, w+5, 0);
+                  heap.apply(new SliceIntArray(image.clone(), 0), new SliceIntArray(expected, 0));
+
+                  if ((direct.apply(input, output) == false)
+                     || (Arrays.equals(expected, fromFrame(output)) == false))
+                     diffs++;
+               }
+            }
+         }
+      }
+
+      return check("SobelFilter - different outputs", diffs);
+   }
+
+
+   private static boolean testBlur(int w, int h)
+   {
+      final int[] image = createImage(w, h);
+      int diffs = 0;
+      int inPlaceDiffs = 0;
+
+      for (int radius : new int[] { 1, 8, 32 })
+      {
+         for (int iterations : new int[] { 1, 3 })
+         {
+            final BlurFilter heap = new BlurFilter(w, h, w, radius, iterations);
+            final BlurFilter direct = new BlurFilter(w, h, w, radius, iterations);
+            final int[] expected = filled(w*h);
+            heap.apply(new SliceIntArray(image.clone(), 0), new SliceIntArray(expected, 0));
+            final DirectFrame input = toFrame(image, w, h, w+13, 7);
+            final DirectFrame output = toFrame(filled(w*h), w, h, w+5, 0);
+
+            if ((direct.apply(input, output) == false)
+               || (Arrays.equals(expected, fromFrame(output)) == false))
+               diffs++;
+
+            // The same filter is reused
+            if ((direct.apply(input, input) == false)
+               || (Arrays.equals(expected, fromFrame(input)) == false))
+               inPlaceDiffs++;
+         }
+      }
+
+      boolean res = true;
+      res &= check("BlurFilter - different outputs", diffs);
+      res &= check("BlurFilter - in place - different outputs", inPlaceDiffs);
+      return res;
+   }
+
+
+   private static boolean testGaussian(int w, int h, ExecutorService pool)
+   {
+      final int[] image = createImage(w, h);
+      int diffs = 0;
+      int inPlaceDiffs = 0;
+
+      for (int sigma16 : new int[] { 0, 40, 200 })
+      {
+         for (int channels : new int[] { 1, 3 })
+         {
+            for (int mode=0; mode<4; mode++)
+            {
+               // Fixed point or not, one task or 3 tasks in the executor
+               final boolean fixedPoint = (mode & 1) != 0;
+               final ExecutorService executor = ((mode & 2) != 0) ? pool : null;
+               final int nbTasks = (executor == null) ? 1 : 3;
+               final GaussianFilter heap = new GaussianFilter(w, h, w, sigma16, channels, null,
+                  executor, nbTasks, fixedPoint);
+               final GaussianFilter direct = new GaussianFilter(w, h, w, sigma16, channels, null,
+                  executor, nbTasks, fixedPoint);
+               final int[] expected = filled(w*h);
+               heap.apply(new SliceIntArray(image.clone(), 0), new SliceIntArray(expected, 0));
+               final DirectFrame input = toFrame(image, w, h, w+13, 7);
+               final DirectFrame output = toFrame(filled(w*h), w, h, w+5, 0);
+
+               if ((direct.apply(input, output) == false)
+                  || (Arrays.equals(expected, fromFrame(output)) == false))
+                  diffs++;
+
+               // In place: the heap version filters a copy of the image
+               final int[] expectedInPlace = image.clone();
+               heap.apply(new SliceIntArray(expectedInPlace, 0), new SliceIntArray(expectedInPlace, 0));
+
+               if ((direct.apply(input, input) == false)
+                  || (Arrays.equals(expectedInPlace, fromFrame(input)) == false))
+                  inPlaceDiffs++;
+            }
+         }
+      }
+
+      boolean res = true;
+      res &= check("GaussianFilter - different outputs", diffs);
+      res &= check("GaussianFilter - in place - different outputs", inPlaceDiffs);
+      return res;
+   }
+
+
+   private static boolean testMedian(int w, int h, ExecutorService pool)
+   {
+      final int[] image = createImage(w, h);
+      int diffs = 0;
+      int inPlaceDiffs = 0;
+
+      for (int radius : new int[] { 2, 5 })
+      {
+         for (int channels : new int[] { MedianFilter.THREE_CHANNELS, MedianFilter.G_CHANNEL })
+         {
+            for (int threshold : new int[] { MedianFilter.DEFAULT_THRESHOLD, 30 })
+            {
+               for (int mode=0; mode<3; mode++)
+               {
+                  // One tile, tiles processed sequentially or by the executor
+                  final ExecutorService executor = (mode == 2) ? pool : null;
+                  final int tileWidth = (mode == 0) ? w : Math.max(2*radius+1, 16);
+                  final MedianFilter heap = new MedianFilter(w, h, w, radius, channels, threshold,
+                     executor, tileWidth);
+                  final MedianFilter direct = new MedianFilter(w, h, w, radius, channels, threshold,
+                     executor, tileWidth);
+                  final int[] expected = filled(w*h);
+                  heap.apply(new SliceIntArray(image.clone(), 0), new SliceIntArray(expected, 0));
+                  final DirectFrame input = toFrame(image, w, h, w+13, 7);
+                  final DirectFrame output = toFrame(filled(w*h), w, h, w+5, 0);
+
+                  if ((direct.apply(input, output) == false)
+                     || (Arrays.equals(expected, fromFrame(output)) == false))
+                     diffs++;
+
+                  // In place: the heap version filters a copy of the image
+                  final int[] expectedInPlace = image.clone();
+                  heap.apply(new SliceIntArray(expectedInPlace, 0), new SliceIntArray(expectedInPlace, 0));
+
+                  if ((direct.apply(input, input) == false)
+                     || (Arrays.equals(expectedInPlace, fromFrame(input)) == false))
+                     inPlaceDiffs++;
+               }
+            }
+         }
+      }
+
+      boolean res = true;
+      res &= check("MedianFilter - different outputs", diffs);
+      res &= check("MedianFilter - in place - different outputs", inPlaceDiffs);
+      return res;
+   }
+
+
+   private static boolean testYCbCr(int w, int h)
+   {
+      final int[] image = createImage(w, h);
+      final ColorModelType[] types = { ColorModelType.YUV444, ColorModelType.YUV422,
+         ColorModelType.YUV420 };
+      int yuvDiffs = 0;
+      int rgbDiffs = 0;
+
+      for (ColorModelType type : types)
+      {
+         final int cw = (type == ColorModelType.YUV444) ? w : w >> 1;
+         final int ch = (type == ColorModelType.YUV420) ? h >> 1 : h;
+         final YCbCrColorModelConverter heap = new YCbCrColorModelConverter(w, h);
+         final YCbCrColorModelConverter direct = new YCbCrColorModelConverter(w, h);
+         final int[] expectedY = filled(w*h);
+         final int[] expectedU = filled(cw*ch);
+         final int[] expectedV = filled(cw*ch);
+         heap.convertRGBtoYUV(image.clone(), expectedY, expectedU, expectedV, type);
+         final DirectFrame rgb = toFrame(image, w, h, w+13, 7);
+         final DirectFrame y = toFrame(filled(w*h), w, h, w+5, 0);
+         final DirectFrame u = toFrame(filled(cw*ch), cw, ch, cw+3, 2);
+         final DirectFrame v = toFrame(filled(cw*ch), cw, ch, cw+9, 0);
+
+         if ((direct.convertRGBtoYUV(rgb, y, u, v, type) == false)
+            || (Arrays.equals(expectedY, fromFrame(y)) == false)
+            || (Arrays.equals(expectedU, fromFrame(u)) == false)
+            || (Arrays.equals(expectedV, fromFrame(v)) == false))
+            yuvDiffs++;
+
+         final int[] expectedRGB = filled(w*h);
+         heap.convertYUVtoRGB(expectedY, expectedU, expectedV, expectedRGB, type);
+         final DirectFrame output = toFrame(filled(w*h), w, h, w+5, 0);
+
+         if ((direct.convertYUVtoRGB(y, u, v, output, type) == false)
+            || (Arrays.equals(expectedRGB, fromFrame(output)) == false))
+            rgbDiffs++;
+      }
+
+      boolean res = true;
+      res &= check("YCbCrColorModelConverter - RGB to YUV - different outputs", yuvDiffs);
+      res &= check("YCbCrColorModelConverter - YUV to RGB - different outputs", rgbDiffs);
+      return res;
+   }
+
+
+   // Gradients, a checkerboard and noise
+   private static int[] createImage(int w, int h)
+   {
+      final Random rnd = new Random(w*h);
+      final int[] image = new int[w*h];
+
+      for (int j=0; j<h; j++)
+      {
+         for (int i=0; i<w; i++)
+         {
+            final int r = (255*i) / w;
+            final int g = (((i>>3) + (j>>3)) & 1) * 200 + rnd.nextInt(40);
+            final int b = (rnd.nextInt(8) == 0) ? rnd.nextInt(256) : (255*j) / h;
+            image[j*w+i] = (r << 16) | (g << 8) | b;
+         }
+      }
+
+      return image;
+   }
+
+
+   // Off heap frame with the provided stride and offset (the padding and the
+   // pixels before the offset hold the sentinel value)
+   private static DirectFrame toFrame(int[] image, int w, int h, int st, int offset)
+   {
+      final DirectFrame frame = DirectFrame.allocate(st, h+1);
+      final int[] padding = filled(st*(h+1));
+      frame.putRows(0, h+1, padding, 0);
+      final DirectFrame res = new DirectFrame(w, h, st, offset, frame.buffer);
+      res.putRows(0, h, image, 0);
+      return res;
+   }
+
+
+   private static int[] fromFrame(DirectFrame frame)
+   {
+      final int[] image = new int[frame.width*frame.height];
+      frame.getRows(0, frame.height, image, 0);
+      return image;
+   }
+
+
+   private static int[] filled(int length)
+   {
+      final int[] array = new int[length];
+      Arrays.fill(array, SENTINEL);
+      return array;
+   }
+
+
+   private static boolean check(String title, int diffs)
+   {
+      System.out.println(title+": "+diffs+((diffs == 0) ? "" : " FAILED"));
+      return diffs == 0;
+   }
+}
@@ -23,9 +23,13 @@ import java.awt.Image;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 import java.io.FileInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import kanzi.DirectFrame;
 import kanzi.Global;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
@@ -34,12 +38,18 @@ import kanzi.filter.BlurFilter;
 import kanzi.filter.ColorClusterFilter;
 import kanzi.filter.ContrastFilter;
 import kanzi.filter.FastBilateralFilter;
+import kanzi.filter.FilterPipeline;
+import kanzi.filter.ForkJoinFilter;
 import kanzi.filter.GaussianFilter;
+import kanzi.filter.IncrementalFilter;
+import kanzi.filter.IntFilterFactory;
 import kanzi.filter.LightingEffect;
 import kanzi.filter.MSSSaliencyFilter;
 import kanzi.filter.MedianFilter;
+import kanzi.filter.ParallelFilter;
 import kanzi.filter.SharpenFilter;
 import kanzi.filter.SobelFilter;
+import kanzi.filter.UnsharpFilter;
 import kanzi.filter.seam.ContextResizer;
 import kanzi.util.image.ImageUtils;
 
@@ -72,7 +82,8 @@ public class TestEffects
                    System.out.println("-file=<filename>     : load image file with provided name");
                    System.out.println("-filter=<filtername> : apply named filter ");
                    System.out.println("                       [Bilateral|Blur|Contrast|ColorCluster|FastBilateral|Median|");
-                   System.out.println("                        Gaussian|Lighting|Sobel|Saliency|ContextResizer|Sharpen]");
+                   System.out.println("                        Gaussian|Lighting|Sobel|Saliency|ContextResizer|Sharpen|");
+                   System.out.println("                        ForkJoin|Pipeline|Incremental]");
                    System.out.println("-arg1=<param>        : parameter used by the filter (EG. contract in percent)");
                    System.out.println("-arg2=<param>        : parameter used by the filter (EG. contract in percent)");
                    System.exit(0);
@@ -223,6 +234,15 @@ public class TestEffects
                   effect = new BlurFilter(w/2, h/2, w, radius);
                   test(effect, img, filterName + " - one quarter", h*w/4+w/4, 600, 550, 0, 0);
                   effect = new BlurFilter(w, h, w, radius);
+                  final BlurFilter blur = new BlurFilter(w, h, w, radius);
+                  compare(effect, new DirectFrameFilter(w, h)
+                  {
+                     @Override
+                     boolean apply(DirectFrame input, DirectFrame output)
+                     {
+                        return blur.apply(input, output);
+                     }
+                  }, img, filterName + " - off heap");
                   test(effect, img, filterName + " - full", 0, 700, 650, 1000*adjust/100, 30000);
                   break;
                }
@@ -332,6 +352,15 @@ public class TestEffects
                   effect = new SobelFilter(w/2, h/2, w);
                   test(effect, img, filterName + " - one quarter", h*w/4+w/4, 600, 550, 0, 0);
                   effect = new SobelFilter(w, h, w);
+                  final SobelFilter sobel = new SobelFilter(w, h, w);
+                  compare(effect, new DirectFrameFilter(w, h)
+                  {
+                     @Override
+                     boolean apply(DirectFrame input, DirectFrame output)
+                     {
+                        return sobel.apply(input, output);
+                     }
+                  }, img, filterName + " - off heap");
                   test(effect, img, filterName + " - full", 0, 700, 650, 4000*adjust/100, 30000);
                   break;
                }
@@ -395,11 +424,246 @@ public class TestEffects
                   break;
                }
                
+               case "FORKJOIN" :
+               {
+                  // Median with threshold (uneven cost): fixed strips vs work stealing
+                  frame.setVisible(true);    
+                  final int radius = (param1 == null) ? MedianFilter.DEFAULT_RADIUS : param1;
+                  final int threshold = (param2 == null) ? 32 : param2;
+                  final int jobs = Runtime.getRuntime().availableProcessors();
+                  System.out.println("Radius: " + radius);
+                  System.out.println("Threshold: " + threshold);
+                  System.out.println("Threads: " + jobs);
+                  effect = new MedianFilter(w, h, w, radius, threshold);
+                  test(effect, img, filterName + " - 1 thread", 0, 200, 150, 400*adjust/100, 0);
+                  ExecutorService pool = Executors.newFixedThreadPool(jobs);
+                  IntFilter[] effects = new IntFilter[jobs];
+
+                  for (int i=0; i<jobs; i++)
+                  {
+                     final int y0 = (h*i) / jobs;
+                     final int y1 = (h*(i+1)) / jobs;
+                     effects[i] = new MedianFilter(w, y1-y0, w, radius, threshold);
+                  }
+
+                  effect = new ParallelFilter(w, h, w, pool, effects);
+                  test(effect, img, filterName + " - ParallelFilter", 0, 300, 250, 400*adjust/100, 0);
+                  pool.shutdown();
+                  IntFilterFactory factory = new IntFilterFactory()
+                  {
+                     @Override
+                     public IntFilter create(int width, int height, int stride)
+                     {
+                        return new MedianFilter(width, height, stride, radius, threshold);
+                     }
+
+                     @Override
+                     public int getRadius()
+                     {
+                        return radius;
+                     }
+                  };
+
+                  ForkJoinPool fjPool = new ForkJoinPool(jobs);
+                  IntFilter reference = new MedianFilter(w, h, w, radius, threshold);
+                  effect = new ForkJoinFilter(w, h, w, fjPool, factory, ForkJoinFilter.ROWS, 64, radius);
+                  compare(reference, effect, img, filterName + " - ForkJoinFilter - rows");
+                  test(effect, img, filterName + " - ForkJoinFilter - rows", 0, 400, 350, 400*adjust/100, 0);
+                  effect = new ForkJoinFilter(w, h, w, fjPool, factory, ForkJoinFilter.TILES, 128, radius);
+                  compare(reference, effect, img, filterName + " - ForkJoinFilter - tiles");
+                  test(effect, img, filterName + " - ForkJoinFilter - tiles", 0, 500, 450, 400*adjust/100, 30000);
+                  fjPool.shutdown();
+                  break;
+               }
+                              
+               case "PIPELINE" :
+               {
+                  // Median + Sharpen + Contrast: full frame stages vs bands of rows
+                  frame.setVisible(true);    
+                  final int radius = (param1 == null) ? MedianFilter.DEFAULT_RADIUS : param1;
+                  final int contrast = (param2 == null) ? 120 : param2;
+                  System.out.println("Radius: " + radius);
+                  System.out.println("Contrast: " + contrast + "%");
+                  IntFilterFactory[] stages = new IntFilterFactory[]
+                  {
+                     new IntFilterFactory()
+                     {
+                        @Override
+                        public IntFilter create(int width, int height, int stride)
+                        {
+                           return new MedianFilter(width, height, stride, radius, MedianFilter.DEFAULT_THRESHOLD);
+                        }
+
+                        @Override
+                        public int getRadius()
+                        {
+                           return radius;
+                        }
+                     },
+                     new IntFilterFactory()
+                     {
+                        @Override
+                        public IntFilter create(int width, int height, int stride)
+                        {
+                           return new SharpenFilter(width, height, stride);
+                        }
+
+                        @Override
+                        public int getRadius()
+                        {
+                           return 1;
+                        }
+                     },
+                     new IntFilterFactory()
+                     {
+                        @Override
+                        public IntFilter create(int width, int height, int stride)
+                        {
+                           return new ContrastFilter(width, height, stride, contrast);
+                        }
+
+                        @Override
+                        public int getRadius()
+                        {
+                           return 0;
+                        }
+                     }
+                  };
+
+                  IntFilter reference = fullFrameStages(stages, w, h);
+                  effect = new FilterPipeline(w, h, w, stages);
+                  compare(reference, effect, img, filterName + " - bands");
+                  test(reference, img, filterName + " - full frame stages", 0, 200, 150, 400*adjust/100, 0);
+                  test(effect, img, filterName + " - bands", 0, 300, 250, 400*adjust/100, 0);
+
+                  // Gaussian + Unsharp + Contrast: the recursive gaussian blurs
+                  // have unbounded footprints, truncated to 3 sigma (the bands
+                  // give an approximation of the full frame stages)
+                  final int sigma16 = 32;
+                  System.out.println("Sigma16: " + sigma16);
+                  IntFilterFactory gaussian = new IntFilterFactory()
+                  {
+                     @Override
+                     public IntFilter create(int width, int height, int stride)
+                     {
+                        return new GaussianFilter(width, height, stride, sigma16, 3);
+                     }
+
+                     @Override
+                     public int getRadius()
+                     {
+                        return -1;
+                     }
+                  };
+                  IntFilterFactory unsharp = new IntFilterFactory()
+                  {
+                     @Override
+                     public IntFilter create(int width, int height, int stride)
+                     {
+                        return new UnsharpFilter(width, height, stride);
+                     }
+
+                     @Override
+                     public int getRadius()
+                     {
+                        return -1;
+                     }
+                  };
+                  stages = new IntFilterFactory[]
+                  {
+                     FilterPipeline.truncate(gaussian, GaussianFilter.getApproximateRadius(sigma16)),
+                     // UnsharpFilter blurs with sigma = 2
+                     FilterPipeline.truncate(unsharp, GaussianFilter.getApproximateRadius(32)),
+                     stages[2]
+                  };
+
+                  reference = fullFrameStages(stages, w, h);
+                  effect = new FilterPipeline(w, h, w, stages);
+                  compare(reference, effect, img, filterName + " - approximate bands");
+                  test(reference, img, filterName + " - full frame stages", 0, 400, 350, 400*adjust/100, 0);
+                  test(effect, img, filterName + " - approximate bands", 0, 500, 450, 400*adjust/100, 30000);
+                  break;
+               }
+
+               case "INCREMENTAL" :
+               {
+                  // Sequences of frames with small changes: incremental vs full
+                  // frame filtering, including frames that are not a multiple of
+                  // the block dimension
+                  frame.setVisible(true);
+                  final int radius = (param1 == null) ? MedianFilter.DEFAULT_RADIUS : param1;
+                  final int contrast = (param2 == null) ? 120 : param2;
+                  System.out.println("Radius: " + radius);
+                  System.out.println("Contrast: " + contrast + "%");
+                  IntFilterFactory sobel = new IntFilterFactory()
+                  {
+                     @Override
+                     public IntFilter create(int width, int height, int stride)
+                     {
+                        return new SobelFilter(width, height, stride);
+                     }
+
+                     @Override
+                     public int getRadius()
+                     {
+                        return 1;
+                     }
+                  };
+
+                  IntFilterFactory median = new IntFilterFactory()
+                  {
+                     @Override
+                     public IntFilter create(int width, int height, int stride)
+                     {
+                        return new MedianFilter(width, height, stride, radius, MedianFilter.DEFAULT_THRESHOLD);
+                     }
+
+                     @Override
+                     public int getRadius()
+                     {
+                        return radius;
+                     }
+                  };
+
+                  IntFilterFactory contrastF = new IntFilterFactory()
+                  {
+                     @Override
+                     public IntFilter create(int width, int height, int stride)
+                     {
+                        return new ContrastFilter(width, height, stride, contrast);
+                     }
+
+                     @Override
+                     public int getRadius()
+                     {
+                        return 0;
+                     }
+                  };
+
+                  int[] source = new int[w*h];
+                  img.getRaster().getDataElements(0, 0, w, h, source);
+                  int[][] sizes = { { w, h }, { w-13, h-7 }, { Math.min(w, 100), Math.min(h, 70) } };
+
+                  for (int[] size : sizes)
+                  {
+                     final String dim = " - " + size[0] + "x" + size[1];
+                     compareIncremental(sobel, source, w, size[0], size[1], filterName + " - Sobel" + dim);
+                     compareIncremental(median, source, w, size[0], size[1], filterName + " - Median" + dim);
+                     compareIncremental(contrastF, source, w, size[0], size[1], filterName + " - Contrast" + dim);
+                  }
+
+                  // Static frame: only the first frame is filtered
+                  effect = new IncrementalFilter(w, h, w, median);
+                  test(effect, img, filterName + " - Median", 0, 200, 150, 400*adjust/100, 30000);
+                  break;
+               }
+                              
                default:
                {
                   System.out.println("Unknown filter: '"+filterName+"'");
                   System.out.println("Supported filters: [Bilateral|Blur|Contrast|ColorCluster|FastBilateral|" +
-                                     "Gaussian|Lighting|Sobel|Saliency|ContextResizer|Sharpen]");
+                                     "Gaussian|Lighting|Sobel|Saliency|ContextResizer|Sharpen|ForkJoin|Pipeline|" +
+                                     "Incremental]");
                   System.exit(1);  
                }
             }
@@ -413,6 +677,165 @@ public class TestEffects
     }
 
     
+    // Apply the filters created by the stages one after the other on the
+    // full frame (with full frame intermediates)
+    static IntFilter fullFrameStages(IntFilterFactory[] stages, final int w, final int h)
+    {
+       final IntFilter[] filters = new IntFilter[stages.length];
+
+       for (int i=0; i<stages.length; i++)
+          filters[i] = stages[i].create(w, h, w);
+
+       return new IntFilter()
+       {
+          final int[] buf1 = new int[w*h];
+          final int[] buf2 = new int[w*h];
+
+          @Override
+          public boolean apply(SliceIntArray input, SliceIntArray output)
+          {
+             SliceIntArray src = input;
+
+             for (int i=0; i<filters.length; i++)
+             {
+                SliceIntArray dst = (i == filters.length-1) ? output :
+                   new SliceIntArray(((i & 1) == 0) ? this.buf1 : this.buf2, w*h, 0);
+
+                // Some filters only update some channels of the output pixels
+                System.arraycopy(src.array, src.index, dst.array, dst.index, w*h);
+
+                if (filters[i].apply(src, dst) == false)
+                   return false;
+
+                src = dst;
+             }
+
+             return true;
+          }
+       };
+    }
+
+
+    // Run the off heap version of a filter: the image is copied to a frame
+    // stored in a direct buffer (with a padded stride and an offset) and the
+    // output frame is copied back, so it can be compared to the heap version
+    static abstract class DirectFrameFilter implements IntFilter
+    {
+       final int width;
+       final int height;
+       final DirectFrame frameIn;
+       final DirectFrame frameOut;
+
+
+       DirectFrameFilter(int width, int height)
+       {
+          this.width = width;
+          this.height = height;
+          this.frameIn = new DirectFrame(width, height, width+16, 8,
+             DirectFrame.allocate(width+16, height+1).buffer);
+          this.frameOut = DirectFrame.allocate(width, height);
+       }
+
+
+       abstract boolean apply(DirectFrame input, DirectFrame output);
+
+
+       @Override
+       public boolean apply(SliceIntArray input, SliceIntArray output)
+       {
+          this.frameIn.putRows(0, this.height, input.array, input.index);
+
+          if (this.apply(this.frameIn, this.frameOut) == false)
+             return false;
+
+          this.frameOut.getRows(0, this.height, output.array, output.index);
+          return true;
+       }
+    }
+
+
+    // Check that the output of effect is identical to the output of reference
+    public static boolean compare(IntFilter reference, IntFilter effect, Image image, String title)
+    {
+         int w = image.getWidth(null);
+         int h = image.getHeight(null);
+         GraphicsDevice gs = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()[0];
+         GraphicsConfiguration gc = gs.getDefaultConfiguration();
+         BufferedImage img = gc.createCompatibleImage(w, h, Transparency.OPAQUE);
+         img.getGraphics().drawImage(image, 0, 0, null);
+         SliceIntArray source = new SliceIntArray(new int[w*h], 0);
+         SliceIntArray dest1 = new SliceIntArray(new int[w*h], 0);
+         SliceIntArray dest2 = new SliceIntArray(new int[w*h], 0);
+         img.getRaster().getDataElements(0, 0, w, h, source.array);
+         System.out.println("Comparing test '" + title + "' to reference");
+
+         if ((reference.apply(source, dest1) == false) || (effect.apply(source, dest2) == false))
+         {
+            System.out.println("Test failed");
+            return false;
+         }
+
+         int diffs = 0;
+
+         for (int i=0; i<w*h; i++)
+         {
+            if (dest1.array[i] != dest2.array[i])
+               diffs++;
+         }
+
+         System.out.println((diffs == 0) ? "Identical" : "Different pixels: " + diffs);
+         return diffs == 0;
+    }
+
+
+    // Check that the incremental filter gives the same output as the filter
+    // applied to each frame of a sequence (a small square moving over a crop
+    // of the image, down to the bottom right corner)
+    public static boolean compareIncremental(IntFilterFactory factory, int[] image, int imageWidth,
+            int w, int h, String title)
+    {
+         IntFilter reference = factory.create(w, h, w);
+         IntFilter effect = new IncrementalFilter(w, h, w, factory);
+         int[] frame = new int[w*h];
+         SliceIntArray source = new SliceIntArray(frame, 0);
+         SliceIntArray dest1 = new SliceIntArray(new int[w*h], 0);
+         SliceIntArray dest2 = new SliceIntArray(new int[w*h], 0);
+         System.out.println("Comparing test '" + title + "' to reference");
+
+         for (int j=0; j<h; j++)
+            System.arraycopy(image, j*imageWidth, frame, j*w, w);
+
+         int diffs = 0;
+
+         for (int n=0; n<16; n++)
+         {
+            final int x0 = ((w-5)*n) / 15;
+            final int y0 = ((h-5)*n) / 15;
+
+            for (int y=y0; y<y0+5; y++)
+            {
+               for (int x=x0; x<x0+5; x++)
+                  frame[y*w+x] ^= 0xFFFFFF;
+            }
+
+            if ((reference.apply(source, dest1) == false) || (effect.apply(source, dest2) == false))
+            {
+               System.out.println("Test failed");
+               return false;
+            }
+
+            for (int i=0; i<w*h; i++)
+            {
+               if (dest1.array[i] != dest2.array[i])
+                  diffs++;
+            }
+         }
+
+         System.out.println((diffs == 0) ? "Identical" : "Different pixels: " + diffs);
+         return diffs == 0;
+    }
+
+
     public static void test(IntFilter effect, Image image, String title, 
             int offset, int xx, int yy, int iters, long sleep)
     {
@@ -0,0 +1,310 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import kanzi.ColorModelType;
+import kanzi.YUVFrame;
+import kanzi.util.image.FrameWriter;
+import kanzi.util.image.MappedFrameReader;
+
+
+// Write frame sequences with FrameWriter and read them back (MappedFrameReader
+// for Y4M and PPM, file bytes for raw YUV). More frames than buffers are
+// written and the frame channels are modified as soon as write() returns, so
+// the background writer must have copied the pixels.
+public class TestFrameWriter
+{
+   public static void main(String[] args)
+   {
+      boolean res = true;
+
+      try
+      {
+         res &= testYUV(FrameWriter.Y4M, ColorModelType.YUV420, 33, 17, 7, false);
+         res &= testYUV(FrameWriter.Y4M, ColorModelType.YUV420, 64, 48, 5, true);
+         res &= testYUV(FrameWriter.Y4M, ColorModelType.YUV422, 31, 16, 4, false);
+         res &= testYUV(FrameWriter.Y4M, ColorModelType.YUV444, 24, 16, 4, true);
+         res &= testYUV(FrameWriter.Y4M, ColorModelType.GREY, 20, 10, 4, false);
+         res &= testYUV(FrameWriter.RAW, ColorModelType.YUV420, 33, 17, 5, true);
+         res &= testYUV(FrameWriter.RAW, ColorModelType.GREY, 20, 10, 3, false);
+         res &= testPPM(37, 29, 6);
+         res &= testClosed();
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         res = false;
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   // If padded is true, the frames have a larger stride and an offset
+   private static boolean testYUV(int format, ColorModelType type, int w, int h,
+           int nbFrames, boolean padded) throws IOException
+   {
+      System.out.println("Test "+((format == FrameWriter.Y4M) ? "Y4M " : "RAW ")+type+" "+w+"x"+h+
+         " - "+nbFrames+" frames"+((padded == true) ? " - padded" : ""));
+      final int cw = (type == ColorModelType.YUV444) ? w : ((type == ColorModelType.GREY) ? 0 : (w+1)>>1);
+      final int ch = (type == ColorModelType.YUV420) ? (h+1)>>1 : ((type == ColorModelType.GREY) ? 0 : h);
+      final int sx = (cw < w) ? 1 : 0;
+      final int sy = (ch < h) ? 1 : 0;
+      final int st = (padded == true) ? w+8 : w;
+      final int x0 = (padded == true) ? 4 : 0;
+      final int y0 = (padded == true) ? 2 : 0;
+      final int cst = (st+sx) >> sx;
+      final int cOffs = (y0>>sy)*cst + (x0>>sx);
+      final int[][] planes = new int[nbFrames][w*h+2*cw*ch];
+      final int[] y = new int[st*(h+y0)];
+      final int[] u = new int[Math.max(cst*((h+y0+sy)>>sy), 1)];
+      final int[] v = new int[u.length];
+      final YUVFrame frame = new YUVFrame(w, h, st, y0*st+x0, y, u, v, type);
+      final File file = File.createTempFile("kanzi", (format == FrameWriter.Y4M) ? ".y4m" : ".yuv");
+      final Random rnd = new Random(w*h+nbFrames);
+      boolean res = true;
+
+      try
+      {
+         try (FrameWriter writer = new FrameWriter(file, format, w, h, type, 25, 1, 2))
+         {
+            for (int n=0; n<nbFrames; n++)
+            {
+               for (int i=0; i<planes[n].length; i++)
+                  planes[n][i] = rnd.nextInt(256);
+
+               for (int j=0; j<h; j++)
+                  System.arraycopy(planes[n], j*w, y, y0*st+x0+j*st, w);
+
+               for (int j=0; j<ch; j++)
+               {
+                  System.arraycopy(planes[n], w*h+j*cw, u, cOffs+j*cst, cw);
+                  System.arraycopy(planes[n], w*h+cw*ch+j*cw, v, cOffs+j*cst, cw);
+               }
+
+               writer.write(frame);
+
+               // The writer must not read the channels after write() returns
+               for (int i=0; i<y.length; i++)
+                  y[i] = -1;
+
+               for (int i=0; i<u.length; i++)
+               {
+                  u[i] = -1;
+                  v[i] = -1;
+               }
+            }
+
+            res &= check("Frames written", (long) nbFrames, writer.getNbFrames());
+         }
+
+         if (format == FrameWriter.Y4M)
+         {
+            try (MappedFrameReader reader = new MappedFrameReader(file))
+            {
+               res &= check("Frame count", nbFrames, reader.getNbFrames());
+               res &= check("Color model", type, reader.getColorModel());
+               YUVFrame decoded = null;
+
+               for (int n=0; n<nbFrames; n++)
+               {
+                  decoded = reader.readFrame(n, decoded);
+                  int diffs = 0;
+
+                  for (int i=0; i<w*h; i++)
+                  {
+                     if (decoded.y[i] != planes[n][i])
+                        diffs++;
+                  }
+
+                  for (int i=0; i<cw*ch; i++)
+                  {
+                     if ((decoded.u[i] != planes[n][w*h+i]) || (decoded.v[i] != planes[n][w*h+cw*ch+i]))
+                        diffs++;
+                  }
+
+                  res &= check("Frame "+n+" - different samples", 0, diffs);
+               }
+            }
+         }
+         else
+         {
+            // Raw YUV: planes of each frame, back to back
+            final byte[] data = Files.readAllBytes(file.toPath());
+            res &= check("File size", (long) nbFrames*(w*h+2*cw*ch), (long) data.length);
+
+            for (int n=0, pos=0; (n<nbFrames) && (pos<data.length); n++)
+            {
+               int diffs = 0;
+
+               for (int i=0; i<planes[n].length; i++, pos++)
+               {
+                  if ((data[pos] & 0xFF) != planes[n][i])
+                     diffs++;
+               }
+
+               res &= check("Frame "+n+" - different samples", 0, diffs);
+            }
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+
+      return res;
+   }
+
+
+   // Packed RGB frames (with a stride) and R,G,B planes
+   private static boolean testPPM(int w, int h, int nbFrames) throws IOException
+   {
+      System.out.println("Test PPM "+w+"x"+h+" - "+nbFrames+" frames");
+      final int st = w + 3;
+      final int[][] expected = new int[nbFrames][w*h];
+      final int[] rgb = new int[st*h+1];
+      final int[] r = new int[w*h];
+      final int[] g = new int[w*h];
+      final int[] b = new int[w*h];
+      final YUVFrame frame = new YUVFrame(w, h, r, g, b, ColorModelType.RGB);
+      final File file = File.createTempFile("kanzi", ".ppm");
+      final Random rnd = new Random(w*h);
+      boolean res = true;
+
+      try
+      {
+         try (FrameWriter writer = new FrameWriter(file, FrameWriter.PPM, w, h, ColorModelType.RGB, 30, 1, 1))
+         {
+            for (int n=0; n<nbFrames; n++)
+            {
+               for (int i=0; i<w*h; i++)
+                  expected[n][i] = rnd.nextInt(1<<24);
+
+               if ((n & 1) == 0)
+               {
+                  for (int j=0; j<h; j++)
+                     System.arraycopy(expected[n], j*w, rgb, 1+j*st, w);
+
+                  writer.writeRGB(rgb, 1, st);
+
+                  for (int i=0; i<rgb.length; i++)
+                     rgb[i] = -1;
+               }
+               else
+               {
+                  for (int i=0; i<w*h; i++)
+                  {
+                     r[i] = (expected[n][i] >> 16) & 0xFF;
+                     g[i] = (expected[n][i] >> 8) & 0xFF;
+                     b[i] = expected[n][i] & 0xFF;
+                  }
+
+                  writer.write(frame);
+
+                  for (int i=0; i<w*h; i++)
+                  {
+                     r[i] = -1;
+                     g[i] = -1;
+                     b[i] = -1;
+                  }
+               }
+            }
+         }
+
+         try (MappedFrameReader reader = new MappedFrameReader(file))
+         {
+            res &= check("Frame count", nbFrames, reader.getNbFrames());
+            int[] decoded = null;
+
+            for (int n=0; n<nbFrames; n++)
+            {
+               decoded = reader.readRGB(n, decoded);
+               int diffs = 0;
+
+               for (int i=0; i<w*h; i++)
+               {
+                  if (decoded[i] != expected[n][i])
+                     diffs++;
+               }
+
+               res &= check("Frame "+n+" - different pixels", 0, diffs);
+            }
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+
+      return res;
+   }
+
+
+   // A closed writer rejects frames, closing twice is harmless
+   private static boolean testClosed() throws IOException
+   {
+      System.out.println("Test closed writer");
+      final File file = File.createTempFile("kanzi", ".y4m");
+      boolean res = true;
+
+      try
+      {
+         final int[] y = new int[16*8];
+         final YUVFrame frame = new YUVFrame(16, 8, y, new int[0], new int[0], ColorModelType.GREY);
+         final FrameWriter writer = new FrameWriter(file, FrameWriter.Y4M, 16, 8, ColorModelType.GREY);
+         writer.write(frame);
+         writer.close();
+         writer.close();
+         boolean rejected = false;
+
+         try
+         {
+            writer.write(frame);
+         }
+         catch (IllegalStateException e)
+         {
+            rejected = true;
+         }
+
+         res &= check("Write after close rejected", true, rejected);
+
+         try (MappedFrameReader reader = new MappedFrameReader(file))
+         {
+            res &= check("Frame count", 1, reader.getNbFrames());
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+
+      return res;
+   }
+
+
+   private static boolean check(String title, Object expected, Object actual)
+   {
+      final boolean res = expected.equals(actual);
+      System.out.println(title+": "+actual+((res == true) ? "" : " (expected "+expected+") FAILED"));
+      return res;
+   }
+}
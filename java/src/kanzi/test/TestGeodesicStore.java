@@ -0,0 +1,161 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import kanzi.filter.seam.ContextResizer;
+import kanzi.filter.seam.Geodesic;
+import kanzi.filter.seam.GeodesicStore;
+
+
+// Compare GeodesicStore to a sorted list: the store must keep the geodesics
+// with the lowest costs (among equal costs, the first added ones), return the
+// evicted slot with its positions and give the geodesics in increasing cost
+// order. The store is reset and reused with other sizes.
+public class TestGeodesicStore
+{
+   public static void main(String[] args)
+   {
+      final Random rnd = new Random(12345);
+      final GeodesicStore store = new GeodesicStore(1, 1);
+      boolean res = true;
+
+      // maximum size, geodesic length, cost range (small ranges: many ties)
+      final int[][] params = { { 1, 1, 10 }, { 2, 5, 3 }, { 7, 300, 50 }, { 64, 17, 1000 },
+         { 64, 4, 2 }, { 3, 100, 1 }, { 200, 8, 100000 } };
+
+      for (int[] p : params)
+         res &= test(store, p[0], p[1], p[2], rnd);
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean test(GeodesicStore store, int maxSize, int length, int costRange, Random rnd)
+   {
+      System.out.println("Test max size="+maxSize+" length="+length+" costs in [0.."+costRange+"[");
+      final List<Entry> expected = new ArrayList<>();
+      int evictionDiffs = 0;
+      int maxCostDiffs = 0;
+      int added = 0;
+      store.reset(maxSize, length);
+
+      for (int n=0; n<20*maxSize+50; n++)
+      {
+         final int cost = rnd.nextInt(costRange);
+
+         // Like the geodesic search: only cheaper geodesics enter a full store
+         if ((expected.size() == maxSize) && (cost >= store.getMaxCost()))
+            continue;
+
+         final Entry entry = new Entry(cost, added++, length, rnd);
+         final int slot = store.getFreeSlot();
+         System.arraycopy(entry.positions, 0, store.getPositions(), store.getOffset(slot), length);
+         final int evicted = store.add(cost);
+         expected.add(entry);
+         Entry expectedEvicted = null;
+
+         if (expected.size() > maxSize)
+         {
+            expectedEvicted = Collections.max(expected);
+            expected.remove(expectedEvicted);
+         }
+
+         if (expectedEvicted == null)
+         {
+            if (evicted != -1)
+               evictionDiffs++;
+         }
+         else if ((evicted < 0) || (Arrays.equals(expectedEvicted.positions,
+            Arrays.copyOfRange(store.getPositions(), store.getOffset(evicted),
+               store.getOffset(evicted)+length)) == false))
+            evictionDiffs++;
+
+         if (store.getMaxCost() != Collections.max(expected).cost)
+            maxCostDiffs++;
+      }
+
+      Collections.sort(expected);
+      boolean res = true;
+      res &= check("Full", (maxSize <= added) ? 1 : 0, (store.isFull() == true) ? 1 : 0);
+      res &= check("Size", expected.size(), store.size());
+      res &= check("Wrong evictions", 0, evictionDiffs);
+      res &= check("Wrong max costs", 0, maxCostDiffs);
+      final Geodesic[] geodesics = store.toArray(ContextResizer.VERTICAL);
+      int diffs = (geodesics.length == expected.size()) ? 0 : -1;
+
+      for (int i=0; (diffs >= 0) && (i<geodesics.length); i++)
+      {
+         if ((geodesics[i].cost != expected.get(i).cost)
+            || (geodesics[i].direction != ContextResizer.VERTICAL)
+            || (Arrays.equals(geodesics[i].positions, expected.get(i).positions) == false))
+            diffs++;
+      }
+
+      res &= check("Different geodesics", 0, diffs);
+      res &= check("Size after toArray", 0, store.size());
+      return res;
+   }
+
+
+   private static boolean check(String title, int expected, int actual)
+   {
+      if (expected == actual)
+      {
+         System.out.println(title+": "+actual);
+         return true;
+      }
+
+      System.out.println(title+": "+actual+" instead of "+expected+" FAILED");
+      return false;
+   }
+
+
+   // Order of the store: cost, then order of addition
+   private static class Entry implements Comparable<Entry>
+   {
+      final int cost;
+      final int sequence;
+      final int[] positions;
+
+
+      Entry(int cost, int sequence, int length, Random rnd)
+      {
+         this.cost = cost;
+         this.sequence = sequence;
+         this.positions = new int[length];
+
+         for (int i=0; i<length; i++)
+            this.positions[i] = rnd.nextInt(4096);
+      }
+
+
+      @Override
+      public int compareTo(Entry entry)
+      {
+         if (this.cost != entry.cost)
+            return (this.cost < entry.cost) ? -1 : 1;
+
+         return this.sequence - entry.sequence;
+      }
+   }
+}
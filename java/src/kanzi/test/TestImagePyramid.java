@@ -0,0 +1,211 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import kanzi.SliceIntArray;
+import kanzi.util.sampling.BilinearDownSampler;
+import kanzi.util.sampling.ImagePyramid;
+
+
+// Compare the Gaussian levels of ImagePyramid to successive down samplings of
+// each channel, check that the frame is rebuilt exactly from the Laplacian
+// levels (packed RGB and single plane, with a stride and an offset) and that
+// the cached levels are invalidated when a new frame is set.
+public class TestImagePyramid
+{
+   public static void main(String[] args)
+   {
+      boolean res = true;
+      res &= test(128, 64, 128, 0, 4, 3);
+      res &= test(256, 128, 264, 13, 3, 3);
+      res &= test(128, 64, 136, 5, 4, 1);
+      res &= test(64, 64, 64, 0, 1, 1);
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean test(int w, int h, int st, int offset, int nbLevels, int channels)
+   {
+      System.out.println("Test "+w+"x"+h+" stride="+st+" offset="+offset+" - "+nbLevels+
+         " levels - "+channels+" channel(s)");
+      final ImagePyramid pyramid = new ImagePyramid(w, h, st, nbLevels, channels);
+      final int[] frame1 = createFrame(w, h, st, offset, channels, 1);
+      final int[] frame2 = createFrame(w, h, st, offset, channels, 2);
+      boolean res = true;
+
+      res &= check("No level before any frame", pyramid.getLevel(nbLevels-1) == null);
+      res &= check("Set frame", pyramid.setFrame(slice(frame1, offset)));
+      final long id = pyramid.getFrameId();
+      res &= checkLevels(pyramid, frame1, w, h, st, offset, channels);
+      res &= checkReconstruct(pyramid, frame1, w, h, st, offset, channels);
+
+      // New frame: the cached levels must be computed again
+      res &= check("Set new frame", pyramid.setFrame(slice(frame2, offset)));
+      res &= check("Frame id incremented", pyramid.getFrameId() == id+1);
+      res &= checkLevels(pyramid, frame2, w, h, st, offset, channels);
+      res &= checkReconstruct(pyramid, frame2, w, h, st, offset, channels);
+      return res;
+   }
+
+
+   // Each channel down sampled level after level
+   private static boolean checkLevels(ImagePyramid pyramid, int[] frame, int w, int h,
+           int st, int offset, int channels)
+   {
+      boolean res = true;
+
+      for (int c=0; c<channels; c++)
+      {
+         int[] plane = extract(frame, offset, st, w, h, c, channels);
+
+         for (int k=1; k<pyramid.getLevels(); k++)
+         {
+            final int lw = w >> (k-1);
+            final int lh = h >> (k-1);
+            final int[] next = new int[(lw>>1)*(lh>>1)];
+            new BilinearDownSampler(lw, lh, 2).subSample(plane, next);
+            plane = next;
+            final SliceIntArray level = pyramid.getLevel(k);
+            final int[] actual = extract(level.array, 0, lw>>1, lw>>1, lh>>1, c, channels);
+            res &= check("Level "+k+" channel "+c, Arrays.equals(plane, actual));
+         }
+
+         // The last Laplacian level is the last Gaussian level
+         res &= check("Last Laplacian level channel "+c,
+            Arrays.equals(plane, pyramid.getLaplacian(pyramid.getLevels()-1, c)));
+      }
+
+      return res;
+   }
+
+
+   private static boolean checkReconstruct(ImagePyramid pyramid, int[] frame, int w, int h,
+           int st, int offset, int channels)
+   {
+      final int nbLevels = pyramid.getLevels();
+      final int[] output1 = new int[frame.length];
+      final int[] output2 = new int[frame.length];
+      final int[][][] lap = new int[nbLevels][channels][];
+      boolean res = true;
+
+      for (int k=0; k<nbLevels; k++)
+      {
+         for (int c=0; c<channels; c++)
+            lap[k][c] = pyramid.getLaplacian(k, c).clone();
+      }
+
+      res &= check("Reconstruct", pyramid.reconstruct(slice(output1, offset)));
+      res &= check("Reconstruct - identical pixels", countDiffs(frame, output1, w, h, st, offset) == 0);
+      res &= check("Reconstruct from copies", pyramid.reconstruct(lap, slice(output2, offset)));
+      res &= check("Reconstruct from copies - identical pixels",
+         countDiffs(frame, output2, w, h, st, offset) == 0);
+
+      if (channels == 3)
+      {
+         // Large coefficients: the packed RGB output is clipped
+         for (int c=0; c<channels; c++)
+         {
+            for (int i=0; i<lap[0][c].length; i++)
+               lap[0][c][i] += 1000;
+         }
+
+         pyramid.reconstruct(lap, slice(output2, offset));
+         final int[] white = new int[frame.length];
+
+         for (int i=0; i<white.length; i++)
+            white[i] = 0xFFFFFF;
+
+         res &= check("Reconstruct clipped - white pixels", countDiffs(white, output2, w, h, st, offset) == 0);
+      }
+
+      return res;
+   }
+
+
+   // Packed RGB pixels or single plane values (any int value)
+   private static int[] createFrame(int w, int h, int st, int offset, int channels, int seed)
+   {
+      final int[] frame = new int[offset+st*h];
+      final Random rnd = new Random(seed);
+
+      for (int j=0; j<h; j++)
+      {
+         for (int i=0; i<w; i++)
+         {
+            // Gradients, a checkerboard and noise
+            final int r = ((255*i)/w) ^ (seed << 4);
+            final int g = (((i>>3) + (j>>3)) & 1) * 200 + rnd.nextInt(40);
+            final int b = (255*j)/h;
+            frame[offset+j*st+i] = (channels == 3) ? (r << 16) | (g << 8) | b
+               : (((r << 8) | g) ^ (b << 4)) - 30000 + rnd.nextInt(1000);
+         }
+      }
+
+      return frame;
+   }
+
+
+   private static int[] extract(int[] src, int idx, int st, int w, int h, int channel, int channels)
+   {
+      final int[] plane = new int[w*h];
+      final int shift = 16 - 8*channel;
+
+      for (int j=0; j<h; j++)
+      {
+         for (int i=0; i<w; i++)
+         {
+            final int val = src[idx+j*st+i];
+            plane[j*w+i] = (channels == 1) ? val : (val >> shift) & 0xFF;
+         }
+      }
+
+      return plane;
+   }
+
+
+   private static SliceIntArray slice(int[] array, int offset)
+   {
+      return new SliceIntArray(array, array.length-offset, offset);
+   }
+
+
+   private static int countDiffs(int[] frame1, int[] frame2, int w, int h, int st, int offset)
+   {
+      int diffs = 0;
+
+      for (int j=0; j<h; j++)
+      {
+         for (int i=0; i<w; i++)
+         {
+            if (frame1[offset+j*st+i] != frame2[offset+j*st+i])
+               diffs++;
+         }
+      }
+
+      return diffs;
+   }
+
+
+   private static boolean check(String title, boolean ok)
+   {
+      System.out.println(title+": "+((ok == true) ? "OK" : "FAILED"));
+      return ok;
+   }
+}
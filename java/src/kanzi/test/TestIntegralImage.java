@@ -0,0 +1,280 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import kanzi.SliceIntArray;
+import kanzi.filter.IntegralImageFilter;
+import kanzi.util.image.IntegralImage;
+
+
+// Compare the box queries of IntegralImage to brute force sums, for each
+// channel and for raw values (sums larger than 32 bits), and check that the
+// tables built by several concurrent bands are identical to the table built
+// by one band. The output of IntegralImageFilter must be the low 32 bits of
+// the exact sums (also for frames larger than 2^23 pixels).
+public class TestIntegralImage
+{
+   private static final int[] CHANNELS = { IntegralImage.R_CHANNEL, IntegralImage.G_CHANNEL,
+      IntegralImage.B_CHANNEL, IntegralImage.RAW };
+
+
+   public static void main(String[] args)
+   {
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      boolean res = true;
+
+      try
+      {
+         res &= test(64, 48, 64, 0, pool);
+         res &= test(333, 97, 340, 7, pool);
+         res &= test(17, 5, 17, 3, pool);
+         res &= test(1, 40, 2, 1, pool);
+         res &= testFilter(64, 48, 64, 0, false);
+         res &= testFilter(333, 97, 340, 7, true);
+         res &= testFilter(4096, 2160, 4100, 3, false);
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean test(int w, int h, int st, int offset, ExecutorService pool)
+   {
+      System.out.println("Test "+w+"x"+h+" stride="+st+" offset="+offset);
+      final Random rnd = new Random(w*h);
+      final int[] rgb = new int[offset+st*h];
+      final int[] raw = new int[offset+st*h];
+
+      for (int i=0; i<rgb.length; i++)
+      {
+         rgb[i] = rnd.nextInt(1<<24);
+         raw[i] = rnd.nextInt() >> 1; // large positive and negative values
+      }
+
+      final IntegralImage reference = new IntegralImage(w, h, st, true, null, 1);
+      final int[] nbTasks = { 2, 3, 4, 7, 64 };
+      final IntegralImage[] tables = new IntegralImage[nbTasks.length];
+
+      for (int i=0; i<nbTasks.length; i++)
+         tables[i] = new IntegralImage(w, h, st, true, pool, nbTasks[i]);
+
+      boolean res = true;
+
+      // The tables are reused for each channel
+      for (int channel : CHANNELS)
+      {
+         final int[] data = (channel == IntegralImage.RAW) ? raw : rgb;
+         final SliceIntArray input = new SliceIntArray(data, data.length-offset, offset);
+
+         if (reference.build(input, channel) == false)
+         {
+            System.out.println("Channel "+channel+" - build failed FAILED");
+            return false;
+         }
+
+         res &= checkQueries("Channel "+channel, reference, data, w, h, st, offset, channel, rnd);
+
+         for (int i=0; i<nbTasks.length; i++)
+         {
+            if (tables[i].build(input, channel) == false)
+            {
+               System.out.println("Channel "+channel+" - "+nbTasks[i]+" tasks - build failed FAILED");
+               return false;
+            }
+
+            res &= compareTables("Channel "+channel+" - "+nbTasks[i]+" tasks", reference, tables[i]);
+         }
+      }
+
+      return res;
+   }
+
+
+   private static boolean testFilter(int w, int h, int st, int offset, boolean raw)
+   {
+      System.out.println("Test IntegralImageFilter "+w+"x"+h+" stride="+st+" offset="+offset+
+         ((raw == true) ? " - raw values" : ""));
+      final Random rnd = new Random(w+h);
+      final int[] input = new int[offset+st*h];
+      final int[] output = new int[input.length];
+
+      for (int i=0; i<input.length; i++)
+         input[i] = (raw == true) ? rnd.nextInt() : rnd.nextInt(256);
+
+      final IntegralImageFilter filter = new IntegralImageFilter(w, h, st);
+
+      if (filter.apply(new SliceIntArray(input, input.length-offset, offset),
+         new SliceIntArray(output, output.length-offset, offset)) == false)
+      {
+         System.out.println("Apply failed FAILED");
+         return false;
+      }
+
+      final IntegralImage table = filter.getIntegralImage();
+      final long[] colSums = new long[w];
+      int outputDiffs = 0;
+      int tableDiffs = 0;
+
+      for (int y=0; y<h; y++)
+      {
+         long sum = 0;
+
+         for (int x=0; x<w; x++)
+         {
+            colSums[x] += input[offset+y*st+x];
+            sum += colSums[x];
+
+            if (output[offset+y*st+x] != (int) sum)
+               outputDiffs++;
+
+            // Rows and columns only (slow queries)
+            if (((x == w-1) || (y == h-1)) && (table.sum(0, 0, x, y) != sum))
+               tableDiffs++;
+         }
+      }
+
+      boolean res = true;
+      res &= checkErrors("Wrong outputs", outputDiffs);
+      res &= checkErrors("Wrong table sums", tableDiffs);
+      return res;
+   }
+
+
+   // Random boxes and the full frame
+   private static boolean checkQueries(String title, IntegralImage table, int[] data,
+           int w, int h, int st, int offset, int channel, Random rnd)
+   {
+      int sumDiffs = 0;
+      int squareDiffs = 0;
+      int meanDiffs = 0;
+      int varianceDiffs = 0;
+
+      for (int n=0; n<500; n++)
+      {
+         int x0 = rnd.nextInt(w);
+         int x1 = rnd.nextInt(w);
+         int y0 = rnd.nextInt(h);
+         int y1 = rnd.nextInt(h);
+
+         if (n == 0)
+         {
+            x0 = 0;
+            y0 = 0;
+            x1 = w - 1;
+            y1 = h - 1;
+         }
+
+         if (x0 > x1)
+         {
+            final int t = x0;
+            x0 = x1;
+            x1 = t;
+         }
+
+         if (y0 > y1)
+         {
+            final int t = y0;
+            y0 = y1;
+            y1 = t;
+         }
+
+         long sum = 0;
+         long sq = 0;
+
+         for (int y=y0; y<=y1; y++)
+         {
+            for (int x=x0; x<=x1; x++)
+            {
+               final int pixel = data[offset+y*st+x];
+               final long val = (channel == IntegralImage.RAW) ? pixel : (pixel >> channel) & 0xFF;
+               sum += val;
+               sq += val * val;
+            }
+         }
+
+         if (table.sum(x0, y0, x1, y1) != sum)
+            sumDiffs++;
+
+         if (table.sumOfSquares(x0, y0, x1, y1) != sq)
+            squareDiffs++;
+
+         final long area = (long) (x1-x0+1) * (y1-y0+1);
+
+         if (table.mean(x0, y0, x1, y1) != sum/area)
+            meanDiffs++;
+
+         // Exact variance*256 (the raw sums of squares overflow)
+         if (channel != IntegralImage.RAW)
+         {
+            final BigInteger a = BigInteger.valueOf(area);
+            final BigInteger num = a.multiply(BigInteger.valueOf(sq))
+               .subtract(BigInteger.valueOf(sum).multiply(BigInteger.valueOf(sum))).shiftLeft(8);
+            final long expected = num.divide(a.multiply(a)).longValue();
+
+            if (Math.abs(table.variance256(x0, y0, x1, y1)-expected) > 1)
+               varianceDiffs++;
+         }
+      }
+
+      boolean res = true;
+      res &= checkErrors(title+" - wrong sums", sumDiffs);
+
+      if (channel != IntegralImage.RAW)
+      {
+         res &= checkErrors(title+" - wrong sums of squares", squareDiffs);
+         res &= checkErrors(title+" - wrong variances", varianceDiffs);
+      }
+
+      res &= checkErrors(title+" - wrong means", meanDiffs);
+      return res;
+   }
+
+
+   // All the boxes with a corner at (0,0) identify the tables
+   private static boolean compareTables(String title, IntegralImage table1, IntegralImage table2)
+   {
+      int diffs = 0;
+
+      for (int y=0; y<table1.getHeight(); y++)
+      {
+         for (int x=0; x<table1.getWidth(); x++)
+         {
+            if ((table1.sum(0, 0, x, y) != table2.sum(0, 0, x, y))
+               || (table1.sumOfSquares(0, 0, x, y) != table2.sumOfSquares(0, 0, x, y)))
+               diffs++;
+         }
+      }
+
+      return checkErrors(title+" - different sums", diffs);
+   }
+
+
+   private static boolean checkErrors(String title, int errors)
+   {
+      System.out.println(title+": "+errors+((errors == 0) ? "" : " FAILED"));
+      return errors == 0;
+   }
+}
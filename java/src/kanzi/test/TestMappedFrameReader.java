@@ -0,0 +1,278 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import kanzi.ColorModelType;
+import kanzi.YUVFrame;
+import kanzi.util.color.YCbCrColorModelConverter;
+import kanzi.util.image.MappedFrameReader;
+
+
+// Write PPM, PGM and YUV4MPEG2 files with known pixels and check the frames
+// decoded by MappedFrameReader (in random order, with a window smaller than
+// the file so that the file is mapped several times)
+public class TestMappedFrameReader
+{
+   public static void main(String[] args)
+   {
+      boolean res = true;
+
+      try
+      {
+         res &= testPNM(true, 37, 29, 3);
+         res &= testPNM(false, 64, 48, 2);
+         res &= testY4M(ColorModelType.YUV420, "420jpeg", 33, 17, 3, 65536);
+         res &= testY4M(ColorModelType.YUV420, "420jpeg", 160, 120, 6, 65536);
+         res &= testY4M(ColorModelType.YUV422, "422", 31, 16, 2, 65536);
+         res &= testY4M(ColorModelType.YUV444, "444", 24, 16, 2, 65536);
+         res &= testY4M(ColorModelType.GREY, "mono", 20, 10, 4, 65536);
+         res &= testReadRGB(64, 48, 3);
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         res = false;
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   // Concatenated PPM (color) or PGM images
+   private static boolean testPNM(boolean color, int w, int h, int nbFrames) throws IOException
+   {
+      System.out.println("Test "+((color == true) ? "PPM" : "PGM")+" "+w+"x"+h+" - "+nbFrames+" frames");
+      final int channels = (color == true) ? 3 : 1;
+      final byte[][] frames = new byte[nbFrames][];
+      final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      final Random rnd = new Random(w*h);
+
+      for (int n=0; n<nbFrames; n++)
+      {
+         frames[n] = new byte[channels*w*h];
+         rnd.nextBytes(frames[n]);
+         final String header = ((color == true) ? "P6" : "P5") + "\n# frame " + n + "\n" + w + " " + h + "\n255\n";
+         baos.write(header.getBytes("US-ASCII"));
+         baos.write(frames[n]);
+      }
+
+      final File file = writeFile(baos.toByteArray(), (color == true) ? ".ppm" : ".pgm");
+      boolean res = true;
+
+      try (MappedFrameReader reader = new MappedFrameReader(file))
+      {
+         res &= check("Frame count", nbFrames, reader.getNbFrames());
+         res &= check("Color model", (color == true) ? ColorModelType.RGB : ColorModelType.GREY, reader.getColorModel());
+         YUVFrame frame = null;
+         int[] rgb = null;
+
+         for (int n=nbFrames-1; n>=0; n--)
+         {
+            frame = reader.readFrame(n, frame);
+            rgb = reader.readRGB(n, rgb);
+            int diffs = 0;
+
+            for (int i=0; i<w*h; i++)
+            {
+               if (color == true)
+               {
+                  final int r = frames[n][3*i] & 0xFF;
+                  final int g = frames[n][3*i+1] & 0xFF;
+                  final int b = frames[n][3*i+2] & 0xFF;
+
+                  if ((frame.y[i] != r) || (frame.u[i] != g) || (frame.v[i] != b))
+                     diffs++;
+
+                  if (rgb[i] != ((r << 16) | (g << 8) | b))
+                     diffs++;
+               }
+               else
+               {
+                  final int val = frames[n][i] & 0xFF;
+
+                  if ((frame.y[i] != val) || (rgb[i] != ((val << 16) | (val << 8) | val)))
+                     diffs++;
+               }
+            }
+
+            res &= check("Frame "+n+" - different pixels", 0, diffs);
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+
+      return res;
+   }
+
+
+   private static boolean testY4M(ColorModelType type, String cs, int w, int h,
+           int nbFrames, int windowSize) throws IOException
+   {
+      System.out.println("Test Y4M C"+cs+" "+w+"x"+h+" - "+nbFrames+" frames");
+      final int cw = (type == ColorModelType.YUV444) ? w : ((type == ColorModelType.GREY) ? 0 : (w+1)>>1);
+      final int ch = (type == ColorModelType.YUV420) ? (h+1)>>1 : ((type == ColorModelType.GREY) ? 0 : h);
+      final byte[][] frames = new byte[nbFrames][];
+      final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      final Random rnd = new Random(w*h+cw);
+      baos.write(("YUV4MPEG2 W"+w+" H"+h+" F25:1 Ip A1:1 C"+cs+"\n").getBytes("US-ASCII"));
+
+      for (int n=0; n<nbFrames; n++)
+      {
+         frames[n] = new byte[w*h+2*cw*ch];
+         rnd.nextBytes(frames[n]);
+         // Frame headers with and without parameters
+         baos.write((((n & 1) == 0) ? "FRAME\n" : "FRAME Ixyz\n").getBytes("US-ASCII"));
+         baos.write(frames[n]);
+      }
+
+      final File file = writeFile(baos.toByteArray(), ".y4m");
+      boolean res = true;
+
+      try (MappedFrameReader reader = new MappedFrameReader(file, windowSize))
+      {
+         res &= check("Frame count", nbFrames, reader.getNbFrames());
+         res &= check("Color model", type, reader.getColorModel());
+         YUVFrame frame = null;
+
+         // Random order: last, first, then the others
+         for (int k=0; k<nbFrames; k++)
+         {
+            final int n = (k == 0) ? nbFrames-1 : k-1;
+            frame = reader.readFrame(n, frame);
+            int diffs = 0;
+
+            for (int i=0; i<w*h; i++)
+            {
+               if (frame.y[i] != (frames[n][i] & 0xFF))
+                  diffs++;
+            }
+
+            for (int i=0; i<cw*ch; i++)
+            {
+               if (frame.u[i] != (frames[n][w*h+i] & 0xFF))
+                  diffs++;
+
+               if (frame.v[i] != (frames[n][w*h+cw*ch+i] & 0xFF))
+                  diffs++;
+            }
+
+            res &= check("Frame "+n+" - different samples", 0, diffs);
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+
+      return res;
+   }
+
+
+   // YUV420 frames decoded to RGB must match the YCbCr conversion of the planes
+   private static boolean testReadRGB(int w, int h, int nbFrames) throws IOException
+   {
+      System.out.println("Test Y4M readRGB "+w+"x"+h+" - "+nbFrames+" frames");
+      final int cw = w >> 1;
+      final int ch = h >> 1;
+      final int[][] expected = new int[nbFrames][w*h];
+      final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      final YCbCrColorModelConverter cvt = new YCbCrColorModelConverter(w, h);
+      final Random rnd = new Random(w+h);
+      baos.write(("YUV4MPEG2 W"+w+" H"+h+" C420jpeg\n").getBytes("US-ASCII"));
+
+      for (int n=0; n<nbFrames; n++)
+      {
+         final byte[] data = new byte[w*h+2*cw*ch];
+         final int[] y = new int[w*h];
+         final int[] u = new int[cw*ch];
+         final int[] v = new int[cw*ch];
+
+         for (int i=0; i<data.length; i++)
+            data[i] = (byte) (16 + rnd.nextInt(220));
+
+         for (int i=0; i<w*h; i++)
+            y[i] = data[i] & 0xFF;
+
+         for (int i=0; i<cw*ch; i++)
+         {
+            u[i] = data[w*h+i] & 0xFF;
+            v[i] = data[w*h+cw*ch+i] & 0xFF;
+         }
+
+         cvt.convertYUVtoRGB(y, u, v, expected[n], ColorModelType.YUV420);
+         baos.write("FRAME\n".getBytes("US-ASCII"));
+         baos.write(data);
+      }
+
+      final File file = writeFile(baos.toByteArray(), ".y4m");
+      boolean res = true;
+
+      try (MappedFrameReader reader = new MappedFrameReader(file))
+      {
+         int[] rgb = null;
+
+         for (int n=nbFrames-1; n>=0; n--)
+         {
+            rgb = reader.readRGB(n, rgb);
+            int diffs = 0;
+
+            for (int i=0; i<w*h; i++)
+            {
+               if (rgb[i] != expected[n][i])
+                  diffs++;
+            }
+
+            res &= check("Frame "+n+" - different pixels", 0, diffs);
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+
+      return res;
+   }
+
+
+   private static File writeFile(byte[] data, String suffix) throws IOException
+   {
+      final File file = File.createTempFile("kanzi", suffix);
+
+      try (FileOutputStream fos = new FileOutputStream(file))
+      {
+         fos.write(data);
+      }
+
+      return file;
+   }
+
+
+   private static boolean check(String title, Object expected, Object actual)
+   {
+      final boolean res = expected.equals(actual);
+      System.out.println(title+": "+actual+((res == true) ? "" : " (expected "+expected+") FAILED"));
+      return res;
+   }
+}
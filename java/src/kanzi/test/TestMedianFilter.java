@@ -0,0 +1,267 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import kanzi.SliceIntArray;
+import kanzi.filter.MedianFilter;
+
+
+// Compare MedianFilter to a brute force median of the neighborhood of each
+// pixel. Pixels out of the frame are replaced with the nearest frame pixels
+// (also near the frame boundaries), the last row and column are copied from
+// the input. Odd sizes, padded strides and offsets, in and out of place.
+// The tiled filter (tiles processed sequentially or by the tasks of an
+// executor) must give the output of the single tile filter.
+public class TestMedianFilter
+{
+   private static final int SENTINEL = 0x7A5A5A5A;
+
+
+   public static void main(String[] args)
+   {
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      boolean res = true;
+
+      try
+      {
+         // width, height, stride, offset
+         final int[][] frames = { { 64, 48, 64, 0 }, { 37, 29, 37, 0 }, { 101, 67, 106, 3 },
+            { 20, 9, 23, 11 } };
+
+         for (int[] f : frames)
+         {
+            for (int radius : new int[] { 2, 3, 7 })
+            {
+               for (int threshold : new int[] { MedianFilter.DEFAULT_THRESHOLD, 20 })
+               {
+                  res &= test(f[0], f[1], f[2], f[3], radius, MedianFilter.THREE_CHANNELS, threshold);
+                  res &= test(f[0], f[1], f[2], f[3], radius, MedianFilter.G_CHANNEL, threshold);
+               }
+            }
+         }
+
+         // width, height, stride, offset (the first frame has default tiles)
+         final int[][] tiledFrames = { { 601, 77, 611, 5 }, { 203, 41, 203, 0 }, { 97, 31, 100, 7 } };
+
+         for (int[] f : tiledFrames)
+         {
+            for (int radius : new int[] { 2, 5, 16 })
+            {
+               for (int threshold : new int[] { MedianFilter.DEFAULT_THRESHOLD, 12, 60 })
+                  res &= testTiles(f[0], f[1], f[2], f[3], radius, threshold, pool);
+            }
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   private static boolean test(int w, int h, int st, int offset, int radius, int channels,
+           int threshold)
+   {
+      final String title = w+"x"+h+" stride="+st+" offset="+offset+" radius="+radius+
+         ((channels == MedianFilter.THREE_CHANNELS) ? " RGB" : " G")+" threshold="+threshold;
+      final int[] input = createFrame(w, h, st, offset);
+      final int[] expected = filter(input, w, h, st, offset, radius, channels, threshold);
+      boolean res = true;
+
+      // Out of place: the output has stale content
+      final int[] output = new int[input.length];
+      Arrays.fill(output, SENTINEL);
+      final MedianFilter mf = new MedianFilter(w, h, st, radius, channels, threshold);
+      res &= check(title, mf.apply(slice(input.clone(), offset), slice(output, offset))
+         && Arrays.equals(expected, output));
+
+      // In place (same filter reused)
+      final int[] frame = input.clone();
+      res &= check(title+" - in place", mf.apply(slice(frame, offset), slice(frame, offset))
+         && Arrays.equals(filter(input, w, h, st, offset, radius, channels, threshold, input), frame));
+      return res;
+   }
+
+
+   private static boolean testTiles(int w, int h, int st, int offset, int radius, int threshold,
+           ExecutorService pool)
+   {
+      System.out.println("Test tiles "+w+"x"+h+" stride="+st+" offset="+offset+" radius="+radius+
+         " threshold="+threshold);
+      final int[] input = createFrame(w, h, st, offset);
+      final int channels = MedianFilter.THREE_CHANNELS;
+      final MedianFilter reference = new MedianFilter(w, h, st, radius, channels, threshold);
+      final int[] expected = new int[input.length];
+      final int[] expectedInPlace = input.clone();
+
+      if ((reference.apply(slice(input.clone(), offset), slice(expected, offset)) == false)
+         || (reference.apply(slice(expectedInPlace, offset), slice(expectedInPlace, offset)) == false))
+      {
+         System.out.println("Single tile: apply failed FAILED");
+         return false;
+      }
+
+      boolean res = true;
+
+      for (int tileWidth : new int[] { 8, 13, Math.max(2*radius+1, 9), 64, MedianFilter.DEFAULT_TILE_WIDTH })
+      {
+         final MedianFilter tiled = new MedianFilter(w, h, st, radius, channels, threshold, null, tileWidth);
+         final MedianFilter threaded = new MedianFilter(w, h, st, radius, channels, threshold, pool, tileWidth);
+         final String title = "Tile width "+tileWidth+" ("+tiled.getNbTiles()+" tiles)";
+
+         // The filters are run twice: the histograms are reused
+         for (int run=0; run<2; run++)
+         {
+            res &= check(title+" - run "+run, compare(tiled, input, expected, offset, false));
+            res &= check(title+" - executor - run "+run, compare(threaded, input, expected, offset, false));
+         }
+
+         res &= check(title+" - executor - in place", compare(threaded, input, expectedInPlace, offset, true));
+      }
+
+      if (w > 2*MedianFilter.DEFAULT_TILE_WIDTH)
+      {
+         final MedianFilter mf = new MedianFilter(w, h, st, radius, channels, threshold, pool);
+         res &= check("Default tiles ("+mf.getNbTiles()+" tiles)", (mf.getNbTiles() > 1)
+            && compare(mf, input, expected, offset, false));
+      }
+
+      return res;
+   }
+
+
+   private static boolean compare(MedianFilter filter, int[] input, int[] expected, int offset,
+           boolean inPlace)
+   {
+      final int[] src = input.clone();
+      final int[] dst = (inPlace == true) ? src : new int[input.length];
+
+      if (filter.apply(slice(src, offset), slice(dst, offset)) == false)
+         return false;
+
+      return Arrays.equals(expected, dst);
+   }
+
+
+   private static int[] filter(int[] input, int w, int h, int st, int offset, int radius,
+           int channels, int threshold)
+   {
+      final int[] output = new int[input.length];
+      Arrays.fill(output, SENTINEL);
+      return filter(input, w, h, st, offset, radius, channels, threshold, output);
+   }
+
+
+   // Brute force median filter. The result is written over a copy of 'output'.
+   private static int[] filter(int[] input, int w, int h, int st, int offset, int radius,
+           int channels, int threshold, int[] output)
+   {
+      final int[] res = output.clone();
+      final int[] shifts = (channels == MedianFilter.THREE_CHANNELS) ? new int[] { 16, 8, 0 }
+         : new int[] { channels & 0xFF };
+      final int size = (2*radius+1) * (2*radius+1);
+      final int[] values = new int[size];
+
+      for (int y=0; y<h; y++)
+      {
+         for (int x=0; x<w; x++)
+         {
+            final int idx = offset + y*st + x;
+
+            // Copied from the input
+            if ((y == h-1) || (x == w-1))
+            {
+               res[idx] = input[idx];
+               continue;
+            }
+
+            for (int shift : shifts)
+            {
+               int n = 0;
+
+               for (int j=-radius; j<=radius; j++)
+               {
+                  final int yy = Math.min(Math.max(y+j, 0), h-1);
+
+                  for (int i=-radius; i<=radius; i++)
+                  {
+                     final int xx = Math.min(Math.max(x+i, 0), w-1);
+                     values[n++] = (input[offset+yy*st+xx] >> shift) & 0xFF;
+                  }
+               }
+
+               Arrays.sort(values);
+
+               // Value of rank size/2 (from 1) like the histogram search
+               int med = values[size/2-1];
+               final int val = (input[idx] >> shift) & 0xFF;
+
+               if ((threshold < MedianFilter.DEFAULT_THRESHOLD) && (Math.abs(val-med) >= threshold))
+                  med = val;
+
+               res[idx] = (res[idx] & ~(0xFF << shift)) | (med << shift);
+            }
+         }
+      }
+
+      return res;
+   }
+
+
+   // Noisy gradients and flat blocks, the padding of the rows is random
+   private static int[] createFrame(int w, int h, int st, int offset)
+   {
+      final Random rnd = new Random(w*h+st);
+      final int[] frame = new int[offset+st*h];
+
+      for (int i=0; i<frame.length; i++)
+         frame[i] = rnd.nextInt();
+
+      for (int y=0; y<h; y++)
+      {
+         for (int x=0; x<w; x++)
+         {
+            final int r = (((x/5) + (y/7)) & 1) * 180 + rnd.nextInt(40);
+            final int g = (x*255) / w;
+            final int b = (rnd.nextInt(10) == 0) ? 255 : (y*255) / h;
+            frame[offset+y*st+x] = (r << 16) | (g << 8) | b;
+         }
+      }
+
+      return frame;
+   }
+
+
+   private static SliceIntArray slice(int[] array, int offset)
+   {
+      return new SliceIntArray(array, array.length-offset, offset);
+   }
+
+
+   private static boolean check(String title, boolean ok)
+   {
+      System.out.println(title+": "+((ok == true) ? "OK" : "FAILED"));
+      return ok;
+   }
+}
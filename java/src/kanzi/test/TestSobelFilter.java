@@ -31,8 +31,10 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import kanzi.SliceIntArray;
 import kanzi.IntFilter;
+import kanzi.filter.IntFilterFactory;
 import kanzi.filter.ParallelFilter;
 import kanzi.filter.SobelFilter;
+import kanzi.filter.TiledParallelFilter;
 
 
 public class TestSobelFilter
@@ -88,6 +90,26 @@ public class TestSobelFilter
             
             effect = new ParallelFilter(w, h, w, pool, effects, ParallelFilter.HORIZONTAL);            
             test(effect, icon, "Sobel - 4 threads - horizontal split", 0, 400, 550, 10000*adjust/100, 30000);
+            
+            // 4 threads, 2D tiles with a 1 pixel halo (radius of the Sobel kernel)
+            // Only the interior of each tile is written back: no artefact
+            IntFilterFactory factory = new IntFilterFactory()
+            {
+               @Override
+               public IntFilter create(int width, int height, int stride)
+               {
+                  return new SobelFilter(width, height, stride);
+               }
+
+               @Override
+               public int getRadius()
+               {
+                  return 1;
+               }
+            };
+            
+            effect = new TiledParallelFilter(w, h, w, pool, factory, 64, 64, factory.getRadius());            
+            test(effect, icon, "Sobel - 4 threads - tiles", 0, 500, 650, 10000*adjust/100, 30000);
         }
         catch (Exception e)
         {
@@ -0,0 +1,168 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.test;
+
+import java.util.Random;
+import kanzi.SliceIntArray;
+import kanzi.IntFilter;
+import kanzi.filter.SharpenFilter;
+import kanzi.filter.SobelFilter;
+import kanzi.filter.VectorFilters;
+
+
+// Compare the SIMD filters (see VectorFilters) to the scalar filters, for
+// all the options, with widths that are not a multiple of the vector size,
+// a stride larger than the width and an offset (the pixels outside of the
+// frame must not be modified).
+// Run with: java --add-modules jdk.incubator.vector (and the SIMD classes in
+// the classpath), else the scalar filters are compared to themselves.
+public class TestVectorFilters
+{
+   public static void main(String[] args)
+   {
+      if (VectorFilters.isAvailable() == false)
+         System.out.println("Warning: SIMD filters not available, testing the scalar filters");
+
+      final int[][] dims = { { 8, 8 }, { 37, 19 }, { 64, 48 }, { 333, 97 } };
+      boolean res = true;
+
+      for (int[] dim : dims)
+      {
+         final int w = dim[0];
+         final int h = dim[1];
+         System.out.println("Test "+w+"x"+h);
+         final int[] dirs = { SobelFilter.HORIZONTAL, SobelFilter.VERTICAL,
+            SobelFilter.HORIZONTAL | SobelFilter.VERTICAL };
+         final int[] sobelChannels = { SobelFilter.THREE_CHANNELS, SobelFilter.R_CHANNEL,
+            SobelFilter.G_CHANNEL, SobelFilter.B_CHANNEL };
+
+         for (int dir : dirs)
+         {
+            for (int channels : sobelChannels)
+            {
+               for (int type=SobelFilter.IMAGE; type<=SobelFilter.COST; type++)
+               {
+                  for (int b=0; b<2; b++)
+                  {
+                     final int st = w + 5;
+                     res &= compare("Sobel dir="+dir+" channels="+channels+" type="+type+" boundaries="+(b==1),
+                        w, h, st,
+                        new SobelFilter(w, h, st, dir, channels, type, b == 1),
+                        VectorFilters.newSobelFilter(w, h, st, dir, channels, type, b == 1), false);
+                  }
+               }
+            }
+         }
+
+         final int[] sharpenChannels = { SharpenFilter.THREE_CHANNELS, SharpenFilter.R_CHANNEL,
+            SharpenFilter.G_CHANNEL, SharpenFilter.B_CHANNEL };
+
+         for (int channels : sharpenChannels)
+         {
+            for (int b=0; b<2; b++)
+            {
+               final int st = w + 3;
+               res &= compare("Sharpen channels="+channels+" boundaries="+(b==1), w, h, st,
+                  new SharpenFilter(w, h, st, channels, b == 1),
+                  VectorFilters.newSharpenFilter(w, h, st, channels, b == 1), false);
+            }
+         }
+
+         for (int contrast : new int[] { 1, 50, 100, 180, 400 })
+         {
+            res &= compare("Contrast "+contrast+"%", w, h, w+1,
+               VectorFilters.newContrastFilter(w, h, w+1, contrast, false),
+               VectorFilters.newContrastFilter(w, h, w+1, contrast, true), false);
+            res &= compare("Contrast "+contrast+"% - in place", w, h, w,
+               VectorFilters.newContrastFilter(w, h, w, contrast, false),
+               VectorFilters.newContrastFilter(w, h, w, contrast, true), true);
+         }
+
+         for (int radius : new int[] { 1, 3, 8, 32 })
+         {
+            for (int iterations : new int[] { 1, 4 })
+            {
+               res &= compare("Blur radius="+radius+" iterations="+iterations, w, h, w+7,
+                  VectorFilters.newBlurFilter(w, h, w+7, radius, iterations, false),
+                  VectorFilters.newBlurFilter(w, h, w+7, radius, iterations, true), false);
+               res &= compare("Blur radius="+radius+" iterations="+iterations+" - in place", w, h, w,
+                  VectorFilters.newBlurFilter(w, h, w, radius, iterations, false),
+                  VectorFilters.newBlurFilter(w, h, w, radius, iterations, true), true);
+            }
+         }
+      }
+
+      System.out.println();
+      System.out.println((res == true) ? "All tests passed" : "Some tests failed");
+      System.exit((res == true) ? 0 : 1);
+   }
+
+
+   // Only the failures are printed
+   private static boolean compare(String title, int w, int h, int st,
+           IntFilter reference, IntFilter filter, boolean inPlace)
+   {
+      final int offset = (inPlace == true) ? 0 : 2*st+1;
+      final int length = offset + st*h + 4;
+      final Random rnd = new Random(w*h+st);
+      final int[] src = new int[length];
+
+      for (int i=0; i<length; i++)
+         src[i] = ((i & 7) == 0) ? rnd.nextInt() : 0xFF000000 | ((i*13) & 0xFFFFFF) ^ rnd.nextInt(0x80808);
+
+      final int[] src1 = src.clone();
+      final int[] src2 = src.clone();
+      final int[] dst1 = (inPlace == true) ? src1 : new int[length];
+      final int[] dst2 = (inPlace == true) ? src2 : new int[length];
+
+      if (inPlace == false)
+      {
+         // Pixels outside of the frame: must be left untouched
+         for (int i=0; i<length; i++)
+         {
+            dst1[i] = 0x55AA55AA;
+            dst2[i] = 0x55AA55AA;
+         }
+      }
+
+      final SliceIntArray sa1 = new SliceIntArray(src1, length-offset, offset);
+      final SliceIntArray da1 = new SliceIntArray(dst1, length-offset, offset);
+      final SliceIntArray sa2 = new SliceIntArray(src2, length-offset, offset);
+      final SliceIntArray da2 = new SliceIntArray(dst2, length-offset, offset);
+
+      if ((reference.apply(sa1, da1) == false) || (filter.apply(sa2, da2) == false))
+      {
+         System.out.println(title+": apply failed FAILED");
+         return false;
+      }
+
+      int diffs = 0;
+
+      for (int i=0; i<length; i++)
+      {
+         if (dst1[i] != dst2[i])
+            diffs++;
+      }
+
+      if (diffs != 0)
+      {
+         System.out.println(title+" - different pixels: "+diffs+" FAILED");
+         return false;
+      }
+
+      return true;
+   }
+}
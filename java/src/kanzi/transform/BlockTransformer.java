@@ -0,0 +1,298 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import kanzi.IntTransform;
+import kanzi.SliceIntArray;
+
+
+// Apply a block transform (DCT, WHT or DST) to all the NxN blocks of a frame
+// (or of a region of a frame) in one call. The block transforms only process
+// contiguous blocks: each block is gathered from the strided frame into a
+// small buffer, transformed and the coefficients are scattered back to the
+// position of the block in the output frame (row by row). The input and
+// output can be the same frame.
+// If a pool is provided, the rows of blocks are split between concurrent
+// tasks (each task owns its transform instances and buffers).
+public final class BlockTransformer
+{
+   // Transform types
+   public static final int DCT = 0;
+   public static final int WHT = 1;
+   public static final int DST = 2;
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final int type;
+   private final int dim;
+   private final ExecutorService pool;
+   private final BlockRows[] tasks;
+
+
+   public BlockTransformer(int width, int height, int stride, int type, int dim)
+   {
+      this(width, height, stride, type, dim, null, 1);
+   }
+
+
+   // width and height must be multiples of the block dimension (4, 8, 16 or 32
+   // for DCT and WHT, 4 for DST). If a pool is provided, the frame is processed
+   // by nbTasks concurrent tasks.
+   public BlockTransformer(int width, int height, int stride, int type, int dim,
+      ExecutorService pool, int nbTasks)
+   {
+      if ((type != DCT) && (type != WHT) && (type != DST))
+         throw new IllegalArgumentException("Invalid transform type parameter (must be DCT or WHT or DST)");
+
+      if ((dim != 4) && (dim != 8) && (dim != 16) && (dim != 32))
+         throw new IllegalArgumentException("The block dimension must be 4, 8, 16 or 32");
+
+      if ((type == DST) && (dim != 4))
+         throw new IllegalArgumentException("The block dimension must be 4 for DST");
+
+      if ((height < dim) || (height % dim != 0))
+         throw new IllegalArgumentException("The height must be a multiple of the block dimension");
+
+      if ((width < dim) || (width % dim != 0))
+         throw new IllegalArgumentException("The width must be a multiple of the block dimension");
+
+      if (stride < width)
+         throw new IllegalArgumentException("The stride must be at least as big as the width");
+
+      if ((nbTasks < 1) || (nbTasks > 64))
+         throw new IllegalArgumentException("The number of tasks must be in [1..64]");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.type = type;
+      this.dim = dim;
+      this.pool = pool;
+      final int nbBlockRows = height / dim;
+      final int n = (pool == null) ? 1 : Math.min(nbTasks, nbBlockRows);
+      this.tasks = new BlockRows[n];
+
+      for (int i=0; i<n; i++)
+         this.tasks[i] = new BlockRows((nbBlockRows*i)/n, (nbBlockRows*(i+1))/n);
+   }
+
+
+   private IntTransform createTransform()
+   {
+      switch (this.type)
+      {
+         case DCT:
+            switch (this.dim)
+            {
+               case 4 : return new DCT4();
+               case 8 : return new DCT8();
+               case 16 : return new DCT16();
+               default : return new DCT32();
+            }
+
+         case WHT:
+            switch (this.dim)
+            {
+               case 4 : return new WHT4();
+               case 8 : return new WHT8();
+               case 16 : return new WHT16();
+               default : return new WHT32();
+            }
+
+         default:
+            return new DST4();
+      }
+   }
+
+
+   public boolean forward(SliceIntArray input, SliceIntArray output)
+   {
+      return this.run(input, output, true);
+   }
+
+
+   public boolean inverse(SliceIntArray input, SliceIntArray output)
+   {
+      return this.run(input, output, false);
+   }
+
+
+   private boolean run(SliceIntArray input, SliceIntArray output, boolean forward)
+   {
+      if ((!SliceIntArray.isValid(input)) || (!SliceIntArray.isValid(output)))
+         return false;
+
+      final int end = (this.height-1)*this.stride + this.width;
+
+      if ((input.index+end > input.array.length) || (output.index+end > output.array.length))
+         return false;
+
+      for (BlockRows task : this.tasks)
+      {
+         task.src = input.array;
+         task.srcIdx = input.index;
+         task.dst = output.array;
+         task.dstIdx = output.index;
+         task.forward = forward;
+      }
+
+      boolean res = true;
+
+      if (this.tasks.length == 1)
+      {
+         res = this.tasks[0].call();
+      }
+      else
+      {
+         List<Callable<Boolean>> list = new ArrayList<Callable<Boolean>>(this.tasks.length);
+
+         for (BlockRows task : this.tasks)
+            list.add(task);
+
+         try
+         {
+            List<Future<Boolean>> results = this.pool.invokeAll(list);
+
+            for (Future<Boolean> fr : results)
+               res &= fr.get();
+         }
+         catch (InterruptedException e)
+         {
+            res = false;
+         }
+         catch (ExecutionException e)
+         {
+            res = false;
+         }
+      }
+
+      for (BlockRows task : this.tasks)
+      {
+         task.src = null;
+         task.dst = null;
+      }
+
+      return res;
+   }
+
+
+   public int getWidth()
+   {
+      return this.width;
+   }
+
+
+   public int getHeight()
+   {
+      return this.height;
+   }
+
+
+   public int getType()
+   {
+      return this.type;
+   }
+
+
+   public int getBlockDim()
+   {
+      return this.dim;
+   }
+
+
+   // Rows of blocks [row0, row1)
+   private class BlockRows implements Callable<Boolean>
+   {
+      final int row0;
+      final int row1;
+      final IntTransform transform;
+      final SliceIntArray block;
+      final SliceIntArray coeffs;
+      int[] src;
+      int srcIdx;
+      int[] dst;
+      int dstIdx;
+      boolean forward;
+
+
+      BlockRows(int row0, int row1)
+      {
+         final int count = dim * dim;
+         this.row0 = row0;
+         this.row1 = row1;
+
+         // The transforms keep an internal state (not thread safe)
+         this.transform = createTransform();
+         this.block = new SliceIntArray(new int[count], count, 0);
+         this.coeffs = new SliceIntArray(new int[count], count, 0);
+      }
+
+
+      @Override
+      public Boolean call()
+      {
+         final int d = dim;
+         final int st = stride;
+         final int[] buf1 = this.block.array;
+         final int[] buf2 = this.coeffs.array;
+         final IntTransform transform = this.transform;
+
+         for (int row=this.row0; row<this.row1; row++)
+         {
+            final int y = row * d;
+
+            for (int x=0; x<width; x+=d)
+            {
+               // Gather
+               int offs = this.srcIdx + y*st + x;
+
+               for (int j=0, n=0; j<d; j++, n+=d)
+               {
+                  System.arraycopy(this.src, offs, buf1, n, d);
+                  offs += st;
+               }
+
+               this.block.index = 0;
+               this.coeffs.index = 0;
+
+               final boolean res = (this.forward == true) ? transform.forward(this.block, this.coeffs)
+                       : transform.inverse(this.block, this.coeffs);
+
+               if (res == false)
+                  return false;
+
+               // Scatter
+               offs = this.dstIdx + y*st + x;
+
+               for (int j=0, n=0; j<d; j++, n+=d)
+               {
+                  System.arraycopy(buf2, n, this.dst, offs, d);
+                  offs += st;
+               }
+            }
+         }
+
+         return true;
+      }
+   }
+}
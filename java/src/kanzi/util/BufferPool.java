@@ -0,0 +1,333 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Thread safe pool of primitive arrays (int[], byte[], float[]) used as
+// scratch space by filters. Arrays are bucketed by exact length (filters lease
+// the same few sizes for each frame, so no memory is wasted on rounding) and
+// handed out as leases that must be closed to return the array to the pool.
+// The pool retains at most maxRetainedBytes bytes of idle arrays: arrays
+// released beyond this limit are left to the garbage collector.
+// Filters sharing a pool only hold scratch memory while they run, instead of
+// one full frame buffer per filter instance. Buckets are removed once empty,
+// so the pool does not grow with the number of distinct lengths leased.
+public final class BufferPool
+{
+   public static final long DEFAULT_MAX_RETAINED_BYTES = 256L*1024*1024;
+
+   private static final int INT_ARRAY = 0;
+   private static final int BYTE_ARRAY = 1;
+   private static final int FLOAT_ARRAY = 2;
+   private static final int[] ELEMENT_SIZE = { 4, 1, 4 };
+
+   private final long maxRetainedBytes;
+   private final List<ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Object>>> buckets; // per type, per length
+   private final AtomicLong retainedBytes;
+   private final AtomicLong hits;
+   private final AtomicLong misses;
+   private final AtomicLong drops;
+
+
+   public BufferPool()
+   {
+      this(DEFAULT_MAX_RETAINED_BYTES);
+   }
+
+
+   public BufferPool(long maxRetainedBytes)
+   {
+      if (maxRetainedBytes < 0)
+         throw new IllegalArgumentException("The maximum number of retained bytes must be positive or null");
+
+      this.maxRetainedBytes = maxRetainedBytes;
+      this.buckets = new ArrayList<ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Object>>>(ELEMENT_SIZE.length);
+
+      for (int t=0; t<ELEMENT_SIZE.length; t++)
+         this.buckets.add(new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Object>>());
+
+      this.retainedBytes = new AtomicLong();
+      this.hits = new AtomicLong();
+      this.misses = new AtomicLong();
+      this.drops = new AtomicLong();
+   }
+
+
+   // Return the bucket of idle arrays of the provided length (created on demand)
+   private ConcurrentLinkedQueue<Object> getBucket(int type, int length)
+   {
+      final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Object>> map = this.buckets.get(type);
+      ConcurrentLinkedQueue<Object> bucket = map.get(length);
+
+      if (bucket == null)
+      {
+         final ConcurrentLinkedQueue<Object> newBucket = new ConcurrentLinkedQueue<Object>();
+         bucket = map.putIfAbsent(length, newBucket);
+
+         if (bucket == null)
+            bucket = newBucket;
+      }
+
+      return bucket;
+   }
+
+
+   private Object take(int type, int length)
+   {
+      if (length < 0)
+         throw new IllegalArgumentException("Invalid negative length: "+length);
+
+      final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Object>> map = this.buckets.get(type);
+      final ConcurrentLinkedQueue<Object> bucket = map.get(length);
+      Object array = null;
+
+      if (bucket != null)
+      {
+         array = bucket.poll();
+
+         // Drop empty buckets so that the map does not grow with every length
+         // ever leased (varying frame sizes)
+         if ((bucket.isEmpty() == true) && (map.remove(length, bucket) == true))
+         {
+            // Arrays released concurrently may have reached the bucket before
+            // its removal: move them to the current bucket
+            Object a;
+
+            while ((a = bucket.poll()) != null)
+            {
+               if (array == null)
+                  array = a;
+               else
+                  this.offer(type, a, length);
+            }
+         }
+
+         if (array != null)
+         {
+            this.retainedBytes.addAndGet(-(long) ELEMENT_SIZE[type] * length);
+            this.hits.incrementAndGet();
+            return array;
+         }
+      }
+
+      this.misses.incrementAndGet();
+
+      switch (type)
+      {
+         case INT_ARRAY :
+            return new int[length];
+
+         case BYTE_ARRAY :
+            return new byte[length];
+
+         default :
+            return new float[length];
+      }
+   }
+
+
+   private void give(int type, Object array, int length)
+   {
+      final long bytes = (long) ELEMENT_SIZE[type] * length;
+
+      while (true)
+      {
+         final long retained = this.retainedBytes.get();
+
+         if (retained + bytes > this.maxRetainedBytes)
+         {
+            this.drops.incrementAndGet();
+            return;
+         }
+
+         if (this.retainedBytes.compareAndSet(retained, retained+bytes) == true)
+            break;
+      }
+
+      this.offer(type, array, length);
+   }
+
+
+   // Add an idle array (already accounted for) to the bucket of its length
+   private void offer(int type, Object array, int length)
+   {
+      final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Object>> map = this.buckets.get(type);
+
+      while (true)
+      {
+         final ConcurrentLinkedQueue<Object> bucket = this.getBucket(type, length);
+         bucket.offer(array);
+
+         if (map.get(length) == bucket)
+            return;
+
+         // The bucket was removed concurrently. Retry unless the array has
+         // already been taken out of it.
+         if (bucket.remove(array) == false)
+            return;
+      }
+   }
+
+
+   // The leased array has exactly 'length' elements. Its content is undefined.
+   public Lease<int[]> leaseInts(int length)
+   {
+      return new Lease<int[]>(this, INT_ARRAY, (int[]) this.take(INT_ARRAY, length));
+   }
+
+
+   // The leased array has exactly 'length' elements. Its content is undefined.
+   public Lease<byte[]> leaseBytes(int length)
+   {
+      return new Lease<byte[]>(this, BYTE_ARRAY, (byte[]) this.take(BYTE_ARRAY, length));
+   }
+
+
+   // The leased array has exactly 'length' elements. Its content is undefined.
+   public Lease<float[]> leaseFloats(int length)
+   {
+      return new Lease<float[]>(this, FLOAT_ARRAY, (float[]) this.take(FLOAT_ARRAY, length));
+   }
+
+
+   // Number of leases served with a pooled array
+   public long getHits()
+   {
+      return this.hits.get();
+   }
+
+
+   // Number of leases that required an allocation
+   public long getMisses()
+   {
+      return this.misses.get();
+   }
+
+
+   // Number of released arrays not retained (pool full)
+   public long getDrops()
+   {
+      return this.drops.get();
+   }
+
+
+   // Number of bytes held by idle arrays in the pool
+   public long getRetainedBytes()
+   {
+      return this.retainedBytes.get();
+   }
+
+
+   public long getMaxRetainedBytes()
+   {
+      return this.maxRetainedBytes;
+   }
+
+
+   // Release all the idle arrays
+   public void clear()
+   {
+      for (int t=0; t<ELEMENT_SIZE.length; t++)
+      {
+         final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Object>> map = this.buckets.get(t);
+
+         for (Integer length : map.keySet())
+         {
+            final ConcurrentLinkedQueue<Object> bucket = map.remove(length);
+
+            if (bucket == null)
+               continue;
+
+            Object array;
+
+            while ((array = bucket.poll()) != null)
+               this.retainedBytes.addAndGet(-(long) ELEMENT_SIZE[t] * getLength(t, array));
+         }
+      }
+   }
+
+
+   private static int getLength(int type, Object array)
+   {
+      switch (type)
+      {
+         case INT_ARRAY :
+            return ((int[]) array).length;
+
+         case BYTE_ARRAY :
+            return ((byte[]) array).length;
+
+         default :
+            return ((float[]) array).length;
+      }
+   }
+
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder(200);
+      sb.append("{ \"hits\":").append(this.hits.get());
+      sb.append(", \"misses\":").append(this.misses.get());
+      sb.append(", \"drops\":").append(this.drops.get());
+      sb.append(", \"retained bytes\":").append(this.retainedBytes.get());
+      sb.append(", \"max retained bytes\":").append(this.maxRetainedBytes);
+      sb.append(" }");
+      return sb.toString();
+   }
+
+
+   // An array borrowed from the pool. Closing the lease returns the array to
+   // the pool (the array must not be used afterwards). Closing twice has no
+   // effect.
+   public static final class Lease<T> implements AutoCloseable
+   {
+      @SuppressWarnings("rawtypes")
+      private static final AtomicIntegerFieldUpdater<Lease> CLOSED =
+         AtomicIntegerFieldUpdater.newUpdater(Lease.class, "closed");
+
+      public final T array;
+      private final BufferPool pool;
+      private final int type;
+      private volatile int closed; // 0 or 1, updated with CLOSED (no extra object per lease)
+
+
+      Lease(BufferPool pool, int type, T array)
+      {
+         this.pool = pool;
+         this.type = type;
+         this.array = array;
+      }
+
+
+      @Override
+      public void close()
+      {
+         if (CLOSED.compareAndSet(this, 0, 1) == false)
+            return;
+
+         final int length = getLength(this.type, this.array);
+         this.pool.give(this.type, this.array, length);
+      }
+   }
+}
@@ -0,0 +1,27 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color;
+
+
+// A factory of color model converters, each applied to one band of rows of
+// a frame (see ParallelColorModelConverter).
+public interface ColorModelConverterFactory
+{
+   // Create a new converter for a region of the provided dimensions.
+   // rgbOffset is the offset of the region in the RGB frame while stride is
+   // the width of the RGB frame
+   public ColorModelConverter create(int width, int height, int rgbOffset, int stride);
+}
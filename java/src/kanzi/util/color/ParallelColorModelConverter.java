@@ -0,0 +1,347 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import kanzi.ColorModelType;
+
+
+// A color model converter that splits the frame into contiguous ranges of rows
+// (multiples of 8) processed concurrently by the tasks of an executor. Each
+// task converts its rows with a converter created by the factory for these rows
+// (RGB offset and stride of the range), so the RGB frame is read or written in
+// place. The Y, U, V channels of the converter API start at index 0, so every
+// task but the first one reads or writes its Y, U, V rows in task buffers
+// (one contiguous copy per channel).
+// The conversion is per pixel (or per 2x2 block for the chroma decimation)
+// except for the bilinear interpolation of the chroma rows from YUV420 to RGB:
+// the last 2 rows of a range also depend on the first chroma row of the next
+// range, so they are converted again with the rows around the boundary. The
+// result is identical to the conversion of the whole frame with a converter
+// created by the factory (with the default chroma resampling).
+// The U and V channels are packed (the width of the U and V channels is the
+// width of the frame divided by 2 for YUV420 and YUV422). Like the converters,
+// the Y rows are located with the stride for YUV420 and packed otherwise.
+public class ParallelColorModelConverter implements ColorModelConverter
+{
+   private final int width;
+   private final int height;
+   private final int rgbOffset;
+   private final int stride;
+   private final ExecutorService pool;
+   private final Task[] tasks;
+
+
+   public ParallelColorModelConverter(int width, int height, ColorModelConverterFactory factory,
+           ExecutorService pool)
+   {
+      this(width, height, 0, width, factory, pool, Runtime.getRuntime().availableProcessors());
+   }
+
+
+   // rgbOffset is the offset in the RGB frame while stride is the width of the RGB frame
+   // width and height are the dimension of the YUV frame
+   public ParallelColorModelConverter(int width, int height, int rgbOffset, int stride,
+           ColorModelConverterFactory factory, ExecutorService pool, int nbTasks)
+   {
+      if (height < 8)
+         throw new IllegalArgumentException("The height must be at least 8");
+
+      if (width < 8)
+         throw new IllegalArgumentException("The width must be at least 8");
+
+      if (stride < width)
+         throw new IllegalArgumentException("The stride must be at least as large as the width");
+
+      if ((height & 7) != 0)
+         throw new IllegalArgumentException("The height must be a multiple of 8");
+
+      if ((width & 7) != 0)
+         throw new IllegalArgumentException("The width must be a multiple of 8");
+
+      if (rgbOffset < 0)
+         throw new IllegalArgumentException("The RGB offset must be positive or null");
+
+      if (factory == null)
+         throw new NullPointerException("Invalid null factory parameter");
+
+      if (pool == null)
+         throw new NullPointerException("Invalid null executor parameter");
+
+      if (nbTasks < 1)
+         throw new IllegalArgumentException("The number of tasks must be at least 1");
+
+      this.width = width;
+      this.height = height;
+      this.rgbOffset = rgbOffset;
+      this.stride = stride;
+      this.pool = pool;
+
+      // Each task works on at least 8 rows
+      final int n = Math.min(nbTasks, height>>3);
+      final int nbUnits = height >> 3;
+      this.tasks = new Task[n];
+
+      for (int i=0; i<n; i++)
+      {
+         // Row ranges aligned on multiples of 8
+         final int rowStart = ((nbUnits*i) / n) << 3;
+         final int rowEnd = ((nbUnits*(i+1)) / n) << 3;
+         this.tasks[i] = new Task(factory, rowStart, rowEnd);
+      }
+   }
+
+
+   @Override
+   public boolean convertRGBtoYUV(int[] rgb, int[] y, int[] u, int[] v, ColorModelType type)
+   {
+      return this.run(rgb, y, u, v, type, true);
+   }
+
+
+   @Override
+   public boolean convertYUVtoRGB(int[] y, int[] u, int[] v, int[] rgb, ColorModelType type)
+   {
+      return this.run(rgb, y, u, v, type, false);
+   }
+
+
+   private boolean run(int[] rgb, int[] y, int[] u, int[] v, ColorModelType type,
+           boolean forward)
+   {
+      if ((rgb == null) || (y == null) || (u == null) || (v == null) || (type == null))
+         return false;
+
+      if (type == ColorModelType.YUV411)
+         return false;
+
+      final int w = this.width;
+      final int h = this.height;
+      final int lumaSize = ((type == ColorModelType.YUV420) ? this.stride : w) * h;
+      final int chromaSize = (w >> getChromaShiftX(type))
+         * (h >> getChromaShiftY(type));
+
+      // Arrays too small
+      if ((rgb.length < this.rgbOffset+(h-1)*this.stride+w) || (y.length < lumaSize)
+         || (u.length < chromaSize) || (v.length < chromaSize))
+         return false;
+
+      List<Callable<Boolean>> list = new ArrayList<Callable<Boolean>>(this.tasks.length);
+
+      for (Task task : this.tasks)
+      {
+         task.rgb = rgb;
+         task.y = y;
+         task.u = u;
+         task.v = v;
+         task.type = type;
+         task.forward = forward;
+         list.add(task);
+      }
+
+      boolean res = true;
+
+      try
+      {
+         List<Future<Boolean>> results = this.pool.invokeAll(list);
+
+         for (Future<Boolean> fr : results)
+            res &= fr.get();
+      }
+      catch (InterruptedException e)
+      {
+         res = false;
+      }
+      catch (ExecutionException e)
+      {
+         res = false;
+      }
+
+      for (Task task : this.tasks)
+      {
+         task.rgb = null;
+         task.y = null;
+         task.u = null;
+         task.v = null;
+      }
+
+      return res;
+   }
+
+
+   public int getNbTasks()
+   {
+      return this.tasks.length;
+   }
+
+
+   // The chroma frames have the dimensions of the luma frame divided by 2
+   // horizontally (YUV422), by 2 in both directions (YUV420) or are full size
+   // (all other color models).
+   static int getChromaShiftX(ColorModelType type)
+   {
+      return ((type == ColorModelType.YUV420) || (type == ColorModelType.YUV422)) ? 1 : 0;
+   }
+
+
+   static int getChromaShiftY(ColorModelType type)
+   {
+      return (type == ColorModelType.YUV420) ? 1 : 0;
+   }
+
+
+   // Conversion of the rows [rowStart, rowEnd) of the frame
+   class Task implements Callable<Boolean>
+   {
+      final int rowStart;
+      final int rowEnd;
+      final ColorModelConverter converter;
+      final ColorModelConverter boundaryConverter; // rows [rowEnd-8, rowEnd+8), can be null
+      final int[] boundaryRGB; // RGB, Y, U, V of the boundary rows
+      final int[] boundaryY;
+      final int[] boundaryU;
+      final int[] boundaryV;
+      int[] bufY; // Y, U, V rows of the task (unused by the first task)
+      int[] bufU;
+      int[] bufV;
+      int[] rgb;
+      int[] y;
+      int[] u;
+      int[] v;
+      ColorModelType type;
+      boolean forward;
+
+
+      Task(ColorModelConverterFactory factory, int rowStart, int rowEnd)
+      {
+         this.rowStart = rowStart;
+         this.rowEnd = rowEnd;
+         this.converter = factory.create(width, rowEnd-rowStart,
+            rgbOffset+rowStart*stride, stride);
+
+         // The boundary rows are converted to a local RGB buffer (stride = width)
+         this.boundaryConverter = (rowEnd < height) ? factory.create(width, 16, 0, width) : null;
+         final int size = (rowEnd < height) ? 16*width : 0;
+         this.boundaryRGB = new int[size];
+         this.boundaryY = new int[size];
+         this.boundaryU = new int[size];
+         this.boundaryV = new int[size];
+         this.bufY = new int[0];
+         this.bufU = new int[0];
+         this.bufV = new int[0];
+      }
+
+
+      @Override
+      public Boolean call()
+      {
+         final int w = width;
+         final int shiftY = getChromaShiftY(this.type);
+         final int cw = w >> getChromaShiftX(this.type);
+         final int lumaPitch = (this.type == ColorModelType.YUV420) ? stride : w;
+         final int lumaStart = this.rowStart * lumaPitch;
+         final int lumaCount = (this.rowEnd-this.rowStart) * lumaPitch;
+         final int chromaStart = (this.rowStart>>shiftY) * cw;
+         final int chromaCount = ((this.rowEnd-this.rowStart)>>shiftY) * cw;
+         int[] yy = this.y;
+         int[] uu = this.u;
+         int[] vv = this.v;
+
+         if (this.rowStart > 0)
+         {
+            if (this.bufY.length < lumaCount)
+               this.bufY = new int[lumaCount];
+
+            if (this.bufU.length < chromaCount)
+            {
+               this.bufU = new int[chromaCount];
+               this.bufV = new int[chromaCount];
+            }
+
+            yy = this.bufY;
+            uu = this.bufU;
+            vv = this.bufV;
+         }
+
+         if (this.forward == true)
+         {
+            if (this.converter.convertRGBtoYUV(this.rgb, yy, uu, vv, this.type) == false)
+               return false;
+
+            if (this.rowStart > 0)
+            {
+               // Do not overwrite the padding of the Y rows (YUV420)
+               for (int i=0; i<lumaCount; i+=lumaPitch)
+                  System.arraycopy(yy, i, this.y, lumaStart+i, w);
+
+               System.arraycopy(uu, 0, this.u, chromaStart, chromaCount);
+               System.arraycopy(vv, 0, this.v, chromaStart, chromaCount);
+            }
+
+            return true;
+         }
+
+         if (this.rowStart > 0)
+         {
+            System.arraycopy(this.y, lumaStart, yy, 0, lumaCount);
+            System.arraycopy(this.u, chromaStart, uu, 0, chromaCount);
+            System.arraycopy(this.v, chromaStart, vv, 0, chromaCount);
+         }
+
+         if (this.converter.convertYUVtoRGB(yy, uu, vv, this.rgb, this.type) == false)
+            return false;
+
+         if ((this.type == ColorModelType.YUV420) && (this.boundaryConverter != null))
+            return this.convertBoundary();
+
+         return true;
+      }
+
+
+      // Convert the rows [rowEnd-8, rowEnd+8) and keep the last 2 rows of the
+      // task (interpolated with the first chroma row of the next task)
+      private boolean convertBoundary()
+      {
+         final int w = width;
+         final int cw = w >> 1;
+         final int y0 = this.rowEnd - 8;
+         final int[] by = this.boundaryY;
+         final int[] bu = this.boundaryU;
+         final int[] bv = this.boundaryV;
+         final int[] brgb = this.boundaryRGB;
+
+         // Like the converters, the Y rows of YUV420 are located with the stride
+         for (int j=0; j<16; j++)
+            System.arraycopy(this.y, (y0+j)*stride, by, j*w, w);
+
+         System.arraycopy(this.u, (y0>>1)*cw, bu, 0, 8*cw);
+         System.arraycopy(this.v, (y0>>1)*cw, bv, 0, 8*cw);
+
+         if (this.boundaryConverter.convertYUVtoRGB(by, bu, bv, brgb, this.type) == false)
+            return false;
+
+         for (int j=6; j<8; j++)
+            System.arraycopy(brgb, j*w, this.rgb, rgbOffset+(y0+j)*stride, w);
+
+         return true;
+      }
+   }
+}
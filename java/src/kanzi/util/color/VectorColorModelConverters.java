@@ -0,0 +1,271 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.color;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+
+// Factory of the SIMD versions of the YCbCr, YSbSr, YIQ, YCoCg and reversible
+// YUV color model converters. The SIMD converters (package kanzi.util.color.simd,
+// source tree 'simd', see the build_simd Ant target) are built on the
+// jdk.incubator.vector module and produce the same output as the scalar
+// converters with the default (bilinear) chroma resampling.
+// They are loaded by reflection so that this class works on any JVM: if the
+// classes or the module are not available, the scalar converters are returned.
+// Combine with ParallelColorModelConverter (see newFactory) to also split the
+// frame into bands of rows processed concurrently.
+public final class VectorColorModelConverters
+{
+   private static final String PACKAGE = "kanzi.util.color.simd.";
+
+   private static final Constructor<?> YCBCR;
+   private static final Constructor<?> YSBSR;
+   private static final Constructor<?> YIQ;
+   private static final Constructor<?> YCOCG;
+   private static final Constructor<?> REVERSIBLE_YUV;
+
+   static
+   {
+      Constructor<?> ycbcr = null;
+      Constructor<?> ysbsr = null;
+      Constructor<?> yiq = null;
+      Constructor<?> ycocg = null;
+      Constructor<?> ryuv = null;
+
+      try
+      {
+         Class.forName("jdk.incubator.vector.IntVector");
+         ycbcr = Class.forName(PACKAGE+"VectorYCbCrColorModelConverter").getConstructor(int.class,
+            int.class, int.class, int.class);
+         ysbsr = Class.forName(PACKAGE+"VectorYSbSrColorModelConverter").getConstructor(int.class,
+            int.class, int.class, int.class, boolean.class);
+         yiq = Class.forName(PACKAGE+"VectorYIQColorModelConverter").getConstructor(int.class,
+            int.class, int.class, int.class);
+         ycocg = Class.forName(PACKAGE+"VectorYCoCgColorModelConverter").getConstructor(int.class,
+            int.class, int.class, int.class);
+         ryuv = Class.forName(PACKAGE+"VectorReversibleYUVColorModelConverter").getConstructor(int.class,
+            int.class, int.class, int.class);
+      }
+      catch (Exception | LinkageError e)
+      {
+         // Classes not found or module not resolved (the vector classes
+         // cannot be linked): use the scalar converters
+         ycbcr = null;
+      }
+
+      final boolean ok = (ycbcr != null) && (ryuv != null);
+      YCBCR = (ok == true) ? ycbcr : null;
+      YSBSR = (ok == true) ? ysbsr : null;
+      YIQ = (ok == true) ? yiq : null;
+      YCOCG = (ok == true) ? ycocg : null;
+      REVERSIBLE_YUV = (ok == true) ? ryuv : null;
+   }
+
+
+   private VectorColorModelConverters()
+   {
+   }
+
+
+   // Return true if the SIMD converters can be instantiated
+   public static boolean isAvailable()
+   {
+      return YCBCR != null;
+   }
+
+
+   public static ColorModelConverter newYCbCrConverter(int width, int height, int rgbOffset,
+           int stride)
+   {
+      return newYCbCrConverter(width, height, rgbOffset, stride, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD converters are not available, the
+   // scalar converter is returned
+   public static ColorModelConverter newYCbCrConverter(int width, int height, int rgbOffset,
+           int stride, boolean vectorize)
+   {
+      if ((vectorize == true) && (YCBCR != null))
+         return create(YCBCR, width, height, rgbOffset, stride);
+
+      return new YCbCrColorModelConverter(width, height, rgbOffset, stride);
+   }
+
+
+   public static ColorModelConverter newYSbSrConverter(int width, int height, int rgbOffset,
+           int stride, boolean keepRange)
+   {
+      return newYSbSrConverter(width, height, rgbOffset, stride, keepRange, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD converters are not available, the
+   // scalar converter is returned
+   public static ColorModelConverter newYSbSrConverter(int width, int height, int rgbOffset,
+           int stride, boolean keepRange, boolean vectorize)
+   {
+      if ((vectorize == true) && (YSBSR != null))
+         return create(YSBSR, width, height, rgbOffset, stride, keepRange);
+
+      return new YSbSrColorModelConverter(width, height, rgbOffset, stride, keepRange);
+   }
+
+
+   public static ColorModelConverter newYIQConverter(int width, int height, int rgbOffset,
+           int stride)
+   {
+      return newYIQConverter(width, height, rgbOffset, stride, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD converters are not available, the
+   // scalar converter is returned
+   public static ColorModelConverter newYIQConverter(int width, int height, int rgbOffset,
+           int stride, boolean vectorize)
+   {
+      if ((vectorize == true) && (YIQ != null))
+         return create(YIQ, width, height, rgbOffset, stride);
+
+      return new YIQColorModelConverter(width, height, rgbOffset, stride);
+   }
+
+
+   public static ColorModelConverter newYCoCgConverter(int width, int height, int rgbOffset,
+           int stride)
+   {
+      return newYCoCgConverter(width, height, rgbOffset, stride, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD converters are not available, the
+   // scalar converter is returned
+   public static ColorModelConverter newYCoCgConverter(int width, int height, int rgbOffset,
+           int stride, boolean vectorize)
+   {
+      if ((vectorize == true) && (YCOCG != null))
+         return create(YCOCG, width, height, rgbOffset, stride);
+
+      return new YCoCgColorModelConverter(width, height, rgbOffset, stride);
+   }
+
+
+   public static ColorModelConverter newReversibleYUVConverter(int width, int height,
+           int rgbOffset, int stride)
+   {
+      return newReversibleYUVConverter(width, height, rgbOffset, stride, true);
+   }
+
+
+   // If 'vectorize' is false or the SIMD converters are not available, the
+   // scalar converter is returned
+   public static ColorModelConverter newReversibleYUVConverter(int width, int height,
+           int rgbOffset, int stride, boolean vectorize)
+   {
+      if ((vectorize == true) && (REVERSIBLE_YUV != null))
+         return create(REVERSIBLE_YUV, width, height, rgbOffset, stride);
+
+      return new ReversibleYUVColorModelConverter(width, height, rgbOffset, stride);
+   }
+
+
+   // Return a factory of (SIMD if available) converters for the
+   // ParallelColorModelConverter class.
+   // Valid names: YCbCr, YSbSr (keep range), YIQ, YCoCg, ReversibleYUV
+   public static ColorModelConverterFactory newFactory(String name, final boolean vectorize)
+   {
+      if (name == null)
+         throw new NullPointerException("Invalid null converter name");
+
+      switch (name.toUpperCase())
+      {
+         case "YCBCR" :
+            return new ColorModelConverterFactory()
+            {
+               @Override
+               public ColorModelConverter create(int width, int height, int rgbOffset, int stride)
+               {
+                  return newYCbCrConverter(width, height, rgbOffset, stride, vectorize);
+               }
+            };
+
+         case "YSBSR" :
+            return new ColorModelConverterFactory()
+            {
+               @Override
+               public ColorModelConverter create(int width, int height, int rgbOffset, int stride)
+               {
+                  return newYSbSrConverter(width, height, rgbOffset, stride, true, vectorize);
+               }
+            };
+
+         case "YIQ" :
+            return new ColorModelConverterFactory()
+            {
+               @Override
+               public ColorModelConverter create(int width, int height, int rgbOffset, int stride)
+               {
+                  return newYIQConverter(width, height, rgbOffset, stride, vectorize);
+               }
+            };
+
+         case "YCOCG" :
+            return new ColorModelConverterFactory()
+            {
+               @Override
+               public ColorModelConverter create(int width, int height, int rgbOffset, int stride)
+               {
+                  return newYCoCgConverter(width, height, rgbOffset, stride, vectorize);
+               }
+            };
+
+         case "REVERSIBLEYUV" :
+            return new ColorModelConverterFactory()
+            {
+               @Override
+               public ColorModelConverter create(int width, int height, int rgbOffset, int stride)
+               {
+                  return newReversibleYUVConverter(width, height, rgbOffset, stride, vectorize);
+               }
+            };
+
+         default :
+            throw new IllegalArgumentException("Unknown color model converter: "+name);
+      }
+   }
+
+
+   private static ColorModelConverter create(Constructor<?> ctor, Object... args)
+   {
+      try
+      {
+         return (ColorModelConverter) ctor.newInstance(args);
+      }
+      catch (InvocationTargetException e)
+      {
+         // Invalid parameters: rethrow the exception of the constructor
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+
+         throw new IllegalArgumentException(e.getCause());
+      }
+      catch (Exception e)
+      {
+         throw new IllegalStateException("Cannot instantiate "+ctor.getDeclaringClass().getName(), e);
+      }
+   }
+}
@@ -16,12 +16,15 @@ limitations under the License.
 package kanzi.util.color;
 
 import kanzi.ColorModelType;
+import kanzi.DirectFrame;
 import kanzi.util.sampling.DownSampler;
 import kanzi.util.sampling.UpSampler;
 
 // Reference:  http://www.poynton.com/notes/colour_and_gamma/ColorFAQ.html#RTFToC29
 // One pass converter using a fast bilinear resampler with in-place supersampling
 // A custom resampler can also be provided
+// The converter also works on frames stored off heap (DirectFrame) with the
+// default resampler.
 // Implementation follows JPEG/JFIF conversion (https://www.w3.org/Graphics/JPEG/jfif3.pdf)
 public final class YCbCrColorModelConverter implements ColorModelConverter
 {
@@ -136,6 +139,163 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
     }
 
 
+    // Same as convertRGBtoYUV(int[], int[], int[], int[], ColorModelType) for
+    // frames stored off heap. Each frame has its own stride and offset (the
+    // RGB offset and stride of the converter are not used): the RGB and Y
+    // frames have the dimensions of the converter, the U and V frames the
+    // dimensions of the subsampled chroma channels. The rows are copied to
+    // heap rows with bulk transfers and converted with the same row routines
+    // as heap frames. Custom resamplers are not supported (false is returned).
+    public boolean convertRGBtoYUV(DirectFrame rgb, DirectFrame y, DirectFrame u, DirectFrame v,
+       ColorModelType type)
+    {
+       if (this.checkFrames(rgb, y, u, v, type) == false)
+          return false;
+
+       if ((y.buffer.isReadOnly() == true) || (u.buffer.isReadOnly() == true)
+          || (v.buffer.isReadOnly() == true))
+          return false;
+
+       final int w = this.width;
+       final int[] rgbRows = new int[2*w];
+       final int[] yRows = new int[2*w];
+       final int[] uRow = new int[w];
+       final int[] vRow = new int[w];
+
+       if (type == ColorModelType.YUV420)
+       {
+          for (int j=0; j<this.height; j+=2)
+          {
+             rgb.getRows(j, 2, rgbRows, 0);
+             this.convertRGBtoYUV420Rows(rgbRows, 0, w, yRows, 0, w, uRow, vRow, 0);
+             y.putRows(j, 2, yRows, 0);
+             u.putRows(j>>1, 1, uRow, 0);
+             v.putRows(j>>1, 1, vRow, 0);
+          }
+
+          return true;
+       }
+
+       for (int j=0; j<this.height; j++)
+       {
+          rgb.getRows(j, 1, rgbRows, 0);
+
+          if (type == ColorModelType.YUV444)
+             this.convertRGBtoYUV444Row(rgbRows, 0, yRows, 0, uRow, vRow, 0);
+          else
+             this.convertRGBtoYUV422Row(rgbRows, 0, yRows, 0, uRow, vRow, 0);
+
+          y.putRows(j, 1, yRows, 0);
+          u.putRows(j, 1, uRow, 0);
+          v.putRows(j, 1, vRow, 0);
+       }
+
+       return true;
+    }
+
+
+    // Same as convertYUVtoRGB(int[], int[], int[], int[], ColorModelType) for
+    // frames stored off heap (see convertRGBtoYUV for the frame dimensions).
+    public boolean convertYUVtoRGB(DirectFrame y, DirectFrame u, DirectFrame v, DirectFrame rgb,
+       ColorModelType type)
+    {
+       if (this.checkFrames(rgb, y, u, v, type) == false)
+          return false;
+
+       if (rgb.buffer.isReadOnly() == true)
+          return false;
+
+       final int w = this.width;
+       final int[] rgbRows = new int[2*w];
+       final int[] yRows = new int[2*w];
+       final int[] uRows = new int[w];
+       final int[] vRows = new int[w];
+
+       if (type == ColorModelType.YUV420)
+       {
+          final int sh = this.height >> 1;
+          final int sw = w >> 1;
+
+          for (int j=0; j<sh; j++)
+          {
+             // Chroma rows used for the rows 2*j and 2*j+1 (see convertYUV420toRGB)
+             final int cy = (j < sh-1) ? j : j-1;
+             y.getRows(j+j, 2, yRows, 0);
+             u.getRows(cy, 2, uRows, 0);
+             v.getRows(cy, 2, vRows, 0);
+             this.convertYUV420toRGBRows(yRows, 0, w, uRows, vRows, 0, sw, rgbRows, 0, w);
+             rgb.putRows(j+j, 2, rgbRows, 0);
+          }
+
+          return true;
+       }
+
+       for (int j=0; j<this.height; j++)
+       {
+          y.getRows(j, 1, yRows, 0);
+          u.getRows(j, 1, uRows, 0);
+          v.getRows(j, 1, vRows, 0);
+
+          if (type == ColorModelType.YUV444)
+             this.convertYUV444toRGBRow(yRows, 0, uRows, vRows, 0, rgbRows, 0);
+          else
+             this.convertYUV422toRGBRow(yRows, 0, uRows, vRows, 0, rgbRows, 0);
+
+          rgb.putRows(j, 1, rgbRows, 0);
+       }
+
+       return true;
+    }
+
+
+    private boolean checkFrames(DirectFrame rgb, DirectFrame y, DirectFrame u, DirectFrame v,
+       ColorModelType type)
+    {
+       if ((rgb == null) || (y == null) || (u == null) || (v == null))
+          return false;
+
+       if ((this.downSampler != null) || (this.upSampler != null))
+          return false;
+
+       int shiftX, shiftY;
+
+       if (type == ColorModelType.YUV444)
+       {
+          shiftX = 0;
+          shiftY = 0;
+       }
+       else if (type == ColorModelType.YUV422)
+       {
+          shiftX = 1;
+          shiftY = 0;
+       }
+       else if (type == ColorModelType.YUV420)
+       {
+          shiftX = 1;
+          shiftY = 1;
+       }
+       else
+       {
+          // Other types not supported
+          return false;
+       }
+
+       if ((rgb.width != this.width) || (rgb.height != this.height))
+          return false;
+
+       if ((y.width != this.width) || (y.height != this.height))
+          return false;
+
+       final int cw = this.width >> shiftX;
+       final int ch = this.height >> shiftY;
+
+       if ((u.width != cw) || (u.height != ch) || (v.width != cw) || (v.height != ch))
+          return false;
+
+       return true;
+    }
+
+
     // conversion matrix (JFIF)
     //  0.2990  0.5870  0.1140
     // -0.1687 -0.3313  0.5000
@@ -147,25 +307,7 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
 
         for (int j=0; j<this.height; j++)
         {
-            final int end = startLine + this.width;
-
-            for (int k=startLine, i=startLine2; k<end; i++)
-            {
-                // ------- fromRGB 'Macro'
-                final int rgbVal = rgb[k++];
-                final int r = (rgbVal >> 16) & 0xFF;
-                final int g = (rgbVal >> 8) & 0xFF;
-                final int b =  rgbVal & 0xFF;
-                final int yVal =  19595*r + 38470*g +  7471*b;
-                final int uVal = -11056*r - 21712*g + 32768*b;
-                final int vVal =  32768*r - 27440*g -  5328*b;
-
-                y[i] = ((yVal + 32768) >> 16);
-                u[i] = ((uVal + 32768) >> 16) + 128;
-                v[i] = ((vVal + 32768) >> 16) + 128;
-                // ------- fromRGB 'Macro'  END
-            }
-
+            this.convertRGBtoYUV444Row(rgb, startLine, y, startLine2, u, v, startLine2);
             startLine2 += this.width;
             startLine  += this.stride;
         }
@@ -174,6 +316,31 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
     }
 
 
+    // Convert one row: the U and V rows start at the same index
+    private void convertRGBtoYUV444Row(int[] rgb, int rgbIdx, int[] y, int yIdx, int[] u, int[] v,
+       int uvIdx)
+    {
+        final int end = rgbIdx + this.width;
+
+        for (int k=rgbIdx, i=yIdx, n=uvIdx; k<end; i++, n++)
+        {
+            // ------- fromRGB 'Macro'
+            final int rgbVal = rgb[k++];
+            final int r = (rgbVal >> 16) & 0xFF;
+            final int g = (rgbVal >> 8) & 0xFF;
+            final int b =  rgbVal & 0xFF;
+            final int yVal =  19595*r + 38470*g +  7471*b;
+            final int uVal = -11056*r - 21712*g + 32768*b;
+            final int vVal =  32768*r - 27440*g -  5328*b;
+
+            y[i] = ((yVal + 32768) >> 16);
+            u[n] = ((uVal + 32768) >> 16) + 128;
+            v[n] = ((vVal + 32768) >> 16) + 128;
+            // ------- fromRGB 'Macro'  END
+        }
+    }
+
+
     // conversion matrix (JFIF)
     // 1.00000  0.00000  1.40200    
     // 1.00000 -0.34414 -0.71414
@@ -185,32 +352,7 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
 
         for (int j=0; j<this.height; j++)
         {
-            final int end = startLine + this.width;
-
-            for (int i=startLine, k=startLine2; i<end; i++)
-            {
-                // ------- toRGB 'Macro'
-                final int yVal = y[i] << 16; 
-                final int uVal = u[i] - 128; 
-                final int vVal = v[i] - 128;
-                
-                int r = yVal               +  91881*vVal;
-                int g = yVal -  22554*uVal -  46802*vVal;
-                int b = yVal + 116130*uVal;
-
-                if (r >= 16678912) r = 0x00FF0000;
-                else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
-               
-                if (g >= 16678912) g = 0x0000FF00;
-                else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
-
-                if (b >= 16678912) b = 0x000000FF;
-                else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
-                // ------- toRGB 'Macro' END
-
-                rgb[k++] = r | g | b;
-            }
-
+            this.convertYUV444toRGBRow(y, startLine, u, v, startLine, rgb, startLine2);
             startLine  += this.width;
             startLine2 += this.stride;
         }
@@ -218,6 +360,38 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
         return true;
     }
 
+
+    // Convert one row: the U and V rows start at the same index
+    private void convertYUV444toRGBRow(int[] y, int yIdx, int[] u, int[] v, int uvIdx,
+       int[] rgb, int rgbIdx)
+    {
+        final int end = yIdx + this.width;
+
+        for (int i=yIdx, n=uvIdx, k=rgbIdx; i<end; i++, n++)
+        {
+            // ------- toRGB 'Macro'
+            final int yVal = y[i] << 16; 
+            final int uVal = u[n] - 128; 
+            final int vVal = v[n] - 128;
+            
+            int r = yVal               +  91881*vVal;
+            int g = yVal -  22554*uVal -  46802*vVal;
+            int b = yVal + 116130*uVal;
+
+            if (r >= 16678912) r = 0x00FF0000;
+            else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+           
+            if (g >= 16678912) g = 0x0000FF00;
+            else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
+
+            if (b >= 16678912) b = 0x000000FF;
+            else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
+            // ------- toRGB 'Macro' END
+
+            rgb[k++] = r | g | b;
+        }
+    }
+
     
     // In YUV420 format the U and V color components are subsampled 1:2 horizontally
     // and 1:2 vertically
@@ -236,10 +410,8 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
         final int sh = this.height >> 1;
         final int stride2 = this.stride << 1;
         final int rgbOffs = this.offset;
-        int oOffs = this.stride;
-        int iOffs = sw;
-        int r, g, b;
-        int yVal, uVal, vVal;
+        int oOffs = 0;
+        int iOffs = 0;
 
         for (int j=sh-1; j>=0; j--)
         {
@@ -249,120 +421,52 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
             if (j == 0)
                iOffs -= sw;
 
-            int offs = oOffs;
-            int endi = iOffs + sw;
-            int uVal0, uVal1, uVal2, uVal3;
-            int vVal0, vVal1, vVal2, vVal3;
-            uVal0 = u[iOffs-sw];
-            vVal0 = v[iOffs-sw];
-            uVal2 = u[iOffs];
-            vVal2 = v[iOffs];
-
-            for (int i=iOffs+1; i<endi; i++)
-            {
-                uVal1 = u[i-sw];
-                vVal1 = v[i-sw];
-                uVal3 = u[i];
-                vVal3 = v[i];
-                final int idx = offs - this.stride;
-
-                // ------- toRGB 'Macro'
-                yVal = y[idx] << 16; uVal = uVal0 - 128; vVal = vVal0 - 128;               
-                r = yVal +  91881*vVal;
-                g = yVal -  22554*uVal - 46802*vVal;
-                b = yVal + 116130*uVal;
-
-                if (r >= 16678912) r = 0x00FF0000;
-                else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
-               
-                if (g >= 16678912) g = 0x0000FF00;
-                else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
-
-                if (b >= 16678912) b = 0x000000FF;
-                else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
-                // ------- toRGB 'Macro' END
-
-                rgb[idx+rgbOffs] = r | g | b;
-
-                int uu, vv;
-                uu = (uVal0 + uVal1) >> 1;
-                vv = (vVal0 + vVal1) >> 1;
-
-                // ------- toRGB 'Macro'
-                yVal = y[idx+1] << 16; uVal = uu - 128; vVal = vv - 128;               
-                r = yVal +  91881*vVal;
-                g = yVal -  22554*uVal - 46802*vVal;
-                b = yVal + 116130*uVal;
-
-                if (r >= 16678912) r = 0x00FF0000;
-                else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
-               
-                if (g >= 16678912) g = 0x0000FF00;
-                else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
-
-                if (b >= 16678912) b = 0x000000FF;
-                else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
-                // ------- toRGB 'Macro' END
-
-                rgb[idx+rgbOffs+1] = r | g | b;
-                uu = (uVal0 + uVal2) >> 1;
-                vv = (vVal0 + vVal2) >> 1;
-
-                // ------- toRGB 'Macro'
-                yVal = y[offs] << 16; uVal = uu - 128; vVal = vv - 128;               
-                r = yVal +  91881*vVal;
-                g = yVal -  22554*uVal - 46802*vVal;
-                b = yVal + 116130*uVal;
-
-                if (r >= 16678912) r = 0x00FF0000;
-                else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
-               
-                if (g >= 16678912) g = 0x0000FF00;
-                else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
-
-                if (b >= 16678912) b = 0x000000FF;
-                else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
-                // ------- toRGB 'Macro' END
-
-                rgb[offs+rgbOffs] = r | g | b;
-                uu = (uVal0 + uVal1 + uVal2 + uVal3 + 2) >> 2;
-                vv = (vVal0 + vVal1 + vVal2 + vVal3 + 2) >> 2;
-
-                // ------- toRGB 'Macro'
-                yVal = y[offs+1] << 16; uVal = uu - 128; vVal = vv - 128;               
-                r = yVal +  91881*vVal;
-                g = yVal -  22554*uVal - 46802*vVal;
-                b = yVal + 116130*uVal;
-
-                if (r >= 16678912) r = 0x00FF0000;
-                else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
-               
-                if (g >= 16678912) g = 0x0000FF00;
-                else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
-
-                if (b >= 16678912) b = 0x000000FF;
-                else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
-                // ------- toRGB 'Macro' END
-
-                rgb[offs+rgbOffs+1] = r | g | b;
-                offs += 2;
-                uVal0 = uVal1;
-                vVal0 = vVal1;
-                uVal2 = uVal3;
-                vVal2 = vVal3;
-            }
-
-            final int idx = offs - this.stride;
+            this.convertYUV420toRGBRows(y, oOffs, oOffs+this.stride, u, v, iOffs, iOffs+sw,
+               rgb, oOffs+rgbOffs, oOffs+this.stride+rgbOffs);
+            oOffs += stride2;
+            iOffs += sw;
+        }
+
+        return true;
+    }
+
+
+    // Convert 2 rows from 2 chroma rows (the second chroma row is interpolated
+    // for the second row). The U and V rows start at the same indexes.
+    private void convertYUV420toRGBRows(int[] y, int yIdx0, int yIdx1, int[] u, int[] v,
+       int uvIdx0, int uvIdx1, int[] rgb, int rgbIdx0, int rgbIdx1)
+    {
+        final int sw = this.width >> 1;
+        final int endi = uvIdx1 + sw;
+        final int rgbOffs0 = rgbIdx0 - yIdx0;
+        final int rgbOffs1 = rgbIdx1 - yIdx1;
+        int idx = yIdx0;
+        int offs = yIdx1;
+        int r, g, b;
+        int yVal, uVal, vVal;
+        int uVal0, uVal1, uVal2, uVal3;
+        int vVal0, vVal1, vVal2, vVal3;
+        uVal0 = u[uvIdx0];
+        vVal0 = v[uvIdx0];
+        uVal2 = u[uvIdx1];
+        vVal2 = v[uvIdx1];
+
+        for (int i=uvIdx1+1, n=uvIdx0+1; i<endi; i++, n++)
+        {
+            uVal1 = u[n];
+            vVal1 = v[n];
+            uVal3 = u[i];
+            vVal3 = v[i];
 
             // ------- toRGB 'Macro'
-            yVal = y[idx] << 16; uVal = uVal0 - 128; vVal = vVal0 - 128;         
+            yVal = y[idx] << 16; uVal = uVal0 - 128; vVal = vVal0 - 128;               
             r = yVal +  91881*vVal;
             g = yVal -  22554*uVal - 46802*vVal;
             b = yVal + 116130*uVal;
 
             if (r >= 16678912) r = 0x00FF0000;
             else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
-
+           
             if (g >= 16678912) g = 0x0000FF00;
             else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
 
@@ -370,21 +474,41 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
             else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
             // ------- toRGB 'Macro' END
 
-            rgb[idx+rgbOffs]   = r | g | b;
-            rgb[idx+rgbOffs+1] = r | g | b;
+            rgb[idx+rgbOffs0] = r | g | b;
 
-            final int uu = (uVal0 + uVal2) >> 1;
-            final int vv = (vVal0 + vVal2) >> 1;
+            int uu, vv;
+            uu = (uVal0 + uVal1) >> 1;
+            vv = (vVal0 + vVal1) >> 1;
 
             // ------- toRGB 'Macro'
-            yVal = y[offs] << 16; uVal = uu - 128; vVal = vv - 128;         
+            yVal = y[idx+1] << 16; uVal = uu - 128; vVal = vv - 128;               
             r = yVal +  91881*vVal;
             g = yVal -  22554*uVal - 46802*vVal;
             b = yVal + 116130*uVal;
 
             if (r >= 16678912) r = 0x00FF0000;
             else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+           
+            if (g >= 16678912) g = 0x0000FF00;
+            else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
+
+            if (b >= 16678912) b = 0x000000FF;
+            else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
+            // ------- toRGB 'Macro' END
+
+            rgb[idx+rgbOffs0+1] = r | g | b;
+            uu = (uVal0 + uVal2) >> 1;
+            vv = (vVal0 + vVal2) >> 1;
+
+            // ------- toRGB 'Macro'
+            yVal = y[offs] << 16; uVal = uu - 128; vVal = vv - 128;               
+            r = yVal +  91881*vVal;
+            g = yVal -  22554*uVal - 46802*vVal;
+            b = yVal + 116130*uVal;
 
+            if (r >= 16678912) r = 0x00FF0000;
+            else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+           
             if (g >= 16678912) g = 0x0000FF00;
             else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
 
@@ -392,13 +516,75 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
             else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
             // ------- toRGB 'Macro' END
 
-            rgb[offs+rgbOffs]   =  r | g | b;
-            rgb[offs+rgbOffs+1] =  r | g | b;
-            oOffs += stride2;
-            iOffs += sw;
+            rgb[offs+rgbOffs1] = r | g | b;
+            uu = (uVal0 + uVal1 + uVal2 + uVal3 + 2) >> 2;
+            vv = (vVal0 + vVal1 + vVal2 + vVal3 + 2) >> 2;
+
+            // ------- toRGB 'Macro'
+            yVal = y[offs+1] << 16; uVal = uu - 128; vVal = vv - 128;               
+            r = yVal +  91881*vVal;
+            g = yVal -  22554*uVal - 46802*vVal;
+            b = yVal + 116130*uVal;
+
+            if (r >= 16678912) r = 0x00FF0000;
+            else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+           
+            if (g >= 16678912) g = 0x0000FF00;
+            else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
+
+            if (b >= 16678912) b = 0x000000FF;
+            else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
+            // ------- toRGB 'Macro' END
+
+            rgb[offs+rgbOffs1+1] = r | g | b;
+            idx += 2;
+            offs += 2;
+            uVal0 = uVal1;
+            vVal0 = vVal1;
+            uVal2 = uVal3;
+            vVal2 = vVal3;
         }
 
-        return true;
+        // ------- toRGB 'Macro'
+        yVal = y[idx] << 16; uVal = uVal0 - 128; vVal = vVal0 - 128;         
+        r = yVal +  91881*vVal;
+        g = yVal -  22554*uVal - 46802*vVal;
+        b = yVal + 116130*uVal;
+
+        if (r >= 16678912) r = 0x00FF0000;
+        else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+
+        if (g >= 16678912) g = 0x0000FF00;
+        else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
+
+        if (b >= 16678912) b = 0x000000FF;
+        else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
+        // ------- toRGB 'Macro' END
+
+        rgb[idx+rgbOffs0]   = r | g | b;
+        rgb[idx+rgbOffs0+1] = r | g | b;
+
+        final int uu = (uVal0 + uVal2) >> 1;
+        final int vv = (vVal0 + vVal2) >> 1;
+
+        // ------- toRGB 'Macro'
+        yVal = y[offs] << 16; uVal = uu - 128; vVal = vv - 128;         
+        r = yVal +  91881*vVal;
+        g = yVal -  22554*uVal - 46802*vVal;
+        b = yVal + 116130*uVal;
+
+        if (r >= 16678912) r = 0x00FF0000;
+        else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+
+        if (g >= 16678912) g = 0x0000FF00;
+        else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
+
+        if (b >= 16678912) b = 0x000000FF;
+        else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
+        // ------- toRGB 'Macro' END
+
+        rgb[offs+rgbOffs1]   =  r | g | b;
+        rgb[offs+rgbOffs1+1] =  r | g | b;
     }
 
 
@@ -422,51 +608,9 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
         for (int j=this.height-1; j>=0; j-=2)
         {
             final int nextLine = startLine + this.stride;
-
-            for (int i=0; i<this.width; )
-            {
-                int r, g, b;
-                final int val0 = rgb[startLine+rgbOffs+i];
-
-                // ------- fromRGB 'Macro'
-                r = (val0 >> 16) & 0xFF;
-                g = (val0 >> 8)  & 0xFF;
-                b =  val0 & 0xFF;
-                final int yVal0 =  19595*r + 38470*g +  7471*b;
-                final int uVal0 = -11056*r - 21712*g + 32768*b;
-                final int vVal0 =  32768*r - 27440*g -  5328*b;
-                y[startLine+i] = ((yVal0 + 32768) >> 16);
-
-                final int val1 = rgb[nextLine+rgbOffs+i];
-                r = (val1 >> 16) & 0xFF;
-                g = (val1 >> 8)  & 0xFF;
-                b =  val1 & 0xFF;
-                final int yVal1 = 19595*r + 38470*g + 7471*b;
-                y[nextLine+i] = ((yVal1 + 32768) >> 16);
-                i++;
-
-                final int val2 = rgb[startLine+rgbOffs+i];
-                r = (val2 >> 16) & 0xFF;
-                g = (val2 >> 8)  & 0xFF;
-                b =  val2 & 0xFF;
-                final int yVal2 = 19595*r + 38470*g + 7471*b;
-                y[startLine+i] = ((yVal2 + 32768) >> 16);
-
-                final int val3 = rgb[nextLine+rgbOffs+i];
-                r = (val3 >> 16) & 0xFF;
-                g = (val3 >> 8)  & 0xFF;
-                b =  val3 & 0xFF;
-                final int yVal3 = 19595*r + 38470*g + 7471*b;
-                y[nextLine+i] = ((yVal3 + 32768) >> 16);
-                i++;
-
-                // Decimate u, v (use position 0)
-                u[offs] = ((uVal0 + 32768) >> 16) + 128;
-                v[offs] = ((vVal0 + 32768) >> 16) + 128;
-                offs++;
-                // ------- fromRGB 'Macro'  END
-            }
-
+            this.convertRGBtoYUV420Rows(rgb, startLine+rgbOffs, nextLine+rgbOffs, y, startLine,
+               nextLine, u, v, offs);
+            offs += (this.width >> 1);
             startLine = nextLine + this.stride;
         }
 
@@ -474,6 +618,59 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
     }
 
 
+    // Convert 2 rows into 2 Y rows and one U and V row (the U and V rows start
+    // at the same index)
+    private void convertRGBtoYUV420Rows(int[] rgb, int rgbIdx0, int rgbIdx1, int[] y, int yIdx0,
+       int yIdx1, int[] u, int[] v, int uvIdx)
+    {
+        int offs = uvIdx;
+
+        for (int i=0; i<this.width; )
+        {
+            int r, g, b;
+            final int val0 = rgb[rgbIdx0+i];
+
+            // ------- fromRGB 'Macro'
+            r = (val0 >> 16) & 0xFF;
+            g = (val0 >> 8)  & 0xFF;
+            b =  val0 & 0xFF;
+            final int yVal0 =  19595*r + 38470*g +  7471*b;
+            final int uVal0 = -11056*r - 21712*g + 32768*b;
+            final int vVal0 =  32768*r - 27440*g -  5328*b;
+            y[yIdx0+i] = ((yVal0 + 32768) >> 16);
+
+            final int val1 = rgb[rgbIdx1+i];
+            r = (val1 >> 16) & 0xFF;
+            g = (val1 >> 8)  & 0xFF;
+            b =  val1 & 0xFF;
+            final int yVal1 = 19595*r + 38470*g + 7471*b;
+            y[yIdx1+i] = ((yVal1 + 32768) >> 16);
+            i++;
+
+            final int val2 = rgb[rgbIdx0+i];
+            r = (val2 >> 16) & 0xFF;
+            g = (val2 >> 8)  & 0xFF;
+            b =  val2 & 0xFF;
+            final int yVal2 = 19595*r + 38470*g + 7471*b;
+            y[yIdx0+i] = ((yVal2 + 32768) >> 16);
+
+            final int val3 = rgb[rgbIdx1+i];
+            r = (val3 >> 16) & 0xFF;
+            g = (val3 >> 8)  & 0xFF;
+            b =  val3 & 0xFF;
+            final int yVal3 = 19595*r + 38470*g + 7471*b;
+            y[yIdx1+i] = ((yVal3 + 32768) >> 16);
+            i++;
+
+            // Decimate u, v (use position 0)
+            u[offs] = ((uVal0 + 32768) >> 16) + 128;
+            v[offs] = ((vVal0 + 32768) >> 16) + 128;
+            offs++;
+            // ------- fromRGB 'Macro'  END
+        }
+    }
+
+
     // In YUV422 format the U and V color components are subsampled 1:2 horizontally
     private boolean convertYUV422toRGB(int[] y, int[] u, int[] v, int[] rgb)
     {
@@ -493,53 +690,64 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
 
         for (int j=0; j<this.height; j++)
         {
-            for (int i=0; i<half; i++)
-            {
-                int r, g, b, yVal, uVal, vVal;
-                final int idx = oOffs + i + i;
+            this.convertYUV422toRGBRow(y, k, u, v, iOffs, rgb, oOffs+rgbOffs);
+            k += this.width;
+            oOffs += this.stride;
+            iOffs += half;
+        }
+
+        return true;
+    }
 
-                // ------- toRGB 'Macro'
-                yVal = y[k++] << 16; uVal = u[iOffs+i] - 128; vVal = v[iOffs+i] - 128;         
-                r = yVal +  91881*vVal;
-                g = yVal -  22554*uVal - 46802*vVal;
-                b = yVal + 116130*uVal;
 
-                if (r >= 16678912) r = 0x00FF0000;
-                else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+    // Convert one row: the U and V rows start at the same index
+    private void convertYUV422toRGBRow(int[] y, int yIdx, int[] u, int[] v, int uvIdx,
+       int[] rgb, int rgbIdx)
+    {
+        final int half = this.width >> 1;
+        int k = yIdx;
 
-                if (g >= 16678912) g = 0x0000FF00;
-                else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
+        for (int i=0; i<half; i++)
+        {
+            int r, g, b, yVal, uVal, vVal;
+            final int idx = rgbIdx + i + i;
 
-                if (b >= 16678912) b = 0x000000FF;
-                else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
-                // ------- toRGB 'Macro' END
+            // ------- toRGB 'Macro'
+            yVal = y[k++] << 16; uVal = u[uvIdx+i] - 128; vVal = v[uvIdx+i] - 128;         
+            r = yVal +  91881*vVal;
+            g = yVal -  22554*uVal - 46802*vVal;
+            b = yVal + 116130*uVal;
 
-                rgb[idx+rgbOffs] = r | g | b;
+            if (r >= 16678912) r = 0x00FF0000;
+            else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
 
-                // ------- toRGB 'Macro'
-                yVal = y[k++] << 16; 
-                r = yVal +  91881*vVal;
-                g = yVal -  22554*uVal - 46802*vVal;
-                b = yVal + 116130*uVal;
+            if (g >= 16678912) g = 0x0000FF00;
+            else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
 
-                if (r >= 16678912) r = 0x00FF0000;
-                else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
+            if (b >= 16678912) b = 0x000000FF;
+            else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
+            // ------- toRGB 'Macro' END
 
-                if (g >= 16678912) g = 0x0000FF00;
-                else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
+            rgb[idx] = r | g | b;
 
-                if (b >= 16678912) b = 0x000000FF;
-                else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
-                // ------- toRGB 'Macro' END
+            // ------- toRGB 'Macro'
+            yVal = y[k++] << 16; 
+            r = yVal +  91881*vVal;
+            g = yVal -  22554*uVal - 46802*vVal;
+            b = yVal + 116130*uVal;
 
-                rgb[idx+rgbOffs+1] = r | g | b;
-            }
+            if (r >= 16678912) r = 0x00FF0000;
+            else { r &= ~(r >> 31); r = (r + 32768) >> 16; r <<= 16; }
 
-            oOffs += this.stride;
-            iOffs += half;
-        }
+            if (g >= 16678912) g = 0x0000FF00;
+            else { g &= ~(g >> 31); g = (g + 32768) >> 16; g <<= 8; }
 
-        return true;
+            if (b >= 16678912) b = 0x000000FF;
+            else { b &= ~(b >> 31); b = (b + 32768) >> 16; }
+            // ------- toRGB 'Macro' END
+
+            rgb[idx+1] = r | g | b;
+        }
     }
 
 
@@ -561,42 +769,49 @@ public final class YCbCrColorModelConverter implements ColorModelConverter
 
         for (int j=0; j<this.height; j++)
         {
-            final int end = iOffs + this.width;
-
-            for (int k=iOffs, i=oOffs; k<end; i++)
-            {
-                int rgbVal, r, g, b;
-
-                // ------- fromRGB 'Macro'
-                rgbVal = rgb[k++];
-                r = (rgbVal >> 16) & 0xFF;
-                g = (rgbVal >> 8) & 0xFF;
-                b =  rgbVal & 0xFF;
-                final int yVal1 =  19595*r + 38470*g +  7471*b;
-                final int uVal1 = -11056*r - 21712*g + 32768*b;
-                final int vVal1 =  32768*r - 27440*g -  5328*b;
-
-                rgbVal = rgb[k++];
-                r = (rgbVal >> 16) & 0xFF;
-                g = (rgbVal >> 8) & 0xFF;
-                b =  rgbVal & 0xFF;
-
-                final int yVal2 = 19595*r + 38470*g +  7471*b;
-
-                // Decimate u, v
-                u[i] = ((uVal1 + 32768) >> 16) + 128;
-                v[i] = ((vVal1 + 32768) >> 16) + 128;
-                y[i+i]   = ((yVal1 + 32768) >> 16);
-                y[i+i+1] = ((yVal2 + 32768) >> 16);
-                // ------- fromRGB 'Macro'  END
-            }
-
+            this.convertRGBtoYUV422Row(rgb, iOffs, y, oOffs+oOffs, u, v, oOffs);
             oOffs += half;
             iOffs += this.stride;
         }
 
         return true;
     }
+
+
+    // Convert one row: the U and V rows start at the same index
+    private void convertRGBtoYUV422Row(int[] rgb, int rgbIdx, int[] y, int yIdx, int[] u, int[] v,
+       int uvIdx)
+    {
+        final int end = rgbIdx + this.width;
+
+        for (int k=rgbIdx, i=uvIdx, n=yIdx; k<end; i++, n+=2)
+        {
+            int rgbVal, r, g, b;
+
+            // ------- fromRGB 'Macro'
+            rgbVal = rgb[k++];
+            r = (rgbVal >> 16) & 0xFF;
+            g = (rgbVal >> 8) & 0xFF;
+            b =  rgbVal & 0xFF;
+            final int yVal1 =  19595*r + 38470*g +  7471*b;
+            final int uVal1 = -11056*r - 21712*g + 32768*b;
+            final int vVal1 =  32768*r - 27440*g -  5328*b;
+
+            rgbVal = rgb[k++];
+            r = (rgbVal >> 16) & 0xFF;
+            g = (rgbVal >> 8) & 0xFF;
+            b =  rgbVal & 0xFF;
+
+            final int yVal2 = 19595*r + 38470*g +  7471*b;
+
+            // Decimate u, v
+            u[i] = ((uVal1 + 32768) >> 16) + 128;
+            v[i] = ((vVal1 + 32768) >> 16) + 128;
+            y[n]   = ((yVal1 + 32768) >> 16);
+            y[n+1] = ((yVal2 + 32768) >> 16);
+            // ------- fromRGB 'Macro'  END
+        }
+    }
     
     
     
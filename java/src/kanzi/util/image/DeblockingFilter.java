@@ -83,7 +83,7 @@ public class DeblockingFilter implements IntFilter
          return false;
        
       if (input.array != output.array)
-         System.arraycopy(input.array, input.index, output.array, output.index, this.stride*this.width);
+         System.arraycopy(input.array, input.index, output.array, output.index, this.stride*this.height);
       
       final int x0 = output.index % this.stride;
       final int y0 = output.index / this.stride;
@@ -0,0 +1,512 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.image;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import kanzi.ColorModelType;
+import kanzi.YUVFrame;
+
+
+// Frame sequence writer: YUV4MPEG2 (.y4m), raw planar YUV and PPM (one or
+// several concatenated images).
+// The caller thread only copies the frame into a free buffer. Packing the
+// samples into bytes and writing to the file are performed by a background
+// thread. Buffers are recycled through a bounded queue: write() blocks only
+// when all the buffers are waiting to be written (the disk is too slow).
+// An I/O error in the background thread is reported by the next call to
+// write() or close().
+public class FrameWriter implements Closeable
+{
+   // Possible output formats
+   public static final int Y4M = 1;
+   public static final int RAW = 2;
+   public static final int PPM = 3;
+
+   public static final int DEFAULT_NB_BUFFERS = 3;
+
+   private static final int CHUNK_SIZE = 16384;
+
+   private final FileOutputStream os;
+   private final FileChannel channel;
+   private final int format;
+   private final int width;
+   private final int height;
+   private final int chromaWidth;
+   private final int chromaHeight;
+   private final ColorModelType cmType;
+   private final byte[] frameHeader;
+   private final BlockingQueue<Slot> free;
+   private final BlockingQueue<Slot> pending;
+   private final Thread worker;
+   private final Slot endMarker;
+   private volatile IOException error;
+   private boolean closed;
+   private long nbFrames;
+
+
+   public FrameWriter(File file, int format, int width, int height, ColorModelType cmType)
+      throws IOException
+   {
+      this(file, format, width, height, cmType, 30, 1, DEFAULT_NB_BUFFERS);
+   }
+
+
+   // Y4M: cmType is YUV420, YUV422, YUV444 or GREY (mono), the frame rate is
+   // fpsNum/fpsDen.
+   // RAW: cmType is YUV420, YUV422, YUV444 or GREY, the frame rate is ignored.
+   // PPM: cmType is RGB, the frame rate is ignored.
+   public FrameWriter(File file, int format, int width, int height, ColorModelType cmType,
+      int fpsNum, int fpsDen, int nbBuffers) throws IOException
+   {
+      if (file == null)
+         throw new NullPointerException("Invalid null file parameter");
+
+      if (cmType == null)
+         throw new NullPointerException("Invalid null color model parameter");
+
+      if ((format != Y4M) && (format != RAW) && (format != PPM))
+         throw new IllegalArgumentException("Invalid format parameter (must be Y4M, RAW or PPM)");
+
+      if ((width <= 0) || (height <= 0))
+         throw new IllegalArgumentException("Invalid dimensions: "+width+"x"+height);
+
+      if (format == PPM)
+      {
+         if (cmType != ColorModelType.RGB)
+            throw new IllegalArgumentException("Invalid color model for PPM: "+cmType+" (must be RGB)");
+      }
+      else if ((cmType != ColorModelType.YUV420) && (cmType != ColorModelType.YUV422) &&
+         (cmType != ColorModelType.YUV444) && (cmType != ColorModelType.GREY))
+      {
+         throw new IllegalArgumentException("Invalid color model: "+cmType+
+            " (must be YUV420, YUV422, YUV444 or GREY)");
+      }
+
+      if ((fpsNum <= 0) || (fpsDen <= 0))
+         throw new IllegalArgumentException("Invalid frame rate: "+fpsNum+":"+fpsDen);
+
+      if ((nbBuffers < 1) || (nbBuffers > 64))
+         throw new IllegalArgumentException("The number of buffers must be in [1..64]");
+
+      this.format = format;
+      this.width = width;
+      this.height = height;
+      this.cmType = cmType;
+
+      switch (cmType)
+      {
+         case YUV420 :
+            this.chromaWidth = (width+1) >> 1;
+            this.chromaHeight = (height+1) >> 1;
+            break;
+
+         case YUV422 :
+            this.chromaWidth = (width+1) >> 1;
+            this.chromaHeight = height;
+            break;
+
+         case YUV444 :
+         case RGB :
+            this.chromaWidth = width;
+            this.chromaHeight = height;
+            break;
+
+         default :
+            this.chromaWidth = 0;
+            this.chromaHeight = 0;
+      }
+
+      final long frameSize = (long) width*height + 2L*this.chromaWidth*this.chromaHeight;
+
+      if (frameSize > Integer.MAX_VALUE - 64)
+         throw new IllegalArgumentException("Frame too large: "+width+"x"+height);
+
+      String streamHeader = null;
+
+      if (format == Y4M)
+      {
+         streamHeader = "YUV4MPEG2 W"+width+" H"+height+" F"+fpsNum+":"+fpsDen+" Ip A1:1 C"+
+            getY4MColorSpace(cmType)+"\n";
+         this.frameHeader = "FRAME\n".getBytes("US-ASCII");
+      }
+      else if (format == PPM)
+      {
+         this.frameHeader = ("P6\n"+width+" "+height+"\n255\n").getBytes("US-ASCII");
+      }
+      else
+      {
+         this.frameHeader = new byte[0];
+      }
+
+      this.free = new ArrayBlockingQueue<Slot>(nbBuffers);
+      this.pending = new ArrayBlockingQueue<Slot>(nbBuffers+1);
+      this.endMarker = new Slot(0, 0);
+
+      for (int i=0; i<nbBuffers; i++)
+         this.free.add(new Slot(width*height, this.chromaWidth*this.chromaHeight));
+
+      // Allocate before opening the file so that a failure does not leak it
+      final ByteBuffer out = ByteBuffer.allocateDirect(this.frameHeader.length + (int) frameSize);
+
+      this.os = new FileOutputStream(file);
+      this.channel = this.os.getChannel();
+
+      try
+      {
+         if (streamHeader != null)
+            this.writeFully(ByteBuffer.wrap(streamHeader.getBytes("US-ASCII")));
+      }
+      catch (IOException e)
+      {
+         this.os.close();
+         throw e;
+      }
+
+      this.worker = new Thread(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            FrameWriter.this.drain(out);
+         }
+      }, "FrameWriter-"+file.getName());
+
+      // Do not keep the JVM alive if the writer is never closed (the pending
+      // frames are lost then: call close())
+      this.worker.setDaemon(true);
+      this.worker.start();
+   }
+
+
+   private static String getY4MColorSpace(ColorModelType cmType)
+   {
+      switch (cmType)
+      {
+         case YUV420 :
+            return "420jpeg";
+
+         case YUV422 :
+            return "422";
+
+         case YUV444 :
+            return "444";
+
+         default :
+            return "mono";
+      }
+   }
+
+
+   // Queue the frame. The color model and dimensions must match the writer's.
+   // The channels of the frame can be reused as soon as this method returns.
+   public void write(YUVFrame frame) throws IOException
+   {
+      if (frame == null)
+         throw new NullPointerException("Invalid null frame parameter");
+
+      if (frame.cmType != this.cmType)
+         throw new IllegalArgumentException("Invalid color model: "+frame.cmType+" (expected "+this.cmType+")");
+
+      if ((frame.width != this.width) || (frame.height != this.height))
+         throw new IllegalArgumentException("Invalid frame dimensions: "+frame.width+"x"+frame.height+
+            " (expected "+this.width+"x"+this.height+")");
+
+      final Slot slot = this.acquire();
+      final int st = frame.stride;
+      final int x0 = frame.offset % st;
+      final int y0 = frame.offset / st;
+      copyPlane(frame.y, frame.offset, st, slot.y, this.width, this.height);
+
+      if (this.chromaWidth > 0)
+      {
+         // Chroma planes have the luma stride and offset scaled by the subsampling
+         final int sx = (this.chromaWidth < this.width) ? 1 : 0;
+         final int sy = (this.chromaHeight < this.height) ? 1 : 0;
+         final int cst = (st+sx) >> sx;
+         final int cOffs = (y0>>sy)*cst + (x0>>sx);
+         copyPlane(frame.u, cOffs, cst, slot.u, this.chromaWidth, this.chromaHeight);
+         copyPlane(frame.v, cOffs, cst, slot.v, this.chromaWidth, this.chromaHeight);
+      }
+
+      slot.packed = false;
+      this.submit(slot);
+   }
+
+
+   // Queue a packed RGB frame (PPM only).
+   // The array can be reused as soon as this method returns.
+   public void writeRGB(int[] rgb, int offset, int stride) throws IOException
+   {
+      if (rgb == null)
+         throw new NullPointerException("Invalid null RGB parameter");
+
+      if (this.format != PPM)
+         throw new IllegalStateException("Packed RGB frames can only be written in PPM format");
+
+      if (stride < this.width)
+         throw new IllegalArgumentException("The stride must be at least "+this.width);
+
+      final Slot slot = this.acquire();
+      copyPlane(rgb, offset, stride, slot.y, this.width, this.height);
+      slot.packed = true;
+      this.submit(slot);
+   }
+
+
+   private static void copyPlane(int[] src, int offset, int stride, int[] dst, int w, int h)
+   {
+      if (stride == w)
+      {
+         System.arraycopy(src, offset, dst, 0, w*h);
+         return;
+      }
+
+      for (int j=0; j<h; j++)
+         System.arraycopy(src, offset+j*stride, dst, j*w, w);
+   }
+
+
+   private Slot acquire() throws IOException
+   {
+      if (this.closed == true)
+         throw new IllegalStateException("The writer is closed");
+
+      if (this.error != null)
+         throw this.error;
+
+      try
+      {
+         return this.free.take();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+      }
+   }
+
+
+   private void submit(Slot slot) throws IOException
+   {
+      try
+      {
+         this.pending.put(slot);
+         this.nbFrames++;
+      }
+      catch (InterruptedException e)
+      {
+         this.free.add(slot);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while queuing a frame");
+      }
+   }
+
+
+   // Background thread: pack and write the pending frames, recycle the buffers
+   private void drain(ByteBuffer out)
+   {
+      final byte[] chunk = new byte[CHUNK_SIZE];
+
+      while (true)
+      {
+         Slot slot;
+
+         try
+         {
+            slot = this.pending.take();
+         }
+         catch (InterruptedException e)
+         {
+            this.error = new InterruptedIOException("Writer thread interrupted");
+            return;
+         }
+
+         if (slot == this.endMarker)
+            return;
+
+         // After an error, the frames are dropped (but the buffers recycled)
+         if (this.error == null)
+         {
+            try
+            {
+               out.clear();
+               out.put(this.frameHeader);
+
+               if (slot.packed == true)
+               {
+                  packRGB(slot.y, this.width*this.height, out, chunk);
+               }
+               else if (this.format == PPM)
+               {
+                  packRGB(slot.y, slot.u, slot.v, this.width*this.height, out, chunk);
+               }
+               else
+               {
+                  packPlane(slot.y, this.width*this.height, out, chunk);
+                  packPlane(slot.u, this.chromaWidth*this.chromaHeight, out, chunk);
+                  packPlane(slot.v, this.chromaWidth*this.chromaHeight, out, chunk);
+               }
+
+               out.flip();
+               this.writeFully(out);
+            }
+            catch (IOException e)
+            {
+               this.error = e;
+            }
+         }
+
+         this.free.add(slot);
+      }
+   }
+
+
+   private void writeFully(ByteBuffer buf) throws IOException
+   {
+      while (buf.hasRemaining() == true)
+         this.channel.write(buf);
+   }
+
+
+   // Samples are clipped to [0..255]
+   private static void packPlane(int[] src, int count, ByteBuffer out, byte[] chunk)
+   {
+      for (int i=0; i<count; i+=chunk.length)
+      {
+         final int n = Math.min(chunk.length, count-i);
+
+         for (int j=0; j<n; j++)
+         {
+            final int val = src[i+j];
+            chunk[j] = (byte) ((val >= 255) ? 255 : val & ~(val >> 31));
+         }
+
+         out.put(chunk, 0, n);
+      }
+   }
+
+
+   private static void packRGB(int[] rgb, int count, ByteBuffer out, byte[] chunk)
+   {
+      final int pixelsPerChunk = chunk.length / 3;
+
+      for (int i=0; i<count; i+=pixelsPerChunk)
+      {
+         final int n = Math.min(pixelsPerChunk, count-i);
+
+         for (int j=0, k=0; j<n; j++, k+=3)
+         {
+            final int val = rgb[i+j];
+            chunk[k]   = (byte) (val >> 16);
+            chunk[k+1] = (byte) (val >> 8);
+            chunk[k+2] = (byte) val;
+         }
+
+         out.put(chunk, 0, 3*n);
+      }
+   }
+
+
+   // Interleave R,G,B planes (samples clipped to [0..255])
+   private static void packRGB(int[] r, int[] g, int[] b, int count, ByteBuffer out, byte[] chunk)
+   {
+      final int pixelsPerChunk = chunk.length / 3;
+
+      for (int i=0; i<count; i+=pixelsPerChunk)
+      {
+         final int n = Math.min(pixelsPerChunk, count-i);
+
+         for (int j=0, k=0; j<n; j++, k+=3)
+         {
+            final int rr = r[i+j];
+            final int gg = g[i+j];
+            final int bb = b[i+j];
+            chunk[k]   = (byte) ((rr >= 255) ? 255 : rr & ~(rr >> 31));
+            chunk[k+1] = (byte) ((gg >= 255) ? 255 : gg & ~(gg >> 31));
+            chunk[k+2] = (byte) ((bb >= 255) ? 255 : bb & ~(bb >> 31));
+         }
+
+         out.put(chunk, 0, 3*n);
+      }
+   }
+
+
+   public int getFormat()
+   {
+      return this.format;
+   }
+
+
+   // Number of frames queued so far
+   public long getNbFrames()
+   {
+      return this.nbFrames;
+   }
+
+
+   // Wait for all queued frames to be written, then close the file
+   @Override
+   public void close() throws IOException
+   {
+      if (this.closed == true)
+         return;
+
+      this.closed = true;
+
+      try
+      {
+         this.pending.put(this.endMarker);
+         this.worker.join();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         this.worker.interrupt();
+         this.os.close();
+         throw new InterruptedIOException("Interrupted while closing the writer");
+      }
+
+      this.os.close();
+
+      if (this.error != null)
+         throw this.error;
+   }
+
+
+   static class Slot
+   {
+      final int[] y; // or packed RGB
+      final int[] u;
+      final int[] v;
+      boolean packed;
+
+
+      Slot(int lumaSize, int chromaSize)
+      {
+         this.y = new int[lumaSize];
+         this.u = new int[chromaSize];
+         this.v = new int[chromaSize];
+      }
+   }
+}
@@ -15,12 +15,16 @@ limitations under the License.
 
 package kanzi.util.image;
 
-import java.awt.GraphicsConfiguration;
-import java.awt.GraphicsDevice;
-import java.awt.GraphicsEnvironment;
+import java.awt.Graphics;
 import java.awt.Image;
-import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
@@ -30,7 +34,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Iterator;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import kanzi.util.BufferPool;
 
 
 // Dependency on Java AWT package
@@ -66,6 +77,7 @@ public class ImageUtils
    private final int width;
    private final int height;
    private final int stride;
+   private final BufferPool bufferPool;
 
    
    public ImageUtils(int width, int height)
@@ -75,6 +87,14 @@ public class ImageUtils
    
    
    public ImageUtils(int width, int height, int stride)
+   {
+      this(width, height, stride, null);
+   }
+   
+   
+   // If a buffer pool is provided, the frame size scratch buffer (rotation)
+   // is leased from the pool instead of being kept by this object.
+   public ImageUtils(int width, int height, int stride, BufferPool bufferPool)
    {
        if (height < 8)
             throw new IllegalArgumentException("The height must be at least 8");
@@ -87,6 +107,7 @@ public class ImageUtils
        
       this.iBuf = new int[0];
       this.bBuf = new byte[0];
+      this.bufferPool = bufferPool;
       this.width = width;
       this.height = height;
       this.stride = stride;
@@ -94,30 +115,33 @@ public class ImageUtils
    
    
    public static ImageInfo loadImage(InputStream is, String type) throws IOException
+   {
+      return loadImage(is, type, null);
+   }
+
+
+   // Decode the image as packed RGB into the provided buffer if it is large
+   // enough (else a new buffer is allocated). The returned ImageInfo data
+   // field is the buffer that holds the pixels (its length may exceed w*h).
+   // The screen device is never used, so it works in headless mode.
+   // Image formats supported by ImageIO are decoded directly into the buffer
+   // when the decoder can output packed RGB (no intermediate image), else the
+   // decoded raster is converted in a single pass. The alpha channel is dropped.
+   public static ImageInfo loadImage(InputStream is, String type, int[] buffer) throws IOException
    {
       switch (type.toUpperCase())
       {
          case "PGM" : 
          case "PNM" : 
          case "PPM" : 
-            return loadPNM(is);
+            return loadPNM(is, buffer);
       
          case "BMP" :
          case "GIF" :
          case "PNG" :
          case "JPG" :
          case "JPEG" :
-         {
-           Image image = ImageIO.read(is);
-           
-           if (image == null)
-        	   return null;
-           
-           int w = image.getWidth(null);
-           int h = image.getHeight(null);
-           int[] data = createCompatibleImage(image, w, h);
-           return new ImageInfo(w, h, data);
-         }
+            return decode(is, buffer);
          
          default :
             try
@@ -137,7 +161,13 @@ public class ImageUtils
                Integer h = (Integer) m.invoke(ro, new Object[0]);
                m = cl3.getSuperclass().getDeclaredMethod("getAsBufferedImage", new Class[0]);
                Image image = (Image) m.invoke(ro, new Object[0]);
-               int[] data = createCompatibleImage(image, w, h);
+               int[] data = getBuffer(buffer, w, h);
+               
+               if (image instanceof BufferedImage)
+                  copyPixels((BufferedImage) image, data);
+               else
+                  createCompatibleImage(image, w, h, data);
+               
                return new ImageInfo(w, h, data);
             }
             catch (ClassNotFoundException | IllegalAccessException | NoSuchMethodException | SecurityException |
@@ -151,15 +181,160 @@ public class ImageUtils
    }
    
    
-   private static int[] createCompatibleImage(Image image, int w, int h)
+   private static int[] getBuffer(int[] buffer, int w, int h)
    {
-      int[] data = new int[w*h];
-      GraphicsDevice gs = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()[0];
-      GraphicsConfiguration gc = gs.getDefaultConfiguration();
-      BufferedImage img = gc.createCompatibleImage(w, h, Transparency.OPAQUE);
-      img.getGraphics().drawImage(image, 0, 0, null);           
-      img.getRaster().getDataElements(0, 0, w, h, data);      
-      return data;
+      return ((buffer != null) && (buffer.length >= w*h)) ? buffer : new int[w*h];
+   }
+   
+   
+   private static ImageInfo decode(InputStream is, int[] buffer) throws IOException
+   {
+      // Memory cache: no temporary file, unlike ImageIO.read()
+      ImageInputStream iis = new MemoryCacheImageInputStream(is);
+      
+      try
+      {
+         Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+
+         if (readers.hasNext() == false)
+            return null;
+
+         ImageReader reader = readers.next();
+
+         try
+         {
+            reader.setInput(iis, true, true);
+            final int w = reader.getWidth(0);
+            final int h = reader.getHeight(0);
+            final int[] data = getBuffer(buffer, w, h);
+            ImageReadParam param = reader.getDefaultReadParam();
+            boolean direct = false;
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+
+            while ((types.hasNext() == true) && (direct == false))
+               direct = types.next().getBufferedImageType() == BufferedImage.TYPE_INT_RGB;
+
+            if (direct == true)
+            {
+               // Let the decoder write the pixels into the buffer
+               param.setDestination(wrap(data, w, h));
+               reader.read(0, param);
+            }
+            else
+            {
+               copyPixels(reader.read(0, param), data);
+            }
+
+            return new ImageInfo(w, h, data);
+         }
+         finally
+         {
+            reader.dispose();
+         }
+      }
+      finally
+      {
+         iis.close();
+      }
+   }
+
+
+   // Create a packed RGB image backed by the provided buffer
+   private static BufferedImage wrap(int[] data, int w, int h)
+   {
+      final int[] masks = { 0xFF0000, 0xFF00, 0xFF };
+      DirectColorModel cm = new DirectColorModel(24, masks[0], masks[1], masks[2]);
+      WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, w*h), 
+              w, h, w, masks, null);
+      return new BufferedImage(cm, raster, false, null);
+   }
+
+
+   // Convert the pixels of the image to packed RGB in one pass. 
+   private static void copyPixels(BufferedImage img, int[] data)
+   {
+      final int w = img.getWidth();
+      final int h = img.getHeight();
+      final Raster raster = img.getRaster();
+      
+      // Fast paths for the usual decoder outputs (no sub-image)
+      if ((raster.getSampleModelTranslateX() == 0) && (raster.getSampleModelTranslateY() == 0) &&
+         (raster.getDataBuffer().getOffset() == 0))
+      {
+         switch (img.getType())
+         {
+            case BufferedImage.TYPE_INT_RGB :
+            case BufferedImage.TYPE_INT_ARGB :
+            {
+               final int[] src = ((DataBufferInt) raster.getDataBuffer()).getData();
+               final int st = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+
+               for (int y=0, offs=0; y<h; y++, offs+=w)
+               {
+                  final int start = y*st;
+
+                  for (int x=0; x<w; x++)
+                     data[offs+x] = src[start+x] & 0x00FFFFFF;
+               }
+               
+               return;
+            }
+            
+            case BufferedImage.TYPE_3BYTE_BGR :
+            case BufferedImage.TYPE_4BYTE_ABGR :
+            {
+               final byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData();
+               final int nb = (img.getType() == BufferedImage.TYPE_3BYTE_BGR) ? 3 : 4;
+               final int st = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+               final int skip = nb - 3; // skip alpha
+
+               for (int y=0, offs=0; y<h; y++, offs+=w)
+               {
+                  for (int x=0, k=y*st+skip; x<w; x++, k+=nb)
+                     data[offs+x] = ((src[k+2] & 0xFF) << 16) | ((src[k+1] & 0xFF) << 8) | (src[k] & 0xFF);
+               }
+               
+               return;
+            }
+            
+            case BufferedImage.TYPE_BYTE_GRAY :
+            {
+               final byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData();
+               final int st = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+
+               for (int y=0, offs=0; y<h; y++, offs+=w)
+               {
+                  for (int x=0, k=y*st; x<w; x++, k++)
+                  {
+                     final int val = src[k] & 0xFF;
+                     data[offs+x] = (val << 16) | (val << 8) | val;
+                  }
+               }
+               
+               return;
+            }
+            
+            default :
+               break;
+         }
+      }
+
+      // Generic path (indexed colors, 16 bits, ...)
+      img.getRGB(0, 0, w, h, data, 0, w);
+
+      for (int i=0; i<w*h; i++)
+         data[i] &= 0x00FFFFFF;
+   }
+   
+   
+   // Does not use any screen device, so it works in headless mode (servers,
+   // render farms, java.awt.headless=true).
+   private static void createCompatibleImage(Image image, int w, int h, int[] data)
+   {
+      BufferedImage img = wrap(data, w, h);
+      Graphics g = img.createGraphics();
+      g.drawImage(image, 0, 0, null);
+      g.dispose();
    }
    
    
@@ -308,22 +483,38 @@ public class ImageUtils
    {
       final int w = this.width - 1;
       final int h = this.height;
-      final int st = this.stride;
+      
+      if (this.bufferPool != null)
+      {
+         try (BufferPool.Lease<int[]> lease = this.bufferPool.leaseInts(w*h))
+         {
+            return this.rotate90(data, lease.array);
+         }
+      }
       
       if (this.iBuf.length < w*h)
          this.iBuf = new int[w*h];
 
+      return this.rotate90(data, this.iBuf);
+   }
+   
+   
+   private int[] rotate90(int[] data, int[] buf)
+   {
+      final int w = this.width - 1;
+      final int h = this.height;
+      final int st = this.stride;
       int offs = 0;
       
       for (int j=0; j<h; j++)
       {
          for (int i=0; i<w; i++)
-            this.iBuf[i*h+j] = data[offs+i];
+            buf[i*h+j] = data[offs+i];
          
          offs += st; 
       }
       
-      System.arraycopy(this.iBuf, 0, data, 0, w*h);
+      System.arraycopy(buf, 0, data, 0, w*h);
       return data;
    }  
    
@@ -473,6 +664,13 @@ public class ImageUtils
 
    
    public static ImageInfo loadPNM(InputStream is) throws IOException
+   {
+      return loadPNM(is, null);
+   }
+   
+   
+   // Decode into the provided buffer if it is large enough
+   public static ImageInfo loadPNM(InputStream is, int[] buffer) throws IOException
    {
       boolean raw;
       boolean grey;
@@ -521,7 +719,7 @@ public class ImageUtils
           if ((maxColors <= 0) || (maxColors > 255))
               throw new IOException("Invalid number of colors " + maxColors);
           
-          int[] data = new int[w*h];
+          int[] data = getBuffer(buffer, w, h);
           int offs = 0;
           
           if (raw == true) 
@@ -0,0 +1,387 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import kanzi.SliceIntArray;
+
+
+// Summed area table of one channel of an image with 64 bit accumulators
+// (no overflow for any frame size) and constant time box queries (sum, mean,
+// variance). IntegralImageFilter builds its int output from this table.
+// The table has one extra (null) row and column so that queries do not test
+// the image boundaries. The sums of squared values are optional (required by
+// the variance queries).
+// The table can be built concurrently: each band of rows computes a local
+// table, then the last rows of the previous bands are added to each band.
+// One table can be shared by several consumers (2D box sums and means,
+// saliency, local statistics) once built for a frame. Separable filters with
+// one rounding per pass, like BlurFilter, keep their sliding sums.
+public final class IntegralImage
+{
+   // Channel selection for build()
+   public static final int RAW = -1; // use int values as is
+   public static final int R_CHANNEL = 16;
+   public static final int G_CHANNEL = 8;
+   public static final int B_CHANNEL = 0;
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final long[] sums;
+   private final long[] squares;
+   private final ExecutorService pool;
+   private final Band[] bands;
+
+
+   public IntegralImage(int width, int height, int stride)
+   {
+      this(width, height, stride, false, null, 1);
+   }
+
+
+   // If a pool is provided, the table is built by nbTasks concurrent tasks
+   public IntegralImage(int width, int height, int stride, boolean withSquares,
+      ExecutorService pool, int nbTasks)
+   {
+      if (height < 1)
+         throw new IllegalArgumentException("The height must be at least 1");
+
+      if (width < 1)
+         throw new IllegalArgumentException("The width must be at least 1");
+
+      if (stride < width)
+         throw new IllegalArgumentException("The stride must be at least as big as the width");
+
+      if ((long) (width+1) * (height+1) >= Integer.MAX_VALUE)
+         throw new IllegalArgumentException("The image area is too large");
+
+      if ((nbTasks < 1) || (nbTasks > 64))
+         throw new IllegalArgumentException("The number of tasks must be in [1..64]");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.sums = new long[(width+1)*(height+1)];
+      this.squares = (withSquares == true) ? new long[(width+1)*(height+1)] : null;
+      this.pool = pool;
+      final int nbBands = (pool == null) ? 1 : Math.min(nbTasks, height);
+      this.bands = new Band[nbBands];
+
+      for (int i=0; i<nbBands; i++)
+         this.bands[i] = new Band((height*i)/nbBands, (height*(i+1))/nbBands);
+   }
+
+
+   // Build the table from the values of one channel (see R_CHANNEL, G_CHANNEL,
+   // B_CHANNEL) of a packed RGB image or from raw values (RAW).
+   public boolean build(SliceIntArray input, int channel)
+   {
+      if (SliceIntArray.isValid(input) == false)
+         return false;
+
+      if ((channel != RAW) && (channel != R_CHANNEL) && (channel != G_CHANNEL)
+         && (channel != B_CHANNEL))
+         throw new IllegalArgumentException("Invalid channel parameter (must be RAW or R or G or B)");
+
+      if (input.index + (this.height-1)*this.stride + this.width > input.array.length)
+         return false;
+
+      for (Band band : this.bands)
+      {
+         band.src = input.array;
+         band.srcIdx = input.index;
+         band.channel = channel;
+      }
+
+      boolean res = this.run(Band.LOCAL);
+
+      if ((res == true) && (this.bands.length > 1))
+      {
+         // Sequential step: the carry of a band is the sum of the last local
+         // rows of all the previous bands
+         final int w1 = this.width + 1;
+
+         for (int i=1; i<this.bands.length; i++)
+         {
+            final Band prv = this.bands[i-1];
+            final Band cur = this.bands[i];
+            final int lastIdx = prv.y1 * w1;
+            cur.addCarry(prv, this.sums, lastIdx, true);
+
+            if (this.squares != null)
+               cur.addCarry(prv, this.squares, lastIdx, false);
+         }
+
+         res = this.run(Band.CARRY);
+      }
+
+      for (Band band : this.bands)
+         band.src = null;
+
+      return res;
+   }
+
+
+   private boolean run(int step)
+   {
+      for (Band band : this.bands)
+         band.step = step;
+
+      if (this.bands.length == 1)
+         return this.bands[0].call();
+
+      List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(this.bands.length);
+
+      for (Band band : this.bands)
+         tasks.add(band);
+
+      boolean res = true;
+
+      try
+      {
+         List<Future<Boolean>> results = this.pool.invokeAll(tasks);
+
+         for (Future<Boolean> fr : results)
+            res &= fr.get();
+      }
+      catch (InterruptedException e)
+      {
+         return false;
+      }
+      catch (ExecutionException e)
+      {
+         return false;
+      }
+
+      return res;
+   }
+
+
+   // Sum of the values in the box [x0..x1] x [y0..y1] (bounds included)
+   public long sum(int x0, int y0, int x1, int y1)
+   {
+      final int w1 = this.width + 1;
+      final int top = y0 * w1;
+      final int bottom = (y1+1) * w1;
+      final long[] s = this.sums;
+      return s[bottom+x1+1] - s[bottom+x0] - s[top+x1+1] + s[top+x0];
+   }
+
+
+   // Sum of the squared values in the box [x0..x1] x [y0..y1] (bounds included)
+   public long sumOfSquares(int x0, int y0, int x1, int y1)
+   {
+      if (this.squares == null)
+         throw new IllegalStateException("The sums of squares have not been computed");
+
+      final int w1 = this.width + 1;
+      final int top = y0 * w1;
+      final int bottom = (y1+1) * w1;
+      final long[] s = this.squares;
+      return s[bottom+x1+1] - s[bottom+x0] - s[top+x1+1] + s[top+x0];
+   }
+
+
+   // Mean value in the box [x0..x1] x [y0..y1] (rounded towards 0)
+   public int mean(int x0, int y0, int x1, int y1)
+   {
+      final long area = (long) (x1-x0+1) * (y1-y0+1);
+      return (int) (this.sum(x0, y0, x1, y1) / area);
+   }
+
+
+   // Variance in the box [x0..x1] x [y0..y1] times 256 (rounded towards 0)
+   public long variance256(int x0, int y0, int x1, int y1)
+   {
+      final long area = (long) (x1-x0+1) * (y1-y0+1);
+      final long sum = this.sum(x0, y0, x1, y1);
+      final long sq = this.sumOfSquares(x0, y0, x1, y1);
+
+      // (area*sq - sum*sum) / area^2 overflows for large boxes. With
+      // sum = q*area + r, it is equal to (sq - q*(q*area + 2*r)) / area - (r/area)^2
+      final long q = sum / area;
+      final long r = sum - q*area;
+      final long d = sq - q*(q*area + r + r);
+      return ((d << 8) - r*((r << 8) / area)) / area;
+   }
+
+
+   // Write the sums of the boxes [0..x] x [0..y] to the output (same stride
+   // as the input). Only the low 32 bits of each sum are kept: the box sums
+   // computed from the output by difference are exact when they fit in an int.
+   public boolean copyTo(SliceIntArray output)
+   {
+      if (SliceIntArray.isValid(output) == false)
+         return false;
+
+      if (output.index + (this.height-1)*this.stride + this.width > output.array.length)
+         return false;
+
+      final int[] dst = output.array;
+      final long[] s = this.sums;
+      final int w = this.width;
+      final int w1 = w + 1;
+      int dstIdx = output.index;
+
+      for (int j=1, offs=w1; j<=this.height; j++, offs+=w1)
+      {
+         for (int i=0; i<w; i++)
+            dst[dstIdx+i] = (int) s[offs+i+1];
+
+         dstIdx += this.stride;
+      }
+
+      return true;
+   }
+
+
+   public int getWidth()
+   {
+      return this.width;
+   }
+
+
+   public int getHeight()
+   {
+      return this.height;
+   }
+
+
+   public boolean hasSquares()
+   {
+      return this.squares != null;
+   }
+
+
+   // A band of rows [y0, y1). Rows of the table are shifted by one (row 0
+   // of the table is null).
+   private class Band implements Callable<Boolean>
+   {
+      static final int LOCAL = 0;
+      static final int CARRY = 1;
+
+      final int y0;
+      final int y1;
+      final long[] carry;
+      final long[] carrySq;
+      int step;
+      int channel;
+      int[] src;
+      int srcIdx;
+
+
+      Band(int y0, int y1)
+      {
+         this.y0 = y0;
+         this.y1 = y1;
+         this.carry = (y0 == 0) ? null : new long[width+1];
+         this.carrySq = ((y0 == 0) || (squares == null)) ? null : new long[width+1];
+      }
+
+
+      // carry = carry of previous band + last local row of previous band
+      void addCarry(Band prv, long[] table, int lastIdx, boolean isSum)
+      {
+         final long[] c = (isSum == true) ? this.carry : this.carrySq;
+         final long[] pc = (isSum == true) ? prv.carry : prv.carrySq;
+
+         for (int i=0; i<=width; i++)
+            c[i] = table[lastIdx+i] + ((pc == null) ? 0 : pc[i]);
+      }
+
+
+      @Override
+      public Boolean call()
+      {
+         final int w = width;
+         final int w1 = w + 1;
+
+         if (this.step == CARRY)
+         {
+            if (this.carry == null)
+               return true;
+
+            for (int j=this.y0+1, offs=(this.y0+1)*w1; j<=this.y1; j++, offs+=w1)
+            {
+               for (int i=1; i<=w; i++)
+                  sums[offs+i] += this.carry[i];
+
+               if (squares != null)
+               {
+                  for (int i=1; i<=w; i++)
+                     squares[offs+i] += this.carrySq[i];
+               }
+            }
+
+            return true;
+         }
+
+         final int[] data = this.src;
+         final int shift = (this.channel == RAW) ? 0 : this.channel;
+         final int mask = (this.channel == RAW) ? -1 : 0xFF;
+         final long[] s = sums;
+         final long[] sq = squares;
+         int srcOffs = this.srcIdx + this.y0*stride - 1;
+
+         for (int j=this.y0, offs=(this.y0+1)*w1; j<this.y1; j++, offs+=w1)
+         {
+            // The row above the first row of a band belongs to another band
+            // (or is the null row of the table): use local row sums only
+            final boolean first = j == this.y0;
+            long rowSum = 0;
+
+            if (first == true)
+            {
+               for (int i=1; i<=w; i++)
+               {
+                  rowSum += ((data[srcOffs+i] >> shift) & mask);
+                  s[offs+i] = rowSum;
+               }
+            }
+            else
+            {
+               for (int i=1; i<=w; i++)
+               {
+                  rowSum += ((data[srcOffs+i] >> shift) & mask);
+                  s[offs+i] = rowSum + s[offs-w1+i];
+               }
+            }
+
+            if (sq != null)
+            {
+               long rowSq = 0;
+
+               for (int i=1; i<=w; i++)
+               {
+                  final long val = (data[srcOffs+i] >> shift) & mask;
+                  rowSq += (val * val);
+                  sq[offs+i] = (first == true) ? rowSq : rowSq + sq[offs-w1+i];
+               }
+            }
+
+            srcOffs += stride;
+         }
+
+         return true;
+      }
+   }
+}
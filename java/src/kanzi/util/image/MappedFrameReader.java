@@ -0,0 +1,577 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.image;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import kanzi.ColorModelType;
+import kanzi.YUVFrame;
+import kanzi.util.color.YCbCrColorModelConverter;
+
+
+// Frame reader for raw PPM/PGM files (P6/P5, one or several concatenated
+// images) and YUV4MPEG2 (.y4m) sequences with 8 bit samples.
+// The file is memory mapped (by windows, so files larger than 2GB are
+// supported) and the pixels are decoded directly from the mapped buffer into
+// the destination arrays, which can be reused across frames.
+// The offset of each frame is computed when the file is opened, so frames can
+// be read in any order.
+// Not thread safe: use one reader per thread.
+public class MappedFrameReader implements Closeable
+{
+   public static final int DEFAULT_WINDOW_SIZE = 256*1024*1024;
+
+   private static final int PNM = 1;
+   private static final int Y4M = 2;
+   private static final int MAX_HEADER_SIZE = 4096;
+   private static final int CHUNK_SIZE = 16384;
+
+   private final RandomAccessFile file;
+   private final FileChannel channel;
+   private final long fileSize;
+   private final int format;
+   private final int width;
+   private final int height;
+   private final int chromaWidth;
+   private final int chromaHeight;
+   private final ColorModelType cmType; // RGB, GREY or YUV4xx
+   private final int frameSize; // in bytes, excluding frame header
+   private final long[] offsets; // start of the pixel data of each frame
+   private final int windowSize;
+   private MappedByteBuffer window;
+   private long windowStart;
+   private long windowEnd;
+   private byte[] chunk;
+   private YCbCrColorModelConverter converter;
+   private int[] yBuf;
+   private int[] uBuf;
+   private int[] vBuf;
+
+
+   public MappedFrameReader(File file) throws IOException
+   {
+      this(file, DEFAULT_WINDOW_SIZE);
+   }
+
+
+   // The file is mapped by windows of at least windowSize bytes (each window
+   // contains at least one full frame).
+   public MappedFrameReader(File file, int windowSize) throws IOException
+   {
+      if (file == null)
+         throw new NullPointerException("Invalid null file parameter");
+
+      if (windowSize < 65536)
+         throw new IllegalArgumentException("The window size must be at least 64KB");
+
+      this.file = new RandomAccessFile(file, "r");
+      this.channel = this.file.getChannel();
+      this.windowSize = windowSize;
+
+      try
+      {
+         this.fileSize = this.channel.size();
+         final byte[] header = this.readHeader(0);
+
+         if ((header.length > 9) && (new String(header, 0, 9, "US-ASCII").equals("YUV4MPEG2")))
+         {
+            this.format = Y4M;
+            final int[] dims = new int[2];
+            this.cmType = parseY4MHeader(header, dims);
+            this.width = dims[0];
+            this.height = dims[1];
+         }
+         else if ((header.length > 2) && (header[0] == 'P') && ((header[1] == '5') || (header[1] == '6')))
+         {
+            this.format = PNM;
+            this.cmType = (header[1] == '5') ? ColorModelType.GREY : ColorModelType.RGB;
+            final int[] values = new int[4];
+            parsePNMHeader(header, values);
+            this.width = values[0];
+            this.height = values[1];
+         }
+         else
+         {
+            throw new IOException("Invalid format: not a raw PGM/PPM (P5/P6) or YUV4MPEG2 file");
+         }
+
+         if ((this.width <= 0) || (this.height <= 0))
+            throw new IOException("Invalid dimensions: "+this.width+"x"+this.height);
+
+         switch (this.cmType)
+         {
+            case YUV420 :
+               this.chromaWidth = (this.width+1) >> 1;
+               this.chromaHeight = (this.height+1) >> 1;
+               break;
+
+            case YUV422 :
+               this.chromaWidth = (this.width+1) >> 1;
+               this.chromaHeight = this.height;
+               break;
+
+            case YUV444 :
+               this.chromaWidth = this.width;
+               this.chromaHeight = this.height;
+               break;
+
+            default :
+               this.chromaWidth = 0;
+               this.chromaHeight = 0;
+         }
+
+         final long size = (this.cmType == ColorModelType.RGB) ? 3L*this.width*this.height :
+            (long) this.width*this.height + 2L*this.chromaWidth*this.chromaHeight;
+
+         if (size > Integer.MAX_VALUE)
+            throw new IOException("Frame too large: "+this.width+"x"+this.height);
+
+         this.frameSize = (int) size;
+         this.offsets = this.scanFrames(header);
+      }
+      catch (IOException | RuntimeException e)
+      {
+         this.file.close();
+         throw e;
+      }
+
+      this.chunk = new byte[CHUNK_SIZE];
+      this.yBuf = new int[0];
+      this.uBuf = new int[0];
+      this.vBuf = new int[0];
+   }
+
+
+   // Read up to MAX_HEADER_SIZE bytes at position pos (no mapping)
+   private byte[] readHeader(long pos) throws IOException
+   {
+      final int len = (int) Math.min(MAX_HEADER_SIZE, this.fileSize-pos);
+      ByteBuffer bb = ByteBuffer.allocate(Math.max(len, 0));
+
+      while (bb.hasRemaining() == true)
+      {
+         if (this.channel.read(bb, pos+bb.position()) < 0)
+            break;
+      }
+
+      return Arrays.copyOf(bb.array(), bb.position());
+   }
+
+
+   private long[] scanFrames(byte[] header) throws IOException
+   {
+      long[] res = new long[16];
+      int n = 0;
+      long pos = 0;
+
+      while (pos < this.fileSize)
+      {
+         final byte[] buf = (pos == 0) ? header : this.readHeader(pos);
+         int hdrLen;
+
+         if (this.format == Y4M)
+         {
+            if (pos == 0)
+            {
+               // Skip stream header
+               hdrLen = indexOf(buf, 0, (byte) '\n') + 1;
+
+               if (hdrLen == 0)
+                  throw new IOException("Invalid YUV4MPEG2 header");
+
+               pos += hdrLen;
+               continue;
+            }
+
+            if ((buf.length < 5) || (new String(buf, 0, 5, "US-ASCII").equals("FRAME") == false))
+               throw new IOException("Invalid YUV4MPEG2 frame header at offset "+pos);
+
+            hdrLen = indexOf(buf, 5, (byte) '\n') + 1;
+
+            if (hdrLen == 0)
+               throw new IOException("Invalid YUV4MPEG2 frame header at offset "+pos);
+         }
+         else
+         {
+            // Skip trailing whitespace after the last image
+            if (Character.isWhitespace((char) buf[0]) == true)
+            {
+               int i = 0;
+
+               while ((i < buf.length) && (Character.isWhitespace((char) buf[i]) == true))
+                  i++;
+
+               if (i == buf.length)
+                  break;
+
+               pos += i;
+               continue;
+            }
+
+            final int[] values = new int[4];
+
+            if ((buf.length < 2) || (buf[0] != header[0]) || (buf[1] != header[1]))
+               throw new IOException("Invalid or inconsistent PNM image at offset "+pos);
+
+            hdrLen = parsePNMHeader(buf, values);
+
+            if ((values[0] != this.width) || (values[1] != this.height))
+               throw new IOException("Inconsistent dimensions at offset "+pos+": "+
+                       values[0]+"x"+values[1]+" (expected "+this.width+"x"+this.height+")");
+         }
+
+         if (pos + hdrLen + this.frameSize > this.fileSize)
+            throw new IOException("Truncated frame at offset "+pos);
+
+         if (n == res.length)
+            res = Arrays.copyOf(res, 2*n);
+
+         res[n++] = pos + hdrLen;
+         pos += hdrLen + this.frameSize;
+      }
+
+      if (n == 0)
+         throw new IOException("No frame found");
+
+      return Arrays.copyOf(res, n);
+   }
+
+
+   private static int indexOf(byte[] buf, int start, byte b)
+   {
+      for (int i=start; i<buf.length; i++)
+      {
+         if (buf[i] == b)
+            return i;
+      }
+
+      return -1;
+   }
+
+
+   // Return the color model, the dimensions are stored in dims
+   private static ColorModelType parseY4MHeader(byte[] header, int[] dims) throws IOException
+   {
+      final int end = indexOf(header, 0, (byte) '\n');
+
+      if (end < 0)
+         throw new IOException("Invalid YUV4MPEG2 header");
+
+      final String[] tokens = new String(header, 0, end, "US-ASCII").split(" ");
+      ColorModelType res = ColorModelType.YUV420; // default chroma subsampling
+
+      try
+      {
+         for (int i=1; i<tokens.length; i++)
+         {
+            final String token = tokens[i];
+
+            if (token.isEmpty() == true)
+               continue;
+
+            switch (token.charAt(0))
+            {
+               case 'W' :
+                  dims[0] = Integer.parseInt(token.substring(1));
+                  break;
+
+               case 'H' :
+                  dims[1] = Integer.parseInt(token.substring(1));
+                  break;
+
+               case 'C' :
+               {
+                  final String cs = token.substring(1);
+
+                  if ((cs.equals("420")) || (cs.equals("420jpeg")) || (cs.equals("420paldv")) ||
+                     (cs.equals("420mpeg2")))
+                     res = ColorModelType.YUV420;
+                  else if (cs.equals("422"))
+                     res = ColorModelType.YUV422;
+                  else if (cs.equals("444"))
+                     res = ColorModelType.YUV444;
+                  else if (cs.equals("mono"))
+                     res = ColorModelType.GREY;
+                  else
+                     throw new IOException("Unsupported YUV4MPEG2 color space: "+cs+" (only 8 bit samples are supported)");
+
+                  break;
+               }
+
+               default :
+                  // Frame rate, interlacing, aspect ratio, extensions: ignored
+                  break;
+            }
+         }
+      }
+      catch (NumberFormatException e)
+      {
+         throw new IOException("Invalid YUV4MPEG2 header: "+e.getMessage());
+      }
+
+      return res;
+   }
+
+
+   // Parse magic, width, height and max value. Return the header length
+   private static int parsePNMHeader(byte[] header, int[] values) throws IOException
+   {
+      int pos = 2;
+
+      for (int n=0; n<3; n++)
+      {
+         // Skip whitespace and comments
+         while (true)
+         {
+            if (pos >= header.length)
+               throw new IOException("Invalid PNM header");
+
+            if (header[pos] == '#')
+            {
+               while ((pos < header.length) && (header[pos] != '\n'))
+                  pos++;
+            }
+            else if (Character.isWhitespace((char) header[pos]) == true)
+               pos++;
+            else
+               break;
+         }
+
+         int val = 0;
+
+         while ((pos < header.length) && (header[pos] >= '0') && (header[pos] <= '9'))
+         {
+            val = 10*val + (header[pos] - '0');
+            pos++;
+         }
+
+         values[n] = val;
+      }
+
+      // Exactly one whitespace before the data
+      if ((pos >= header.length) || (Character.isWhitespace((char) header[pos]) == false))
+         throw new IOException("Invalid PNM header");
+
+      if ((values[2] <= 0) || (values[2] > 255))
+         throw new IOException("Invalid number of colors " + values[2] + " (only 8 bit samples are supported)");
+
+      return pos + 1;
+   }
+
+
+   // Make sure the mapped window contains [pos, pos+len[
+   private ByteBuffer map(long pos, int len) throws IOException
+   {
+      if ((this.window == null) || (pos < this.windowStart) || (pos+len > this.windowEnd))
+      {
+         final long size = Math.min(Math.max(len, this.windowSize), this.fileSize-pos);
+         this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+         this.windowStart = pos;
+         this.windowEnd = pos + size;
+      }
+
+      this.window.position((int) (pos-this.windowStart));
+      return this.window;
+   }
+
+
+   // Decode 'count' bytes from the buffer into dst[offs..offs+count[
+   private void decodePlane(ByteBuffer buf, int[] dst, int offs, int count)
+   {
+      final byte[] b = this.chunk;
+
+      while (count > 0)
+      {
+         final int n = Math.min(count, b.length);
+         buf.get(b, 0, n);
+
+         for (int i=0; i<n; i++)
+            dst[offs+i] = b[i] & 0xFF;
+
+         offs += n;
+         count -= n;
+      }
+   }
+
+
+   // Decode the frame at the provided index. The channels of 'frame' are reused
+   // if the frame has the same dimensions and color model, else a new frame is
+   // allocated. PPM frames are decoded as R,G,B planes (color model RGB), PGM
+   // and mono frames as a single Y plane (color model GREY, empty U and V).
+   public YUVFrame readFrame(int index, YUVFrame frame) throws IOException
+   {
+      if ((index < 0) || (index >= this.offsets.length))
+         throw new IndexOutOfBoundsException("Invalid frame index "+index+" (must be in [0.."+(this.offsets.length-1)+"])");
+
+      final int count = this.width * this.height;
+      final int chromaCount = (this.cmType == ColorModelType.RGB) ? count :
+         this.chromaWidth * this.chromaHeight;
+
+      if ((frame == null) || (frame.width != this.width) || (frame.height != this.height) ||
+         (frame.cmType != this.cmType) || (frame.stride != this.width) || (frame.offset != 0) ||
+         (frame.y.length < count) || (frame.u.length < chromaCount) || (frame.v.length < chromaCount))
+      {
+         frame = new YUVFrame(this.width, this.height, new int[count],
+                 new int[chromaCount], new int[chromaCount], this.cmType);
+      }
+
+      final ByteBuffer buf = this.map(this.offsets[index], this.frameSize);
+
+      if (this.cmType == ColorModelType.RGB)
+      {
+         // Interleaved R,G,B samples
+         final byte[] b = this.chunk;
+         final int[] r = frame.y;
+         final int[] g = frame.u;
+         final int[] bl = frame.v;
+         final int pixelsPerChunk = b.length / 3;
+
+         for (int i=0; i<count; i+=pixelsPerChunk)
+         {
+            final int n = Math.min(pixelsPerChunk, count-i);
+            buf.get(b, 0, 3*n);
+
+            for (int j=0, k=0; j<n; j++, k+=3)
+            {
+               r[i+j]  = b[k] & 0xFF;
+               g[i+j]  = b[k+1] & 0xFF;
+               bl[i+j] = b[k+2] & 0xFF;
+            }
+         }
+
+         return frame;
+      }
+
+      this.decodePlane(buf, frame.y, 0, count);
+
+      if (chromaCount > 0)
+      {
+         this.decodePlane(buf, frame.u, 0, chromaCount);
+         this.decodePlane(buf, frame.v, 0, chromaCount);
+      }
+
+      return frame;
+   }
+
+
+   // Decode the frame at the provided index as packed RGB into the provided
+   // buffer if it is large enough (else a new buffer is allocated). YUV frames
+   // are converted with the YCbCr color model (requires dimensions multiple
+   // of 8).
+   public int[] readRGB(int index, int[] rgb) throws IOException
+   {
+      if ((index < 0) || (index >= this.offsets.length))
+         throw new IndexOutOfBoundsException("Invalid frame index "+index+" (must be in [0.."+(this.offsets.length-1)+"])");
+
+      final int count = this.width * this.height;
+
+      if ((rgb == null) || (rgb.length < count))
+         rgb = new int[count];
+
+      final ByteBuffer buf = this.map(this.offsets[index], this.frameSize);
+      final byte[] b = this.chunk;
+
+      if (this.cmType == ColorModelType.RGB)
+      {
+         final int pixelsPerChunk = b.length / 3;
+
+         for (int i=0; i<count; i+=pixelsPerChunk)
+         {
+            final int n = Math.min(pixelsPerChunk, count-i);
+            buf.get(b, 0, 3*n);
+
+            for (int j=0, k=0; j<n; j++, k+=3)
+               rgb[i+j] = ((b[k] & 0xFF) << 16) | ((b[k+1] & 0xFF) << 8) | (b[k+2] & 0xFF);
+         }
+
+         return rgb;
+      }
+
+      if (this.cmType == ColorModelType.GREY)
+      {
+         for (int i=0; i<count; i+=b.length)
+         {
+            final int n = Math.min(b.length, count-i);
+            buf.get(b, 0, n);
+
+            for (int j=0; j<n; j++)
+            {
+               final int val = b[j] & 0xFF;
+               rgb[i+j] = (val << 16) | (val << 8) | val;
+            }
+         }
+
+         return rgb;
+      }
+
+      if (this.converter == null)
+      {
+         this.converter = new YCbCrColorModelConverter(this.width, this.height);
+         final int chromaCount = this.chromaWidth * this.chromaHeight;
+         this.yBuf = new int[count];
+         this.uBuf = new int[chromaCount];
+         this.vBuf = new int[chromaCount];
+      }
+
+      this.decodePlane(buf, this.yBuf, 0, count);
+      this.decodePlane(buf, this.uBuf, 0, this.uBuf.length);
+      this.decodePlane(buf, this.vBuf, 0, this.vBuf.length);
+
+      if (this.converter.convertYUVtoRGB(this.yBuf, this.uBuf, this.vBuf, rgb, this.cmType) == false)
+         throw new IOException("Failed to convert frame "+index+" to RGB");
+
+      return rgb;
+   }
+
+
+   public int getWidth()
+   {
+      return this.width;
+   }
+
+
+   public int getHeight()
+   {
+      return this.height;
+   }
+
+
+   public int getNbFrames()
+   {
+      return this.offsets.length;
+   }
+
+
+   // RGB (PPM), GREY (PGM or mono Y4M) or YUV420/YUV422/YUV444 (Y4M)
+   public ColorModelType getColorModel()
+   {
+      return this.cmType;
+   }
+
+
+   @Override
+   public void close() throws IOException
+   {
+      this.window = null;
+      this.file.close();
+   }
+}
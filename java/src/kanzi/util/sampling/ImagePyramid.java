@@ -0,0 +1,522 @@
+/*
+Copyright 2011-2017 Frederic Langlet
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+you may obtain a copy of the License at
+
+                http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package kanzi.util.sampling;
+
+import kanzi.SliceIntArray;
+
+
+// Gaussian/Laplacian pyramid of a frame built with the down and up samplers.
+// Level 0 is the frame itself, level k+1 is level k down sampled by 2 in each
+// dimension. Levels are computed lazily, the first time they are requested,
+// and cached until the next frame is provided. Several filters can share one
+// pyramid to avoid computing the same reductions of a frame again.
+// The frame is either packed RGB (3 channels, each channel is sampled
+// separately) or a single plane (1 channel, values used as is).
+// Laplacian level k is level k minus the up sampled level k+1 (the last
+// Laplacian level is the last Gaussian level). It is computed per channel and
+// the frame can be rebuilt exactly from the Laplacian levels. The up samplers
+// are only needed by the Laplacian levels, so they are created the first time
+// a Laplacian level is computed.
+// All the public methods are synchronized. Arrays returned by the getters are
+// shared by all the consumers and must not be modified. They are overwritten
+// once a new frame is set.
+public class ImagePyramid
+{
+   private static final DownSamplerFactory BILINEAR_DOWN = new DownSamplerFactory()
+   {
+      @Override
+      public DownSampler create(int width, int height)
+      {
+         return new BilinearDownSampler(width, height, 2);
+      }
+   };
+
+   private static final UpSamplerFactory BILINEAR_UP = new UpSamplerFactory()
+   {
+      @Override
+      public UpSampler create(int width, int height)
+      {
+         return new BilinearUpSampler(width, height, 2);
+      }
+   };
+
+   private final int width;
+   private final int height;
+   private final int stride;
+   private final int channels;
+   private final int[] widths;
+   private final int[] heights;
+   private final DownSampler[] downSamplers; // level k to k+1
+   private final UpSampler[] upSamplers; // level k+1 to k, created lazily
+   private final UpSamplerFactory upFactory;
+   private final int[][] levels;
+   private final int[][][] laplacians;
+   private final boolean[] hasLevel;
+   private final boolean[] hasLaplacian;
+   private final int[] buffer1;
+   private final int[] buffer2;
+   private int[] frame;
+   private int frameIndex;
+   private long frameId;
+
+
+   public ImagePyramid(int width, int height, int nbLevels)
+   {
+      this(width, height, width, nbLevels, 3);
+   }
+
+
+   // Use bilinear samplers: width and height of all levels but the last one
+   // must be multiples of 8 (all levels including the last one to compute
+   // Laplacian levels)
+   public ImagePyramid(int width, int height, int stride, int nbLevels, int channels)
+   {
+      this(width, height, stride, nbLevels, channels, BILINEAR_DOWN, BILINEAR_UP);
+   }
+
+
+   public ImagePyramid(int width, int height, int stride, int nbLevels, int channels,
+      DownSamplerFactory downFactory, UpSamplerFactory upFactory)
+   {
+      if (height < 8)
+         throw new IllegalArgumentException("The height must be at least 8");
+
+      if (width < 8)
+         throw new IllegalArgumentException("The width must be at least 8");
+
+      if (stride < width)
+         throw new IllegalArgumentException("The stride must be at least as big as the width");
+
+      if ((nbLevels < 1) || (nbLevels > 16))
+         throw new IllegalArgumentException("The number of levels must be in [1..16]");
+
+      if ((channels != 1) && (channels != 3))
+         throw new IllegalArgumentException("The number of channels must be 1 or 3");
+
+      final int mask = (1 << (nbLevels-1)) - 1;
+
+      if ((width & mask) != 0)
+         throw new IllegalArgumentException("The width must be a multiple of "+(mask+1));
+
+      if ((height & mask) != 0)
+         throw new IllegalArgumentException("The height must be a multiple of "+(mask+1));
+
+      if (downFactory == null)
+         throw new NullPointerException("Invalid null down sampler factory");
+
+      if (upFactory == null)
+         throw new NullPointerException("Invalid null up sampler factory");
+
+      this.width = width;
+      this.height = height;
+      this.stride = stride;
+      this.channels = channels;
+      this.widths = new int[nbLevels];
+      this.heights = new int[nbLevels];
+      this.downSamplers = new DownSampler[nbLevels-1];
+      this.upSamplers = new UpSampler[nbLevels-1];
+      this.levels = new int[nbLevels][];
+      this.laplacians = new int[nbLevels][][];
+      this.hasLevel = new boolean[nbLevels];
+      this.hasLaplacian = new boolean[nbLevels];
+
+      for (int k=0; k<nbLevels; k++)
+      {
+         this.widths[k] = width >> k;
+         this.heights[k] = height >> k;
+      }
+
+      // The samplers throw if the dimensions of a level are not supported
+      for (int k=0; k<nbLevels-1; k++)
+      {
+         this.downSamplers[k] = downFactory.create(this.widths[k], this.heights[k]);
+
+         if (this.downSamplers[k].supportsScalingFactor(2) == false)
+            throw new IllegalArgumentException("The down sampler must support a scaling factor of 2");
+      }
+
+      this.upFactory = upFactory;
+
+      this.buffer1 = new int[width*height];
+      this.buffer2 = new int[width*height];
+   }
+
+
+   // Provide a new frame (width x height with the pyramid stride, starting at
+   // input.index). Invalidate all the cached levels. The frame is not copied
+   // and must not change until the next call.
+   public synchronized boolean setFrame(SliceIntArray input)
+   {
+      if (SliceIntArray.isValid(input) == false)
+         return false;
+
+      if (input.index + (this.height-1)*this.stride + this.width > input.array.length)
+         return false;
+
+      this.frame = input.array;
+      this.frameIndex = input.index;
+      this.frameId++;
+
+      for (int k=0; k<this.hasLevel.length; k++)
+      {
+         this.hasLevel[k] = false;
+         this.hasLaplacian[k] = false;
+      }
+
+      return true;
+   }
+
+
+   // Incremented each time a new frame is set. Consumers can compare it with
+   // the value of a previous call to know whether the frame has changed.
+   public synchronized long getFrameId()
+   {
+      return this.frameId;
+   }
+
+
+   public int getLevels()
+   {
+      return this.widths.length;
+   }
+
+
+   public int getChannels()
+   {
+      return this.channels;
+   }
+
+
+   public int getWidth(int level)
+   {
+      return this.widths[level];
+   }
+
+
+   public int getHeight(int level)
+   {
+      return this.heights[level];
+   }
+
+
+   // Level 0 has the stride of the frame, other levels have no padding
+   public int getStride(int level)
+   {
+      return (level == 0) ? this.stride : this.widths[level];
+   }
+
+
+   // Return the Gaussian level (packed RGB or single plane). Level 0 is the
+   // frame itself. Return null if no frame has been set.
+   public synchronized SliceIntArray getLevel(int level)
+   {
+      if ((level < 0) || (level >= this.levels.length))
+         throw new IllegalArgumentException("Invalid level: "+level);
+
+      if (this.frame == null)
+         return null;
+
+      if (level == 0)
+      {
+         final int length = (this.height-1)*this.stride + this.width;
+         return new SliceIntArray(this.frame, length, this.frameIndex);
+      }
+
+      final int[] array = this.computeLevel(level);
+      return new SliceIntArray(array, this.widths[level]*this.heights[level], 0);
+   }
+
+
+   // Return one channel (0 for R or the single plane, 1 for G, 2 for B) of a
+   // Laplacian level (width x height, no padding). Return null if no frame
+   // has been set. Throw an IllegalArgumentException if the up sampler does
+   // not support the dimensions of a level.
+   public synchronized int[] getLaplacian(int level, int channel)
+   {
+      if ((level < 0) || (level >= this.levels.length))
+         throw new IllegalArgumentException("Invalid level: "+level);
+
+      if ((channel < 0) || (channel >= this.channels))
+         throw new IllegalArgumentException("Invalid channel: "+channel);
+
+      if (this.frame == null)
+         return null;
+
+      return this.computeLaplacian(level)[channel];
+   }
+
+
+   // Rebuild the frame from the cached Laplacian levels (exact)
+   public synchronized boolean reconstruct(SliceIntArray output)
+   {
+      if (this.frame == null)
+         return false;
+
+      final int nbLevels = this.levels.length;
+      final int[][][] lap = new int[nbLevels][][];
+
+      for (int k=0; k<nbLevels; k++)
+         lap[k] = this.computeLaplacian(k);
+
+      return this.reconstruct(lap, output);
+   }
+
+
+   // Rebuild a frame from Laplacian levels indexed by level then channel (EG.
+   // copies of the cached levels with modified coefficients). Each level must
+   // have the dimensions of the corresponding pyramid level. The output has
+   // the frame stride. Values of packed RGB output are clipped to [0..255].
+   // Throw an IllegalArgumentException like getLaplacian().
+   public synchronized boolean reconstruct(int[][][] lap, SliceIntArray output)
+   {
+      if (SliceIntArray.isValid(output) == false)
+         return false;
+
+      final int nbLevels = this.levels.length;
+
+      if ((lap == null) || (lap.length < nbLevels))
+         return false;
+
+      if (output.index + (this.height-1)*this.stride + this.width > output.array.length)
+         return false;
+
+      for (int k=0; k<nbLevels; k++)
+      {
+         if ((lap[k] == null) || (lap[k].length < this.channels))
+            return false;
+
+         for (int c=0; c<this.channels; c++)
+         {
+            if ((lap[k][c] == null) || (lap[k][c].length < this.widths[k]*this.heights[k]))
+               return false;
+         }
+      }
+
+      for (int c=0; c<this.channels; c++)
+      {
+         int[] cur = this.buffer1;
+         int[] next = this.buffer2;
+         final int last = nbLevels - 1;
+         System.arraycopy(lap[last][c], 0, cur, 0, this.widths[last]*this.heights[last]);
+
+         for (int k=last-1; k>=0; k--)
+         {
+            this.getUpSampler(k).superSample(cur, next);
+            final int[] l = lap[k][c];
+            final int count = this.widths[k] * this.heights[k];
+
+            for (int i=0; i<count; i++)
+               next[i] += l[i];
+
+            final int[] t = cur;
+            cur = next;
+            next = t;
+         }
+
+         this.insertPlane(cur, output.array, output.index, this.stride,
+            this.width, this.height, c);
+      }
+
+      return true;
+   }
+
+
+   private int[] computeLevel(int level)
+   {
+      if (this.hasLevel[level] == true)
+         return this.levels[level];
+
+      final int srcLevel = level - 1;
+      final int[] src;
+      final int srcIdx;
+
+      if (srcLevel == 0)
+      {
+         src = this.frame;
+         srcIdx = this.frameIndex;
+      }
+      else
+      {
+         src = this.computeLevel(srcLevel);
+         srcIdx = 0;
+      }
+
+      final int w = this.widths[level];
+      final int h = this.heights[level];
+
+      if (this.levels[level] == null)
+         this.levels[level] = new int[w*h];
+
+      final int[] dst = this.levels[level];
+
+      for (int c=0; c<this.channels; c++)
+      {
+         this.extractPlane(src, srcIdx, this.getStride(srcLevel), this.widths[srcLevel],
+            this.heights[srcLevel], c, this.buffer1);
+         this.downSamplers[srcLevel].subSample(this.buffer1, this.buffer2);
+         this.insertPlane(this.buffer2, dst, 0, w, w, h, c);
+      }
+
+      this.hasLevel[level] = true;
+      return dst;
+   }
+
+
+   private int[][] computeLaplacian(int level)
+   {
+      if (this.hasLaplacian[level] == true)
+         return this.laplacians[level];
+
+      final int w = this.widths[level];
+      final int h = this.heights[level];
+      final int count = w * h;
+
+      if (this.laplacians[level] == null)
+         this.laplacians[level] = new int[this.channels][count];
+
+      final int[][] lap = this.laplacians[level];
+      final int[] src;
+      final int srcIdx;
+
+      if (level == 0)
+      {
+         src = this.frame;
+         srcIdx = this.frameIndex;
+      }
+      else
+      {
+         src = this.computeLevel(level);
+         srcIdx = 0;
+      }
+
+      final int stride = this.getStride(level);
+
+      if (level == this.levels.length-1)
+      {
+         for (int c=0; c<this.channels; c++)
+            this.extractPlane(src, srcIdx, stride, w, h, c, lap[c]);
+      }
+      else
+      {
+         final int[] next = this.computeLevel(level+1);
+
+         for (int c=0; c<this.channels; c++)
+         {
+            final int[] l = lap[c];
+            this.extractPlane(next, 0, this.widths[level+1], this.widths[level+1],
+               this.heights[level+1], c, this.buffer1);
+            this.getUpSampler(level).superSample(this.buffer1, this.buffer2);
+            this.extractPlane(src, srcIdx, stride, w, h, c, l);
+
+            for (int i=0; i<count; i++)
+               l[i] -= this.buffer2[i];
+         }
+      }
+
+      this.hasLaplacian[level] = true;
+      return lap;
+   }
+
+
+   // The up sampler from level k+1 to level k (throws if the up sampler does
+   // not support the dimensions of level k+1)
+   private UpSampler getUpSampler(int level)
+   {
+      if (this.upSamplers[level] == null)
+      {
+         final UpSampler sampler = this.upFactory.create(this.widths[level+1], this.heights[level+1]);
+
+         if (sampler.supportsScalingFactor(2) == false)
+            throw new IllegalArgumentException("The up sampler must support a scaling factor of 2");
+
+         this.upSamplers[level] = sampler;
+      }
+
+      return this.upSamplers[level];
+   }
+
+
+   // Copy one channel of a (packed) image to a plane without padding
+   private void extractPlane(int[] src, int srcIdx, int st, int w, int h,
+      int channel, int[] dst)
+   {
+      int dstIdx = 0;
+
+      if (this.channels == 1)
+      {
+         for (int j=0; j<h; j++, srcIdx+=st, dstIdx+=w)
+            System.arraycopy(src, srcIdx, dst, dstIdx, w);
+
+         return;
+      }
+
+      final int shift = 16 - (channel << 3);
+
+      for (int j=0; j<h; j++, srcIdx+=st)
+      {
+         for (int i=0; i<w; i++)
+            dst[dstIdx++] = (src[srcIdx+i] >> shift) & 0xFF;
+      }
+   }
+
+
+   // Copy a plane without padding to one channel of a (packed) image
+   private void insertPlane(int[] src, int[] dst, int dstIdx, int st, int w, int h,
+      int channel)
+   {
+      int srcIdx = 0;
+
+      if (this.channels == 1)
+      {
+         for (int j=0; j<h; j++, srcIdx+=w, dstIdx+=st)
+            System.arraycopy(src, srcIdx, dst, dstIdx, w);
+
+         return;
+      }
+
+      final int shift = 16 - (channel << 3);
+      final int mask = ~(0xFF << shift);
+
+      for (int j=0; j<h; j++, dstIdx+=st)
+      {
+         for (int i=0; i<w; i++)
+         {
+            int val = src[srcIdx++];
+            val = (val < 0) ? 0 : ((val > 255) ? 255 : val);
+
+            // The first channel clears the previous content of the pixel
+            dst[dstIdx+i] = (channel == 0) ? (val << shift) : ((dst[dstIdx+i] & mask) | (val << shift));
+         }
+      }
+   }
+
+
+
+   // Create a down sampler reducing an image without padding by 2 in each
+   // dimension
+   public interface DownSamplerFactory
+   {
+      public DownSampler create(int width, int height);
+   }
+
+
+   // Create an up sampler enlarging an image without padding by 2 in each
+   // dimension
+   public interface UpSamplerFactory
+   {
+      public UpSampler create(int width, int height);
+   }
+}